@@ -3,14 +3,19 @@ package simpledb;
 import Zql.*;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
 import jline.SimpleCompletor;
 import simpledb.common.Database;
 import simpledb.common.DbException;
+import simpledb.common.Stats;
 import simpledb.common.Type;
 import simpledb.execution.*;
 import simpledb.optimizer.LogicalPlan;
@@ -20,10 +25,25 @@ import simpledb.storage.StringField;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 public class Parser {
-    static boolean explain = false;
+    boolean explain = false;
+    /** The number of workers that scan each large table of a query */
+    int parallelism = 1;
+    /** Where this session's results and messages go */
+    private final PrintStream out;
+
+    /** Create a Parser that prints to System.out */
+    public Parser() {
+        this(System.out);
+    }
+
+    /** Create a Parser that prints its results and messages to out */
+    public Parser(PrintStream out) {
+        this.out = out;
+    }
 
     public static Predicate.Op getOp(String s) throws simpledb.ParsingException {
         if (s.equals("="))
@@ -187,23 +207,20 @@ public class Parser {
 
         // now look for group by fields
         ZGroupBy gby = q.getGroupBy();
-        String groupByField = null;
+        List<String> groupByFields = new ArrayList<>();
         if (gby != null) {
             @SuppressWarnings("unchecked")
             List<ZExp> gbs = gby.getGroupBy();
-            if (gbs.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "At most one grouping field expression supported.");
-            }
-            if (gbs.size() == 1) {
-                ZExp gbe = gbs.get(0);
+            for (ZExp gbe : gbs) {
                 if (!(gbe instanceof ZConstant)) {
                     throw new simpledb.ParsingException(
                             "Complex grouping expressions (" + gbe
                                     + ") not supported.");
                 }
-                groupByField = ((ZConstant) gbe).getValue();
-                System.out.println("GROUP BY FIELD : " + groupByField);
+                String groupByField = ((ZConstant) gbe).getValue();
+                out.println("GROUP BY FIELD : " + groupByField);
+                groupByFields.add(groupByField);
+                lp.addGroupBy(groupByField);
             }
 
         }
@@ -212,8 +229,7 @@ public class Parser {
         // validity
         @SuppressWarnings("unchecked")
         List<ZSelectItem> selectList = q.getSelect();
-        String aggField = null;
-        String aggFun = null;
+        boolean hasAgg = false;
 
         for (int i = 0; i < selectList.size(); i++) {
             ZSelectItem si = selectList.get(i);
@@ -223,20 +239,18 @@ public class Parser {
                         "Expressions in SELECT list are not supported.");
             }
             if (si.getAggregate() != null) {
-                if (aggField != null) {
-                    throw new simpledb.ParsingException(
-                            "Aggregates over multiple fields not supported.");
-                }
-                aggField = ((ZConstant) ((ZExpression) si.getExpression())
+                String aggField = ((ZConstant) ((ZExpression) si.getExpression())
                         .getOperand(0)).getValue();
-                aggFun = si.getAggregate();
-                System.out.println("Aggregate field is " + aggField
+                String aggFun = si.getAggregate();
+                out.println("Aggregate field is " + aggField
                         + ", agg fun is : " + aggFun);
                 lp.addProjectField(aggField, aggFun);
+                lp.addAggregate(aggFun, aggField);
+                hasAgg = true;
             } else {
-                if (groupByField != null
-                        && !(groupByField.equals(si.getTable() + "."
-                                + si.getColumn()) || groupByField.equals(si
+                if (!groupByFields.isEmpty()
+                        && !(groupByFields.contains(si.getTable() + "."
+                                + si.getColumn()) || groupByFields.contains(si
                                 .getColumn()))) {
                     throw new simpledb.ParsingException("Non-aggregate field "
                             + si.getColumn()
@@ -246,30 +260,23 @@ public class Parser {
             }
         }
 
-        if (groupByField != null && aggFun == null) {
+        if (!groupByFields.isEmpty() && !hasAgg) {
             throw new simpledb.ParsingException("GROUP BY without aggregation.");
         }
-
-        if (aggFun != null) {
-            lp.addAggregate(aggFun, aggField, groupByField);
-        }
         // sort the data
 
         if (q.getOrderBy() != null) {
             @SuppressWarnings("unchecked")
             List<ZOrderBy> obys = q.getOrderBy();
-            if (obys.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "Multi-attribute ORDER BY is not supported.");
-            }
-            ZOrderBy oby = obys.get(0);
-            if (!(oby.getExpression() instanceof ZConstant)) {
-                throw new simpledb.ParsingException(
-                        "Complex ORDER BY's are not supported");
-            }
-            ZConstant f = (ZConstant) oby.getExpression();
+            for (ZOrderBy oby : obys) {
+                if (!(oby.getExpression() instanceof ZConstant)) {
+                    throw new simpledb.ParsingException(
+                            "Complex ORDER BY's are not supported");
+                }
+                ZConstant f = (ZConstant) oby.getExpression();
 
-            lp.addOrderBy(f.getValue(), oby.getAscOrder());
+                lp.addOrderBy(f.getValue(), oby.getAscOrder());
+            }
 
         }
         return lp;
@@ -278,12 +285,49 @@ public class Parser {
     private Transaction curtrans = null;
     private boolean inUserTrans = false;
 
+    // the LIMIT and OFFSET of the statement being processed, which
+    // stripLimit takes off it since Zql cannot parse them
+    private int limit = Limit.NO_LIMIT;
+    private int offset = 0;
+
+    private static final Pattern LIMIT_CLAUSE = Pattern.compile(
+            "(?is)^(.*?)\\s+(?:LIMIT\\s+(\\d+)(?:\\s+OFFSET\\s+(\\d+))?|OFFSET\\s+(\\d+))\\s*(;?)\\s*$");
+
+    /**
+     * Take a trailing "LIMIT n", "LIMIT n OFFSET m" or "OFFSET m" clause off
+     * the statement s, and remember it for the query s holds.
+     *
+     * @return s without the clause
+     * @throws simpledb.ParsingException if the clause has a number too big
+     *         for an int
+     */
+    String stripLimit(String s) throws simpledb.ParsingException {
+        limit = Limit.NO_LIMIT;
+        offset = 0;
+        Matcher m = LIMIT_CLAUSE.matcher(s);
+        if (!m.matches())
+            return s;
+        try {
+            if (m.group(2) != null)
+                limit = Integer.parseInt(m.group(2));
+            if (m.group(3) != null)
+                offset = Integer.parseInt(m.group(3));
+            if (m.group(4) != null)
+                offset = Integer.parseInt(m.group(4));
+        } catch (NumberFormatException e) {
+            throw new simpledb.ParsingException("LIMIT or OFFSET out of range");
+        }
+        return m.group(1) + m.group(5);
+    }
+
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws IOException,
             simpledb.ParsingException, Zql.ParseException {
         Query query = new Query(tId);
 
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        lp.setParallelism(parallelism);
+        lp.setLimit(limit, offset);
         OpIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
@@ -300,13 +344,13 @@ public class Parser {
                 java.lang.reflect.Method m = c.getMethod(
                         "updateOperatorCardinality", p, h, h);
 
-                System.out.println("The query plan is:");
+                out.println("The query plan is:");
                 m.invoke(null, physicalPlan,
                         lp.getTableAliasToIdMapping(), TableStats.getStatsMap());
                 c = Class.forName("simpledb.optimizer.QueryPlanVisualizer");
                 m = c.getMethod(
-                        "printQueryPlanTree", OpIterator.class, System.out.getClass());
-                m.invoke(c.newInstance(), physicalPlan,System.out);
+                        "printQueryPlanTree", OpIterator.class, PrintStream.class);
+                m.invoke(c.newInstance(), physicalPlan,out);
             } catch (ClassNotFoundException | SecurityException ignored) {
             } catch (NoSuchMethodException | InstantiationException | InvocationTargetException | IllegalAccessException | IllegalArgumentException e) {
                 e.printStackTrace();
@@ -431,46 +475,62 @@ public class Parser {
                 if (curtrans == null)
                     throw new ParsingException(
                             "No transaction is currently running");
-                curtrans.commit();
+                Transaction committing = curtrans;
                 curtrans = null;
                 inUserTrans = false;
-                System.out.println("Transaction " + curtrans.getId().getId()
-                        + " committed.");
+                try {
+                    committing.commit();
+                    out.println("Transaction " + committing.getId().getId()
+                            + " committed.");
+                } catch (TransactionAbortedException e) {
+                    // an optimistic transaction lost to a conflicting commit
+                    out.println("Transaction " + committing.getId().getId()
+                            + " aborted because of a conflicting transaction");
+                }
                 break;
             case "ROLLBACK":
                 if (curtrans == null)
                     throw new ParsingException(
                             "No transaction is currently running");
                 curtrans.abort();
+                out.println("Transaction " + curtrans.getId().getId()
+                        + " aborted.");
                 curtrans = null;
                 inUserTrans = false;
-                System.out.println("Transaction " + curtrans.getId().getId()
-                        + " aborted.");
 
                 break;
             case "SET TRANSACTION":
-                if (curtrans != null)
-                    throw new ParsingException(
-                            "Can't start new transactions until current transaction has been committed or rolledback.");
-                curtrans = new Transaction();
-                curtrans.start();
-                inUserTrans = true;
-                System.out.println("Started a new transaction tid = "
-                        + curtrans.getId().getId());
+                beginUserTransaction(s.isReadOnly() ? Transaction.Mode.SNAPSHOT
+                        : Transaction.Mode.LOCKING);
                 break;
             default:
                 throw new ParsingException("Unsupported operation");
         }
     }
 
+    /** Start a transaction that runs until COMMIT or ROLLBACK */
+    private void beginUserTransaction(Transaction.Mode mode)
+            throws IOException, simpledb.ParsingException {
+        if (curtrans != null)
+            throw new ParsingException(
+                    "Can't start new transactions until current transaction has been committed or rolledback.");
+        curtrans = new Transaction(mode);
+        curtrans.start();
+        inUserTrans = true;
+        out.println("Started a new transaction tid = "
+                + curtrans.getId().getId());
+    }
+
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException, IOException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
+        ByteArrayInputStream bis = new ByteArrayInputStream(stripLimit(s).getBytes());
         ZqlParser p = new ZqlParser(bis);
         try {
             ZStatement stmt = p.readStatement();
             if (stmt instanceof ZQuery) {
-                return parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                lp.setLimit(limit, offset);
+                return lp;
             }
         } catch (Zql.ParseException e) {
             throw new simpledb.ParsingException(
@@ -490,22 +550,59 @@ public class Parser {
     }
 
     public void processNextStatement(String s) {
+        if (isShowStats(s)) {
+            showStats();
+            return;
+        }
         processNextStatement(new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8)));
     }
 
+    /** @return true if s is SHOW STATS, which Zql cannot parse */
+    static boolean isShowStats(String s) {
+        return normalize(s).equalsIgnoreCase("show stats");
+    }
+
+    /**
+     * @return true if s is SET TRANSACTION OPTIMISTIC, which starts an
+     *         optimistic transaction and which Zql cannot parse
+     */
+    static boolean isSetOptimistic(String s) {
+        return normalize(s).equalsIgnoreCase("set transaction optimistic");
+    }
+
+    /** @return s on one line, with single spaces and no trailing semicolon */
+    private static String normalize(String s) {
+        return s.trim().replaceAll("\\s+", " ").replaceAll(" ?;$", "");
+    }
+
+    /** Print the locking and transaction statistics, with the hottest locks */
+    public void showStats() {
+        out.print(Database.getStats().report(Stats.DEFAULT_TOP_K));
+    }
+
     public void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
+            String text = readAll(is);
+            if (isSetOptimistic(text)) {
+                beginUserTransaction(Transaction.Mode.OPTIMISTIC);
+                return;
+            }
+            ZqlParser p = new ZqlParser(new ByteArrayInputStream(
+                    stripLimit(text).getBytes(StandardCharsets.UTF_8)));
             ZStatement s = p.readStatement();
+            if (!(s instanceof ZQuery) && (limit != Limit.NO_LIMIT || offset > 0))
+                throw new simpledb.ParsingException("LIMIT and OFFSET are only supported on queries");
 
             Query query = null;
             if (s instanceof ZTransactStmt)
                 handleTransactStatement((ZTransactStmt) s);
             else {
                 if (!this.inUserTrans) {
-                    curtrans = new Transaction();
+                    // a query on its own only reads, so it reads a snapshot
+                    // without taking locks or writing to the log
+                    curtrans = new Transaction(s instanceof ZQuery);
                     curtrans.start();
-                    System.out.println("Started a new transaction tid = "
+                    out.println("Started a new transaction tid = "
                             + curtrans.getId().getId());
                 }
                 try {
@@ -519,24 +616,24 @@ public class Parser {
                         query = handleQueryStatement((ZQuery) s,
                                 curtrans.getId());
                     else {
-                        System.out
+                        out
                                 .println("Can't parse "
                                         + s
                                         + "\n -- parser only handles SQL transactions, insert, delete, and select statements");
                     }
                     if (query != null)
-                        query.execute();
+                        query.execute(out);
 
                     if (!inUserTrans && curtrans != null) {
                         curtrans.commit();
-                        System.out.println("Transaction "
+                        out.println("Transaction "
                                 + curtrans.getId().getId() + " committed.");
                     }
                 } catch (Throwable a) {
                     // Whenever error happens, abort the current transaction
                     if (curtrans != null) {
                         curtrans.abort();
-                        System.out.println("Transaction "
+                        out.println("Transaction "
                                 + curtrans.getId().getId()
                                 + " aborted because of unhandled error");
                     }
@@ -555,23 +652,33 @@ public class Parser {
             }
 
         } catch (IOException | DbException e) {
-            e.printStackTrace();
+            e.printStackTrace(out);
         } catch (simpledb.ParsingException e) {
-            System.out
+            out
                     .println("Invalid SQL expression: \n \t" + e.getMessage());
         } catch (ParseException | TokenMgrError e) {
-            System.out.println("Invalid SQL expression: \n \t " + e);
+            out.println("Invalid SQL expression: \n \t " + e);
         }
     }
 
+    private static String readAll(InputStream is) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = is.read(buf)) != -1)
+            out.write(buf, 0, n);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "order by", "limit", "offset",
+            "show stats", "set transaction optimistic" };
 
     public static void main(String[] argv) throws IOException {
 
-        if (argv.length < 1 || argv.length > 4) {
+        if (argv.length < 1 || argv.length > 8) {
             System.out.println("Invalid number of arguments.\n" + usage);
             System.exit(0);
         }
@@ -581,19 +688,23 @@ public class Parser {
         p.start(argv);
     }
 
-    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
+    static final String usage = "Usage: parser catalogFile [-explain] [-parallel workers] [-f queryFile | -serve port]";
     static final int SLEEP_TIME = 1000;
+    static final long CHECKPOINT_MILLIS = 60000;
+    static final long CHECKPOINT_LOG_BYTES = 16 << 20;
 
     protected void shutdown() {
-        System.out.println("Bye");
+        out.println("Bye");
     }
 
     protected boolean interactive = true;
+    private int servePort;
 
     protected void start(String[] argv) throws IOException {
         // first add tables to database
         Database.getCatalog().loadSchema(argv[0]);
         TableStats.computeStatistics();
+        Database.getLogFile().startCheckpointer(CHECKPOINT_MILLIS, CHECKPOINT_LOG_BYTES);
 
         String queryFile = null;
 
@@ -601,23 +712,40 @@ public class Parser {
             for (int i = 1; i < argv.length; i++) {
                 if (argv[i].equals("-explain")) {
                     explain = true;
-                    System.out.println("Explain mode enabled.");
+                    out.println("Explain mode enabled.");
+                } else if (argv[i].equals("-parallel")) {
+                    if (++i == argv.length) {
+                        out.println("Expected number of workers after -parallel\n"
+                                + usage);
+                        System.exit(0);
+                    }
+                    parallelism = Integer.parseInt(argv[i]);
+                    out.println("Scanning with " + parallelism + " workers.");
                 } else if (argv[i].equals("-f")) {
                     interactive = false;
                     if (i++ == argv.length) {
-                        System.out.println("Expected file name after -f\n"
+                        out.println("Expected file name after -f\n"
                                 + usage);
                         System.exit(0);
                     }
                     queryFile = argv[i];
 
+                } else if (argv[i].equals("-serve")) {
+                    if (++i == argv.length) {
+                        out.println("Expected port after -serve\n"
+                                + usage);
+                        System.exit(0);
+                    }
+                    servePort = Integer.parseInt(argv[i]);
                 } else {
-                    System.out.println("Unknown argument " + argv[i] + "\n "
+                    out.println("Unknown argument " + argv[i] + "\n "
                             + usage);
                 }
             }
         }
-        if (!interactive) {
+        if (servePort > 0) {
+            serveSessions(servePort);
+        } else if (!interactive) {
             try {
                 // curtrans = new Transaction();
                 // curtrans.start();
@@ -630,13 +758,13 @@ public class Parser {
                 long startTime = System.currentTimeMillis();
                 processNextStatement(new FileInputStream(queryFile));
                 long time = System.currentTimeMillis() - startTime;
-                System.out.printf("----------------\n%.2f seconds\n\n",
+                out.printf("----------------\n%.2f seconds\n\n",
                         ((double) time / 1000.0));
-                System.out.println("Press Enter to exit");
+                out.println("Press Enter to exit");
                 System.in.read();
                 this.shutdown();
             } catch (FileNotFoundException e) {
-                System.out.println("Unable to find query file" + queryFile);
+                out.println("Unable to find query file" + queryFile);
                 e.printStackTrace();
             }
         } else { // no query file, run interactive prompt
@@ -652,39 +780,101 @@ public class Parser {
             String line;
             boolean quit = false;
             while (!quit && (line = reader.readLine("SimpleDB> ")) != null) {
-                // Split statements at ';': handles multiple statements on one
-                // line, or one
-                // statement spread across many lines
-                while (line.indexOf(';') >= 0) {
-                    int split = line.indexOf(';');
-                    buffer.append(line, 0, split + 1);
-                    String cmd = buffer.toString().trim();
-                    cmd = cmd.substring(0, cmd.length() - 1).trim() + ";";
-                    byte[] statementBytes = cmd.getBytes(StandardCharsets.UTF_8);
-                    if (cmd.equalsIgnoreCase("quit;")
-                            || cmd.equalsIgnoreCase("exit;")) {
-                        shutdown();
-                        quit = true;
-                        break;
-                    }
+                quit = processLine(line, buffer);
+            }
+        }
+        Database.getLogFile().shutdown();
+    }
+
+    /**
+     * Accept client connections on port forever, running the statements each
+     * client sends as its own session on a {@link SessionExecutor}.  Each
+     * session has its own Parser, which writes its results back to the
+     * client and starts with this Parser's -explain and -parallel settings.
+     */
+    private void serveSessions(int port) throws IOException {
+        try (SessionExecutor sessions = new SessionExecutor();
+             ServerSocket server = new ServerSocket(port)) {
+            out.println("Serving sessions on port " + port
+                    + (sessions.usesVirtualThreads() ? " with virtual threads." : "."));
+            while (true) {
+                Socket client = server.accept();
+                Parser session = new Parser(new PrintStream(client.getOutputStream(), true, "UTF-8"));
+                session.explain = explain;
+                session.parallelism = parallelism;
+                sessions.submit(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8), session);
+            }
+        }
+    }
 
-                    long startTime = System.currentTimeMillis();
-                    processNextStatement(new ByteArrayInputStream(
-                            statementBytes));
-                    long time = System.currentTimeMillis() - startTime;
-                    System.out.printf("----------------\n%.2f seconds\n\n",
-                            ((double) time / 1000.0));
+    /**
+     * Run a session: read statements from in until it ends or a quit or
+     * exit statement, and process them as the interactive prompt would.
+     * Each session needs its own Parser, since the Parser holds the
+     * session's current transaction.
+     *
+     * @see SessionExecutor
+     */
+    public void runSession(BufferedReader in) throws IOException {
+        StringBuilder buffer = new StringBuilder();
+        String line;
+        boolean quit = false;
+        while (!quit && (line = in.readLine()) != null) {
+            quit = processLine(line, buffer);
+        }
+        if (inUserTrans && curtrans != null) {
+            // the client went away in the middle of a transaction
+            curtrans.abort();
+            curtrans = null;
+            inUserTrans = false;
+        }
+        out.flush();
+    }
 
-                    // Grab the remainder of the line
-                    line = line.substring(split + 1);
-                    buffer = new StringBuilder();
-                }
-                if (line.length() > 0) {
-                    buffer.append(line);
-                    buffer.append("\n");
-                }
+    /**
+     * Process the statements completed by line, keeping any unfinished
+     * statement in buffer.
+     *
+     * @return true if the line held a quit or exit statement
+     */
+    private boolean processLine(String line, StringBuilder buffer) {
+        // Split statements at ';': handles multiple statements on one
+        // line, or one
+        // statement spread across many lines
+        while (line.indexOf(';') >= 0) {
+            int split = line.indexOf(';');
+            buffer.append(line, 0, split + 1);
+            String cmd = buffer.toString().trim();
+            cmd = cmd.substring(0, cmd.length() - 1).trim() + ";";
+            byte[] statementBytes = cmd.getBytes(StandardCharsets.UTF_8);
+            if (cmd.equalsIgnoreCase("quit;")
+                    || cmd.equalsIgnoreCase("exit;")) {
+                shutdown();
+                return true;
             }
+            if (isShowStats(cmd)) {
+                showStats();
+                line = line.substring(split + 1);
+                buffer.setLength(0);
+                continue;
+            }
+
+            long startTime = System.currentTimeMillis();
+            processNextStatement(new ByteArrayInputStream(
+                    statementBytes));
+            long time = System.currentTimeMillis() - startTime;
+            out.printf("----------------\n%.2f seconds\n\n",
+                    ((double) time / 1000.0));
+
+            // Grab the remainder of the line
+            line = line.substring(split + 1);
+            buffer.setLength(0);
+        }
+        if (line.length() > 0) {
+            buffer.append(line);
+            buffer.append("\n");
         }
+        return false;
     }
 }
 
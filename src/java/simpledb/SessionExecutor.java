@@ -0,0 +1,111 @@
+package simpledb;
+
+import java.io.BufferedReader;
+import java.io.Reader;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SessionExecutor runs client sessions, each with its own {@link Parser},
+ * one thread per session.
+ * <p>
+ * Where the JVM has virtual threads (Java 21 and later), every session gets
+ * one, so thousands of mostly idle sessions cost little more than their
+ * Parsers.  The engine's blocking paths -- lock waits, log forces, page
+ * flushes -- wait on java.util.concurrent locks rather than monitors, so a
+ * blocked session does not pin a carrier thread.  On older JVMs sessions
+ * run on a cached pool of platform threads instead.
+ * <p>
+ * Each session prints through its own Parser's PrintStream; sessions
+ * started without one share System.out, so their output interleaves.
+ */
+public class SessionExecutor implements AutoCloseable {
+
+    private final ExecutorService executor;
+    private final boolean virtual;
+
+    /**
+     * Create a SessionExecutor that runs sessions on virtual threads if the
+     * JVM has them, and on platform threads otherwise.
+     */
+    public SessionExecutor() {
+        ExecutorService virtualExecutor = newVirtualThreadPerTaskExecutor();
+        if (virtualExecutor != null) {
+            executor = virtualExecutor;
+            virtual = true;
+        } else {
+            executor = Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "simpledb-session");
+                t.setDaemon(true);
+                return t;
+            });
+            virtual = false;
+        }
+    }
+
+    // looked up reflectively, since the sources target Java 8
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /** @return true if sessions run on virtual threads */
+    public boolean usesVirtualThreads() {
+        return virtual;
+    }
+
+    /**
+     * Start a session that reads its statements from in, and closes in when
+     * it ends.
+     *
+     * @return a Future that completes when the session ends
+     */
+    public Future<?> submit(Reader in) {
+        return submit(in, new Parser());
+    }
+
+    /**
+     * Start a session that reads its statements from in and runs them with
+     * session, which no other session may share.  in is closed when the
+     * session ends.
+     *
+     * @return a Future that completes when the session ends
+     */
+    public Future<?> submit(Reader in, Parser session) {
+        return executor.submit(() -> {
+            try (BufferedReader reader = new BufferedReader(in)) {
+                session.runSession(reader);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Stop accepting sessions and wait for the running ones to end.  An
+     * interrupt does not cut the wait short; the thread's interrupt status
+     * is restored once the sessions have ended.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                    break;
+                }
+                // keep waiting; sessions end when their input does
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
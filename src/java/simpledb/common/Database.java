@@ -23,8 +23,11 @@ public class Database {
 
     private final static String LOGFILENAME = "log";
     private final LogFile _logfile;
+    private final Stats _stats;
 
     private Database() {
+        _stats = new Stats();
+        Stats.registerMBean();
         _catalog = new Catalog();
         _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
         LogFile tmp = null;
@@ -48,6 +51,11 @@ public class Database {
         return _instance.get()._bufferpool;
     }
 
+    /** Return the locking and transaction statistics of the static Database instance */
+    public static Stats getStats() {
+        return _instance.get()._stats;
+    }
+
     /** Return the catalog of the static Database instance */
     public static Catalog getCatalog() {
         return _instance.get()._catalog;
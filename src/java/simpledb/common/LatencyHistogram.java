@@ -0,0 +1,101 @@
+package simpledb.common;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LatencyHistogram records durations in nanoseconds into power-of-two
+ * buckets, cheaply enough to sit on hot paths: recording a value is a few
+ * uncontended additions, with no locking.  Percentiles are estimated from
+ * the buckets, and so are accurate to within a factor of two.
+ *
+ * @Threadsafe
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKETS = 64;
+
+    // bucket i counts values v with 2^(i-1) <= v < 2^i; bucket 0 counts v <= 0
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /** Record one duration of nanos nanoseconds */
+    public void record(long nanos) {
+        int bucket = nanos <= 0 ? 0 : BUCKETS - Long.numberOfLeadingZeros(nanos);
+        buckets[Math.min(bucket, BUCKETS - 1)].increment();
+        count.increment();
+        total.add(Math.max(nanos, 0));
+        max.accumulate(nanos);
+    }
+
+    /** @return the number of durations recorded */
+    public long count() {
+        return count.sum();
+    }
+
+    /** @return the sum of the durations recorded, in nanoseconds */
+    public long totalNanos() {
+        return total.sum();
+    }
+
+    /** @return the mean duration, in nanoseconds, or 0 if none was recorded */
+    public double meanNanos() {
+        long n = count();
+        return n == 0 ? 0 : (double) totalNanos() / n;
+    }
+
+    /** @return the longest duration recorded, in nanoseconds */
+    public long maxNanos() {
+        return max.get();
+    }
+
+    /**
+     * @param q the quantile, between 0 and 1
+     * @return an upper bound on the q-quantile of the durations recorded,
+     *         in nanoseconds, or 0 if none was recorded
+     */
+    public long percentileNanos(double q) {
+        long[] counts = new long[BUCKETS];
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+            n += counts[i];
+        }
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(q * n);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank && counts[i] > 0) {
+                return i == 0 ? 0 : Math.min(1L << Math.min(i, 62), maxNanos());
+            }
+        }
+        return maxNanos();
+    }
+
+    /** Forget every duration recorded so far */
+    public void reset() {
+        for (LongAdder bucket : buckets) {
+            bucket.reset();
+        }
+        count.reset();
+        total.reset();
+        max.reset();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("n=%d mean=%.3fms p50=%.3fms p99=%.3fms max=%.3fms", count(),
+                meanNanos() / 1e6, percentileNanos(0.5) / 1e6, percentileNanos(0.99) / 1e6, maxNanos() / 1e6);
+    }
+}
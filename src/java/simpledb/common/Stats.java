@@ -0,0 +1,251 @@
+package simpledb.common;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Stats collects counters and latency histograms about locking and
+ * transactions: how often and how long transactions wait for locks, and for
+ * which resources; how many are chosen as deadlock victims; how long commits,
+ * aborts and whole transactions take; how long the log takes to force; and
+ * how many background checkpoints have failed.
+ * <p>
+ * Recording is cheap -- counters are LongAdders and histograms are lock-free
+ * -- and waits are only timed once a lock could not be granted at once.
+ * The statistics of the current Database are published over JMX as
+ * simpledb:type=Stats, and printed by the parser's SHOW STATS command.
+ *
+ * @Threadsafe
+ */
+public class Stats implements StatsMXBean {
+
+    /** Number of hot locks reported by default */
+    public static final int DEFAULT_TOP_K = 10;
+
+    /** Resources beyond this many are counted in the totals, but not tracked one by one */
+    private static final int MAX_TRACKED_RESOURCES = 4096;
+
+    private static final double NANOS_PER_MILLI = 1e6;
+
+    private static final AtomicBoolean registered = new AtomicBoolean(false);
+
+    /** The lock waits on one resource */
+    private static class Contention {
+        final LongAdder waits = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+    }
+
+    private final LongAdder lockAcquisitions = new LongAdder();
+    private final LatencyHistogram lockWaits = new LatencyHistogram();
+    private final LongAdder deadlockAborts = new LongAdder();
+    private final LatencyHistogram commits = new LatencyHistogram();
+    private final LatencyHistogram aborts = new LatencyHistogram();
+    private final LatencyHistogram lifetimes = new LatencyHistogram();
+    private final LatencyHistogram logForces = new LatencyHistogram();
+    private final LongAdder checkpointFailures = new LongAdder();
+    private final ConcurrentHashMap<Object, Contention> contention = new ConcurrentHashMap<>();
+
+    /**
+     * Publish the statistics of whichever Database is current over JMX, if
+     * that has not been done already.  Failure to do so is not fatal.
+     */
+    static void registerMBean() {
+        if (!registered.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            StatsMXBean current = new StatsMXBean() {
+                public long getLockAcquisitions() { return Database.getStats().getLockAcquisitions(); }
+                public long getLockWaits() { return Database.getStats().getLockWaits(); }
+                public double getLockWaitMeanMillis() { return Database.getStats().getLockWaitMeanMillis(); }
+                public double getLockWaitP99Millis() { return Database.getStats().getLockWaitP99Millis(); }
+                public long getDeadlockAborts() { return Database.getStats().getDeadlockAborts(); }
+                public long getCommits() { return Database.getStats().getCommits(); }
+                public long getAborts() { return Database.getStats().getAborts(); }
+                public double getCommitP99Millis() { return Database.getStats().getCommitP99Millis(); }
+                public double getAbortP99Millis() { return Database.getStats().getAbortP99Millis(); }
+                public double getTransactionLifetimeP99Millis() {
+                    return Database.getStats().getTransactionLifetimeP99Millis();
+                }
+                public long getLogForces() { return Database.getStats().getLogForces(); }
+                public double getLogForceP99Millis() { return Database.getStats().getLogForceP99Millis(); }
+                public long getCheckpointFailures() { return Database.getStats().getCheckpointFailures(); }
+                public String[] getHotLocks() { return Database.getStats().getHotLocks(); }
+                public void reset() { Database.getStats().reset(); }
+            };
+            server.registerMBean(current, new ObjectName("simpledb:type=Stats"));
+        } catch (JMException | SecurityException e) {
+            Debug.log("cannot register statistics MBean: %s", e);
+        }
+    }
+
+    /** Count a lock granted */
+    public void lockAcquired() {
+        lockAcquisitions.increment();
+    }
+
+    /**
+     * Record a wait for a lock on resource.
+     *
+     * @param nanos how long the requester waited, whether or not it got the lock
+     */
+    public void lockWaited(Object resource, long nanos) {
+        lockWaits.record(nanos);
+        Contention c = contention.get(resource);
+        if (c == null) {
+            if (contention.size() >= MAX_TRACKED_RESOURCES) {
+                return;
+            }
+            c = contention.computeIfAbsent(resource, k -> new Contention());
+        }
+        c.waits.increment();
+        c.nanos.add(nanos);
+    }
+
+    /** Count a transaction aborted to break a deadlock */
+    public void deadlockAborted() {
+        deadlockAborts.increment();
+    }
+
+    /**
+     * Record the completion of a transaction.
+     *
+     * @param commit true for a commit, false for an abort
+     * @param nanos how long completing it took
+     */
+    public void transactionCompleted(boolean commit, long nanos) {
+        (commit ? commits : aborts).record(nanos);
+    }
+
+    /** Record how long a transaction ran, from start to completion */
+    public void transactionLifetime(long nanos) {
+        lifetimes.record(nanos);
+    }
+
+    /** Record how long forcing the log to disk took */
+    public void logForced(long nanos) {
+        logForces.record(nanos);
+    }
+
+    /** Count a background checkpoint that failed */
+    public void checkpointFailed() {
+        checkpointFailures.increment();
+    }
+
+    /** @return the histogram of lock wait times */
+    public LatencyHistogram lockWaitTimes() {
+        return lockWaits;
+    }
+
+    /**
+     * @param k how many resources to report
+     * @return the k resources with the most time spent waiting to lock them,
+     *         most first, each with its number of waits and total wait time
+     */
+    public List<String> hotLocks(int k) {
+        List<Map.Entry<Object, Contention>> entries = new ArrayList<>(contention.entrySet());
+        entries.sort((a, b) -> Long.compare(b.getValue().nanos.sum(), a.getValue().nanos.sum()));
+        List<String> hot = new ArrayList<>();
+        for (Map.Entry<Object, Contention> e : entries.subList(0, Math.min(k, entries.size()))) {
+            hot.add(String.format("%s: %d waits, %.3fms", e.getKey(), e.getValue().waits.sum(),
+                    e.getValue().nanos.sum() / NANOS_PER_MILLI));
+        }
+        return hot;
+    }
+
+    public long getLockAcquisitions() {
+        return lockAcquisitions.sum();
+    }
+
+    public long getLockWaits() {
+        return lockWaits.count();
+    }
+
+    public double getLockWaitMeanMillis() {
+        return lockWaits.meanNanos() / NANOS_PER_MILLI;
+    }
+
+    public double getLockWaitP99Millis() {
+        return lockWaits.percentileNanos(0.99) / NANOS_PER_MILLI;
+    }
+
+    public long getDeadlockAborts() {
+        return deadlockAborts.sum();
+    }
+
+    public long getCommits() {
+        return commits.count();
+    }
+
+    public long getAborts() {
+        return aborts.count();
+    }
+
+    public double getCommitP99Millis() {
+        return commits.percentileNanos(0.99) / NANOS_PER_MILLI;
+    }
+
+    public double getAbortP99Millis() {
+        return aborts.percentileNanos(0.99) / NANOS_PER_MILLI;
+    }
+
+    public double getTransactionLifetimeP99Millis() {
+        return lifetimes.percentileNanos(0.99) / NANOS_PER_MILLI;
+    }
+
+    public long getLogForces() {
+        return logForces.count();
+    }
+
+    public double getLogForceP99Millis() {
+        return logForces.percentileNanos(0.99) / NANOS_PER_MILLI;
+    }
+
+    public long getCheckpointFailures() {
+        return checkpointFailures.sum();
+    }
+
+    public String[] getHotLocks() {
+        return hotLocks(DEFAULT_TOP_K).toArray(new String[0]);
+    }
+
+    public void reset() {
+        lockAcquisitions.reset();
+        lockWaits.reset();
+        deadlockAborts.reset();
+        commits.reset();
+        aborts.reset();
+        lifetimes.reset();
+        logForces.reset();
+        checkpointFailures.reset();
+        contention.clear();
+    }
+
+    /**
+     * @param k how many hot locks to list
+     * @return a human-readable report of everything recorded
+     */
+    public String report(int k) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("lock acquisitions:     ").append(getLockAcquisitions()).append('\n');
+        sb.append("lock waits:            ").append(lockWaits).append('\n');
+        sb.append("deadlock aborts:       ").append(getDeadlockAborts()).append('\n');
+        sb.append("commits:               ").append(commits).append('\n');
+        sb.append("aborts:                ").append(aborts).append('\n');
+        sb.append("transaction lifetimes: ").append(lifetimes).append('\n');
+        sb.append("log forces:            ").append(logForces).append('\n');
+        sb.append("checkpoint failures:   ").append(getCheckpointFailures()).append('\n');
+        sb.append("hot locks:\n");
+        for (String hot : hotLocks(k)) {
+            sb.append("  ").append(hot).append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,40 @@
+package simpledb.common;
+
+/**
+ * The management interface through which {@link Stats} are published over
+ * JMX, as simpledb:type=Stats.  Durations are in milliseconds.
+ */
+public interface StatsMXBean {
+
+    long getLockAcquisitions();
+
+    long getLockWaits();
+
+    double getLockWaitMeanMillis();
+
+    double getLockWaitP99Millis();
+
+    long getDeadlockAborts();
+
+    long getCommits();
+
+    long getAborts();
+
+    double getCommitP99Millis();
+
+    double getAbortP99Millis();
+
+    double getTransactionLifetimeP99Millis();
+
+    long getLogForces();
+
+    double getLogForceP99Millis();
+
+    long getCheckpointFailures();
+
+    /** @return the resources transactions waited longest for, hottest first */
+    String[] getHotLocks();
+
+    /** Forget everything recorded so far */
+    void reset();
+}
@@ -13,8 +13,11 @@ import java.util.NoSuchElementException;
  * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
  * min). Note that we only support aggregates over a single column, grouped by a
  * single column.
+ * <p>
+ * When its child can run a batch at a time, Aggregate reads it that way and
+ * merges whole batches into the aggregator.
  */
-public class Aggregate extends Operator {
+public class Aggregate extends Operator implements BatchIterator {
 
     private static final long serialVersionUID = 1L;
 
@@ -66,8 +69,15 @@ public class Aggregate extends Operator {
 
     private void mergeTuple() throws TransactionAbortedException, DbException {
         child.open();
-        while (child.hasNext()) {
-            aggregator.mergeTupleIntoGroup(child.next());
+        if (child instanceof BatchIterator) {
+            TupleBatch batch;
+            while ((batch = ((BatchIterator) child).nextBatch()) != null) {
+                aggregator.mergeBatch(batch);
+            }
+        } else {
+            while (child.hasNext()) {
+                aggregator.mergeTupleIntoGroup(child.next());
+            }
         }
         child.close();
     }
@@ -145,6 +155,10 @@ public class Aggregate extends Operator {
             return null;
     }
 
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        return BatchAdapter.pack(iterator);
+    }
+
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
         iterator.rewind();
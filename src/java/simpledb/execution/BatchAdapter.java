@@ -0,0 +1,79 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.NoSuchElementException;
+
+/**
+ * BatchAdapter packs the tuples of an operator that only works a tuple at a
+ * time into batches, for an operator above it that works a batch at a
+ * time.
+ */
+public class BatchAdapter implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final OpIterator child;
+
+    /**
+     * @return it, if it can run a batch at a time, or an adapter that packs
+     *         its tuples into batches; the adapter opens, rewinds and closes
+     *         it too, but need not be opened if it already is
+     */
+    public static BatchIterator of(OpIterator it) {
+        if (it instanceof BatchIterator) {
+            return (BatchIterator) it;
+        }
+        return new BatchAdapter(it);
+    }
+
+    public BatchAdapter(OpIterator child) {
+        this.child = child;
+    }
+
+    /**
+     * @return a batch of the next tuples of it, up to
+     *         {@link TupleBatch#CAPACITY}, or null if it has no more
+     */
+    static TupleBatch pack(OpIterator it) throws DbException, TransactionAbortedException {
+        if (!it.hasNext()) {
+            return null;
+        }
+        TupleBatch batch = new TupleBatch(it.getTupleDesc(), TupleBatch.CAPACITY);
+        while (!batch.isFull() && it.hasNext()) {
+            batch.add(it.next());
+        }
+        return batch;
+    }
+
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        return pack(child);
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        return child.hasNext();
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+        return child.next();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void close() {
+        child.close();
+    }
+}
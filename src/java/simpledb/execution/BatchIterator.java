@@ -0,0 +1,25 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.transaction.TransactionAbortedException;
+
+/**
+ * BatchIterator is implemented by operators that can also run a batch at a
+ * time, returning their output as {@link TupleBatch}es.  An operator pulls
+ * batches from those of its children that are BatchIterators, and wraps
+ * the others in a {@link BatchAdapter}; a {@link TupleAdapter} turns a
+ * BatchIterator back into an ordinary iterator over Tuples.
+ * <p>
+ * open, rewind and close work as for any OpIterator.  Between an open or
+ * rewind and the next rewind or close, a caller must either pull batches
+ * with nextBatch or pull tuples with hasNext and next, not both.
+ */
+public interface BatchIterator extends OpIterator {
+
+    /**
+     * @return the next batch of output, holding at least one row, or null
+     *         if there is no more output
+     * @throws IllegalStateException If the iterator has not been opened
+     */
+    TupleBatch nextBatch() throws DbException, TransactionAbortedException;
+}
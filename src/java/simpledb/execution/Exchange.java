@@ -0,0 +1,426 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Exchange runs several producer pipelines in parallel on a
+ * {@link QueryScheduler}, and brings their output back into a
+ * single-threaded plan.
+ * <p>
+ * The producers are typically copies of the same pipeline -- a
+ * {@link MorselScan} under Filters and Projects -- sharing one
+ * {@link MorselSource}, so that between them they process the table once.
+ * A gathering Exchange returns the union of their tuples in no particular
+ * order.  {@link #repartition} instead builds several Exchanges, each
+ * returning the tuples whose value of a field hashes to it, so that the
+ * operators above can themselves run in parallel on disjoint partitions.
+ * <p>
+ * Each producer runs as a sequence of scheduler steps.  A producer that
+ * streams -- a MorselScan under Filters and Projects -- ends its step after
+ * each morsel and queues its next one behind every other query's, so
+ * concurrent queries share the workers fairly.  Any other producer only
+ * ends a step when it parks.  The operators above an Exchange are not
+ * scheduled at all; they run on the thread that reads it.  Producers hand
+ * tuples over in batches; once a gathering Exchange holds
+ * {@link #QUEUE_BATCHES} batches, its producers park, without holding a
+ * worker, until the consumer takes one, so that they cannot run
+ * arbitrarily far ahead of it.
+ * The queues of a repartitioning Exchange are unbounded, since its
+ * consumers may drain one partition after another.
+ */
+public class Exchange extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The number of tuples a worker hands over at a time */
+    public static final int BATCH_SIZE = 256;
+
+    /** The number of batches a gathering Exchange buffers */
+    public static final int QUEUE_BATCHES = 64;
+
+    private final Producers producers;
+    private final int partition;
+
+    /**
+     * Create a gathering Exchange.
+     *
+     * @param producers the pipelines to run in parallel; they must all have
+     *                  the same TupleDesc
+     */
+    public Exchange(OpIterator[] producers) {
+        this(producers, QueryScheduler.shared());
+    }
+
+    /**
+     * Create a gathering Exchange whose producers run on the given
+     * scheduler rather than the shared one.
+     */
+    public Exchange(OpIterator[] producers, QueryScheduler scheduler) {
+        this(new Producers(producers, -1, 1, scheduler), 0);
+    }
+
+    private Exchange(Producers producers, int partition) {
+        this.producers = producers;
+        this.partition = partition;
+    }
+
+    /**
+     * Create the Exchanges that repartition the output of producers by
+     * hash.  The producers start when the first of the Exchanges is opened
+     * and stop once all of them are closed; a repartitioning Exchange
+     * cannot be rewound.
+     *
+     * @param producers the pipelines to run in parallel
+     * @param field the index of the field to partition on
+     * @param partitions the number of partitions
+     * @return the Exchanges, one per partition
+     */
+    public static Exchange[] repartition(OpIterator[] producers, int field, int partitions) {
+        Producers shared = new Producers(producers, field, partitions, QueryScheduler.shared());
+        Exchange[] exchanges = new Exchange[partitions];
+        for (int i = 0; i < partitions; i++) {
+            exchanges[i] = new Exchange(shared, i);
+        }
+        return exchanges;
+    }
+
+    /** @return the name of this operator, for plan visualization */
+    public String getName() {
+        return producers.field < 0
+                ? "gather(" + producers.children.length + ")"
+                : "repartition(" + partition + "/" + producers.queues.size() + ")";
+    }
+
+    public TupleDesc getTupleDesc() {
+        return producers.children[0].getTupleDesc();
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        super.open();
+        if (!started) {
+            producers.open();
+            started = true;
+        }
+        batch = null;
+        position = 0;
+        finished = 0;
+    }
+
+    public void close() {
+        super.close();
+        if (started) {
+            producers.close();
+            started = false;
+        }
+        batch = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (producers.field >= 0) {
+            throw new DbException("a repartitioning exchange cannot be rewound");
+        }
+        close();
+        for (OpIterator child : producers.children) {
+            child.rewind();
+        }
+        open();
+    }
+
+    private boolean started = false;
+    private List<Tuple> batch;
+    private int position;
+    private int finished;
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        while (batch == null || position == batch.size()) {
+            if (finished == producers.children.length) {
+                producers.rethrow();
+                return null;
+            }
+            try {
+                batch = producers.queues.get(partition).take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new TransactionAbortedException();
+            }
+            position = 0;
+            producers.taken();
+            if (batch == Producers.DONE) {
+                finished++;
+                batch = null;
+                producers.rethrow();
+            }
+        }
+        return batch.get(position++);
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return producers.children;
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        producers.children = children;
+    }
+
+    /**
+     * The producer pipelines of one or more Exchanges, and the scheduler
+     * steps running them.
+     */
+    private static class Producers {
+        /** Sent by each producer, to every partition, once it is done */
+        static final List<Tuple> DONE = new ArrayList<>();
+
+        OpIterator[] children;
+        final int field;
+        final List<BlockingQueue<List<Tuple>>> queues = new ArrayList<>();
+        private final QueryScheduler scheduler;
+        private final ConcurrentLinkedQueue<Producer> parked = new ConcurrentLinkedQueue<>();
+        private final AtomicReference<Throwable> error = new AtomicReference<>();
+        private volatile boolean closing;
+        private CountDownLatch stopped;
+        private int consumers = 0;
+
+        Producers(OpIterator[] children, int field, int partitions, QueryScheduler scheduler) {
+            this.children = children;
+            this.field = field;
+            this.scheduler = scheduler;
+            for (int i = 0; i < partitions; i++) {
+                queues.add(new LinkedBlockingQueue<>());
+            }
+        }
+
+        synchronized void open() {
+            if (consumers++ > 0) {
+                return;
+            }
+            error.set(null);
+            closing = false;
+            parked.clear();
+            for (BlockingQueue<List<Tuple>> q : queues) {
+                q.clear();
+            }
+            stopped = new CountDownLatch(children.length);
+            for (OpIterator child : children) {
+                scheduler.submit(new Producer(child));
+            }
+        }
+
+        /** Stop the producers once the last consumer closes, and wait for them */
+        void close() {
+            CountDownLatch latch;
+            synchronized (this) {
+                if (consumers == 0 || --consumers > 0) {
+                    return;
+                }
+                closing = true;
+                latch = stopped;
+            }
+            boolean interrupted = false;
+            while (true) {
+                // wake parked producers so that they see closing and stop
+                unpark(Integer.MAX_VALUE);
+                for (BlockingQueue<List<Tuple>> q : queues) {
+                    q.clear();
+                }
+                try {
+                    if (latch.await(10, TimeUnit.MILLISECONDS)) {
+                        break;
+                    }
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            for (BlockingQueue<List<Tuple>> q : queues) {
+                q.clear();
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /** Called by a consumer after taking a batch, to make room for a parked producer */
+        void taken() {
+            if (field < 0) {
+                unpark(1);
+            }
+        }
+
+        /** @return true if a producer may hand partition p another batch */
+        private boolean hasRoom(int p) {
+            return field >= 0 || queues.get(p).size() < QUEUE_BATCHES;
+        }
+
+        private void park(Producer producer) {
+            parked.add(producer);
+            // the consumer may have made room, or closed, before we were parked
+            if (closing || hasRoom(0)) {
+                unpark(1);
+            }
+        }
+
+        private void unpark(int n) {
+            Producer producer;
+            while (n-- > 0 && (producer = parked.poll()) != null) {
+                scheduler.submit(producer);
+            }
+        }
+
+        /** What a step of a Producer leaves it to do next */
+        private enum Next { PAUSE, PARK, FINISH }
+
+        /**
+         * One producer pipeline, run a step at a time.  Only one step of a
+         * producer is ever queued or running, so its state needs no locking.
+         */
+        private class Producer implements Runnable {
+            private final OpIterator child;
+            private final boolean pausable;
+            private final List<List<Tuple>> out = new ArrayList<>();
+            /** The partitions whose batch in out is full, waiting for room */
+            private final ArrayDeque<Integer> full = new ArrayDeque<>();
+            private boolean opened = false;
+            private boolean exhausted = false;
+
+            Producer(OpIterator child) {
+                this.child = child;
+                this.pausable = streams(child);
+                for (int i = 0; i < queues.size(); i++) {
+                    out.add(new ArrayList<>(BATCH_SIZE));
+                }
+            }
+
+            public void run() {
+                Next next;
+                QueryScheduler.beginStep(pausable);
+                try {
+                    next = step();
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                    next = Next.FINISH;
+                } finally {
+                    QueryScheduler.endStep();
+                }
+                switch (next) {
+                    case PAUSE:
+                        scheduler.submit(this);
+                        break;
+                    case PARK:
+                        park(this);
+                        break;
+                    default:
+                        finish();
+                }
+            }
+
+            private Next step() throws DbException, TransactionAbortedException {
+                if (closing) {
+                    return Next.FINISH;
+                }
+                if (!opened) {
+                    child.open();
+                    opened = true;
+                }
+                if (!handOver()) {
+                    return Next.PARK;
+                }
+                if (exhausted) {
+                    return Next.FINISH;
+                }
+                while (!closing && child.hasNext()) {
+                    Tuple t = child.next();
+                    int p = field < 0 ? 0 : Math.floorMod(t.getField(field).hashCode(), queues.size());
+                    List<Tuple> batch = out.get(p);
+                    batch.add(t);
+                    if (batch.size() == BATCH_SIZE) {
+                        full.add(p);
+                        if (!handOver()) {
+                            return Next.PARK;
+                        }
+                    }
+                }
+                if (closing) {
+                    return Next.FINISH;
+                }
+                if (QueryScheduler.stepPaused()) {
+                    return Next.PAUSE;
+                }
+                exhausted = true;
+                for (int p = 0; p < out.size(); p++) {
+                    if (!out.get(p).isEmpty()) {
+                        full.add(p);
+                    }
+                }
+                return handOver() ? Next.FINISH : Next.PARK;
+            }
+
+            /** @return true if every full batch was handed over */
+            private boolean handOver() {
+                while (!full.isEmpty()) {
+                    int p = full.peek();
+                    if (!hasRoom(p)) {
+                        return false;
+                    }
+                    queues.get(p).add(out.get(p));
+                    out.set(p, new ArrayList<>(BATCH_SIZE));
+                    full.poll();
+                }
+                return true;
+            }
+
+            private void finish() {
+                if (opened) {
+                    child.close();
+                }
+                for (BlockingQueue<List<Tuple>> q : queues) {
+                    q.add(DONE);
+                }
+                stopped.countDown();
+            }
+        }
+
+        /**
+         * @return true if the pipeline only streams tuples from a
+         *         MorselScan, so that it may stop at any morsel boundary
+         */
+        private static boolean streams(OpIterator it) {
+            if (it instanceof MorselScan) {
+                return true;
+            }
+            if (it instanceof Filter || it instanceof Project) {
+                OpIterator[] children = ((Operator) it).getChildren();
+                return children != null && children.length == 1 && streams(children[0]);
+            }
+            return false;
+        }
+
+        /** Throw the first error any producer ran into, in the consumer */
+        void rethrow() throws DbException, TransactionAbortedException {
+            Throwable e = error.get();
+            if (e == null) {
+                return;
+            }
+            if (e instanceof TransactionAbortedException) {
+                throw new TransactionAbortedException();
+            }
+            if (e instanceof DbException) {
+                throw (DbException) e;
+            }
+            throw new DbException("exchange producer failed: " + e);
+        }
+    }
+}
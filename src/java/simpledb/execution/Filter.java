@@ -8,9 +8,10 @@ import simpledb.storage.TupleDesc;
 import java.util.*;
 
 /**
- * Filter is an operator that implements a relational select.
+ * Filter is an operator that implements a relational select.  Run a batch at
+ * a time, it narrows the selection vector of each batch of its child.
  */
-public class Filter extends Operator {
+public class Filter extends Operator implements BatchIterator {
 
     private static final long serialVersionUID = 1L;
 
@@ -81,17 +82,28 @@ public class Filter extends Operator {
         return null;
     }
 
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        BatchIterator in = BatchAdapter.of(child);
+        TupleBatch batch;
+        while ((batch = in.nextBatch()) != null) {
+            if (predicate.select(batch) > 0) {
+                return batch;
+            }
+        }
+        return null;
+    }
+
     @Override
     public OpIterator[] getChildren() {
         // some code goes here
 
-        return null;
+        return new OpIterator[]{child};
     }
 
     @Override
     public void setChildren(OpIterator[] children) {
         // some code goes here
-
+        child = children[0];
     }
 
 }
@@ -0,0 +1,122 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.IntField;
+import simpledb.storage.TupleDesc;
+
+/**
+ * GroupedAggregate is the common part of the operators that compute several
+ * aggregates of their child, grouped by any number of fields:
+ * {@link HashAggregate} and {@link StreamAggregate}.  Their output has the
+ * group fields, in the order given, followed by the aggregates, which are
+ * INT_TYPE.
+ */
+public abstract class GroupedAggregate extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    protected final int[] groupFields;
+    protected final int[] aggFields;
+    protected final Aggregator.Op[] ops;
+
+    /**
+     * @param rowTd the TupleDesc of the tuples being aggregated
+     * @param groupFields the fields to group by; empty for a single group
+     * @param aggFields the fields to aggregate
+     * @param ops for each field of aggFields, the aggregate to compute: MIN,
+     *        MAX, SUM, AVG or COUNT, and only COUNT of a STRING_TYPE field
+     */
+    protected GroupedAggregate(TupleDesc rowTd, int[] groupFields, int[] aggFields, Aggregator.Op[] ops) {
+        checkAggregates(rowTd, aggFields, ops);
+        this.groupFields = groupFields.clone();
+        this.aggFields = aggFields.clone();
+        this.ops = ops.clone();
+    }
+
+    /** @return the fields grouped by, in the order they are output */
+    public int[] getGroupFields() {
+        return groupFields.clone();
+    }
+
+    /** @return the fields aggregated, in the order they are output */
+    public int[] getAggregateFields() {
+        return aggFields.clone();
+    }
+
+    /** @return the aggregate computed of each of the aggregate fields */
+    public Aggregator.Op[] getAggregateOps() {
+        return ops.clone();
+    }
+
+    /** @return the names of the group fields, in the child */
+    public String[] getGroupFieldNames() {
+        TupleDesc td = getTupleDesc();
+        String[] names = new String[groupFields.length];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = td.getFieldName(i);
+        }
+        return names;
+    }
+
+    /**
+     * @throws IllegalArgumentException unless there is one of MIN, MAX, SUM,
+     *         AVG or COUNT for each of at least one field of aggFields, and
+     *         only COUNT of STRING_TYPE fields
+     */
+    static void checkAggregates(TupleDesc rowTd, int[] aggFields, Aggregator.Op[] ops) {
+        if (aggFields.length == 0 || aggFields.length != ops.length) {
+            throw new IllegalArgumentException("need one operator for each of at least one aggregate");
+        }
+        for (int i = 0; i < ops.length; i++) {
+            switch (ops[i]) {
+                case MIN:
+                case MAX:
+                case SUM:
+                case AVG:
+                    if (rowTd.getFieldType(aggFields[i]) == Type.INT_TYPE)
+                        break;
+                    throw new IllegalArgumentException("cannot compute " + ops[i] + " of a string");
+                case COUNT:
+                    break;
+                default:
+                    throw new IllegalArgumentException("unsupported aggregate " + ops[i]);
+            }
+        }
+    }
+
+    /**
+     * @return the TupleDesc of the group fields of rowTd, followed by an
+     *         INT_TYPE field for each aggregate
+     */
+    static TupleDesc aggregateTupleDesc(TupleDesc rowTd, int[] groupFields, int[] aggFields,
+                                        Aggregator.Op[] ops) {
+        int n = groupFields.length;
+        Type[] types = new Type[n + aggFields.length];
+        String[] names = new String[types.length];
+        for (int i = 0; i < n; i++) {
+            types[i] = rowTd.getFieldType(groupFields[i]);
+            names[i] = rowTd.getFieldName(groupFields[i]);
+        }
+        for (int a = 0; a < aggFields.length; a++) {
+            types[n + a] = Type.INT_TYPE;
+            names[n + a] = ops[a] + "(" + rowTd.getFieldName(aggFields[a]) + ")";
+        }
+        return new TupleDesc(types, names);
+    }
+
+    /**
+     * @param value the minimum, maximum or sum accumulated for op
+     * @param count the number of tuples in the group
+     * @return field i of td, the value of op
+     * @throws DbException if the value does not fit in an INT_TYPE
+     */
+    static IntField aggregateField(TupleDesc td, int i, Aggregator.Op op, long value, long count)
+            throws DbException {
+        long v = op == Aggregator.Op.COUNT ? count : op == Aggregator.Op.AVG ? value / count : value;
+        if (v != (int) v) {
+            throw new DbException(td.getFieldName(i) + " of " + v + " does not fit in an INT_TYPE");
+        }
+        return new IntField((int) v);
+    }
+}
@@ -0,0 +1,566 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.BufferPool;
+import simpledb.storage.IntField;
+import simpledb.storage.SpillFile;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * HashAggregate computes several aggregates of its child, grouped by any
+ * number of fields, in a hash table whose size is bounded.
+ * <p>
+ * The child is read when HashAggregate is opened, a batch at a time.  Each
+ * group is a number in an open-addressing table of group numbers; its key
+ * and the running values of its aggregates, accumulated as longs, are kept
+ * in one primitive array per column, indexed by group number.  Once the
+ * table holds as many groups as fit in {@link #DEFAULT_BUFFER_PAGES} pages,
+ * the groups it has go on being aggregated in memory, but tuples of new
+ * groups are split by hash into {@link #PARTITIONS} partitions and written
+ * to {@link SpillFile}s.  When the groups in memory have been returned, each
+ * partition is aggregated in turn by a HashAggregate one level down, which
+ * hashes differently and so splits a partition that is still too big
+ * again.  Below {@link #MAX_LEVEL} the table grows as big as it needs to.
+ * <p>
+ * The output has the group fields, in the order given, followed by the
+ * aggregates, which are INT_TYPE.  Like {@link Aggregate}, it has no tuples
+ * when the child has none.  Groups come out in no particular order.
+ * <p>
+ * {@link #parallel} splits the aggregation in two {@link Phase}s, so that
+ * the workers of a parallel scan each aggregate the tuples they read in a
+ * table of their own, and a final HashAggregate merges what they found for
+ * each group.
+ */
+public class HashAggregate extends GroupedAggregate {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The number of pages of groups held in memory by default */
+    public static final int DEFAULT_BUFFER_PAGES = 100;
+
+    /** The number of partitions each level splits its spilled tuples into */
+    static final int PARTITIONS = 16;
+
+    /** The deepest level that still spills */
+    static final int MAX_LEVEL = 4;
+
+    private static final int INITIAL_GROUPS = 64;
+
+    /** The part of an aggregation a HashAggregate does */
+    public enum Phase {
+        /** Aggregate tuples into the final aggregates */
+        COMPLETE,
+        /**
+         * Aggregate tuples into the state of each aggregate: after the group
+         * fields, the count of the group, then the minimum or maximum for
+         * MIN and MAX, and the sum for SUM and AVG.  Counts and sums are
+         * longs, each split into two INT_TYPE fields, high word first.
+         */
+        PARTIAL,
+        /** Merge the output of PARTIAL HashAggregates into the final aggregates */
+        FINAL
+    }
+
+    private OpIterator child;
+    private final int bufferPages;
+    private final int level;
+    private final Phase phase;
+    private final TupleDesc rowTd;
+    private final TupleDesc td;
+    private final boolean[] intKey;
+    private final int maxGroups;
+
+    // the fields of the child holding the group fields, and the first field
+    // of the state of each aggregate in the output of the PARTIAL phase
+    private final int[] keyColumns;
+    private final int[] stateFields;
+
+    // the group table: slots holds group number + 1, or 0 if empty
+    private int[] slots;
+    private int numGroups;
+    private int[] hashes;
+    private int[][] intKeys;
+    private String[][] stringKeys;
+    private long[][] values;
+    private long[] counts;
+
+    // the tuples of groups that did not fit, by partition, and the
+    // aggregate of the partition being returned
+    private SpillFile[] partitions;
+    private int partition;
+    private HashAggregate current;
+    private int outPos;
+
+    /**
+     * @param child the tuples to aggregate
+     * @param groupFields the fields to group by; empty for a single group
+     * @param aggFields the fields to aggregate
+     * @param ops for each field of aggFields, the aggregate to compute: MIN,
+     *        MAX, SUM, AVG or COUNT, and only COUNT of a STRING_TYPE field
+     */
+    public HashAggregate(OpIterator child, int[] groupFields, int[] aggFields, Aggregator.Op[] ops) {
+        this(child, groupFields, aggFields, ops, DEFAULT_BUFFER_PAGES);
+    }
+
+    /**
+     * @param bufferPages the number of pages of groups to hold in memory
+     *        before spilling
+     */
+    public HashAggregate(OpIterator child, int[] groupFields, int[] aggFields, Aggregator.Op[] ops,
+                         int bufferPages) {
+        this(child, child.getTupleDesc(), groupFields, aggFields, ops, bufferPages, 0, Phase.COMPLETE);
+    }
+
+    /**
+     * @param rowTd the TupleDesc of the tuples being aggregated, which is
+     *        that of the child unless the phase is FINAL
+     * @param level how many times the child's tuples have already been
+     *        partitioned by enclosing HashAggregates
+     */
+    private HashAggregate(OpIterator child, TupleDesc rowTd, int[] groupFields, int[] aggFields,
+                          Aggregator.Op[] ops, int bufferPages, int level, Phase phase) {
+        super(rowTd, groupFields, aggFields, ops);
+        this.child = child;
+        this.bufferPages = bufferPages;
+        this.level = level;
+        this.phase = phase;
+        this.rowTd = rowTd;
+
+        int n = groupFields.length;
+        intKey = new boolean[n];
+        keyColumns = new int[n];
+        int keySize = 0;
+        for (int i = 0; i < n; i++) {
+            intKey[i] = rowTd.getFieldType(groupFields[i]) == Type.INT_TYPE;
+            keyColumns[i] = phase == Phase.FINAL ? i : groupFields[i];
+            keySize += rowTd.getFieldType(groupFields[i]).getLen();
+        }
+        stateFields = stateColumns(n, ops);
+        td = phase == Phase.PARTIAL ? partialTupleDesc() : aggregateTupleDesc(rowTd, groupFields, aggFields, ops);
+        // a group takes its key, a long per aggregate and one for its count,
+        // its hash, and two slots of the table, which is at most half full
+        int groupSize = keySize + 8 * (aggFields.length + 1) + 12;
+        maxGroups = Math.max(1, bufferPages * BufferPool.getPageSize() / groupSize);
+    }
+
+    /**
+     * Aggregate the tuples of several pipelines in parallel: each is
+     * aggregated by a PARTIAL HashAggregate, with an equal share of the
+     * default buffer, under an {@link Exchange} that runs them on the
+     * {@link QueryScheduler}, and a FINAL HashAggregate merges their output.
+     *
+     * @param workers pipelines that between them return the tuples to
+     *        aggregate, all with the same TupleDesc
+     * @return the FINAL HashAggregate
+     * @see #HashAggregate(OpIterator, int[], int[], Aggregator.Op[])
+     */
+    public static HashAggregate parallel(OpIterator[] workers, int[] groupFields, int[] aggFields,
+                                         Aggregator.Op[] ops) {
+        TupleDesc rowTd = workers[0].getTupleDesc();
+        int share = Math.max(1, DEFAULT_BUFFER_PAGES / workers.length);
+        OpIterator[] partials = new OpIterator[workers.length];
+        for (int i = 0; i < workers.length; i++) {
+            partials[i] = new HashAggregate(workers[i], rowTd, groupFields, aggFields, ops,
+                    share, 0, Phase.PARTIAL);
+        }
+        return new HashAggregate(new Exchange(partials), rowTd, groupFields, aggFields, ops,
+                DEFAULT_BUFFER_PAGES, 0, Phase.FINAL);
+    }
+
+    /** @return the number of INT_TYPE fields of the state of op in the PARTIAL phase */
+    private static int stateWidth(Aggregator.Op op) {
+        switch (op) {
+            case MIN:
+            case MAX:
+                return 1;
+            case SUM:
+            case AVG:
+                return 2;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @return the field of the output of the PARTIAL phase where the state
+     *         of each aggregate starts, after n group fields and the count
+     */
+    private static int[] stateColumns(int n, Aggregator.Op[] ops) {
+        int[] columns = new int[ops.length];
+        int c = n + 2;
+        for (int a = 0; a < ops.length; a++) {
+            columns[a] = c;
+            c += stateWidth(ops[a]);
+        }
+        return columns;
+    }
+
+    private TupleDesc partialTupleDesc() {
+        int n = groupFields.length;
+        int last = ops.length - 1;
+        int width = stateFields[last] + stateWidth(ops[last]);
+        Type[] types = new Type[width];
+        String[] names = new String[width];
+        Arrays.fill(types, Type.INT_TYPE);
+        for (int i = 0; i < n; i++) {
+            types[i] = rowTd.getFieldType(groupFields[i]);
+            names[i] = rowTd.getFieldName(groupFields[i]);
+        }
+        names[n] = "count(*)#hi";
+        names[n + 1] = "count(*)#lo";
+        for (int a = 0; a < ops.length; a++) {
+            String name = ops[a] + "(" + rowTd.getFieldName(aggFields[a]) + ")";
+            if (stateWidth(ops[a]) == 1) {
+                names[stateFields[a]] = name;
+            } else if (stateWidth(ops[a]) == 2) {
+                names[stateFields[a]] = name + "#hi";
+                names[stateFields[a] + 1] = name + "#lo";
+            }
+        }
+        return new TupleDesc(types, names);
+    }
+
+    /** @return the part of the aggregation this HashAggregate does */
+    public Phase getPhase() {
+        return phase;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, NoSuchElementException, TransactionAbortedException {
+        child.open();
+        build();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        release();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (slots == null) {
+            // closed, as an Exchange closes the producers it rewinds: open
+            // aggregates the rewound child again
+            child.rewind();
+        } else if (partitions == null) {
+            outPos = 0;
+        } else {
+            // the partitions are deleted as they are returned, so aggregate
+            // the child again
+            child.rewind();
+            build();
+        }
+    }
+
+    private void release() {
+        if (current != null) {
+            current.close();
+            current = null;
+        }
+        if (partitions != null) {
+            for (SpillFile f : partitions) {
+                if (f != null) {
+                    f.delete();
+                }
+            }
+            partitions = null;
+        }
+        slots = null;
+        hashes = null;
+        intKeys = null;
+        stringKeys = null;
+        values = null;
+        counts = null;
+        numGroups = 0;
+    }
+
+    /** Aggregate the whole child. */
+    private void build() throws DbException, TransactionAbortedException {
+        release();
+        int n = groupFields.length;
+        slots = new int[INITIAL_GROUPS * 2];
+        hashes = new int[INITIAL_GROUPS];
+        intKeys = new int[n][];
+        stringKeys = new String[n][];
+        for (int i = 0; i < n; i++) {
+            if (intKey[i]) {
+                intKeys[i] = new int[INITIAL_GROUPS];
+            } else {
+                stringKeys[i] = new String[INITIAL_GROUPS];
+            }
+        }
+        values = new long[aggFields.length][INITIAL_GROUPS];
+        counts = new long[INITIAL_GROUPS];
+        partition = 0;
+        outPos = 0;
+
+        BatchIterator in = BatchAdapter.of(child);
+        int[][] batchInts = new int[n][];
+        String[][] batchStrings = new String[n][];
+        int[][] aggInts = new int[aggFields.length][];
+        // in the FINAL phase, the state fields of the child, by field
+        int[][] state = phase == Phase.FINAL ? new int[child.getTupleDesc().numFields()][] : null;
+        TupleBatch batch;
+        while ((batch = in.nextBatch()) != null) {
+            for (int i = 0; i < n; i++) {
+                batchInts[i] = batch.getInts(keyColumns[i]);
+                batchStrings[i] = batch.getStrings(keyColumns[i]);
+            }
+            if (state != null) {
+                for (int c = n; c < state.length; c++) {
+                    state[c] = batch.getInts(c);
+                }
+            } else {
+                for (int a = 0; a < aggFields.length; a++) {
+                    aggInts[a] = batch.getInts(aggFields[a]);
+                }
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                int r = batch.row(i);
+                int h = hash(batch, r);
+                int g = find(batchInts, batchStrings, r, h);
+                if (g < 0) {
+                    if (numGroups >= maxGroups && level < MAX_LEVEL) {
+                        spill(batch.getTuple(i), h);
+                        continue;
+                    }
+                    g = insert(batchInts, batchStrings, r, h);
+                }
+                if (state != null) {
+                    merge(g, state, r);
+                } else {
+                    accumulate(g, aggInts, r);
+                }
+            }
+        }
+    }
+
+    /** @return the hash of the group fields of physical row r, hashed differently at each level */
+    private int hash(TupleBatch batch, int r) {
+        int h = level * 0x9E3779B9;
+        for (int field : keyColumns) {
+            h = h * 31 + batch.hash(field, r);
+        }
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        return h ^ (h >>> 16);
+    }
+
+    /** @return the group of physical row r, or -1 if it has none yet */
+    private int find(int[][] batchInts, String[][] batchStrings, int r, int h) {
+        int mask = slots.length - 1;
+        for (int s = h & mask; slots[s] != 0; s = (s + 1) & mask) {
+            int g = slots[s] - 1;
+            if (hashes[g] == h && sameKey(g, batchInts, batchStrings, r)) {
+                return g;
+            }
+        }
+        return -1;
+    }
+
+    private boolean sameKey(int g, int[][] batchInts, String[][] batchStrings, int r) {
+        for (int i = 0; i < groupFields.length; i++) {
+            if (intKey[i] ? intKeys[i][g] != batchInts[i][r] : !stringKeys[i][g].equals(batchStrings[i][r])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Add a group for the key of physical row r. */
+    private int insert(int[][] batchInts, String[][] batchStrings, int r, int h) {
+        int g = numGroups++;
+        if (g == hashes.length) {
+            grow();
+        }
+        hashes[g] = h;
+        for (int i = 0; i < groupFields.length; i++) {
+            if (intKey[i]) {
+                intKeys[i][g] = batchInts[i][r];
+            } else {
+                stringKeys[i][g] = batchStrings[i][r];
+            }
+        }
+        for (int a = 0; a < ops.length; a++) {
+            values[a][g] = ops[a] == Aggregator.Op.MIN ? Long.MAX_VALUE
+                    : ops[a] == Aggregator.Op.MAX ? Long.MIN_VALUE : 0;
+        }
+        if (numGroups * 2 > slots.length) {
+            slots = new int[slots.length * 2];
+            for (int i = 0; i < g; i++) {
+                place(i);
+            }
+        }
+        place(g);
+        return g;
+    }
+
+    private void place(int g) {
+        int mask = slots.length - 1;
+        int s = hashes[g] & mask;
+        while (slots[s] != 0) {
+            s = (s + 1) & mask;
+        }
+        slots[s] = g + 1;
+    }
+
+    private void grow() {
+        int capacity = hashes.length * 2;
+        hashes = Arrays.copyOf(hashes, capacity);
+        for (int i = 0; i < groupFields.length; i++) {
+            if (intKey[i]) {
+                intKeys[i] = Arrays.copyOf(intKeys[i], capacity);
+            } else {
+                stringKeys[i] = Arrays.copyOf(stringKeys[i], capacity);
+            }
+        }
+        for (int a = 0; a < ops.length; a++) {
+            values[a] = Arrays.copyOf(values[a], capacity);
+        }
+        counts = Arrays.copyOf(counts, capacity);
+    }
+
+    /** Add physical row r to the aggregates of group g. */
+    private void accumulate(int g, int[][] aggInts, int r) {
+        counts[g]++;
+        for (int a = 0; a < ops.length; a++) {
+            switch (ops[a]) {
+                case MIN:
+                    values[a][g] = Math.min(values[a][g], aggInts[a][r]);
+                    break;
+                case MAX:
+                    values[a][g] = Math.max(values[a][g], aggInts[a][r]);
+                    break;
+                case SUM:
+                case AVG:
+                    values[a][g] += aggInts[a][r];
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /** Merge the state in physical row r of a PARTIAL phase into group g. */
+    private void merge(int g, int[][] state, int r) {
+        int n = groupFields.length;
+        counts[g] += join(state[n], state[n + 1], r);
+        for (int a = 0; a < ops.length; a++) {
+            int c = stateFields[a];
+            switch (ops[a]) {
+                case MIN:
+                    values[a][g] = Math.min(values[a][g], state[c][r]);
+                    break;
+                case MAX:
+                    values[a][g] = Math.max(values[a][g], state[c][r]);
+                    break;
+                case SUM:
+                case AVG:
+                    values[a][g] += join(state[c], state[c + 1], r);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /** @return the long split into the words hi and lo of physical row r */
+    private static long join(int[] hi, int[] lo, int r) {
+        return ((long) hi[r] << 32) | (lo[r] & 0xFFFFFFFFL);
+    }
+
+    private void spill(Tuple t, int h) throws DbException {
+        if (partitions == null) {
+            partitions = new SpillFile[PARTITIONS];
+        }
+        int p = h >>> 28;
+        if (partitions[p] == null) {
+            partitions[p] = new SpillFile(child.getTupleDesc());
+        }
+        partitions[p].add(t);
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if (outPos < numGroups) {
+            return group(outPos++);
+        }
+        while (partitions != null) {
+            if (current != null) {
+                if (current.hasNext()) {
+                    return current.next();
+                }
+                current.close();
+                current = null;
+                partitions[partition].delete();
+                partitions[partition++] = null;
+            }
+            while (partition < PARTITIONS && partitions[partition] == null) {
+                partition++;
+            }
+            if (partition == PARTITIONS) {
+                return null;
+            }
+            current = new HashAggregate(partitions[partition].iterator(), rowTd, groupFields, aggFields,
+                    ops, bufferPages, level + 1, phase);
+            current.open();
+        }
+        return null;
+    }
+
+    /** @return the output tuple of group g */
+    private Tuple group(int g) throws DbException {
+        Tuple t = new Tuple(td);
+        int n = groupFields.length;
+        for (int i = 0; i < n; i++) {
+            t.setField(i, intKey[i] ? new IntField(intKeys[i][g])
+                    : new StringField(stringKeys[i][g], Type.STRING_LEN));
+        }
+        if (phase == Phase.PARTIAL) {
+            t.setField(n, new IntField((int) (counts[g] >>> 32)));
+            t.setField(n + 1, new IntField((int) counts[g]));
+            for (int a = 0; a < ops.length; a++) {
+                int c = stateFields[a];
+                long v = values[a][g];
+                switch (stateWidth(ops[a])) {
+                    case 1:
+                        t.setField(c, new IntField((int) v));
+                        break;
+                    case 2:
+                        t.setField(c, new IntField((int) (v >>> 32)));
+                        t.setField(c + 1, new IntField((int) v));
+                        break;
+                    default:
+                        break;
+                }
+            }
+            return t;
+        }
+        for (int a = 0; a < ops.length; a++) {
+            t.setField(n + a, aggregateField(td, n + a, ops[a], values[a][g], counts[g]));
+        }
+        return t;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{child};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        child = children[0];
+    }
+}
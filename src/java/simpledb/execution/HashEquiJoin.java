@@ -9,13 +9,25 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * If child1 has more than {@link #MAP_SIZE} tuples, the join turns into a
+ * hybrid hash join (see {@link SpillingHashJoin}): both inputs are split by
+ * hash into partitions, all but one of which are spilled to disk and then
+ * joined pair by pair, so that each input is read twice at most instead of
+ * child2 being rescanned once per MAP_SIZE tuples of child1.
+ * <p>
+ * Run a batch at a time, it loads up to {@link #MAP_SIZE} rows of child1
+ * into columns, chains them in a hash table of row numbers, and probes it
+ * with the batches of child2, copying the matching rows column by column
+ * into its output batches.
  */
-public class HashEquiJoin extends Operator {
+public class HashEquiJoin extends Operator implements BatchIterator {
 
     private static final long serialVersionUID = 1L;
     private final JoinPredicate pred;
     private OpIterator child1, child2;
     private final TupleDesc comboTD;
+    private final int level;
     transient private Tuple t1 = null;
     transient private Tuple t2 = null;
 
@@ -31,6 +43,15 @@ public class HashEquiJoin extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, 0);
+    }
+
+    /**
+     * @param level how many times the children's tuples have already been
+     *              partitioned by enclosing hybrid hash joins
+     */
+    HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2, int level) {
+        this.level = level;
         this.pred = p;
         this.child1 = child1;
         this.child2 = child2;
@@ -72,11 +93,14 @@ public class HashEquiJoin extends Operator {
 
     }
 
+    transient private boolean mapLoaded = false;
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
+        mapLoaded = false;
+        resetBatches();
         super.open();
     }
 
@@ -88,11 +112,78 @@ public class HashEquiJoin extends Operator {
         this.t2=null;
         this.listIt=null;
         this.map.clear();
+        resetBatches();
+        closeSpilling();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         child1.rewind();
         child2.rewind();
+        listIt = null;
+        mapLoaded = false;
+        resetBatches();
+        closeSpilling();
+    }
+
+    // hybrid hash join state, once child1 has turned out not to fit
+    transient private SpillingHashJoin spilling;
+    transient private OpIterator spilled;
+    transient private List<Tuple> pending = new ArrayList<>();
+    transient private int pendingIdx;
+
+    /** @return true if child1 has more tuples than fit, and it is not too late to partition */
+    private boolean shouldSpill(boolean more) {
+        return more && level < SpillingHashJoin.MAX_LEVEL;
+    }
+
+    private void closeSpilling() {
+        if (spilled != null) {
+            spilled.close();
+        }
+        if (spilling != null) {
+            spilling.close();
+        }
+        spilled = null;
+        spilling = null;
+        pending = new ArrayList<>();
+        pendingIdx = 0;
+    }
+
+    /**
+     * @return the next tuple of the hybrid hash join: first those matching
+     *         the partition kept in memory, then those of the spilled ones
+     */
+    private Tuple fetchSpilled() throws DbException, TransactionAbortedException {
+        while (true) {
+            if (pendingIdx < pending.size()) {
+                return pending.get(pendingIdx++);
+            }
+            pending.clear();
+            pendingIdx = 0;
+            if (spilled == null) {
+                if (child2.hasNext()) {
+                    spilling.probe(child2.next(), pending);
+                    continue;
+                }
+                spilled = spilling.spilled();
+                spilled.open();
+            }
+            return spilled.hasNext() ? spilled.next() : null;
+        }
+    }
+
+    /** @return t1 and t2 concatenated into one tuple of comboTD */
+    static Tuple merge(TupleDesc comboTD, Tuple t1, Tuple t2) {
+        int td1n = t1.getTupleDesc().numFields();
+        int td2n = t2.getTupleDesc().numFields();
+
+        // set fields in combined tuple
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, t2.getField(i));
+        return t;
     }
 
     transient Iterator<Tuple> listIt = null;
@@ -117,21 +208,29 @@ public class HashEquiJoin extends Operator {
      */
     private Tuple processList() {
         t1 = listIt.next();
-
-        int td1n = t1.getTupleDesc().numFields();
-        int td2n = t2.getTupleDesc().numFields();
-
-        // set fields in combined tuple
-        Tuple t = new Tuple(comboTD);
-        for (int i = 0; i < td1n; i++)
-            t.setField(i, t1.getField(i));
-        for (int i = 0; i < td2n; i++)
-            t.setField(td1n + i, t2.getField(i));
-        return t;
+        return merge(comboTD, t1, t2);
 
     }
 
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (!mapLoaded) {
+            mapLoaded = true;
+            if (loadMap() && shouldSpill(child1.hasNext())) {
+                spilling = new SpillingHashJoin(pred, comboTD, level);
+                for (List<Tuple> list : map.values()) {
+                    for (Tuple t : list) {
+                        spilling.build(t);
+                    }
+                }
+                map.clear();
+                while (child1.hasNext()) {
+                    spilling.build(child1.next());
+                }
+            }
+        }
+        if (spilling != null) {
+            return fetchSpilled();
+        }
         if (listIt != null && listIt.hasNext()) {
             return processList();
         }
@@ -160,6 +259,154 @@ public class HashEquiJoin extends Operator {
         return null;
     }
 
+    // batch-at-a-time state: the loaded rows of child1, hash chains over
+    // them, and the position reached in the current batch of child2
+    transient private TupleBatch build;
+    transient private int[] heads;
+    transient private int[] chain;
+    transient private boolean buildDone;
+    transient private TupleBatch probe;
+    transient private int probeIdx;
+    transient private int probeRow;
+    transient private int match;
+
+    private void resetBatches() {
+        build = null;
+        heads = null;
+        chain = null;
+        buildDone = false;
+        probe = null;
+        match = -1;
+    }
+
+    /** Load the next rows of child1 and chain them; returns false if there are none */
+    private boolean loadBuild() throws DbException, TransactionAbortedException {
+        BatchIterator in = BatchAdapter.of(child1);
+        build = new TupleBatch(child1.getTupleDesc(), MAP_SIZE + TupleBatch.CAPACITY);
+        int n1 = child1.getTupleDesc().numFields();
+        while (build.size() < MAP_SIZE) {
+            TupleBatch batch = in.nextBatch();
+            if (batch == null) {
+                buildDone = true;
+                break;
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                build.copy(batch, batch.row(i), 0, n1, build.addRow(), 0);
+            }
+        }
+        if (shouldSpill(!buildDone)) {
+            spilling = new SpillingHashJoin(pred, comboTD, level);
+            for (int i = 0; i < build.size(); i++) {
+                spilling.build(build.getTuple(i));
+            }
+            TupleBatch batch;
+            while ((batch = in.nextBatch()) != null) {
+                for (int i = 0; i < batch.size(); i++) {
+                    spilling.build(batch.getTuple(i));
+                }
+            }
+            buildDone = true;
+            build = null;
+            return true;
+        }
+        int rows = build.size();
+        heads = new int[Math.max(16, Integer.highestOneBit(rows) << 2)];
+        Arrays.fill(heads, -1);
+        chain = new int[rows];
+        int mask = heads.length - 1;
+        int f1 = pred.getField1();
+        // link from the last row, so that each chain lists rows in load order
+        for (int r = rows - 1; r >= 0; r--) {
+            int h = build.hash(f1, r) & mask;
+            chain[r] = heads[h];
+            heads[h] = r;
+        }
+        return rows > 0;
+    }
+
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        if (spilling == null && build == null && (buildDone || !loadBuild())) {
+            return null;
+        }
+        BatchIterator probeSide = BatchAdapter.of(child2);
+        if (spilling != null) {
+            return nextSpilledBatch(probeSide);
+        }
+        int f1 = pred.getField1();
+        int f2 = pred.getField2();
+        int n1 = child1.getTupleDesc().numFields();
+        int n2 = child2.getTupleDesc().numFields();
+        int mask = heads.length - 1;
+        TupleBatch out = new TupleBatch(comboTD, TupleBatch.CAPACITY);
+        while (true) {
+            // emit the matches of the current row of child2
+            while (match >= 0 && !out.isFull()) {
+                if (build.matches(f1, match, probe, f2, probeRow)) {
+                    int r = out.addRow();
+                    out.copy(build, match, 0, n1, r, 0);
+                    out.copy(probe, probeRow, 0, n2, r, n1);
+                }
+                match = chain[match];
+            }
+            if (out.isFull()) {
+                return out;
+            }
+            if (probe != null && probeIdx < probe.size()) {
+                probeRow = probe.row(probeIdx++);
+                match = heads[probe.hash(f2, probeRow) & mask];
+                continue;
+            }
+            probe = probeSide.nextBatch();
+            probeIdx = 0;
+            if (probe != null) {
+                continue;
+            }
+            // child2 is done: advance child1
+            if (buildDone) {
+                build = null;
+                break;
+            }
+            child2.rewind();
+            if (!loadBuild()) {
+                build = null;
+                break;
+            }
+        }
+        return out.size() > 0 ? out : null;
+    }
+
+    /** nextBatch for the hybrid hash join, probing a tuple at a time */
+    private TupleBatch nextSpilledBatch(BatchIterator probeSide)
+            throws TransactionAbortedException, DbException {
+        TupleBatch out = new TupleBatch(comboTD, TupleBatch.CAPACITY);
+        while (!out.isFull()) {
+            if (pendingIdx < pending.size()) {
+                out.add(pending.get(pendingIdx++));
+                continue;
+            }
+            pending.clear();
+            pendingIdx = 0;
+            if (spilled == null) {
+                if (probe != null && probeIdx < probe.size()) {
+                    spilling.probe(probe.getTuple(probeIdx++), pending);
+                    continue;
+                }
+                probe = probeSide.nextBatch();
+                probeIdx = 0;
+                if (probe != null) {
+                    continue;
+                }
+                spilled = spilling.spilled();
+                spilled.open();
+            }
+            if (!spilled.hasNext()) {
+                break;
+            }
+            out.add(spilled.next());
+        }
+        return out.size() > 0 ? out : null;
+    }
+
     @Override
     public OpIterator[] getChildren() {
         return new OpIterator[]{this.child1, this.child2};
@@ -0,0 +1,206 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFile;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * IndexNestedLoopJoin joins each tuple of child1 with the tuples of a table
+ * stored in a BTreeFile keyed on the join field, by searching the B+ tree
+ * for them rather than scanning the table.
+ * <p>
+ * child1 is read a block of up to {@link Join#BLOCK_PAGES} pages at a time,
+ * and each block is sorted on the join field before it is probed, so that
+ * successive searches move rightwards through the leaves, and repeated keys
+ * search pages that are still in the BufferPool.  Within a block, tuples
+ * are returned in order of the join field of child1.
+ * <p>
+ * The supported predicates are EQUALS, the four inequalities, and LIKE on
+ * INT_TYPE fields, where it means EQUALS.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final JoinPredicate pred;
+    private final Predicate.Op indexOp;
+    private OpIterator child1;
+    private BTreeScan child2;
+    private TupleDesc comboTD;
+    private final int blockSize;
+
+    // the current sorted block of child1, the position of the next tuple in
+    // it, and the search for the tuples of child2 that the last one joins
+    private final List<Tuple> block = new ArrayList<>();
+    private int blockPos;
+    private Tuple t1;
+    private transient DbFileIterator probe;
+    private Field probeKey;
+
+    /**
+     * @param p the predicate to join the children on
+     * @param child1 the outer input
+     * @param child2 a scan of a table whose BTreeFile is keyed on the join
+     *        field of child2; the join searches it rather than scanning it
+     * @throws IllegalArgumentException if the table is not keyed on the
+     *         join field, or p cannot be answered by a B+ tree search
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, OpIterator child1, BTreeScan child2) {
+        if (!isIndexedOn(child2, p.getField2())) {
+            throw new IllegalArgumentException("table " + child2.getTableName()
+                    + " is not a B+ tree keyed on field " + p.getField2());
+        }
+        this.pred = p;
+        this.indexOp = indexOp(p, child1.getTupleDesc().getFieldType(p.getField1()));
+        this.child1 = child1;
+        this.child2 = child2;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+        blockSize = Math.max(1, Join.BLOCK_PAGES * BufferPool.getPageSize() / child1.getTupleDesc().getSize());
+    }
+
+    /**
+     * @return true if tableid is stored in a BTreeFile keyed on field
+     */
+    public static boolean isIndexedOn(int tableid, int field) {
+        DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+        return f instanceof BTreeFile && ((BTreeFile) f).keyField() == field;
+    }
+
+    private static boolean isIndexedOn(BTreeScan scan, int field) {
+        return isIndexedOn(scan.getTableId(), field);
+    }
+
+    /**
+     * @return the operator to search the index of child2 with for the key
+     *         of a tuple of child1: p with its operands swapped
+     */
+    private static Predicate.Op indexOp(JoinPredicate p, Type type) {
+        switch (p.getOperator()) {
+            case EQUALS:
+                return Predicate.Op.EQUALS;
+            case LIKE:
+                if (type == Type.INT_TYPE)
+                    return Predicate.Op.EQUALS;
+                break;
+            case LESS_THAN:
+                return Predicate.Op.GREATER_THAN;
+            case LESS_THAN_OR_EQ:
+                return Predicate.Op.GREATER_THAN_OR_EQ;
+            case GREATER_THAN:
+                return Predicate.Op.LESS_THAN;
+            case GREATER_THAN_OR_EQ:
+                return Predicate.Op.LESS_THAN_OR_EQ;
+            default:
+                break;
+        }
+        throw new IllegalArgumentException("cannot search a B+ tree for " + p.getOperator());
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public void open() throws DbException, NoSuchElementException, TransactionAbortedException {
+        child1.open();
+        reset();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child1.close();
+        reset();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        reset();
+    }
+
+    private void reset() {
+        block.clear();
+        blockPos = 0;
+        t1 = null;
+        if (probe != null) {
+            probe.close();
+        }
+        probe = null;
+        probeKey = null;
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        while (true) {
+            if (probe != null && probe.hasNext()) {
+                return HashEquiJoin.merge(comboTD, t1, probe.next());
+            }
+            if (blockPos >= block.size() && !nextBlock()) {
+                return null;
+            }
+            t1 = block.get(blockPos++);
+            Field key = t1.getField(pred.getField1());
+            if (probe != null && key.compare(Predicate.Op.EQUALS, probeKey)) {
+                probe.rewind();
+            } else {
+                if (probe != null) {
+                    probe.close();
+                }
+                probe = child2.indexIterator(new IndexPredicate(indexOp, key));
+                probe.open();
+                probeKey = key;
+            }
+        }
+    }
+
+    /**
+     * Replace the block with the next one from child1, sorted on its join
+     * field.
+     *
+     * @return false if child1 has no more tuples
+     */
+    private boolean nextBlock() throws DbException, TransactionAbortedException {
+        block.clear();
+        blockPos = 0;
+        while (block.size() < blockSize && child1.hasNext()) {
+            block.add(child1.next());
+        }
+        block.sort(new TupleComparator(pred.getField1(), true));
+        return !block.isEmpty();
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{child1, child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        child1 = children[0];
+        child2 = (BTreeScan) children[1];
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+}
@@ -4,6 +4,7 @@ import simpledb.common.Type;
 import simpledb.storage.*;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -21,6 +22,9 @@ public class IntegerAggregator implements Aggregator {
     private final Op what;
     private final HashMap<Field, Integer> gbGroupAggregatedValues; // <GroupBy Column's Value, Aggregated Value>
     private final HashMap<Field, Integer> gbGroupNTuple;
+    // mergeGroups' hash table of a batch's groups, and each group's first row,
+    // count and aggregate, kept from batch to batch
+    private transient int[] table, firstRow, count, acc;
 
     /**
      * Aggregate constructor
@@ -58,28 +62,36 @@ public class IntegerAggregator implements Aggregator {
         if (gbField != NO_GROUPING)
             gbKey = tup.getField(gbField);
         IntField f = (IntField)tup.getField(aField);
+        merge(gbKey, 1, f.getValue());
+    }
 
-        gbGroupNTuple.put(gbKey, gbGroupNTuple.getOrDefault(gbKey, 0)+1);
+    /**
+     * Merge n values into the aggregate of a group.
+     *
+     * @param value the values' aggregate: their count, sum, max or min
+     */
+    private void merge(Field gbKey, int n, int value) {
+        gbGroupNTuple.put(gbKey, gbGroupNTuple.getOrDefault(gbKey, 0)+n);
 
         Integer aValue = gbGroupAggregatedValues.get(gbKey);
 
         switch (what) {
             case COUNT:
                 if(aValue == null) aValue = 0;
-                aValue = aValue + 1;
+                aValue = aValue + n;
                 break;
             case AVG:
             case SUM:
                 if(aValue == null) aValue = 0;
-                aValue = aValue + f.getValue();
+                aValue = aValue + value;
                 break;
             case MAX:
-                if(aValue == null) aValue = f.getValue();
-                aValue = Math.max(aValue, f.getValue());
+                if(aValue == null) aValue = value;
+                aValue = Math.max(aValue, value);
                 break;
             case MIN:
-                if(aValue == null) aValue = f.getValue();
-                aValue = Math.min(aValue, f.getValue());
+                if(aValue == null) aValue = value;
+                aValue = Math.min(aValue, value);
                 break;
             default:
                 throw new RuntimeException("invalid aggregate operation, are you dumb?");
@@ -87,6 +99,94 @@ public class IntegerAggregator implements Aggregator {
         gbGroupAggregatedValues.put(gbKey, aValue);
     }
 
+    /**
+     * Merge a batch of rows.  Without grouping, the batch is folded into a
+     * single value in a tight loop over the aggregate column first.
+     */
+    @Override
+    public void mergeBatch(TupleBatch batch) {
+        int n = batch.size();
+        if (n == 0)
+            return;
+        resultIterator = null;
+        int[] values = batch.getInts(aField);
+        if (gbField != NO_GROUPING) {
+            mergeGroups(batch, values);
+            return;
+        }
+        int[] sel = batch.getSelection();
+        int acc;
+        switch (what) {
+            case COUNT:
+                acc = n;
+                break;
+            case AVG:
+            case SUM:
+                acc = 0;
+                for (int i = 0; i < n; i++) acc += values[sel == null ? i : sel[i]];
+                break;
+            case MAX:
+                acc = Integer.MIN_VALUE;
+                for (int i = 0; i < n; i++) acc = Math.max(acc, values[sel == null ? i : sel[i]]);
+                break;
+            case MIN:
+                acc = Integer.MAX_VALUE;
+                for (int i = 0; i < n; i++) acc = Math.min(acc, values[sel == null ? i : sel[i]]);
+                break;
+            default:
+                throw new RuntimeException("invalid aggregate operation, are you dumb?");
+        }
+        merge(null, n, acc);
+    }
+
+    /**
+     * Fold the rows of each group of a batch together in an open-addressed
+     * table of the batch's rows, then merge each group once, so that a
+     * group's Field is built once a batch rather than once a row.
+     */
+    private void mergeGroups(TupleBatch batch, int[] values) {
+        int n = batch.size();
+        if (firstRow == null || firstRow.length < n) {
+            table = new int[Integer.highestOneBit(n) << 2];
+            firstRow = new int[n];
+            count = new int[n];
+            acc = new int[n];
+        }
+        Arrays.fill(table, -1);
+        Arrays.fill(count, 0, n, 0);
+        int groups = 0;
+        for (int i = 0; i < n; i++) {
+            int r = batch.row(i);
+            int slot = batch.hash(gbField, r) & (table.length - 1);
+            while (table[slot] >= 0 && !batch.matches(gbField, firstRow[table[slot]], batch, gbField, r))
+                slot = (slot + 1) & (table.length - 1);
+            int g = table[slot];
+            if (g < 0) {
+                g = table[slot] = groups++;
+                firstRow[g] = r;
+                acc[g] = values[r];
+            } else {
+                switch (what) {
+                    case AVG:
+                    case SUM:
+                        acc[g] += values[r];
+                        break;
+                    case MAX:
+                        acc[g] = Math.max(acc[g], values[r]);
+                        break;
+                    case MIN:
+                        acc[g] = Math.min(acc[g], values[r]);
+                        break;
+                    default:
+                        break;
+                }
+            }
+            count[g]++;
+        }
+        for (int g = 0; g < groups; g++)
+            merge(batch.getField(gbField, firstRow[g]), count[g], acc[g]);
+    }
+
     /**
      * Create a OpIterator over group aggregate results.
      *
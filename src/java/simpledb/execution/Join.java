@@ -2,6 +2,7 @@ package simpledb.execution;
 
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
+import simpledb.storage.BufferPool;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
@@ -9,11 +10,18 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * It is a block nested loops join: it buffers a block of up to
+ * {@link #BLOCK_PAGES} pages worth of child1 tuples, and scans child2 once
+ * per block, comparing each child2 tuple with the whole block.
  */
 public class Join extends Operator {
 
     private static final long serialVersionUID = 1L;
 
+    /** The number of pages of child1 tuples buffered per scan of child2 */
+    public static final int BLOCK_PAGES = 50;
+
     /**
      * Constructor. Accepts two children to join and the predicate to join them
      * on
@@ -27,14 +35,22 @@ public class Join extends Operator {
      */
     private JoinPredicate predicate;
     private OpIterator child1, child2;
-    private Tuple lastMatch;
+    private TupleDesc comboTD;
+    private final int blockSize;
+
+    // the current block of child1, the child2 tuple being compared with
+    // it, and the position in the block to compare it from
+    private final List<Tuple> block = new ArrayList<>();
+    private boolean scannedChild2;
+    private Tuple tuple2;
+    private int blockPos;
 
     public Join(JoinPredicate p, OpIterator child1, OpIterator child2) {
-        // some code goes here
         predicate = p;
         this.child1 = child1;
         this.child2 = child2;
-        lastMatch = null;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+        blockSize = Math.max(1, BLOCK_PAGES * BufferPool.getPageSize() / child1.getTupleDesc().getSize());
     }
 
     public JoinPredicate getJoinPredicate() {
@@ -47,8 +63,7 @@ public class Join extends Operator {
      * alias or table name.
      */
     public String getJoinField1Name() {
-        // some code goes here
-        return predicate.getField1() + "";
+        return child1.getTupleDesc().getFieldName(predicate.getField1());
     }
 
     /**
@@ -56,8 +71,7 @@ public class Join extends Operator {
      * alias or table name.
      */
     public String getJoinField2Name() {
-        // some code goes here
-        return predicate.getField2() + "";
+        return child2.getTupleDesc().getFieldName(predicate.getField2());
     }
 
     /**
@@ -65,29 +79,35 @@ public class Join extends Operator {
      * implementation logic.
      */
     public TupleDesc getTupleDesc() {
-        // some code goes here
-        return TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+        return comboTD;
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
-        // some code goes here
         super.open();
         child1.open();
         child2.open();
+        reset();
     }
 
     public void close() {
-        // some code goes here
         super.close();
         child1.close();
         child2.close();
+        reset();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        // some code goes here
         child1.rewind();
         child2.rewind();
+        reset();
+    }
+
+    private void reset() {
+        block.clear();
+        scannedChild2 = false;
+        tuple2 = null;
+        blockPos = 0;
     }
 
     /**
@@ -96,6 +116,9 @@ public class Join extends Operator {
      * satisfies the join predicate. There are many possible implementations;
      * the simplest is a nested loops join.
      * <p>
+     * Tuples are returned a block of child1 at a time; within a block, in
+     * the order of child2.
+     * <p>
      * Note that the tuples returned from this particular implementation of Join
      * are simply the concatenation of joining tuples from the left and right
      * relation. Therefore, if an equality predicate is used there will be two
@@ -109,52 +132,58 @@ public class Join extends Operator {
      * @see JoinPredicate#filter
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        // some code goes here
-        Tuple tuple1;
-        while (child1.hasNext() || lastMatch != null) {
-            if (lastMatch == null) {
-                tuple1 = child1.next();
-            } else {
-                tuple1 = lastMatch;
-            }
-            while (child2.hasNext()) {
-                Tuple tuple2 = child2.next();
-                if (predicate.filter(tuple1, tuple2)) {
-                    lastMatch = tuple1;
-                    return mergeTuple(tuple1, tuple2, TupleDesc.merge(tuple1.getTupleDesc(), tuple2.getTupleDesc()));
+        while (true) {
+            if (tuple2 != null) {
+                while (blockPos < block.size()) {
+                    Tuple tuple1 = block.get(blockPos++);
+                    if (predicate.filter(tuple1, tuple2)) {
+                        return HashEquiJoin.merge(comboTD, tuple1, tuple2);
+                    }
                 }
+                tuple2 = null;
+            }
+            if (!block.isEmpty() && child2.hasNext()) {
+                tuple2 = child2.next();
+                blockPos = 0;
+                continue;
+            }
+            if (!nextBlock()) {
+                return null;
             }
-            lastMatch = null;
-            child2.rewind();
         }
-        return null;
     }
 
-
-    private Tuple mergeTuple(Tuple t1, Tuple t2, TupleDesc tupleDesc) {
-        Tuple tuple = new Tuple(tupleDesc);
-
-        for (int i = 0; i < t1.getTupleDesc().numFields(); i++) {
-            tuple.setField(i, t1.getField(i));
+    /**
+     * Replace the block with the next one from child1, and start a new
+     * scan of child2 for it.
+     *
+     * @return false if child1 has no more tuples
+     */
+    private boolean nextBlock() throws TransactionAbortedException, DbException {
+        block.clear();
+        while (block.size() < blockSize && child1.hasNext()) {
+            block.add(child1.next());
         }
-
-        for (int i = 0; i < t2.getTupleDesc().numFields(); i++) {
-            tuple.setField(i + t1.getTupleDesc().numFields(), t2.getField(i));
+        if (block.isEmpty()) {
+            return false;
         }
-
-        return tuple;
+        if (scannedChild2) {
+            child2.rewind();
+        }
+        scannedChild2 = true;
+        return true;
     }
 
-
     @Override
     public OpIterator[] getChildren() {
-        // some code goes here
-        return null;
+        return new OpIterator[]{child1, child2};
     }
 
     @Override
     public void setChildren(OpIterator[] children) {
-        // some code goes here
+        child1 = children[0];
+        child2 = children[1];
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
     }
 
 }
@@ -0,0 +1,126 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Limit implements LIMIT and OFFSET: it skips the first offset tuples of
+ * its child and returns at most limit of the rest.  Once it has returned
+ * limit tuples it stops pulling from its child, so that a pipeline of
+ * scans, Filters and Projects below it reads no further than it needs to.
+ * Run a batch at a time, it trims the first and last batches it returns.
+ */
+public class Limit extends Operator implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The limit of a Limit that only skips its offset */
+    public static final int NO_LIMIT = Integer.MAX_VALUE;
+
+    private OpIterator child;
+    private final int limit;
+    private final int offset;
+
+    // the number of tuples skipped and returned so far
+    private int skipped;
+    private int returned;
+
+    /**
+     * @param limit the most tuples to return, or {@link #NO_LIMIT}
+     * @param offset the number of tuples to skip first
+     * @param child the tuples to limit
+     */
+    public Limit(int limit, int offset, OpIterator child) {
+        if (limit < 0 || offset < 0) {
+            throw new IllegalArgumentException("LIMIT and OFFSET must not be negative");
+        }
+        this.limit = limit;
+        this.offset = offset;
+        this.child = child;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException, TransactionAbortedException {
+        super.open();
+        child.open();
+        skipped = 0;
+        returned = 0;
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+        skipped = 0;
+        returned = 0;
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if (returned >= limit) {
+            return null;
+        }
+        while (skipped < offset && child.hasNext()) {
+            child.next();
+            skipped++;
+        }
+        if (!child.hasNext()) {
+            return null;
+        }
+        returned++;
+        return child.next();
+    }
+
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        BatchIterator in = BatchAdapter.of(child);
+        while (returned < limit) {
+            TupleBatch batch = in.nextBatch();
+            if (batch == null) {
+                return null;
+            }
+            int skip = Math.min(offset - skipped, batch.size());
+            int keep = Math.min(limit - returned, batch.size() - skip);
+            skipped += skip;
+            returned += keep;
+            if (keep == 0) {
+                continue;
+            }
+            if (skip > 0 || keep < batch.size()) {
+                int[] selection = new int[keep];
+                for (int i = 0; i < keep; i++) {
+                    selection[i] = batch.row(skip + i);
+                }
+                batch.select(selection, keep);
+            }
+            return batch;
+        }
+        return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{child};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        child = children[0];
+    }
+}
@@ -0,0 +1,107 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * LoserTree merges k sorted inputs into one sorted output.
+ * <p>
+ * It is a tournament tree whose internal nodes remember the input that
+ * lost the match played there, while the overall winner -- the input with
+ * the smallest head tuple -- sits at the root.  Replacing the winner's
+ * head replays only the matches on the path from its leaf to the root, so
+ * each tuple costs about log2(k) comparisons, and, unlike a heap, one per
+ * level rather than two.  Ties go to the input with the lower index, so
+ * the merge is stable when the inputs are runs in the order they were cut.
+ */
+class LoserTree {
+
+    private final OpIterator[] inputs;
+    private final Comparator<Tuple> comparator;
+    private final int k;
+
+    // the next tuple of each input, or null once it has no more
+    private final Tuple[] heads;
+
+    // tree[0] is the winner; tree[1..k-1] the losers of the internal
+    // nodes, where node t plays the winners of nodes 2t and 2t+1, and
+    // leaf i is node k+i
+    private final int[] tree;
+
+    /**
+     * @param inputs open iterators over tuples in the order of comparator
+     */
+    LoserTree(OpIterator[] inputs, Comparator<Tuple> comparator)
+            throws DbException, TransactionAbortedException {
+        this.inputs = inputs;
+        this.comparator = comparator;
+        this.k = inputs.length;
+        this.heads = new Tuple[k];
+        this.tree = new int[Math.max(1, k)];
+        init();
+    }
+
+    /**
+     * Play every match again, from the current position of the inputs; for
+     * use after they have been rewound.
+     */
+    void init() throws DbException, TransactionAbortedException {
+        for (int i = 0; i < k; i++) {
+            heads[i] = inputs[i].hasNext() ? inputs[i].next() : null;
+        }
+        // -1 beats every input, so each leaf replayed below settles as
+        // the loser of the first node it reaches that has no loser yet
+        Arrays.fill(tree, -1);
+        for (int i = k - 1; i >= 0; i--) {
+            replay(i);
+        }
+    }
+
+    /**
+     * @return the smallest head tuple of the inputs, which is then
+     *         replaced by the next tuple of its input; or null if every
+     *         input is exhausted
+     */
+    Tuple next() throws DbException, TransactionAbortedException {
+        if (k == 0) {
+            return null;
+        }
+        int winner = tree[0];
+        Tuple t = heads[winner];
+        if (t == null) {
+            return null;
+        }
+        heads[winner] = inputs[winner].hasNext() ? inputs[winner].next() : null;
+        replay(winner);
+        return t;
+    }
+
+    /** Replay the matches from leaf i up to the root. */
+    private void replay(int i) {
+        int winner = i;
+        for (int t = (i + k) / 2; t > 0; t /= 2) {
+            if (beats(tree[t], winner)) {
+                int loser = winner;
+                winner = tree[t];
+                tree[t] = loser;
+            }
+        }
+        tree[0] = winner;
+    }
+
+    /** @return true if input a comes before input b */
+    private boolean beats(int a, int b) {
+        if (a < 0 || b < 0) {
+            return a < 0;
+        }
+        if (heads[a] == null || heads[b] == null) {
+            return heads[b] == null && (heads[a] != null || a < b);
+        }
+        int c = comparator.compare(heads[a], heads[b]);
+        return c < 0 || (c == 0 && a < b);
+    }
+}
@@ -0,0 +1,111 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.NoSuchElementException;
+
+/**
+ * MorselScan is a sequential scan over the morsels it claims from a
+ * {@link MorselSource}.  Several MorselScans sharing a source, each run by
+ * its own worker, scan the whole table between them, every tuple exactly
+ * once.  Their output is normally brought back together by an
+ * {@link Exchange}.
+ * <p>
+ * Like SeqScan, the field names of its tuples are prefixed by the table's
+ * alias.
+ * <p>
+ * When run as a step of the {@link QueryScheduler}, a MorselScan that
+ * finishes a morsel may report that it has no more tuples for now, ending
+ * the step; the next step picks up with the next morsel.
+ */
+public class MorselScan implements OpIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final TransactionId tid;
+    private final MorselSource source;
+    private final String tableAlias;
+    private DbFileIterator morsel;
+    private boolean open = false;
+
+    /**
+     * @param tid the transaction the scan runs as a part of
+     * @param source the morsels to scan, shared with the other workers
+     * @param tableAlias the alias of the table, as for SeqScan
+     */
+    public MorselScan(TransactionId tid, MorselSource source, String tableAlias) {
+        this.tid = tid;
+        this.source = source;
+        this.tableAlias = tableAlias;
+    }
+
+    public MorselSource getSource() {
+        return source;
+    }
+
+    public String getAlias() {
+        return tableAlias;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        open = true;
+        morsel = null;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return SeqScan.aliasedTupleDesc(source.getFile().getId(), tableAlias);
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        if (!open) {
+            return false;
+        }
+        while (morsel == null || !morsel.hasNext()) {
+            if (morsel != null) {
+                morsel.close();
+                morsel = null;
+                if (QueryScheduler.pauseAtMorselBoundary()) {
+                    return false;
+                }
+            }
+            int first = source.claim();
+            if (first < 0) {
+                morsel = null;
+                return false;
+            }
+            morsel = source.getFile().iterator(tid, first, source.endOf(first));
+            morsel.open();
+        }
+        return true;
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return morsel.next();
+    }
+
+    /**
+     * Start over by resetting the shared source: every scan sharing it must
+     * be rewound together, and none may be running meanwhile.
+     */
+    public void rewind() throws DbException, TransactionAbortedException {
+        source.reset();
+        close();
+        open();
+    }
+
+    public void close() {
+        if (morsel != null) {
+            morsel.close();
+        }
+        morsel = null;
+        open = false;
+    }
+}
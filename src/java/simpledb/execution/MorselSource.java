@@ -0,0 +1,79 @@
+package simpledb.execution;
+
+import simpledb.storage.HeapFile;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * MorselSource splits the pages of a HeapFile into morsels -- runs of a
+ * few consecutive pages -- and hands them out, each exactly once, to the
+ * {@link MorselScan}s that share it.  Workers that finish their morsels
+ * early simply claim more, so the work balances itself across them.
+ * <p>
+ * The pages to hand out are fixed when the source is created or reset;
+ * pages appended to the file afterwards are not scanned.
+ *
+ * @Threadsafe
+ */
+public class MorselSource {
+
+    /** The number of pages in a morsel, unless the constructor says otherwise */
+    public static final int DEFAULT_MORSEL_PAGES = 16;
+
+    private final HeapFile file;
+    private final int morselPages;
+    private final AtomicInteger nextPage = new AtomicInteger();
+    private volatile int numPages;
+
+    public MorselSource(HeapFile file) {
+        this(file, DEFAULT_MORSEL_PAGES);
+    }
+
+    /**
+     * @param file the file to scan
+     * @param morselPages the number of pages in a morsel
+     */
+    public MorselSource(HeapFile file, int morselPages) {
+        if (morselPages <= 0)
+            throw new IllegalArgumentException("morsels must hold at least one page");
+        this.file = file;
+        this.morselPages = morselPages;
+        reset();
+    }
+
+    /** @return the file this source splits up */
+    public HeapFile getFile() {
+        return file;
+    }
+
+    /**
+     * @return the first page of a morsel not yet handed out, or -1 if every
+     *         page has been
+     */
+    public int claim() {
+        int first = nextPage.getAndAdd(morselPages);
+        if (first >= numPages) {
+            return -1;
+        }
+        return first;
+    }
+
+    /** @return the page after the last one of the morsel starting at first */
+    public int endOf(int first) {
+        return Math.min(first + morselPages, numPages);
+    }
+
+    /** @return the number of morsels the file splits into */
+    public int numMorsels() {
+        return (numPages + morselPages - 1) / morselPages;
+    }
+
+    /**
+     * Start handing out the file's pages again from the first, so that it
+     * can be scanned again.  No scan may be claiming morsels meanwhile.
+     */
+    public void reset() {
+        numPages = file.numPages();
+        nextPage.set(0);
+    }
+}
@@ -2,7 +2,8 @@ package simpledb.execution;
 
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
-import simpledb.storage.Field;
+import simpledb.storage.BufferPool;
+import simpledb.storage.SpillFile;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
@@ -10,18 +11,43 @@ import java.util.*;
 
 /**
  * OrderBy is an operator that implements a relational ORDER BY.
+ * <p>
+ * It sorts on one or more fields, each ascending or descending, with an
+ * external merge sort: tuples are read into a buffer of up to
+ * {@link #DEFAULT_BUFFER_PAGES} pages, and if the child has more than fits,
+ * each full buffer is sorted and written to a {@link SpillFile} as a run.
+ * The runs are then merged with a {@link LoserTree}, first in groups if
+ * there are too many to read at once.  Runs are sorted with
+ * {@link Arrays#parallelSort}, which uses several threads for big ones.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** The number of pages of tuples a sort buffers by default */
+    public static final int DEFAULT_BUFFER_PAGES = 100;
+
+    /** The number of pages of buffer each run being merged takes */
+    private static final int PAGES_PER_RUN = 2;
+
     private OpIterator child;
     private final TupleDesc td;
     private final List<Tuple> childTups = new ArrayList<>();
-    private final int orderByField;
+    private final int[] orderByFields;
+    private final boolean[] ascs;
     private final String orderByFieldName;
+    private final TupleComparator comparator;
+    private final int runTuples;
+    private final int fanIn;
     private Iterator<Tuple> it;
     private final boolean asc;
 
+    // when the child did not fit in the buffer: the runs, the iterators
+    // over them and the tree merging them
+    private final List<SpillFile> runs = new ArrayList<>();
+    private OpIterator[] runIts;
+    private LoserTree merge;
+
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
      * 
@@ -33,11 +59,45 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, OpIterator child) {
+        this(new int[]{orderbyField}, new boolean[]{asc}, child);
+    }
+
+    /**
+     * Creates a new OrderBy node over the tuples from the iterator, sorting
+     * on several fields.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param asc
+     *            for each field, true if the sort order is ascending.
+     * @param child
+     *            the tuples to sort.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, OpIterator child) {
+        this(orderbyFields, asc, child, DEFAULT_BUFFER_PAGES);
+    }
+
+    /**
+     * Creates a new OrderBy node that buffers at most bufferPages pages of
+     * tuples at a time.
+     *
+     * @param bufferPages
+     *            the size of the sort buffer, in pages.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, OpIterator child, int bufferPages) {
+        if (orderbyFields.length == 0 || orderbyFields.length != asc.length) {
+            throw new IllegalArgumentException("need one direction for each of at least one field");
+        }
         this.child = child;
         td = child.getTupleDesc();
-        this.orderByField = orderbyField;
-        this.orderByFieldName = td.getFieldName(orderbyField);
-        this.asc = asc;
+        this.orderByFields = orderbyFields.clone();
+        this.ascs = asc.clone();
+        this.orderByFieldName = td.getFieldName(orderbyFields[0]);
+        this.asc = asc[0];
+        this.comparator = new TupleComparator(orderByFields, ascs);
+        this.runTuples = Math.max(1, bufferPages * BufferPool.getPageSize() / td.getSize());
+        this.fanIn = Math.max(2, bufferPages / PAGES_PER_RUN);
     }
     
     public boolean isASC()
@@ -47,13 +107,23 @@ public class OrderBy extends Operator {
     
     public int getOrderByField()
     {
-        return this.orderByField;
+        return this.orderByFields[0];
     }
     
     public String getOrderFieldName()
     {
 	return this.orderByFieldName;
     }
+
+    /** @return the fields sorted on, most significant first */
+    public int[] getOrderByFields() {
+        return orderByFields.clone();
+    }
+
+    /** @return for each of the fields sorted on, true if it is ascending */
+    public boolean[] getAscending() {
+        return ascs.clone();
+    }
     
     public TupleDesc getTupleDesc() {
         return td;
@@ -62,21 +132,110 @@ public class OrderBy extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
+        deleteRuns();
+        // load the tuples into the buffer, writing it out as a sorted run
+        // whenever it is full and there are more to come
+        childTups.clear();
+        while (child.hasNext()) {
             childTups.add(child.next());
-        childTups.sort(new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+            if (childTups.size() >= runTuples && child.hasNext()) {
+                runs.add(writeRun(sort(childTups)));
+                childTups.clear();
+            }
+        }
+        if (runs.isEmpty()) {
+            List<Tuple> sorted = sort(childTups);
+            childTups.clear();
+            childTups.addAll(sorted);
+            it = childTups.iterator();
+        } else {
+            if (!childTups.isEmpty()) {
+                runs.add(writeRun(sort(childTups)));
+                childTups.clear();
+            }
+            while (runs.size() > fanIn) {
+                // merge the oldest runs into one, keeping the order the runs
+                // were cut in so that the sort is stable
+                List<SpillFile> group = new ArrayList<>(runs.subList(0, fanIn));
+                runs.subList(0, fanIn).clear();
+                runs.add(0, mergeRuns(group));
+            }
+            openMerge();
+        }
         super.open();
     }
 
+    private List<Tuple> sort(List<Tuple> tuples) {
+        Tuple[] sorted = tuples.toArray(new Tuple[0]);
+        Arrays.parallelSort(sorted, comparator);
+        return Arrays.asList(sorted);
+    }
+
+    private SpillFile writeRun(List<Tuple> sorted) throws DbException {
+        SpillFile run = new SpillFile(td);
+        for (Tuple t : sorted) {
+            run.add(t);
+        }
+        return run;
+    }
+
+    private SpillFile mergeRuns(List<SpillFile> group) throws DbException, TransactionAbortedException {
+        OpIterator[] its = new OpIterator[group.size()];
+        for (int i = 0; i < its.length; i++) {
+            its[i] = group.get(i).iterator();
+            its[i].open();
+        }
+        SpillFile merged = new SpillFile(td);
+        LoserTree tree = new LoserTree(its, comparator);
+        for (Tuple t = tree.next(); t != null; t = tree.next()) {
+            merged.add(t);
+        }
+        for (int i = 0; i < its.length; i++) {
+            its[i].close();
+            group.get(i).delete();
+        }
+        return merged;
+    }
+
+    private void openMerge() throws DbException, TransactionAbortedException {
+        runIts = new OpIterator[runs.size()];
+        for (int i = 0; i < runIts.length; i++) {
+            runIts[i] = runs.get(i).iterator();
+            runIts[i].open();
+        }
+        merge = new LoserTree(runIts, comparator);
+    }
+
+    private void deleteRuns() {
+        if (runIts != null) {
+            for (OpIterator run : runIts) {
+                run.close();
+            }
+        }
+        for (SpillFile run : runs) {
+            run.delete();
+        }
+        runs.clear();
+        runIts = null;
+        merge = null;
+    }
+
     public void close() {
         super.close();
         it = null;
+        childTups.clear();
+        deleteRuns();
     }
 
-    public void rewind() {
-        it = childTups.iterator();
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (merge != null) {
+            for (OpIterator run : runIts) {
+                run.rewind();
+            }
+            merge.init();
+        } else {
+            it = childTups.iterator();
+        }
     }
 
     /**
@@ -86,7 +245,10 @@ public class OrderBy extends Operator {
      * @return The next tuple in the ordering, or null if there are no more
      *         tuples
      */
-    protected Tuple fetchNext() throws NoSuchElementException {
+    protected Tuple fetchNext() throws NoSuchElementException, DbException, TransactionAbortedException {
+        if (merge != null) {
+            return merge.next();
+        }
         if (it != null && it.hasNext()) {
             return it.next();
         } else
@@ -104,25 +266,3 @@ public class OrderBy extends Operator {
     }
 
 }
-
-class TupleComparator implements Comparator<Tuple> {
-    final int field;
-    final boolean asc;
-
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
-    }
-
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
-    }
-    
-}
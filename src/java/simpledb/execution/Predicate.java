@@ -1,6 +1,9 @@
 package simpledb.execution;
 
+import simpledb.common.Type;
 import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
 import simpledb.storage.Tuple;
 
 import java.io.Serializable;
@@ -105,6 +108,64 @@ public class Predicate implements Serializable {
         return num.compare(operation, operand);
     }
 
+    /**
+     * Narrows the selection of a batch to the rows that pass the predicate,
+     * comparing whole columns in tight loops.  Subclasses that override
+     * {@link #filter(Tuple)} have it called on each row instead.
+     *
+     * @return the number of rows left in the batch
+     */
+    public int select(TupleBatch batch) {
+        int n = batch.size();
+        int[] sel = batch.getSelection();
+        if (sel == null) {
+            sel = new int[n];
+            for (int i = 0; i < n; i++)
+                sel[i] = i;
+        }
+        int m = 0;
+        if (getClass() != Predicate.class) {
+            for (int i = 0; i < n; i++) {
+                if (filter(batch.getTuple(i)))
+                    sel[m++] = sel[i];
+            }
+        } else if (batch.getTupleDesc().getFieldType(field) == Type.INT_TYPE) {
+            int[] v = batch.getInts(field);
+            int c = ((IntField) operand).getValue();
+            switch (operation) {
+                case EQUALS:
+                case LIKE:
+                    for (int i = 0; i < n; i++) { int r = sel[i]; if (v[r] == c) sel[m++] = r; }
+                    break;
+                case NOT_EQUALS:
+                    for (int i = 0; i < n; i++) { int r = sel[i]; if (v[r] != c) sel[m++] = r; }
+                    break;
+                case GREATER_THAN:
+                    for (int i = 0; i < n; i++) { int r = sel[i]; if (v[r] > c) sel[m++] = r; }
+                    break;
+                case GREATER_THAN_OR_EQ:
+                    for (int i = 0; i < n; i++) { int r = sel[i]; if (v[r] >= c) sel[m++] = r; }
+                    break;
+                case LESS_THAN:
+                    for (int i = 0; i < n; i++) { int r = sel[i]; if (v[r] < c) sel[m++] = r; }
+                    break;
+                case LESS_THAN_OR_EQ:
+                    for (int i = 0; i < n; i++) { int r = sel[i]; if (v[r] <= c) sel[m++] = r; }
+                    break;
+            }
+        } else {
+            String[] v = batch.getStrings(field);
+            StringField c = (StringField) operand;
+            for (int i = 0; i < n; i++) {
+                int r = sel[i];
+                if (new StringField(v[r], Type.STRING_LEN).compare(operation, c))
+                    sel[m++] = r;
+            }
+        }
+        batch.select(sel, m);
+        return m;
+    }
+
     /**
      * Returns something useful, like "f = field_id op = op_string operand =
      * operand_string"
@@ -9,14 +9,17 @@ import simpledb.storage.TupleDesc;
 import java.util.*;
 
 /**
- * Project is an operator that implements a relational projection.
+ * Project is an operator that implements a relational projection.  Run a
+ * batch at a time, it passes on the chosen columns of its child's batches
+ * without copying them.
  */
-public class Project extends Operator {
+public class Project extends Operator implements BatchIterator {
 
     private static final long serialVersionUID = 1L;
     private OpIterator child;
     private final TupleDesc td;
     private final List<Integer> outFieldIds;
+    private final int[] outFields;
 
     /**
      * Constructor accepts a child operator to read tuples to apply projection
@@ -42,6 +45,10 @@ public class Project extends Operator {
             fieldAr[i] = childtd.getFieldName(fieldList.get(i));
         }
         td = new TupleDesc(types, fieldAr);
+        outFields = new int[fieldList.size()];
+        for (int i = 0; i < outFields.length; i++) {
+            outFields[i] = fieldList.get(i);
+        }
     }
 
     public TupleDesc getTupleDesc() {
@@ -81,6 +88,18 @@ public class Project extends Operator {
         return newTuple;
     }
 
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        TupleBatch batch = BatchAdapter.of(child).nextBatch();
+        return batch == null ? null : batch.project(outFields, td);
+    }
+
+    /**
+     * @return the field of the child that output field i is a copy of
+     */
+    int childField(int i) {
+        return outFields[i];
+    }
+
     @Override
     public OpIterator[] getChildren() {
         return new OpIterator[]{this.child};
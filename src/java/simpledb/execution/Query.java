@@ -15,6 +15,10 @@ import java.util.*;
  * plan in the form of a high level OpIterator (built by initiating the
  * constructors of query plans) and runs it as a part of a specified
  * transaction.
+ * <p>
+ * A plan whose root can run a batch at a time is run that way, through a
+ * {@link TupleAdapter}; {@link #execute} prints the rows of its batches
+ * without building Tuples at all.
  * 
  * @author Sam Madden
  */
@@ -24,6 +28,8 @@ public class Query implements Serializable {
     private static final long serialVersionUID = 1L;
 
     transient private OpIterator op;
+    /** The iterator the query's tuples are read from, once started */
+    transient private OpIterator rows;
     transient private LogicalPlan logicalPlan;
     final TransactionId tid;
     transient private boolean started = false;
@@ -59,7 +65,8 @@ public class Query implements Serializable {
 
     public void start() throws DbException,
             TransactionAbortedException {
-        op.open();
+        rows = op instanceof BatchIterator ? new TupleAdapter((BatchIterator) op) : op;
+        rows.open();
 
         started = true;
     }
@@ -70,7 +77,7 @@ public class Query implements Serializable {
 
     /** @return true if there are more tuples remaining. */
     public boolean hasNext() throws DbException, TransactionAbortedException {
-        return op.hasNext();
+        return (rows != null ? rows : op).hasNext();
     }
 
     /**
@@ -90,36 +97,56 @@ public class Query implements Serializable {
         if (!started)
             throw new DbException("Database not started.");
 
-        return op.next();
+        return rows.next();
     }
 
     /** Close the iterator */
     public void close() {
-        op.close();
+        (rows != null ? rows : op).close();
+        rows = null;
         started = false;
     }
 
     public void execute() throws DbException, TransactionAbortedException {
+        execute(System.out);
+    }
+
+    /** Run the query, printing its rows to out */
+    public void execute(PrintStream out) throws DbException, TransactionAbortedException {
         TupleDesc td = this.getOutputTupleDesc();
 
         StringBuilder names = new StringBuilder();
         for (int i = 0; i < td.numFields(); i++) {
             names.append(td.getFieldName(i)).append("\t");
         }
-        System.out.println(names);
+        out.println(names);
         for (int i = 0; i < names.length() + td.numFields() * 4; i++) {
-            System.out.print("-");
+            out.print("-");
         }
-        System.out.println();
+        out.println();
 
-        this.start();
         int cnt = 0;
-        while (this.hasNext()) {
-            Tuple tup = this.next();
-            System.out.println(tup);
-            cnt++;
+        if (op instanceof BatchIterator) {
+            // print the rows straight from the batches, without a Tuple for each
+            BatchIterator batched = (BatchIterator) op;
+            batched.open();
+            TupleBatch batch;
+            while ((batch = batched.nextBatch()) != null) {
+                for (int i = 0; i < batch.size(); i++) {
+                    out.println(batch.rowString(i));
+                }
+                cnt += batch.size();
+            }
+            batched.close();
+        } else {
+            this.start();
+            while (this.hasNext()) {
+                Tuple tup = this.next();
+                out.println(tup);
+                cnt++;
+            }
+            this.close();
         }
-        System.out.println("\n " + cnt + " rows.");
-        this.close();
+        out.println("\n " + cnt + " rows.");
     }
 }
@@ -0,0 +1,125 @@
+package simpledb.execution;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+/**
+ * QueryScheduler runs the producer pipelines of the {@link Exchange}s of
+ * every running query on one shared, work-stealing ForkJoinPool.
+ * <p>
+ * Only the pipelines below an Exchange run here: the planner places
+ * Exchanges over parallel scans, and the operators above them -- hash
+ * builds, sorts, final aggregates -- run on the thread that consumes the
+ * plan, pulling their Exchange input to completion.  A producer pipeline
+ * that only streams, a {@link MorselScan} under Filters and Projects, runs
+ * as a sequence of steps; a step processes one morsel and then yields,
+ * putting the pipeline's next step at the back of a single queue of ready
+ * steps shared by all queries.  Workers take steps from the front, so a
+ * large query's scans interleave with a small query's instead of holding
+ * the workers until they finish, and an idle worker steals whatever step
+ * is ready next.  A producer that ends in a blocking operator, such as the
+ * PARTIAL {@link HashAggregate}s of a parallel aggregate, cannot stop part
+ * way through its input, so its first step holds a worker until it has
+ * read all of it.
+ *
+ * @Threadsafe
+ */
+public class QueryScheduler {
+
+    private static QueryScheduler shared;
+
+    /** @return the scheduler shared by all queries, with one worker per processor */
+    public static synchronized QueryScheduler shared() {
+        if (shared == null) {
+            shared = new QueryScheduler(Runtime.getRuntime().availableProcessors());
+        }
+        return shared;
+    }
+
+    private final ForkJoinPool pool;
+    private final ConcurrentLinkedQueue<Runnable> ready = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param parallelism the number of worker threads
+     */
+    public QueryScheduler(int parallelism) {
+        pool = new ForkJoinPool(parallelism, p -> {
+            ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            t.setName("simpledb-query-" + t.getPoolIndex());
+            t.setDaemon(true);
+            return t;
+        }, null, true);
+    }
+
+    /** @return the number of worker threads */
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    /**
+     * Queue a step to run after every step queued before it.
+     */
+    public void submit(Runnable step) {
+        ready.add(step);
+        // the task runs whichever step is at the front, not necessarily this one
+        pool.execute(() -> {
+            Runnable next = ready.poll();
+            if (next != null) {
+                next.run();
+            }
+        });
+    }
+
+    /** The step running on the current thread */
+    private static final ThreadLocal<Step> running = new ThreadLocal<>();
+
+    private static class Step {
+        final boolean pausable;
+        boolean paused = false;
+
+        Step(boolean pausable) {
+            this.pausable = pausable;
+        }
+    }
+
+    /**
+     * Mark the start of a step on the current thread.
+     *
+     * @param pausable true if the pipeline the step runs may stop at a
+     *                 morsel boundary and resume in a later step: its
+     *                 operators must all stream, like Filter and Project
+     */
+    static void beginStep(boolean pausable) {
+        running.set(new Step(pausable));
+    }
+
+    /**
+     * @return true if the current thread's step has paused at a morsel
+     *         boundary, so its pipeline has more to do in a later step
+     */
+    static boolean stepPaused() {
+        Step step = running.get();
+        return step != null && step.paused;
+    }
+
+    /** Mark the end of the current thread's step. */
+    static void endStep() {
+        running.remove();
+    }
+
+    /**
+     * Called by a MorselScan that has finished a morsel.
+     *
+     * @return true if the scan should end the current step here, by
+     *         returning no more tuples for now
+     */
+    static boolean pauseAtMorselBoundary() {
+        Step step = running.get();
+        if (step == null || !step.pausable) {
+            return false;
+        }
+        step.paused = true;
+        return true;
+    }
+}
@@ -6,6 +6,7 @@ import simpledb.transaction.TransactionId;
 import simpledb.common.Type;
 import simpledb.common.DbException;
 import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFileIterator;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
@@ -14,9 +15,9 @@ import java.util.*;
 /**
  * SeqScan is an implementation of a sequential scan access method that reads
  * each tuple of a table in no particular order (e.g., as they are laid out on
- * disk).
+ * disk).  It can also run a batch at a time.
  */
-public class SeqScan implements OpIterator {
+public class SeqScan implements BatchIterator {
 
     private static final long serialVersionUID = 1L;
 
@@ -53,6 +54,20 @@ public class SeqScan implements OpIterator {
         return Database.getCatalog().getTableName(tableId);
     }
 
+    /**
+     * @return the id of the table the operator scans
+     */
+    public int getTableId() {
+        return tableId;
+    }
+
+    /**
+     * @return the transaction the operator scans the table as a part of
+     */
+    public TransactionId getTransactionId() {
+        return transactionId;
+    }
+
     /**
      * @return Return the alias of the table this operator scans.
      */
@@ -100,6 +115,14 @@ public class SeqScan implements OpIterator {
      */
     public TupleDesc getTupleDesc() {
         // some code goes here
+        return aliasedTupleDesc(tableId, tableAlias);
+    }
+
+    /**
+     * @return the TupleDesc of table tableId, with its field names prefixed
+     * by tableAlias and a "."
+     */
+    static TupleDesc aliasedTupleDesc(int tableId, String tableAlias) {
         TupleDesc oldTd=Database.getCatalog().getTupleDesc(tableId);
         String[] names=new String[oldTd.numFields()];
         Type[] types=new Type[oldTd.numFields()];
@@ -123,6 +146,23 @@ public class SeqScan implements OpIterator {
         return iterator.next();
     }
 
+    /**
+     * Heap files fill the batch a page at a time, straight into its column
+     * arrays; other files a tuple at a time.
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        if (iterator instanceof HeapFileIterator) {
+            TupleBatch batch = new TupleBatch(getTupleDesc(), TupleBatch.CAPACITY);
+            return ((HeapFileIterator) iterator).fillBatch(batch) ? batch : null;
+        }
+        if (iterator == null || !iterator.hasNext()) return null;
+        TupleBatch batch = new TupleBatch(getTupleDesc(), TupleBatch.CAPACITY);
+        while (!batch.isFull() && iterator.hasNext()) {
+            batch.add(iterator.next());
+        }
+        return batch;
+    }
+
     public void close() {
         // some code goes here
         if (iterator != null) iterator.close();
@@ -0,0 +1,291 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFile;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * SortMergeJoin joins two inputs sorted on their join fields by merging
+ * them.  Inputs that are not already sorted in ascending order on the join
+ * field -- by an OrderBy, or a B+ tree scan of the field -- are sorted with
+ * an OrderBy first.
+ * <p>
+ * For EQUALS the inputs are merged a key at a time, buffering only the
+ * tuples of child2 with the current key, so duplicate keys on both sides
+ * produce every pair.  For the inequalities, child2 is buffered in full;
+ * since child1 arrives in ascending order, the run of child2 tuples each
+ * child1 tuple joins with is bounded by two positions that only move
+ * forward.  LIKE is only supported on INT_TYPE fields, where it means
+ * EQUALS.
+ * <p>
+ * The buffer of child2 is not bounded, so the optimizer only plans a range
+ * join as a SortMergeJoin when child2 is expected to fit in
+ * {@link #BUFFER_PAGES} pages.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The number of pages of child2 tuples a range join is planned to buffer */
+    public static final int BUFFER_PAGES = 100;
+
+    private final JoinPredicate pred;
+    private final Predicate.Op op;
+    private OpIterator child1, child2;
+    private OpIterator sorted1, sorted2;
+    private final TupleDesc comboTD;
+
+    /**
+     * @param p the predicate to join the children on
+     * @param child1 the left input
+     * @param child2 the right input
+     * @throws IllegalArgumentException if p is a LIKE on strings
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        Predicate.Op op = p.getOperator();
+        if (op == Predicate.Op.LIKE) {
+            if (child1.getTupleDesc().getFieldType(p.getField1()) != Type.INT_TYPE) {
+                throw new IllegalArgumentException("cannot merge join on LIKE of strings");
+            }
+            op = Predicate.Op.EQUALS;
+        }
+        this.pred = p;
+        this.op = op;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+        setChildren(new OpIterator[]{child1, child2});
+    }
+
+    /**
+     * @return the number of tuples of the given TupleDesc that fit in
+     *         {@link #BUFFER_PAGES} pages
+     */
+    public static int maxBufferedTuples(TupleDesc td) {
+        return BUFFER_PAGES * BufferPool.getPageSize() / td.getSize();
+    }
+
+    /**
+     * @return true if it is known to return its tuples in ascending order
+     *         of field
+     */
+    public static boolean isSortedOn(OpIterator it, int field) {
+        if (it instanceof OrderBy) {
+            OrderBy o = (OrderBy) it;
+            return o.isASC() && o.getOrderByField() == field;
+        }
+        if (it instanceof BTreeScan) {
+            DbFile f = Database.getCatalog().getDatabaseFile(((BTreeScan) it).getTableId());
+            return f instanceof BTreeFile && ((BTreeFile) f).keyField() == field;
+        }
+        if (it instanceof SeqScan) {
+            // a B+ tree is scanned leaf by leaf, in key order
+            return IndexNestedLoopJoin.isIndexedOn(((SeqScan) it).getTableId(), field);
+        }
+        if (it instanceof Filter) {
+            return isSortedOn(((Filter) it).getChildren()[0], field);
+        }
+        if (it instanceof Project) {
+            Project p = (Project) it;
+            return isSortedOn(p.getChildren()[0], p.childField(field));
+        }
+        return false;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public void open() throws DbException, NoSuchElementException, TransactionAbortedException {
+        sorted1.open();
+        sorted2.open();
+        right = null;
+        reset();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        sorted2.close();
+        sorted1.close();
+        right = null;
+        reset();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        sorted1.rewind();
+        if (op == Predicate.Op.EQUALS) {
+            sorted2.rewind();
+        }
+        reset();
+    }
+
+    // EQUALS: the next tuple of child2, and the group of child2 tuples
+    // with the key of the current child1 tuple
+    private transient Tuple nextRight;
+    private transient boolean rightStarted;
+    private transient List<Tuple> group;
+    private transient Field groupKey;
+
+    // inequalities: all of child2, and the positions of the first tuple
+    // whose key is at least, and greater than, the current child1 key
+    private transient List<Tuple> right;
+    private transient int lo, hi;
+
+    // the current child1 tuple, and the positions of group or right it
+    // still joins with: [pos, end) and then [pos2, end2)
+    private transient Tuple t1;
+    private transient int pos, end, pos2, end2;
+    private transient List<Tuple> matches;
+
+    private void reset() {
+        nextRight = null;
+        rightStarted = false;
+        group = null;
+        groupKey = null;
+        lo = hi = 0;
+        t1 = null;
+        pos = end = pos2 = end2 = 0;
+        matches = null;
+    }
+
+    private static int compare(Field a, Field b) {
+        if (a.compare(Predicate.Op.EQUALS, b))
+            return 0;
+        return a.compare(Predicate.Op.LESS_THAN, b) ? -1 : 1;
+    }
+
+    private Field key2(Tuple t) {
+        return t.getField(pred.getField2());
+    }
+
+    private Tuple pullRight() throws DbException, TransactionAbortedException {
+        return sorted2.hasNext() ? sorted2.next() : null;
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        while (true) {
+            if (pos < end) {
+                return HashEquiJoin.merge(comboTD, t1, matches.get(pos++));
+            }
+            if (pos2 < end2) {
+                pos = pos2;
+                end = end2;
+                pos2 = end2 = 0;
+                continue;
+            }
+            if (!sorted1.hasNext()) {
+                return null;
+            }
+            t1 = sorted1.next();
+            Field k1 = t1.getField(pred.getField1());
+            if (op == Predicate.Op.EQUALS) {
+                matchGroup(k1);
+            } else {
+                matchRange(k1);
+            }
+        }
+    }
+
+    /** Point at the tuples of child2 whose key equals k1 */
+    private void matchGroup(Field k1) throws DbException, TransactionAbortedException {
+        if (groupKey == null || compare(k1, groupKey) != 0) {
+            if (!rightStarted) {
+                nextRight = pullRight();
+                rightStarted = true;
+            }
+            while (nextRight != null && compare(key2(nextRight), k1) < 0) {
+                nextRight = pullRight();
+            }
+            group = new ArrayList<>();
+            groupKey = k1;
+            while (nextRight != null && compare(key2(nextRight), k1) == 0) {
+                group.add(nextRight);
+                nextRight = pullRight();
+            }
+        }
+        matches = group;
+        pos = 0;
+        end = group.size();
+    }
+
+    /** Point at the tuples of child2 that k1 is op to */
+    private void matchRange(Field k1) throws DbException, TransactionAbortedException {
+        if (right == null) {
+            right = new ArrayList<>();
+            while (sorted2.hasNext()) {
+                right.add(sorted2.next());
+            }
+        }
+        int n = right.size();
+        while (lo < n && compare(key2(right.get(lo)), k1) < 0)
+            lo++;
+        if (hi < lo)
+            hi = lo;
+        while (hi < n && compare(key2(right.get(hi)), k1) <= 0)
+            hi++;
+        matches = right;
+        pos2 = end2 = 0;
+        switch (op) {
+            case LESS_THAN:
+                pos = hi;
+                end = n;
+                break;
+            case LESS_THAN_OR_EQ:
+                pos = lo;
+                end = n;
+                break;
+            case GREATER_THAN:
+                pos = 0;
+                end = lo;
+                break;
+            case GREATER_THAN_OR_EQ:
+                pos = 0;
+                end = hi;
+                break;
+            case NOT_EQUALS:
+                pos = 0;
+                end = lo;
+                pos2 = hi;
+                end2 = n;
+                break;
+            default:
+                throw new IllegalStateException("unexpected join operator " + op);
+        }
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{child1, child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        child1 = children[0];
+        child2 = children[1];
+        sorted1 = isSortedOn(child1, pred.getField1()) ? child1 : new OrderBy(pred.getField1(), true, child1);
+        sorted2 = isSortedOn(child2, pred.getField2()) ? child2 : new OrderBy(pred.getField2(), true, child2);
+    }
+}
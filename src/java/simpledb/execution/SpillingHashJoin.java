@@ -0,0 +1,179 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Field;
+import simpledb.storage.SpillFile;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * SpillingHashJoin is the partitioned half of a hybrid hash join, which
+ * {@link HashEquiJoin} switches to when its build side does not fit in
+ * {@link HashEquiJoin#MAP_SIZE} tuples.
+ * <p>
+ * Build tuples are split by hash into {@link #PARTITIONS} partitions.
+ * Partition 0 stays in memory as long as it fits; the others are written
+ * to {@link SpillFile}s.  Probe tuples of partition 0 are joined as they
+ * arrive, and those of the spilled partitions are written out in turn.
+ * Each pair of spilled partitions is then joined by a HashEquiJoin one
+ * level down, which hashes differently and so splits a partition that is
+ * still too big again.  Below {@link #MAX_LEVEL}, where repeated keys make
+ * splitting futile, HashEquiJoin falls back to rescanning the probe side
+ * once per MAP_SIZE build tuples.
+ */
+class SpillingHashJoin {
+
+    /** The number of partitions each level splits its input into */
+    static final int PARTITIONS = 16;
+
+    /** The deepest level that still partitions its input */
+    static final int MAX_LEVEL = 3;
+
+    private final JoinPredicate pred;
+    private final TupleDesc comboTD;
+    private final int level;
+    private final SpillFile[] builds = new SpillFile[PARTITIONS];
+    private final SpillFile[] probes = new SpillFile[PARTITIONS];
+    private Map<Field, List<Tuple>> resident = new HashMap<>();
+    private int residentSize = 0;
+
+    /**
+     * @param level how many times the tuples have already been partitioned
+     */
+    SpillingHashJoin(JoinPredicate pred, TupleDesc comboTD, int level) {
+        this.pred = pred;
+        this.comboTD = comboTD;
+        this.level = level;
+    }
+
+    /** @return the partition of a join key, hashed differently at each level */
+    static int partition(Field key, int level) {
+        int h = (key.hashCode() ^ (level * 0x9E3779B9)) * 0x85EBCA6B;
+        return Math.floorMod(h ^ (h >>> 15), PARTITIONS);
+    }
+
+    /** Add a tuple of the build side, child1 of the join. */
+    void build(Tuple t) throws DbException {
+        Field key = t.getField(pred.getField1());
+        int p = partition(key, level);
+        if (p == 0 && resident != null) {
+            resident.computeIfAbsent(key, k -> new ArrayList<>()).add(t);
+            if (++residentSize > HashEquiJoin.MAP_SIZE) {
+                // partition 0 does not fit either: spill it like the others
+                for (List<Tuple> list : resident.values()) {
+                    for (Tuple r : list) {
+                        spill(builds, 0, r);
+                    }
+                }
+                resident = null;
+            }
+        } else {
+            spill(builds, p, t);
+        }
+    }
+
+    /**
+     * Add a tuple of the probe side, child2 of the join, once the whole
+     * build side has been added.
+     *
+     * @param out where to add the joined tuples, if its partition is in memory
+     */
+    void probe(Tuple t, List<Tuple> out) throws DbException {
+        Field key = t.getField(pred.getField2());
+        int p = partition(key, level);
+        if (p == 0 && resident != null) {
+            List<Tuple> matches = resident.get(key);
+            if (matches != null) {
+                for (Tuple t1 : matches) {
+                    out.add(HashEquiJoin.merge(comboTD, t1, t));
+                }
+            }
+        } else if (builds[p] != null) {
+            spill(probes, p, t);
+        }
+    }
+
+    private void spill(SpillFile[] files, int p, Tuple t) throws DbException {
+        if (files[p] == null) {
+            files[p] = new SpillFile(t.getTupleDesc());
+        }
+        files[p].add(t);
+    }
+
+    /**
+     * @return an iterator over the joined tuples of the spilled
+     *         partitions, once every probe tuple has been added
+     */
+    OpIterator spilled() {
+        return new Operator() {
+            private static final long serialVersionUID = 1L;
+            private int p = -1;
+            private OpIterator current;
+
+            protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+                while (true) {
+                    if (current != null) {
+                        if (current.hasNext()) {
+                            return current.next();
+                        }
+                        current.close();
+                        current = null;
+                    }
+                    do {
+                        if (++p >= PARTITIONS) {
+                            return null;
+                        }
+                    } while (builds[p] == null || probes[p] == null);
+                    current = new HashEquiJoin(pred, builds[p].iterator(), probes[p].iterator(), level + 1);
+                    current.open();
+                }
+            }
+
+            public void rewind() {
+                if (current != null) {
+                    current.close();
+                }
+                current = null;
+                p = -1;
+            }
+
+            public void close() {
+                super.close();
+                if (current != null) {
+                    current.close();
+                }
+                current = null;
+            }
+
+            public TupleDesc getTupleDesc() {
+                return comboTD;
+            }
+
+            public OpIterator[] getChildren() {
+                return new OpIterator[0];
+            }
+
+            public void setChildren(OpIterator[] children) {
+            }
+        };
+    }
+
+    /** Delete the spill files. */
+    void close() {
+        for (int p = 0; p < PARTITIONS; p++) {
+            if (builds[p] != null) {
+                builds[p].delete();
+            }
+            if (probes[p] != null) {
+                probes[p].delete();
+            }
+        }
+        resident = null;
+    }
+}
@@ -0,0 +1,156 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.NoSuchElementException;
+
+/**
+ * StreamAggregate computes the same aggregates as {@link HashAggregate} of
+ * a child whose tuples arrive grouped: all the tuples of a group one after
+ * the other, as they do from a scan of a B+ tree keyed on the group field,
+ * or from an {@link OrderBy} on it.
+ * <p>
+ * It keeps only the key and running aggregates of the group it is reading,
+ * and returns the group as soon as a tuple with a different key arrives, so
+ * it needs constant memory and returns its first group without reading the
+ * whole child.  Groups come out in the order of the child.  If the child is
+ * not grouped, a group split in several runs is returned once per run.
+ */
+public class StreamAggregate extends GroupedAggregate {
+
+    private static final long serialVersionUID = 1L;
+
+    private OpIterator child;
+    private final TupleDesc td;
+
+    // the key and running aggregates of the group being read
+    private final Field[] key;
+    private final long[] values;
+    private long count;
+
+    // the first tuple of the next group, read while looking for the end of
+    // the last
+    private Tuple pending;
+
+    /**
+     * @param child the tuples to aggregate, grouped on groupFields
+     * @param groupFields the fields to group by; empty for a single group
+     * @param aggFields the fields to aggregate
+     * @param ops for each field of aggFields, the aggregate to compute: MIN,
+     *        MAX, SUM, AVG or COUNT, and only COUNT of a STRING_TYPE field
+     */
+    public StreamAggregate(OpIterator child, int[] groupFields, int[] aggFields, Aggregator.Op[] ops) {
+        super(child.getTupleDesc(), groupFields, aggFields, ops);
+        this.child = child;
+        td = aggregateTupleDesc(child.getTupleDesc(), groupFields, aggFields, ops);
+        key = new Field[groupFields.length];
+        values = new long[aggFields.length];
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, NoSuchElementException, TransactionAbortedException {
+        child.open();
+        pending = null;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        pending = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+        pending = null;
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        Tuple t = pending;
+        pending = null;
+        if (t == null) {
+            if (!child.hasNext()) {
+                return null;
+            }
+            t = child.next();
+        }
+        for (int i = 0; i < key.length; i++) {
+            key[i] = t.getField(groupFields[i]);
+        }
+        for (int a = 0; a < ops.length; a++) {
+            values[a] = ops[a] == Aggregator.Op.MIN ? Long.MAX_VALUE
+                    : ops[a] == Aggregator.Op.MAX ? Long.MIN_VALUE : 0;
+        }
+        count = 0;
+        accumulate(t);
+        while (child.hasNext()) {
+            t = child.next();
+            if (!inGroup(t)) {
+                pending = t;
+                break;
+            }
+            accumulate(t);
+        }
+        return group();
+    }
+
+    private boolean inGroup(Tuple t) {
+        for (int i = 0; i < key.length; i++) {
+            if (!key[i].equals(t.getField(groupFields[i]))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void accumulate(Tuple t) {
+        count++;
+        for (int a = 0; a < ops.length; a++) {
+            switch (ops[a]) {
+                case MIN:
+                    values[a] = Math.min(values[a], ((IntField) t.getField(aggFields[a])).getValue());
+                    break;
+                case MAX:
+                    values[a] = Math.max(values[a], ((IntField) t.getField(aggFields[a])).getValue());
+                    break;
+                case SUM:
+                case AVG:
+                    values[a] += ((IntField) t.getField(aggFields[a])).getValue();
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /** @return the output tuple of the group just read */
+    private Tuple group() throws DbException {
+        Tuple t = new Tuple(td);
+        int n = key.length;
+        for (int i = 0; i < n; i++) {
+            t.setField(i, key[i]);
+        }
+        for (int a = 0; a < ops.length; a++) {
+            t.setField(n + a, aggregateField(td, n + a, ops[a], values[a], count));
+        }
+        return t;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{child};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        child = children[0];
+    }
+}
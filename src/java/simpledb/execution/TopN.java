@@ -0,0 +1,154 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * TopN implements ORDER BY with LIMIT and OFFSET: it returns the tuples
+ * {@link OrderBy} would, from offset up to offset + limit, without sorting
+ * all of its child.
+ * <p>
+ * It keeps the first k = offset + limit tuples seen so far in a heap whose
+ * root is the last of them, and replaces the root with each tuple of the
+ * child that comes before it, so that reading n tuples takes O(n log k)
+ * time and O(k) space.  Like OrderBy, it keeps tuples that sort equal in
+ * the order its child returned them.  Since the heap is held in memory, k
+ * should be no more than OrderBy buffers.
+ */
+public class TopN extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private OpIterator child;
+    private final int[] orderByFields;
+    private final boolean[] ascs;
+    private final int limit;
+    private final int offset;
+    private final Comparator<Entry> comparator;
+
+    private final List<Tuple> top = new ArrayList<>();
+    private Iterator<Tuple> it;
+
+    /** A tuple of the child, and its position in the child */
+    private static class Entry {
+        final Tuple t;
+        final long seq;
+
+        Entry(Tuple t, long seq) {
+            this.t = t;
+            this.seq = seq;
+        }
+    }
+
+    /**
+     * @param orderbyFields the fields to sort on, most significant first
+     * @param asc for each field, true if the sort order is ascending
+     * @param limit the most tuples to return
+     * @param offset the number of tuples to skip first
+     * @param child the tuples to sort
+     */
+    public TopN(int[] orderbyFields, boolean[] asc, int limit, int offset, OpIterator child) {
+        if (orderbyFields.length == 0 || orderbyFields.length != asc.length) {
+            throw new IllegalArgumentException("need one direction for each of at least one field");
+        }
+        if (limit < 0 || offset < 0 || (long) limit + offset > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("LIMIT and OFFSET must not be negative, nor add up to more than an int");
+        }
+        this.orderByFields = orderbyFields.clone();
+        this.ascs = asc.clone();
+        this.limit = limit;
+        this.offset = offset;
+        this.child = child;
+        TupleComparator byFields = new TupleComparator(orderByFields, ascs);
+        this.comparator = (a, b) -> {
+            int c = byFields.compare(a.t, b.t);
+            return c != 0 ? c : Long.compare(a.seq, b.seq);
+        };
+    }
+
+    /** @return the fields sorted on, most significant first */
+    public int[] getOrderByFields() {
+        return orderByFields.clone();
+    }
+
+    /** @return for each of the fields sorted on, true if it is ascending */
+    public boolean[] getAscending() {
+        return ascs.clone();
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException, TransactionAbortedException {
+        child.open();
+        top.clear();
+        int k = offset + limit;
+        if (limit > 0) {
+            // the root of the heap is the last of the k tuples kept
+            PriorityQueue<Entry> heap = new PriorityQueue<>(Math.min(k, 1024), comparator.reversed());
+            long seq = 0;
+            while (child.hasNext()) {
+                Entry e = new Entry(child.next(), seq++);
+                if (heap.size() < k) {
+                    heap.add(e);
+                } else if (comparator.compare(e, heap.peek()) < 0) {
+                    heap.poll();
+                    heap.add(e);
+                }
+            }
+            List<Entry> sorted = new ArrayList<>(heap);
+            sorted.sort(comparator);
+            for (Entry e : sorted.subList(Math.min(offset, sorted.size()), sorted.size())) {
+                top.add(e.t);
+            }
+        }
+        it = top.iterator();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        top.clear();
+        it = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        it = top.iterator();
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if (it != null && it.hasNext()) {
+            return it.next();
+        }
+        return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{child};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        child = children[0];
+    }
+}
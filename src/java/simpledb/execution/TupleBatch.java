@@ -0,0 +1,227 @@
+package simpledb.execution;
+
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+/**
+ * TupleBatch holds up to a few thousand rows column by column: an int[]
+ * for each INT_TYPE column and a String[] for each STRING_TYPE column, so
+ * that operators working a batch at a time can loop over plain arrays
+ * instead of calling through Tuples and Fields.
+ * <p>
+ * A batch may carry a selection vector, the ascending indexes of the rows
+ * that are still part of it; Filter narrows the selection rather than
+ * copying the rows that pass.  Row i of the batch is physical row
+ * {@link #row(int) row(i)} of its columns.  Projecting a batch shares its
+ * column arrays, so the arrays of a batch must not be changed once it has
+ * been handed to another operator.
+ * <p>
+ * Batches do not carry RecordIds.
+ */
+public class TupleBatch {
+
+    /** The number of rows operators put in a batch */
+    public static final int CAPACITY = 1024;
+
+    private final TupleDesc td;
+    private final int[][] ints;
+    private final String[][] strings;
+    private final int capacity;
+    private int rows;
+    private int[] selection;
+    private int size;
+
+    /**
+     * Create an empty batch with room for capacity rows.
+     */
+    public TupleBatch(TupleDesc td, int capacity) {
+        this.td = td;
+        this.capacity = capacity;
+        ints = new int[td.numFields()][];
+        strings = new String[td.numFields()][];
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                ints[i] = new int[capacity];
+            } else {
+                strings[i] = new String[capacity];
+            }
+        }
+    }
+
+    private TupleBatch(TupleDesc td, int[][] ints, String[][] strings, int rows, int[] selection, int size) {
+        this.td = td;
+        this.ints = ints;
+        this.strings = strings;
+        this.capacity = rows;
+        this.rows = rows;
+        this.selection = selection;
+        this.size = size;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the number of rows in the batch, after selection */
+    public int size() {
+        return size;
+    }
+
+    /** @return true if no more rows can be added */
+    public boolean isFull() {
+        return rows == capacity;
+    }
+
+    /** @return the number of rows that can still be added */
+    public int room() {
+        return capacity - rows;
+    }
+
+    /** @return the physical row holding row i of the batch */
+    public int row(int i) {
+        return selection == null ? i : selection[i];
+    }
+
+    /** @return the selection vector, or null if every physical row is selected */
+    public int[] getSelection() {
+        return selection;
+    }
+
+    /**
+     * Narrow the batch to the given physical rows.
+     *
+     * @param selection the ascending physical rows to keep
+     * @param size the number of entries of selection to use
+     */
+    public void select(int[] selection, int size) {
+        this.selection = selection;
+        this.size = size;
+    }
+
+    /** @return the values of an INT_TYPE column, by physical row */
+    public int[] getInts(int column) {
+        return ints[column];
+    }
+
+    /** @return the values of a STRING_TYPE column, by physical row */
+    public String[] getStrings(int column) {
+        return strings[column];
+    }
+
+    /** @return the value of a column at a physical row, as a Field */
+    public Field getField(int column, int row) {
+        if (ints[column] != null) {
+            return new IntField(ints[column][row]);
+        }
+        return new StringField(strings[column][row], Type.STRING_LEN);
+    }
+
+    /**
+     * Add a row at the end of the batch, which must not have a selection
+     * vector.
+     *
+     * @return the physical row to fill in with {@link #copy}
+     */
+    public int addRow() {
+        return addRows(1);
+    }
+
+    /**
+     * Add n rows at the end of the batch, which must not have a selection
+     * vector, to be filled in column by column.
+     *
+     * @return the physical row of the first of them
+     */
+    public int addRows(int n) {
+        int first = rows;
+        rows += n;
+        size += n;
+        return first;
+    }
+
+    /**
+     * Add a tuple at the end of the batch, which must not have a selection
+     * vector.
+     */
+    public void add(Tuple t) {
+        int row = addRow();
+        for (int i = 0; i < ints.length; i++) {
+            if (ints[i] != null) {
+                ints[i][row] = ((IntField) t.getField(i)).getValue();
+            } else {
+                strings[i][row] = ((StringField) t.getField(i)).getValue();
+            }
+        }
+    }
+
+    /**
+     * Copy columns [from, from + n) of a physical row of src into columns
+     * [to, to + n) of a physical row of this batch.
+     */
+    public void copy(TupleBatch src, int srcRow, int from, int n, int row, int to) {
+        for (int i = 0; i < n; i++) {
+            if (ints[to + i] != null) {
+                ints[to + i][row] = src.ints[from + i][srcRow];
+            } else {
+                strings[to + i][row] = src.strings[from + i][srcRow];
+            }
+        }
+    }
+
+    /** @return true if column c of physical row r equals column oc of physical row or of other */
+    boolean matches(int c, int r, TupleBatch other, int oc, int or) {
+        if (ints[c] != null) {
+            return ints[c][r] == other.ints[oc][or];
+        }
+        return strings[c][r].equals(other.strings[oc][or]);
+    }
+
+    /** @return a hash of column c at physical row r */
+    int hash(int c, int r) {
+        int h = ints[c] != null ? ints[c][r] : strings[c][r].hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return a batch of the given columns of this one, sharing its column
+     *         arrays and selection
+     */
+    public TupleBatch project(int[] columns, TupleDesc projected) {
+        int[][] pints = new int[columns.length][];
+        String[][] pstrings = new String[columns.length][];
+        for (int i = 0; i < columns.length; i++) {
+            pints[i] = ints[columns[i]];
+            pstrings[i] = strings[columns[i]];
+        }
+        return new TupleBatch(projected, pints, pstrings, rows, selection, size);
+    }
+
+    /** @return row i of the batch, printed as {@link Tuple#toString} prints it */
+    public String rowString(int i) {
+        int row = row(i);
+        StringBuilder sb = new StringBuilder();
+        for (int c = 0; c < ints.length; c++) {
+            if (ints[c] != null) {
+                sb.append(ints[c][row]);
+            } else {
+                sb.append(strings[c][row]);
+            }
+            sb.append("\t");
+        }
+        return sb.toString();
+    }
+
+    /** @return row i of the batch, as a Tuple */
+    public Tuple getTuple(int i) {
+        int row = row(i);
+        Tuple t = new Tuple(td);
+        for (int c = 0; c < ints.length; c++) {
+            t.setField(c, getField(c, row));
+        }
+        return t;
+    }
+}
@@ -2,6 +2,7 @@ package simpledb.index;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
 
 import simpledb.common.Database;
 import simpledb.common.Permissions;
@@ -19,6 +20,28 @@ import simpledb.transaction.TransactionId;
  * a set of internal pages, and a set of leaf pages, which contain a collection of tuples
  * in sorted order. BTreeFile works closely with BTreeLeafPage, BTreeInternalPage,
  * and BTreeRootPtrPage. The format of these pages is described in their constructors.
+ * <p>
+ * Concurrent operations descend the tree by latch crabbing: each internal
+ * page is read under its shared latch, which is given up once the next page
+ * down is latched.  Internal pages are never locked on the way down, so
+ * readers and writers only conflict on the leaves they lock.  A split locks
+ * every page it will change, and latches each of them exclusively, before
+ * changing any; if one of them is busy it gives up its latches, waits for
+ * the lock and starts over.  It holds no latch on the rest of the tree, so
+ * operations elsewhere go on meanwhile.  Merges hold the tree's latch
+ * exclusively, which every other operation that follows the internal pages
+ * holds shared, and may wait for locks under it.
+ * <p>
+ * Latches are taken through the BufferPool, whose LockManager detects
+ * deadlocks between latch and lock waits and aborts the waiter that closes
+ * the cycle; no wait is ever given up on a timer.  See {@link BTreeLatch}.
+ * <p>
+ * Scans take no latches at all, B-link style.  They read one internal
+ * page at a time under its monitor, so they may pass through
+ * a split while it is under way.  Splits only ever move keys to the right,
+ * and a new page is added to its parent only after its keys have left the
+ * old one, so such a scan can only arrive at a leaf to the left of the one
+ * it wants; it recovers by following right sibling links.
  * 
  * @see BTreeLeafPage#BTreeLeafPage
  * @see BTreeInternalPage#BTreeInternalPage
@@ -33,6 +56,13 @@ public class BTreeFile implements DbFile {
 	private final int tableid ;
 	private final int keyField;
 
+	// shared by operations that follow the internal pages, held exclusively
+	// by those that merge pages
+	private final BTreeLatch treeLatch;
+
+	// held while the file itself is extended
+	private final ReentrantLock extendLatch = new ReentrantLock();
+
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
 	 * 
@@ -46,6 +76,7 @@ public class BTreeFile implements DbFile {
 		this.tableid = f.getAbsoluteFile().hashCode();
 		this.keyField = key;
 		this.td = td;
+		this.treeLatch = new BTreeLatch(tableid);
 	}
 
 	/**
@@ -168,6 +199,20 @@ public class BTreeFile implements DbFile {
 		return keyField;
 	}
 
+	/**
+	 * Estimate the number of pages a search reads, from the root pointer's
+	 * root down to a leaf, from the number of pages in the file and the
+	 * fanout of its internal pages. Reads no pages.
+	 */
+	public int estimateHeight() {
+		int fanout = BTreeInternalPage.maxEntries(td, keyField) + 1;
+		int height = 1;
+		for (long pages = Math.max(1, numPages()); pages > 1; pages = (pages + fanout - 1) / fanout) {
+			height++;
+		}
+		return height;
+	}
+
 	/**
 	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
 	 * the left-most page possibly containing the key field f. It locks all internal
@@ -187,25 +232,372 @@ public class BTreeFile implements DbFile {
 	private BTreeLeafPage findLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
                                        Field f)
 					throws DbException, TransactionAbortedException {
-		// some code goes here
-        return null;
+		if(pid.pgcateg() == BTreePageId.LEAF) {
+			return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
+		}
+		BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+		return findLeafPage(tid, dirtypages, childFor(page, f), perm, f);
 	}
-	
+
 	/**
-	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
-	 * Used by the BTreeFile iterator.
-	 * @see #findLeafPage(TransactionId, Map, BTreePageId, Permissions, Field)
+	 * Find and lock the left-most leaf page possibly containing the key field f, without
+	 * locking any internal page.  The internal pages are read by latch crabbing under the
+	 * shared tree latch, which keeps merges out until the leaf is locked; once it is, no
+	 * split or merge can move its tuples elsewhere until this transaction completes.
+	 * 
+	 * The latches are released before waiting for the leaf's lock, since a transaction
+	 * holding that lock may need them to finish a split, and the descent starts over
+	 * once the lock is granted.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param perm - the permissions with which to lock the leaf page
+	 * @param f - the field to search for, or null for the left-most leaf page
+	 * @return the left-most leaf page possibly containing the key field f, or null if the
+	 * tree has no root page yet
+	 */
+	private BTreeLeafPage findLeafPageLatched(TransactionId tid, Map<PageId, Page> dirtypages, Permissions perm,
+			Field f) throws DbException, IOException, TransactionAbortedException {
+		createIfEmpty();
+		BufferPool bp = Database.getBufferPool();
+		while(true) {
+			BTreePageId leafId;
+			boolean locked;
+			bp.latch(tid, treeLatch, false, true);
+			try {
+				leafId = latchLeafFor(tid, f);
+				if(leafId == null) {
+					return null;
+				}
+				Page leaf;
+				try {
+					leaf = tryGetPage(tid, dirtypages, leafId, perm);
+				} finally {
+					bp.unlatch(tid, new BTreeLatch(leafId));
+				}
+				locked = leaf != null;
+				// an aborting transaction may have rolled back internal pages we already read,
+				// so check that they still lead to the leaf now that it is locked
+				if(locked) {
+					BTreePageId again = latchLeafFor(tid, f);
+					if(again != null) {
+						bp.unlatch(tid, new BTreeLatch(again));
+					}
+					if(leafId.equals(again)) {
+						return (BTreeLeafPage) leaf;
+					}
+				}
+			} finally {
+				bp.unlatch(tid, treeLatch);
+			}
+			if(!locked) {
+				getPage(tid, dirtypages, leafId, perm);
+			}
+		}
+	}
+
+	/**
+	 * Find the leaf page a scan starts from.  Used by the BTreeFile iterators, which read
+	 * the leaf pages through {@link #scanLeaf}; the pages visited here are locked only
+	 * while they are read.  If the tree is empty, the key past the end of the index is
+	 * locked instead, as a scan of the empty tree would.
+	 * @see #findLeafPageLatched(TransactionId, Map, Permissions, Field)
 	 * 
 	 * @param tid - the transaction id
-	 * @param pid - the current page being searched
 	 * @param f - the field to search for
-	 * @return the left-most leaf page possibly containing the key field f
+	 * @return the id of the left-most leaf page possibly containing the key field f, or
+	 * null if the tree is empty
 	 * 
 	 */
-	BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid,
-                               Field f)
+	BTreePageId findLeafPageId(TransactionId tid, Field f)
 					throws DbException, TransactionAbortedException {
-		return findLeafPage(tid, new HashMap<>(), pid, Permissions.READ_ONLY, f);
+		try {
+			createIfEmpty();
+		} catch (IOException e) {
+			throw new DbException("cannot create B+ tree file " + this.f + ": " + e.getMessage());
+		}
+		BufferPool bp = Database.getBufferPool();
+		while(true) {
+			BTreePageId rootId = rootId(tid);
+			if(rootId == null) {
+				// lock before looking again, so that no first insert can slip in between
+				bp.lockKey(tid, new IndexKey(tableid, null), Permissions.READ_ONLY, true);
+				if(rootId(tid) == null) {
+					return null;
+				}
+				continue;
+			}
+			BTreePageId pid = rootId;
+			BTreePageId parentId = null;
+			while(pid != null && pid.pgcateg() == BTreePageId.INTERNAL) {
+				parentId = pid;
+				pid = childFor((BTreeInternalPage) bp.getPageUnlocked(tid, pid), f);
+			}
+			if(pid == null) {
+				// a split has just made a new root page that has no entries yet, and
+				// keeps it locked until its transaction completes; wait for that
+				boolean held = bp.holdsLock(tid, parentId);
+				bp.getPage(tid, parentId, Permissions.READ_ONLY);
+				if(!held) {
+					bp.unsafeReleasePage(tid, parentId);
+				}
+				continue;
+			}
+
+			boolean held = bp.holdsLock(tid, pid);
+			BTreeLeafPage leaf = (BTreeLeafPage) bp.getPage(tid, pid, Permissions.READ_ONLY);
+			// if this page's parent is the root pointer, but it is not the root, the split
+			// that made it was rolled back after we read its parent
+			boolean orphan = leaf.getParentId().pgcateg() == BTreePageId.ROOT_PTR
+					&& !pid.equals(rootId(tid));
+
+			// move right past any keys split off since we read the parent
+			while(!orphan && f != null && leaf.getRightSiblingId() != null && !hasKeyAtLeast(leaf, f)) {
+				BTreePageId next = leaf.getRightSiblingId();
+				boolean nextHeld = bp.holdsLock(tid, next);
+				BTreeLeafPage nextLeaf = (BTreeLeafPage) bp.getPage(tid, next, Permissions.READ_ONLY);
+				if(!held) {
+					bp.unsafeReleasePage(tid, leaf.getId());
+				}
+				leaf = nextLeaf;
+				held = nextHeld;
+			}
+			if(!held) {
+				bp.unsafeReleasePage(tid, leaf.getId());
+			}
+			if(!orphan) {
+				return leaf.getId();
+			}
+		}
+	}
+
+	/**
+	 * The tuples a scan took from one leaf page, and the leaf page it goes on to.
+	 */
+	static class LeafScan {
+		final List<Tuple> tuples;
+		final BTreePageId next;
+
+		LeafScan(List<Tuple> tuples, BTreePageId next) {
+			this.tuples = tuples;
+			this.next = next;
+		}
+	}
+
+	/**
+	 * Read one leaf page for a scan.  Rather than keeping the page locked, the scan locks
+	 * the keys it covers: each key at least from, up to and including the first key for
+	 * which pastEnd holds, or else the key that follows the page.  Those locks keep
+	 * inserts out of the gaps between the keys, while the rest of the page stays open
+	 * to other transactions.
+	 * 
+	 * The page is locked only while it is read.  If a key lock would have to wait, the
+	 * page is unlocked first, since the holder of the key lock may need the page, and
+	 * then read again.
+	 * 
+	 * @param tid - the transaction id
+	 * @param pid - the leaf page to read
+	 * @param from - the smallest key the scan covers, or null for no lower bound
+	 * @param pastEnd - holds of the first key beyond the scan
+	 * @return the tuples of the page with keys from from up to the end of the scan, and
+	 * the next leaf page to read, or null if the scan ends on this page
+	 */
+	LeafScan scanLeaf(TransactionId tid, BTreePageId pid, Field from, java.util.function.Predicate<Field> pastEnd)
+			throws DbException, TransactionAbortedException {
+		BufferPool bp = Database.getBufferPool();
+		while(true) {
+			boolean held = bp.holdsLock(tid, pid);
+			BTreeLeafPage page = (BTreeLeafPage) bp.getPage(tid, pid, Permissions.READ_ONLY);
+			List<Tuple> tuples = new ArrayList<>();
+			Set<IndexKey> keys = new LinkedHashSet<>();
+			boolean ended = false;
+			Iterator<Tuple> it = page.iterator();
+			while(it.hasNext()) {
+				Tuple t = it.next();
+				Field key = t.getField(keyField);
+				if(from != null && key.compare(Op.LESS_THAN, from)) {
+					continue;
+				}
+				keys.add(new IndexKey(tableid, key));
+				if(pastEnd.test(key)) {
+					ended = true;
+					break;
+				}
+				tuples.add(t);
+			}
+			if(!ended) {
+				// the gap up to the first key of the next page
+				keys.add(keyRightOf(tid, page));
+			}
+
+			IndexKey blocked = null;
+			for(IndexKey key : keys) {
+				if(!bp.lockKey(tid, key, Permissions.READ_ONLY, false)) {
+					blocked = key;
+					break;
+				}
+			}
+			if(!held) {
+				bp.unsafeReleasePage(tid, pid);
+			}
+			if(blocked == null) {
+				return new LeafScan(tuples, ended ? null : page.getRightSiblingId());
+			}
+			bp.lockKey(tid, blocked, Permissions.READ_ONLY, true);
+		}
+	}
+
+	/**
+	 * Find the key that follows key in the index.  Page must be locked, and be the leaf
+	 * page key belongs on.
+	 * 
+	 * @return the smallest key greater than key, or the key past the end of the index
+	 */
+	private IndexKey nextKey(TransactionId tid, BTreeLeafPage page, Field key) throws DbException {
+		if(page != null) {
+			Iterator<Tuple> it = page.iterator();
+			while(it.hasNext()) {
+				Field next = it.next().getField(keyField);
+				if(next.compare(Op.GREATER_THAN, key)) {
+					return new IndexKey(tableid, next);
+				}
+			}
+		}
+		return keyRightOf(tid, page);
+	}
+
+	/**
+	 * Find the first key on the leaf pages to the right of page.  They are read without
+	 * locking them, each under its monitor: a page's first key only changes when a
+	 * transaction holding its lock inserts or deletes it, and then that transaction
+	 * holds the key's lock too.
+	 * 
+	 * @return the first key right of page, or the key past the end of the index
+	 */
+	private IndexKey keyRightOf(TransactionId tid, BTreeLeafPage page) throws DbException {
+		BufferPool bp = Database.getBufferPool();
+		BTreePageId next = page == null ? null : page.getRightSiblingId();
+		while(next != null) {
+			BTreeLeafPage sibling = (BTreeLeafPage) bp.getPageUnlocked(tid, next);
+			synchronized(sibling) {
+				Iterator<Tuple> it = sibling.iterator();
+				if(it.hasNext()) {
+					return new IndexKey(tableid, it.next().getField(keyField));
+				}
+				next = sibling.getRightSiblingId();
+			}
+		}
+		return new IndexKey(tableid, null);
+	}
+
+	/**
+	 * Lock key for an insert or a delete, along with the key that follows it, so that no
+	 * scan covering the gap around key can miss the change.  An insert locks the
+	 * following key only for an instant, to wait out scans; a delete keeps it until the
+	 * transaction completes, since the gap below it grows.
+	 * 
+	 * If a lock would have to wait, the leaf page is unlocked first, unless this
+	 * transaction has already changed it, since the holder of the key lock may need
+	 * the page.  The caller must then find the leaf page again.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param page - the leaf page key belongs on, locked READ_WRITE, or null if the tree is empty
+	 * @param key - the key being inserted or deleted
+	 * @param insert - true for an insert, false for a delete
+	 * @return true if the locks were granted without waiting
+	 */
+	private boolean lockKeys(TransactionId tid, Map<PageId, Page> dirtypages, BTreeLeafPage page, Field key,
+			boolean insert) throws DbException, TransactionAbortedException {
+		BufferPool bp = Database.getBufferPool();
+		IndexKey mine = new IndexKey(tableid, key);
+		IndexKey next = nextKey(tid, page, key);
+		if(bp.lockKey(tid, mine, Permissions.READ_WRITE, false)
+				&& (insert ? bp.lockKeyInstant(tid, next, false)
+						: bp.lockKey(tid, next, Permissions.READ_WRITE, false))) {
+			return true;
+		}
+		if(page != null && !tid.equals(page.isDirty())) {
+			bp.unsafeReleasePage(tid, page.getId());
+			dirtypages.remove(page.getId());
+		}
+		bp.lockKey(tid, mine, Permissions.READ_WRITE, true);
+		if(insert) {
+			bp.lockKeyInstant(tid, next, true);
+		} else {
+			bp.lockKey(tid, next, Permissions.READ_WRITE, true);
+		}
+		return false;
+	}
+
+	/**
+	 * @return the id of the root page, read without locking the root pointer page
+	 */
+	private BTreePageId rootId(TransactionId tid) throws DbException {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPageUnlocked(tid,
+				BTreeRootPtrPage.getId(tableid));
+		return rootPtr.getRootId();
+	}
+
+	/**
+	 * @return true if page holds a tuple whose key is at least f
+	 */
+	private boolean hasKeyAtLeast(BTreeLeafPage page, Field f) {
+		Iterator<Tuple> it = page.reverseIterator();
+		return it.hasNext() && it.next().getField(keyField).compare(Op.GREATER_THAN_OR_EQ, f);
+	}
+
+	/**
+	 * Follow the path from the root to the left-most leaf possibly containing f by latch
+	 * crabbing, reading the pages along it without locking them.  Each page is read under
+	 * its shared latch, starting with the root pointer, and its latch is released once the
+	 * next page down is latched.  The caller must hold the tree latch, and must unlatch
+	 * the leaf page.
+	 * 
+	 * @return the id of the leaf page, latched, or null if the tree has no root page yet
+	 */
+	private BTreePageId latchLeafFor(TransactionId tid, Field f)
+			throws DbException, TransactionAbortedException {
+		BufferPool bp = Database.getBufferPool();
+		BTreeLatch held = new BTreeLatch(BTreeRootPtrPage.getId(tableid));
+		bp.latch(tid, held, false, true);
+		try {
+			BTreePageId pid = rootId(tid);
+			while(pid != null) {
+				BTreeLatch next = new BTreeLatch(pid);
+				bp.latch(tid, next, false, true);
+				bp.unlatch(tid, held);
+				held = next;
+				if(pid.pgcateg() != BTreePageId.INTERNAL) {
+					held = null;
+					return pid;
+				}
+				pid = childFor((BTreeInternalPage) bp.getPageUnlocked(tid, pid), f);
+			}
+			return null;
+		} finally {
+			if(held != null) {
+				bp.unlatch(tid, held);
+			}
+		}
+	}
+
+	/**
+	 * @return the child of page under which the left-most occurrence of f would be
+	 * found, or its left-most child if f is null; null if page has no entries
+	 */
+	private static BTreePageId childFor(BTreeInternalPage page, Field f) {
+		synchronized(page) {
+			Iterator<BTreeEntry> it = page.iterator();
+			BTreeEntry e = null;
+			while(it.hasNext()) {
+				e = it.next();
+				if(f == null || e.getKey().compare(Op.GREATER_THAN_OR_EQ, f)) {
+					return e.getLeftChild();
+				}
+			}
+			return e == null ? null : e.getRightChild();
+		}
 	}
 
 	/**
@@ -231,16 +623,37 @@ public class BTreeFile implements DbFile {
 	 */
 	public BTreeLeafPage splitLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreeLeafPage page, Field field)
 			throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        //
-        // Split the leaf page by adding a new page on the right of the existing
-		// page and moving half of the tuples to the new page.  Copy the middle key up
-		// into the parent page, and recursively split the parent as needed to accommodate
-		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
-		// the sibling pointers of all the affected leaf pages.  Return the page into which a 
-		// tuple with the given key field should be inserted.
-        return null;
-		
+		BTreeLeafPage newRight = (BTreeLeafPage) getEmptyPage(tid, dirtypages, BTreePageId.LEAF);
+
+		// move the upper half of the tuples to the new page
+		Tuple[] moving = new Tuple[page.getNumTuples() / 2];
+		Iterator<Tuple> it = page.reverseIterator();
+		for(int i = moving.length - 1; i >= 0; i--) {
+			moving[i] = it.next();
+		}
+		for(Tuple t : moving) {
+			page.deleteTuple(t);
+			newRight.insertTuple(t);
+		}
+
+		// link the new page in between page and its old right sibling
+		BTreePageId oldRightId = page.getRightSiblingId();
+		if(oldRightId != null) {
+			BTreeLeafPage oldRight = (BTreeLeafPage) getPage(tid, dirtypages, oldRightId, Permissions.READ_WRITE);
+			oldRight.setLeftSiblingId(newRight.getId());
+		}
+		newRight.setRightSiblingId(oldRightId);
+		newRight.setLeftSiblingId(page.getId());
+		page.setRightSiblingId(newRight.getId());
+
+		// copy the first key of the new page up into the parent
+		Field middle = moving[0].getField(keyField);
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), middle);
+		parent.insertEntry(new BTreeEntry(middle, page.getId(), newRight.getId()));
+		page.setParentId(parent.getId());
+		newRight.setParentId(parent.getId());
+
+		return field.compare(Op.GREATER_THAN, middle) ? newRight : page;
 	}
 	
 	/**
@@ -268,16 +681,32 @@ public class BTreeFile implements DbFile {
 	public BTreeInternalPage splitInternalPage(TransactionId tid, Map<PageId, Page> dirtypages,
 			BTreeInternalPage page, Field field) 
 					throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        //
-        // Split the internal page by adding a new page on the right of the existing
-		// page and moving half of the entries to the new page.  Push the middle key up
-		// into the parent page, and recursively split the parent as needed to accommodate
-		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
-		// the parent pointers of all the children moving to the new page.  updateParentPointers()
-		// will be useful here.  Return the page into which an entry with the given key field
-		// should be inserted.
-		return null;
+		BTreeInternalPage newRight = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
+
+		// move the upper half of the entries to the new page, right-most first so that
+		// each entry shares a child with the one inserted before it
+		List<BTreeEntry> moving = new ArrayList<>();
+		Iterator<BTreeEntry> it = page.reverseIterator();
+		for(int i = page.getNumEntries() / 2; i > 0; i--) {
+			moving.add(it.next());
+		}
+		BTreeEntry middle = it.next();
+		for(BTreeEntry e : moving) {
+			page.deleteKeyAndRightChild(e);
+			newRight.insertEntry(e);
+		}
+
+		// push the middle entry up into the parent
+		page.deleteKeyAndRightChild(middle);
+		middle.setLeftChild(page.getId());
+		middle.setRightChild(newRight.getId());
+		updateParentPointers(tid, dirtypages, newRight);
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), middle.getKey());
+		parent.insertEntry(middle);
+		page.setParentId(parent.getId());
+		newRight.setParentId(parent.getId());
+
+		return field.compare(Op.GREATER_THAN, middle.getKey()) ? newRight : page;
 	}
 	
 	/**
@@ -307,14 +736,15 @@ public class BTreeFile implements DbFile {
 		if(parentId.pgcateg() == BTreePageId.ROOT_PTR) {
 			parent = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
 
-			// update the root pointer
+			// lock everything before publishing the new root, since scans wait
+			// for its first entry once they can see it
 			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages,
 					BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
 			BTreePageId prevRootId = rootPtr.getRootId(); //save prev id before overwriting.
-			rootPtr.setRootId(parent.getId());
-
-			// update the previous root to now point to this new root.
 			BTreePage prevRootPage = (BTreePage)getPage(tid, dirtypages, prevRootId, Permissions.READ_WRITE);
+
+			// update the root pointer, and the previous root to now point to this new root.
+			rootPtr.setRootId(parent.getId());
 			prevRootPage.setParentId(parent.getId());
 		}
 		else { 
@@ -413,6 +843,23 @@ public class BTreeFile implements DbFile {
 		}
 	}
 
+	/**
+	 * Like getPage, but returns null instead of waiting if another transaction holds a
+	 * conflicting lock on the page.
+	 * @see #getPage(TransactionId, Map, BTreePageId, Permissions)
+	 */
+	private Page tryGetPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid, Permissions perm)
+			throws DbException {
+		if(dirtypages.containsKey(pid)) {
+			return dirtypages.get(pid);
+		}
+		Page p = Database.getBufferPool().tryGetPage(tid, pid, perm);
+		if(p != null && perm == Permissions.READ_WRITE) {
+			dirtypages.put(pid, p);
+		}
+		return p;
+	}
+
 	/**
 	 * Insert a tuple into this BTreeFile, keeping the tuples in sorted order. 
 	 * May cause pages to split if the page where tuple t belongs is full.
@@ -426,28 +873,160 @@ public class BTreeFile implements DbFile {
 	public List<Page> insertTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
 		Map<PageId, Page> dirtypages = new HashMap<>();
+		Field key = t.getField(keyField);
+
+		// a leaf page with an empty slot takes the tuple without any internal page
+		// being locked or changed
+		BTreeLeafPage leafPage;
+		do {
+			leafPage = findLeafPageLatched(tid, dirtypages, Permissions.READ_WRITE, key);
+		} while(!lockKeys(tid, dirtypages, leafPage, key, true));
+
+		// otherwise the leaf page is split, or made the root of an empty tree.  Every page
+		// that changes is locked and latched before any of them is changed, and the
+		// latches are released before waiting for one of them
+		BufferPool bp = Database.getBufferPool();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		while(leafPage == null || leafPage.getNumEmptySlots() == 0) {
+			Map<BTreePageId, Permissions> needed = new LinkedHashMap<>();
+			List<BTreeLatch> latches = new ArrayList<>();
+			BTreePageId busy;
+			bp.latch(tid, treeLatch, false, true);
+			try {
+				if(leafPage == null) {
+					busy = null;
+					if(rootId(tid) == null) {
+						BTreePageId leafId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
+						needed.put(rootPtrId, Permissions.READ_WRITE);
+						needed.put(leafId, Permissions.READ_WRITE);
+						busy = tryLatchAll(tid, dirtypages, needed, latches);
+						// unless another transaction got there first, the root has just been
+						// created, so set the root pointer to point to it
+						if(busy == null && rootId(tid) == null) {
+							((BTreeRootPtrPage) dirtypages.get(rootPtrId)).setRootId(leafId);
+							leafPage = (BTreeLeafPage) dirtypages.get(leafId);
+						}
+					}
+				} else {
+					// the pages a split changes are read before they are latched, so look
+					// again once they are, until no more are found
+					busy = null;
+					Map<BTreePageId, Permissions> more = pagesForSplit(tid, leafPage);
+					while(busy == null && !more.isEmpty()) {
+						needed.putAll(more);
+						busy = tryLatchAll(tid, dirtypages, more, latches);
+						more = pagesForSplit(tid, leafPage);
+						more.entrySet().removeIf(e -> e.getValue() == needed.get(e.getKey())
+								|| e.getValue() == Permissions.READ_ONLY && needed.containsKey(e.getKey()));
+					}
+					if(busy == null) {
+						leafPage = splitLeafPage(tid, dirtypages, leafPage, key);
+					}
+				}
+			} finally {
+				for(BTreeLatch latch : latches) {
+					bp.unlatch(tid, latch);
+				}
+				bp.unlatch(tid, treeLatch);
+			}
+			if(busy != null) {
+				// wait for the page, and for the split that may be changing it
+				getPage(tid, dirtypages, busy, needed.get(busy));
+				if(needed.get(busy) == Permissions.READ_WRITE) {
+					bp.latch(tid, new BTreeLatch(busy), true, true);
+					bp.unlatch(tid, new BTreeLatch(busy));
+				}
+			} else if(leafPage == null) {
+				leafPage = findLeafPageLatched(tid, dirtypages, Permissions.READ_WRITE, key);
+			}
+		}
 
-		// get a read lock on the root pointer page and use it to locate the root page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId rootId = rootPtr.getRootId();
+		// insert the tuple into the leaf page
+		leafPage.insertTuple(t);
+		return new ArrayList<>(dirtypages.values());
+	}
 
-		if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
-			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			rootPtr.setRootId(rootId);
+	/**
+	 * Lock the given pages, and latch exclusively those locked READ_WRITE, without
+	 * waiting for any of them.  The latches are added to latches.
+	 *
+	 * @return the first of the pages on which another transaction holds a conflicting
+	 * lock or latch, or null if all of them are now locked and latched
+	 */
+	private BTreePageId tryLatchAll(TransactionId tid, Map<PageId, Page> dirtypages,
+			Map<BTreePageId, Permissions> pages, List<BTreeLatch> latches)
+			throws DbException, TransactionAbortedException {
+		BufferPool bp = Database.getBufferPool();
+		for(Map.Entry<BTreePageId, Permissions> e : pages.entrySet()) {
+			if(tryGetPage(tid, dirtypages, e.getKey(), e.getValue()) == null) {
+				return e.getKey();
+			}
+			if(e.getValue() == Permissions.READ_WRITE) {
+				BTreeLatch latch = new BTreeLatch(e.getKey());
+				if(!bp.latch(tid, latch, true, false)) {
+					return e.getKey();
+				}
+				latches.add(latch);
+			}
 		}
+		return null;
+	}
 
-		// find and lock the left-most leaf page corresponding to the key field,
-		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
-		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+	/**
+	 * Find the pages that splitting a leaf page will lock, along with the permissions it
+	 * will lock them with: the root pointer and header pages that supply the new pages,
+	 * the leaf and its right sibling, and each parent up to the first one with an empty
+	 * slot, together with the children that a full parent hands over to its new right
+	 * sibling.  The pages are read without locking or latching them, so another split
+	 * may be changing them; the answer only holds once they are all latched.
+	 * @see #splitLeafPage(TransactionId, Map, BTreeLeafPage, Field)
+	 *
+	 * @param tid - the transaction id
+	 * @param page - the leaf page to split
+	 * @return the pages to lock, in the order to lock them
+	 */
+	private Map<BTreePageId, Permissions> pagesForSplit(TransactionId tid, BTreeLeafPage page)
+			throws DbException {
+		BufferPool bp = Database.getBufferPool();
+		Map<BTreePageId, Permissions> pages = new LinkedHashMap<>();
+
+		// the new pages come from the first header page with an empty slot, if any
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		pages.put(rootPtrId, Permissions.READ_ONLY);
+		BTreePageId headerId = ((BTreeRootPtrPage) bp.getPageUnlocked(tid, rootPtrId)).getHeaderId();
+		while(headerId != null) {
+			BTreeHeaderPage header = (BTreeHeaderPage) bp.getPageUnlocked(tid, headerId);
+			if(header.getEmptySlot() != -1) {
+				pages.put(headerId, Permissions.READ_WRITE);
+				break;
+			}
+			pages.put(headerId, Permissions.READ_ONLY);
+			headerId = header.getNextPageId();
 		}
 
-		// insert the tuple into the leaf page
-		leafPage.insertTuple(t);
+		pages.put(page.getId(), Permissions.READ_WRITE);
+		if(page.getRightSiblingId() != null) {
+			pages.put(page.getRightSiblingId(), Permissions.READ_WRITE);
+		}
+		BTreePageId parentId = page.getParentId();
+		while(parentId.pgcateg() != BTreePageId.ROOT_PTR) {
+			pages.put(parentId, Permissions.READ_WRITE);
+			BTreeInternalPage parent = (BTreeInternalPage) bp.getPageUnlocked(tid, parentId);
+			if(parent.getNumEmptySlots() > 0) {
+				return pages;
+			}
+			// the right children of the upper half of the entries and of the middle one
+			// move to the new page
+			Iterator<BTreeEntry> it = parent.reverseIterator();
+			for(int i = parent.getNumEntries() / 2; i >= 0; i--) {
+				pages.put(it.next().getRightChild(), Permissions.READ_WRITE);
+			}
+			parentId = parent.getParentId();
+		}
 
-        return new ArrayList<>(dirtypages.values());
+		// the root is split too, and the new root published through the root pointer
+		pages.put(rootPtrId, Permissions.READ_WRITE);
+		return pages;
 	}
 	
 	/**
@@ -804,14 +1383,27 @@ public class BTreeFile implements DbFile {
 
 		BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().getPageNumber(),
 				BTreePageId.LEAF);
-		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
-		page.deleteTuple(t);
+		BTreeLeafPage page;
+		do {
+			page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
+		} while(!lockKeys(tid, dirtypages, page, t.getField(keyField), false));
 
-		// if the page is below minimum occupancy, get some tuples from its siblings
-		// or merge with one of the siblings
+		// a page that stays at least half full needs nothing from its siblings or parent
 		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
-		if(page.getNumEmptySlots() > maxEmptySlots) { 
+		if(page.getNumEmptySlots() + 1 <= maxEmptySlots) {
+			page.deleteTuple(t);
+			return new ArrayList<>(dirtypages.values());
+		}
+
+		// otherwise get some tuples from its siblings or merge with one of the
+		// siblings, keeping everyone else out of the tree while it changes shape
+		BufferPool bp = Database.getBufferPool();
+		bp.latch(tid, treeLatch, true, true);
+		try {
+			page.deleteTuple(t);
 			handleMinOccupancyPage(tid, dirtypages, page);
+		} finally {
+			bp.unlatch(tid, treeLatch);
 		}
 
         return new ArrayList<>(dirtypages.values());
@@ -829,9 +1421,19 @@ public class BTreeFile implements DbFile {
 	 * @throws TransactionAbortedException
 	 */
 	BTreeRootPtrPage getRootPtrPage(TransactionId tid, Map<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
-		synchronized(this) {
+		createIfEmpty();
+
+		// get a read lock on the root pointer page
+		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+	}
+
+	/**
+	 * Create the root pointer page and the root page if the file is empty.
+	 */
+	private void createIfEmpty() throws IOException {
+		extendLatch.lock();
+		try {
 			if(f.length() == 0) {
-				// create the root pointer page and the root page
 				BufferedOutputStream bw = new BufferedOutputStream(
 						new FileOutputStream(f, true));
 				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
@@ -840,10 +1442,9 @@ public class BTreeFile implements DbFile {
 				bw.write(emptyLeafData);
 				bw.close();
 			}
+		} finally {
+			extendLatch.unlock();
 		}
-
-		// get a read lock on the root pointer page
-		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
 	}
 
 	/**
@@ -892,7 +1493,8 @@ public class BTreeFile implements DbFile {
 		// at this point if headerId is null, either there are no header pages 
 		// or there are no free slots
 		if(headerId == null) {		
-			synchronized(this) {
+			extendLatch.lock();
+			try {
 				// create the new page
 				BufferedOutputStream bw = new BufferedOutputStream(
 						new FileOutputStream(f, true));
@@ -900,6 +1502,8 @@ public class BTreeFile implements DbFile {
 				bw.write(emptyData);
 				bw.close();
 				emptyPageNo = numPages();
+			} finally {
+				extendLatch.unlock();
 			}
 		}
 
@@ -1061,7 +1665,7 @@ public class BTreeFile implements DbFile {
 class BTreeFileIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
-	BTreeLeafPage curp = null;
+	BTreePageId nextp = null;
 
 	final TransactionId tid;
 	final BTreeFile f;
@@ -1080,11 +1684,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, null);
-		it = curp.iterator();
+		nextp = f.findLeafPageId(tid, null);
+		it = null;
 	}
 
 	/**
@@ -1095,24 +1696,13 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 */
 	@Override
 	protected Tuple readNext() throws TransactionAbortedException, DbException {
-		if (it != null && !it.hasNext())
-			it = null;
-
-		while (it == null && curp != null) {
-			BTreePageId nextp = curp.getRightSiblingId();
-			if(nextp == null) {
-				curp = null;
-			}
-			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
-				it = curp.iterator();
-				if (!it.hasNext())
-					it = null;
-			}
+		while ((it == null || !it.hasNext()) && nextp != null) {
+			BTreeFile.LeafScan scan = f.scanLeaf(tid, nextp, null, key -> false);
+			it = scan.tuples.iterator();
+			nextp = scan.next;
 		}
 
-		if (it == null)
+		if (it == null || !it.hasNext())
 			return null;
 		return it.next();
 	}
@@ -1131,7 +1721,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	public void close() {
 		super.close();
 		it = null;
-		curp = null;
+		nextp = null;
 	}
 }
 
@@ -1142,7 +1732,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 class BTreeSearchIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
-	BTreeLeafPage curp = null;
+	BTreePageId nextp = null;
 
 	final TransactionId tid;
 	final BTreeFile f;
@@ -1165,17 +1755,29 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
+		nextp = f.findLeafPageId(tid, from());
+		it = null;
+	}
+
+	/**
+	 * @return the smallest key the predicate can match, or null if it has no lower bound
+	 */
+	private Field from() {
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, ipred.getField());
+			return ipred.getField();
 		}
-		else {
-			curp = f.findLeafPage(tid, root, null);
+		return null;
+	}
+
+	/**
+	 * @return true if key, and every key after it, is beyond the keys the predicate matches
+	 */
+	private boolean pastEnd(Field key) {
+		if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
+			return !key.compare(ipred.getOp(), ipred.getField());
 		}
-		it = curp.iterator();
+		return ipred.getOp() == Op.EQUALS && key.compare(Op.GREATER_THAN, ipred.getField());
 	}
 
 	/**
@@ -1187,39 +1789,24 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	@Override
 	protected Tuple readNext() throws TransactionAbortedException, DbException,
 	NoSuchElementException {
-		while (it != null) {
+		while (true) {
 
-			while (it.hasNext()) {
+			while (it != null && it.hasNext()) {
 				Tuple t = it.next();
 				if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
 					return t;
 				}
-				else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
-					// if the predicate was not satisfied and the operation is less than, we have
-					// hit the end
-					return null;
-				}
-				else if(ipred.getOp() == Op.EQUALS && 
-						t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
-					// if the tuple is now greater than the field passed in and the operation
-					// is equals, we have reached the end
-					return null;
-				}
 			}
 
-			BTreePageId nextp = curp.getRightSiblingId();
-			// if there are no more pages to the right, end the iteration
+			// if there are no more pages to the right, or the scan has hit the end of
+			// the predicate, end the iteration
 			if(nextp == null) {
 				return null;
 			}
-			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
-				it = curp.iterator();
-			}
+			BTreeFile.LeafScan scan = f.scanLeaf(tid, nextp, from(), this::pastEnd);
+			it = scan.tuples.iterator();
+			nextp = scan.next;
 		}
-
-		return null;
 	}
 
 	/**
@@ -1236,5 +1823,6 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	public void close() {
 		super.close();
 		it = null;
+		nextp = null;
 	}
 }
@@ -13,10 +13,15 @@ import simpledb.storage.BufferPool;
 import simpledb.storage.Field;
 import simpledb.storage.IntField;
 import simpledb.storage.RecordId;
+import simpledb.storage.TupleDesc;
 
 /**
  * Each instance of BTreeInternalPage stores data for one page of a BTreeFile and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * The methods that change entries are synchronized, and serve as the page's
+ * latch: a reader that iterates over the entries while holding the page's
+ * monitor sees each change either entirely or not at all.
  *
  * @see BTreeFile
  * @see BufferPool
@@ -120,6 +125,14 @@ public class BTreeInternalPage extends BTreePage {
 	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
  	 */
 	public int getMaxEntries() {        
+		return maxEntries(td, keyField);
+	}
+
+	/**
+	 * @return the maximum number of entries an internal page of a B+ tree of
+	 *         tuples td, keyed on keyField, can hold
+	 */
+	static int maxEntries(TupleDesc td, int keyField) {
 		int keySize = td.getFieldType(keyField).getLen();
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
 		// extraBits are: one parent pointer, 1 byte for child page category, 
@@ -235,7 +248,7 @@ public class BTreeInternalPage extends BTreePage {
 	 * @see #BTreeInternalPage
 	 * @return A byte array correspond to the bytes of this page.
 	 */
-	public byte[] getPageData() {
+	public synchronized byte[] getPageData() {
 		int len = BufferPool.getPageSize();
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
 		DataOutputStream dos = new DataOutputStream(baos);
@@ -380,7 +393,7 @@ public class BTreeInternalPage extends BTreePage {
 	 *         already empty.
 	 * @param e The entry to delete
 	 */
-	public void deleteKeyAndRightChild(BTreeEntry e) throws DbException {
+	public synchronized void deleteKeyAndRightChild(BTreeEntry e) throws DbException {
 		deleteEntry(e, true);
 	}
 	
@@ -393,7 +406,7 @@ public class BTreeInternalPage extends BTreePage {
 	 *         already empty.
 	 * @param e The entry to delete
 	 */
-	public void deleteKeyAndLeftChild(BTreeEntry e) throws DbException {
+	public synchronized void deleteKeyAndLeftChild(BTreeEntry e) throws DbException {
 		deleteEntry(e, false);
 	}
 	
@@ -405,7 +418,7 @@ public class BTreeInternalPage extends BTreePage {
 	 *         already empty, or updating this key would put the entry out of 
 	 *         order on the page
 	 */
-	public void updateEntry(BTreeEntry e) throws DbException {
+	public synchronized void updateEntry(BTreeEntry e) throws DbException {
 		RecordId rid = e.getRecordId();
 		if(rid == null)
 			throw new DbException("tried to update entry with null rid");
@@ -444,7 +457,7 @@ public class BTreeInternalPage extends BTreePage {
 	 *         table id, or child page category is a mismatch, or the entry is invalid
 	 * @param e The entry to add.
 	 */
-	public void insertEntry(BTreeEntry e) throws DbException {
+	public synchronized void insertEntry(BTreeEntry e) throws DbException {
 		if (!e.getKey().getType().equals(td.getFieldType(keyField)))
 			throw new DbException("key field type mismatch, in insertEntry");
 
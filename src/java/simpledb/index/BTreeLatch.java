@@ -0,0 +1,55 @@
+package simpledb.index;
+
+import java.util.Objects;
+
+/**
+ * BTreeLatch names a latch of a B+ tree file: either the latch of one of its
+ * pages, or the latch of the whole tree.  Latches are taken through the
+ * BufferPool, and held only while a page is read or changed, not until the
+ * transaction completes.
+ * <p>
+ * A page's latch is held shared while the page is read on the way down the
+ * tree, and exclusively while a split changes it.  The tree's latch is held
+ * shared by every operation that follows the internal pages, and
+ * exclusively by one that merges pages.
+ */
+class BTreeLatch {
+
+	private final int tableId;
+	private final BTreePageId pid;
+
+	/**
+	 * @param tableId - the id of the B+ tree file
+	 */
+	BTreeLatch(int tableId) {
+		this.tableId = tableId;
+		this.pid = null;
+	}
+
+	/**
+	 * @param pid - the page to latch
+	 */
+	BTreeLatch(BTreePageId pid) {
+		this.tableId = pid.getTableId();
+		this.pid = pid;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if(!(o instanceof BTreeLatch)) {
+			return false;
+		}
+		BTreeLatch other = (BTreeLatch) o;
+		return tableId == other.tableId && Objects.equals(pid, other.pid);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * tableId + Objects.hashCode(pid);
+	}
+
+	@Override
+	public String toString() {
+		return "latch of " + (pid == null ? "table " + tableId : pid.toString());
+	}
+}
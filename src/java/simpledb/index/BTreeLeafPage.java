@@ -14,6 +14,9 @@ import java.io.*;
 /**
  * Each instance of BTreeLeafPage stores data for one page of a BTreeFile and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * insertTuple and deleteTuple are synchronized, and serve as the page's
+ * latch for readers that look at the page without locking it.
  *
  * @see BTreeFile
  * @see BufferPool
@@ -201,7 +204,7 @@ public class BTreeLeafPage extends BTreePage {
 	 * @see #BTreeLeafPage
 	 * @return A byte array corresponding to the bytes of this page.
 	 */
-	public byte[] getPageData() {
+	public synchronized byte[] getPageData() {
 		int len = BufferPool.getPageSize();
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
 		DataOutputStream dos = new DataOutputStream(baos);
@@ -289,7 +292,7 @@ public class BTreeLeafPage extends BTreePage {
 	 *         already empty.
 	 * @param t The tuple to delete
 	 */
-	public void deleteTuple(Tuple t) throws DbException {
+	public synchronized void deleteTuple(Tuple t) throws DbException {
 		RecordId rid = t.getRecordId();
 		if(rid == null)
 			throw new DbException("tried to delete tuple with null rid");
@@ -309,7 +312,7 @@ public class BTreeLeafPage extends BTreePage {
 	 *         is mismatch.
 	 * @param t The tuple to add.
 	 */
-	public void insertTuple(Tuple t) throws DbException {
+	public synchronized void insertTuple(Tuple t) throws DbException {
 		if (!t.getTupleDesc().equals(td))
 			throw new DbException("type mismatch, in addTuple");
 
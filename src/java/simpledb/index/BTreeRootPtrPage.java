@@ -81,7 +81,7 @@ public class BTreeRootPtrPage implements Page {
 	 *
 	 * @return A byte array corresponding to the bytes of this root pointer page.
 	 */
-	public byte[] getPageData(){
+	public synchronized byte[] getPageData(){
         ByteArrayOutputStream baos = new ByteArrayOutputStream(PAGE_SIZE);
 		DataOutputStream dos = new DataOutputStream(baos);
 
@@ -157,7 +157,7 @@ public class BTreeRootPtrPage implements Page {
 	 * Get the id of the root page in this B+ tree
 	 * @return the id of the root page
 	 */
-	public BTreePageId getRootId() {
+	public synchronized BTreePageId getRootId() {
 		if(root == 0) {
 			return null;
 		}
@@ -169,7 +169,7 @@ public class BTreeRootPtrPage implements Page {
 	 * @param id - the id of the root page
 	 * @throws DbException if the id is invalid
 	 */
-	public void setRootId(BTreePageId id) throws DbException {
+	public synchronized void setRootId(BTreePageId id) throws DbException {
 		if(id == null) {
 			root = 0;
 		}
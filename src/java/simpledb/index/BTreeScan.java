@@ -27,6 +27,7 @@ public class BTreeScan implements OpIterator {
 	private IndexPredicate ipred = null;
 	private transient DbFileIterator it;
 	private String tablename;
+	private int tableid;
 	private String alias;
 
 	/**
@@ -63,6 +64,25 @@ public class BTreeScan implements OpIterator {
 		return this.tablename;
 	}
 
+	/**
+	 * @return the id of the table the operator scans
+	 * */
+	public int getTableId() {
+		return this.tableid;
+	}
+
+	/**
+	 * Search the scanned table independently of this scan, as a part of the
+	 * same transaction.
+	 * 
+	 * @param ipred
+	 *            the index predicate to match
+	 * @return an iterator over the tuples of the table that match ipred
+	 */
+	public DbFileIterator indexIterator(IndexPredicate ipred) {
+		return ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).indexIterator(tid, ipred);
+	}
+
 	/**
 	 * @return Return the alias of the table this operator scans. 
 	 * */
@@ -86,6 +106,7 @@ public class BTreeScan implements OpIterator {
 	public void reset(int tableid, String tableAlias) {
 		this.isOpen=false;
 		this.alias = tableAlias;
+		this.tableid = tableid;
 		this.tablename = Database.getCatalog().getTableName(tableid);
 		if(ipred == null) {
 			this.it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
@@ -725,6 +725,17 @@ public class BTreeUtility {
 			 }
 		 }
 	}
+
+	/**
+	 * Wait until an inserter has either succeeded or failed, checking every
+	 * pollInterval milliseconds and giving up after timeout milliseconds.
+	 */
+	public static void waitFor(BTreeInserter bi, long timeout, long pollInterval) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		while(!bi.succeeded() && bi.getError() == null && System.currentTimeMillis() < deadline) {
+			Thread.sleep(pollInterval);
+		}
+	}
     
 	/**
 	 * Helper class that attempts to delete tuple(s) in a new thread
@@ -0,0 +1,63 @@
+package simpledb.index;
+
+import simpledb.storage.Field;
+
+import java.util.Objects;
+
+/**
+ * IndexKey names a key of a B+ tree file for key-range locking.  A lock on
+ * an IndexKey covers the key itself and the gap below it, down to the next
+ * smaller key in the index; the key past the end of the index covers the
+ * gap above the largest key.
+ * <p>
+ * Scans lock every key they cover plus the first key beyond them.  An
+ * insert waits for the key that follows the one it inserts, so it cannot
+ * slip a phantom into a range a scan has locked.
+ */
+public class IndexKey {
+
+	private final int tableId;
+	private final Field key;
+
+	/**
+	 * @param tableId - the id of the B+ tree file
+	 * @param key - the key, or null for the key past the end of the index
+	 */
+	public IndexKey(int tableId, Field key) {
+		this.tableId = tableId;
+		this.key = key;
+	}
+
+	/**
+	 * @return the id of the B+ tree file
+	 */
+	public int getTableId() {
+		return tableId;
+	}
+
+	/**
+	 * @return the key, or null for the key past the end of the index
+	 */
+	public Field getKey() {
+		return key;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if(!(o instanceof IndexKey)) {
+			return false;
+		}
+		IndexKey other = (IndexKey) o;
+		return tableId == other.tableId && Objects.equals(key, other.key);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * tableId + Objects.hashCode(key);
+	}
+
+	@Override
+	public String toString() {
+		return "key " + (key == null ? "+inf" : key.toString()) + " of table " + tableId;
+	}
+}
@@ -153,10 +153,21 @@ public class IntHistogram {
      * This is not an indispensable method to implement the basic
      * join optimization. It may be needed if you want to
      * implement a more efficient optimization
+     * <p>
+     * It is the selectivity of an equality with a value drawn from the
+     * histogram itself: the sum of the squares of the frequencies of the
+     * values, so that repeated values weigh more than distinct ones.
      */
     public double avgSelectivity() {
-        // some code goes here
-        return 1.0;
+        if (tupNum == 0)
+            return 1.0;
+        double sum = 0.0;
+        for (HashMap<Integer, Integer> bucket : buckets) {
+            for (int count : bucket.values()) {
+                sum += (double) count * count;
+            }
+        }
+        return sum / ((double) tupNum * tupNum);
     }
 
     /**
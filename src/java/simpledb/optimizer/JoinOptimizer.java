@@ -3,6 +3,10 @@ package simpledb.optimizer;
 import simpledb.common.Database;
 import simpledb.ParsingException;
 import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.storage.DbFile;
+import simpledb.storage.HeapFile;
 import simpledb.storage.TupleDesc;
 
 import java.util.*;
@@ -37,6 +41,12 @@ public class JoinOptimizer {
      * inner/outer here -- because OpIterator's don't provide any cardinality
      * estimates, and stats only has information about the base tables. For this
      * reason, the plan1
+     * <p>
+     * Without estimates, a range join is only merged when the right-hand
+     * side scans a table small enough to fit in the buffer of a
+     * {@link SortMergeJoin}; otherwise it is a nested loops join.  An
+     * equi-join never searches a B+ tree, which only pays when the left-hand
+     * side is known to be small.
      *
      * @param lj    The join being considered
      * @param plan1 The left join node's child
@@ -45,8 +55,84 @@ public class JoinOptimizer {
     public static OpIterator instantiateJoin(LogicalJoinNode lj,
                                              OpIterator plan1, OpIterator plan2) throws ParsingException {
 
-        int t1id = 0, t2id = 0;
         OpIterator j;
+        JoinPredicate p = joinPredicate(lj, plan1, plan2);
+        int t1id = p.getField1(), t2id = p.getField2();
+
+        if (lj.p == Predicate.Op.EQUALS && SortMergeJoin.isSortedOn(plan1, t1id)
+                && SortMergeJoin.isSortedOn(plan2, t2id)) {
+            // both sides already arrive in key order: merging them needs
+            // neither a hash table nor a sort
+            j = new SortMergeJoin(p, plan1, plan2);
+        } else if (lj.p == Predicate.Op.EQUALS) {
+            j = hashJoin(p, plan1, plan2);
+        } else if (isRange(lj.p) && fitsMergeBuffer(plan2)) {
+            // a range join only compares each tuple with the boundaries of
+            // its run, rather than with every tuple of the other side
+            j = new SortMergeJoin(p, plan1, plan2);
+        } else {
+            j = new Join(p, plan1, plan2);
+        }
+
+        return j;
+
+    }
+
+    /**
+     * Return the cheapest iterator for computing a given logical join, given
+     * estimates of the cardinality of the left and right subplans and of the
+     * cost of computing them once.  Unlike
+     * {@link #instantiateJoin(LogicalJoinNode, OpIterator, OpIterator)}, it
+     * only merges a range join when that costs less than a nested loops
+     * join and the right-hand side fits in the buffer of a
+     * {@link SortMergeJoin}, and searches a B+ tree for an equi-join when
+     * that costs less than hashing or merging.
+     *
+     * @param lj    The join being considered
+     * @param plan1 The left join node's child
+     * @param plan2 The right join node's child
+     * @param card1 Estimated cardinality of plan1
+     * @param card2 Estimated cardinality of plan2
+     * @param cost1 Estimated cost of computing plan1
+     * @param cost2 Estimated cost of computing plan2
+     */
+    public OpIterator instantiateJoin(LogicalJoinNode lj, OpIterator plan1, OpIterator plan2,
+                                      int card1, int card2, double cost1, double cost2) throws ParsingException {
+        if (lj instanceof LogicalSubplanJoinNode) {
+            return instantiateJoin(lj, plan1, plan2);
+        }
+        JoinPredicate jp = joinPredicate(lj, plan1, plan2);
+        boolean sorted1 = SortMergeJoin.isSortedOn(plan1, jp.getField1());
+        boolean sorted2 = SortMergeJoin.isSortedOn(plan2, jp.getField2());
+        double mergeCost = estimateSortMergeJoinCost(card1, card2, cost1, cost2, sorted1, sorted2);
+
+        if (lj.p == Predicate.Op.EQUALS) {
+            // ties go to the merge, which needs no hash table
+            double hashCost = estimateHashJoinCost(card1, card2, cost1, cost2);
+            double cost = Math.min(mergeCost, hashCost);
+            SeqScan scan = indexedScan(plan2, jp.getField2());
+            double indexCost = scan == null ? -1 : estimateIndexJoinCost(lj, card1, card2, cost1);
+            if (indexCost >= 0 && indexCost < cost) {
+                return indexJoin(jp, plan1, plan2, scan);
+            }
+            return mergeCost <= hashCost
+                    ? new SortMergeJoin(jp, plan1, plan2) : hashJoin(jp, plan1, plan2);
+        } else if (isRange(lj.p)) {
+            boolean fits = card2 <= SortMergeJoin.maxBufferedTuples(plan2.getTupleDesc());
+            return fits && mergeCost < estimateNestedLoopJoinCost(card1, card2, cost1, cost2)
+                    ? new SortMergeJoin(jp, plan1, plan2) : new Join(jp, plan1, plan2);
+        } else {
+            return new Join(jp, plan1, plan2);
+        }
+    }
+
+    /**
+     * @return the predicate joining plan1 and plan2 on the fields of lj
+     * @throws ParsingException if either side lacks its join field
+     */
+    private static JoinPredicate joinPredicate(LogicalJoinNode lj, OpIterator plan1, OpIterator plan2)
+            throws ParsingException {
+        int t1id = 0, t2id = 0;
 
         try {
             t1id = plan1.getTupleDesc().fieldNameToIndex(lj.f1QuantifiedName);
@@ -66,26 +152,78 @@ public class JoinOptimizer {
             }
         }
 
-        JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
+        return new JoinPredicate(t1id, lj.p, t2id);
+    }
 
-        if (lj.p == Predicate.Op.EQUALS) {
+    private static OpIterator hashJoin(JoinPredicate p, OpIterator plan1, OpIterator plan2) {
+        try {
+            // dynamically load HashEquiJoin -- if it doesn't exist, just
+            // fall back on regular join
+            Class<?> c = Class.forName("simpledb.execution.HashEquiJoin");
+            java.lang.reflect.Constructor<?> ct = c.getConstructors()[0];
+            return (OpIterator) ct
+                    .newInstance(new Object[]{p, plan1, plan2});
+        } catch (Exception e) {
+            return new Join(p, plan1, plan2);
+        }
+    }
 
-            try {
-                // dynamically load HashEquiJoin -- if it doesn't exist, just
-                // fall back on regular join
-                Class<?> c = Class.forName("simpledb.execution.HashEquiJoin");
-                java.lang.reflect.Constructor<?> ct = c.getConstructors()[0];
-                j = (OpIterator) ct
-                        .newInstance(new Object[]{p, plan1, plan2});
-            } catch (Exception e) {
-                j = new Join(p, plan1, plan2);
-            }
+    private static boolean isRange(Predicate.Op op) {
+        return op == Predicate.Op.LESS_THAN || op == Predicate.Op.LESS_THAN_OR_EQ
+                || op == Predicate.Op.GREATER_THAN || op == Predicate.Op.GREATER_THAN_OR_EQ;
+    }
+
+    /**
+     * @return true if plan scans a table, possibly through some Filters, that
+     *         has no more pages than a {@link SortMergeJoin} buffers, so that
+     *         it cannot return more tuples than fit in its buffer
+     */
+    private static boolean fitsMergeBuffer(OpIterator plan) {
+        while (plan instanceof Filter) {
+            plan = ((Filter) plan).getChildren()[0];
+        }
+        if (!(plan instanceof SeqScan)) {
+            return false;
+        }
+        DbFile f = Database.getCatalog().getDatabaseFile(((SeqScan) plan).getTableId());
+        int pages;
+        if (f instanceof HeapFile) {
+            pages = ((HeapFile) f).numPages();
+        } else if (f instanceof BTreeFile) {
+            pages = ((BTreeFile) f).numPages();
         } else {
-            j = new Join(p, plan1, plan2);
+            return false;
         }
+        return pages <= SortMergeJoin.BUFFER_PAGES;
+    }
 
-        return j;
+    /**
+     * @return the scan of plan, if plan scans a table stored in a BTreeFile
+     *         keyed on field, possibly through some Filters; otherwise null
+     */
+    private static SeqScan indexedScan(OpIterator plan, int field) {
+        while (plan instanceof Filter) {
+            plan = ((Filter) plan).getChildren()[0];
+        }
+        if (plan instanceof SeqScan && IndexNestedLoopJoin.isIndexedOn(((SeqScan) plan).getTableId(), field)) {
+            return (SeqScan) plan;
+        }
+        return null;
+    }
 
+    /**
+     * Join plan1 with the table scan scans by searching its B+ tree, and
+     * apply the Filters of plan2 above scan to the joined tuples instead.
+     */
+    private static OpIterator indexJoin(JoinPredicate p, OpIterator plan1, OpIterator plan2, SeqScan scan) {
+        OpIterator j = new IndexNestedLoopJoin(p, plan1,
+                new BTreeScan(scan.getTransactionId(), scan.getTableId(), scan.getAlias(), null));
+        int offset = plan1.getTupleDesc().numFields();
+        for (OpIterator it = plan2; it instanceof Filter; it = ((Filter) it).getChildren()[0]) {
+            Predicate f = ((Filter) it).getPredicate();
+            j = new Filter(new Predicate(f.getField() + offset, f.getOp(), f.getOperand()), j);
+        }
+        return j;
     }
 
     /**
@@ -110,6 +248,16 @@ public class JoinOptimizer {
      */
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
                                    double cost1, double cost2) {
+        return estimateJoinCost(j, card1, card2, cost1, cost2, true);
+    }
+
+    /**
+     * @param innerIsTable true if the right-hand side is a base table rather
+     *                     than the result of other joins, so that its B+
+     *                     tree, if it has one, can be searched
+     */
+    private double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
+                                    double cost1, double cost2, boolean innerIsTable) {
         if (j instanceof LogicalSubplanJoinNode) {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 3.
@@ -120,8 +268,95 @@ public class JoinOptimizer {
             // a join algorithm that's more complicated than a basic
             // nested-loops join
             System.out.println("card1 is " + card1);
-            return cost1 + card1 * cost2 + card1 * card2;
+            double cost = estimateNestedLoopJoinCost(card1, card2, cost1, cost2);
+            if (isRange(j.p) && innerIsTable && card2 <= maxBufferedTuples(j.t2Alias)) {
+                cost = Math.min(cost, estimateSortMergeJoinCost(card1, card2, cost1, cost2, false, false));
+            }
+            double indexCost = innerIsTable ? estimateIndexJoinCost(j, card1, card2, cost1) : -1;
+            return indexCost >= 0 ? Math.min(cost, indexCost) : cost;
+        }
+    }
+
+    /**
+     * @return the number of tuples of the table alias a SortMergeJoin
+     *         buffers, or 0 if the alias is not a table of the plan
+     */
+    private int maxBufferedTuples(String alias) {
+        Integer tableid = alias == null ? null : p.getTableId(alias);
+        if (tableid == null) {
+            return 0;
         }
+        return SortMergeJoin.maxBufferedTuples(Database.getCatalog().getTupleDesc(tableid));
+    }
+
+    /**
+     * Estimate the cost of a nested loops join, which scans the right-hand
+     * side and applies the predicate once per tuple on the left.
+     */
+    private static double estimateNestedLoopJoinCost(int card1, int card2, double cost1, double cost2) {
+        return cost1 + card1 * cost2 + card1 * card2;
+    }
+
+    /**
+     * Estimate the cost of a hash join, which reads each side once and
+     * hashes each tuple once.
+     */
+    private static double estimateHashJoinCost(int card1, int card2, double cost1, double cost2) {
+        return cost1 + cost2 + card1 + card2;
+    }
+
+    /**
+     * Estimate the cost of a SortMergeJoin, which reads each side once, sorts
+     * each side that is not already sorted on its join field, and then
+     * compares each tuple with the boundaries of its run on the other side.
+     */
+    private static double estimateSortMergeJoinCost(int card1, int card2, double cost1, double cost2,
+                                                    boolean sorted1, boolean sorted2) {
+        double cost = cost1 + cost2 + card1 + card2;
+        if (!sorted1) {
+            cost += estimateSortCost(card1);
+        }
+        if (!sorted2) {
+            cost += estimateSortCost(card2);
+        }
+        return cost;
+    }
+
+    /** @return the number of comparisons needed to sort card tuples */
+    private static double estimateSortCost(int card) {
+        return card < 2 ? 0 : card * Math.log(card) / Math.log(2);
+    }
+
+    /**
+     * Estimate the cost of joining by searching the B+ tree of the
+     * right-hand table once per tuple on the left.  Each search reads one
+     * page per level of the tree, which is estimated from the size of the
+     * file and the fanout of its internal pages, and compares only the
+     * tuples with the matching key.
+     *
+     * @return the estimated cost, or -1 if the right-hand table is not
+     *         stored in a BTreeFile keyed on the join field
+     */
+    private double estimateIndexJoinCost(LogicalJoinNode j, int card1, int card2, double cost1) {
+        if (j.p != Predicate.Op.EQUALS || j.t2Alias == null || p.getTableId(j.t2Alias) == null) {
+            return -1;
+        }
+        int tableid = p.getTableId(j.t2Alias);
+        DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+        TableStats stats = TableStats.getTableStats(Database.getCatalog().getTableName(tableid));
+        int field;
+        try {
+            field = f.getTupleDesc().fieldNameToIndex(j.f2PureName);
+        } catch (NoSuchElementException e) {
+            return -1;
+        }
+        if (stats == null || !IndexNestedLoopJoin.isIndexedOn(tableid, field)) {
+            return -1;
+        }
+        BTreeFile index = (BTreeFile) f;
+        double pageCost = stats.estimateScanCost() / Math.max(1, index.numPages());
+        double matches = card2 * stats.avgSelectivity(field, Predicate.Op.EQUALS);
+        return cost1 + card1 * (index.estimateHeight() * pageCost + matches);
     }
 
     /**
@@ -259,6 +494,10 @@ public class JoinOptimizer {
                 if (bestPlan != null) planCache.addPlan(joinSet, bestPlan.cost, bestPlan.card, bestPlan.plan);
             }
         }
+        if (joins.isEmpty()) {
+            // a single-table query; nothing to order
+            return joins;
+        }
         if (explain) printJoins(joins, planCache, stats, filterSelectivities);
         return planCache.getOrder(new HashSet<>(joins));
     }
@@ -317,6 +556,8 @@ public class JoinOptimizer {
         double t1cost, t2cost;
         int t1card, t2card;
         boolean leftPkey, rightPkey;
+        // whether each side is a base table, rather than prevBest
+        boolean t1IsTable = true, t2IsTable = true;
 
         if (news.isEmpty()) { // base case -- both are base relations
             prevBest = new ArrayList<>();
@@ -347,6 +588,7 @@ public class JoinOptimizer {
 
             // estimate cost of right subtree
             if (doesJoin(prevBest, table1Alias)) { // j.t1 is in prevBest
+                t1IsTable = false;
                 t1cost = prevBestCost; // left side just has cost of whatever
                 // left
                 // subtree is
@@ -361,6 +603,7 @@ public class JoinOptimizer {
                 rightPkey = j.t2Alias != null && isPkey(j.t2Alias,
                         j.f2PureName);
             } else if (doesJoin(prevBest, j.t2Alias)) { // j.t2 is in prevbest
+                t2IsTable = false;
                 // (both
                 // shouldn't be)
                 t2cost = prevBestCost; // left side just has cost of whatever
@@ -381,10 +624,10 @@ public class JoinOptimizer {
         }
 
         // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost, t2IsTable);
 
         LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost, t1IsTable);
         if (cost2 < cost1) {
             boolean tmp;
             j = j2;
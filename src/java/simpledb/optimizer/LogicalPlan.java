@@ -15,9 +15,8 @@ import java.io.File;
  * the parser and is ready to be processed by the optimizer.
  * <p>
  * A LogicalPlan consits of a collection of table scan nodes, join
- * nodes, filter nodes, a select list, and a group by field.
- * LogicalPlans can only represent queries with one aggregation field
- * and one group by field.
+ * nodes, filter nodes, a select list, and the group by fields and
+ * aggregates of the query, if it has any.
  * <p>
  * LogicalPlans can be converted to physical (optimized) plans using
  * the {@link #physicalPlan} method, which uses the
@@ -32,13 +31,16 @@ public class LogicalPlan {
     private final Map<String,Integer> tableMap;
 
     private final List<LogicalSelectListNode> selectList;
-    private String groupByField = null;
-    private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
-    private boolean oByAsc, hasOrderBy = false;
-    private String oByField;
+    private final List<String> groupByFields = new ArrayList<>();
+    private final List<String> aggOps = new ArrayList<>();
+    private final List<String> aggFields = new ArrayList<>();
+    private boolean hasOrderBy = false;
+    private final List<String> oByFields = new ArrayList<>();
+    private final List<Boolean> oByAscs = new ArrayList<>();
+    private int limit = Limit.NO_LIMIT;
+    private int offset = 0;
     private String query;
+    private int parallelism = 1;
 //    private Query owner;
 
     /** Constructor -- generate an empty logical plan */
@@ -69,6 +71,22 @@ public class LogicalPlan {
         return query;
     }
 
+    /** Set the number of workers that scan and filter each large base
+        table in parallel; 1, the default, scans every table on the
+        calling thread.
+
+        @param parallelism the number of workers per table
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        this.parallelism = parallelism;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
     /** Given a table alias, return id of the table object (this id can be supplied to {@link Catalog#getDatabaseFile(int)}).
         Aliases are added as base tables are added via {@link #addScan}.
 
@@ -189,36 +207,70 @@ public class LogicalPlan {
     }
     
     /** Add an aggregate over the field with the specified grouping to
-        the query.  SimpleDb only supports a single aggregate
-        expression and GROUP BY field.
+        the query.
         @param op the aggregation operator
         @param afield the field to aggregate over
-        @param gfield the field to group by
+        @param gfield the field to group by, or null
      * @throws ParsingException 
     */
     public void addAggregate(String op, String afield, String gfield) throws ParsingException {
-        afield=disambiguateName(afield);
         if (gfield!=null)
-            gfield=disambiguateName(gfield);
-        aggOp = op;
-        aggField = afield;
-        groupByField = gfield;
-        hasAgg = true;
+            addGroupBy(gfield);
+        addAggregate(op, afield);
+    }
+
+    /** Add an aggregate over the field to the query.  Aggregates must be
+        added in the order they appear in the select list.
+        @param op the aggregation operator
+        @param afield the field to aggregate over
+     * @throws ParsingException 
+    */
+    public void addAggregate(String op, String afield) throws ParsingException {
+        aggOps.add(op);
+        aggFields.add(disambiguateName(afield));
     }
 
-    /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
-        a single ORDER BY field.
+    /** Add a field to group the aggregates of the query by.
+        @param gfield the field to group by
+     * @throws ParsingException 
+    */
+    public void addGroupBy(String gfield) throws ParsingException {
+        groupByFields.add(disambiguateName(gfield));
+    }
+
+    /** Add an ORDER BY expression in the specified order on the specified field.  Fields added
+        later order tuples that earlier ones consider equal.
         @param field the field to order by
         @param asc true if should be ordered in ascending order, false for descending order
      * @throws ParsingException 
     */
     public void addOrderBy(String field, boolean asc) throws ParsingException {
         field=disambiguateName(field);
-        oByField = field;
-        oByAsc = asc;
+        oByFields.add(field);
+        oByAscs.add(asc);
         hasOrderBy = true;
     }
 
+    /** Return at most limit tuples of the result, after skipping the
+        first offset of them.
+        @param limit the most tuples to return, or {@link Limit#NO_LIMIT}
+        @param offset the number of tuples to skip
+    */
+    public void setLimit(int limit, int offset) {
+        if (limit < 0 || offset < 0)
+            throw new IllegalArgumentException("LIMIT and OFFSET must not be negative");
+        this.limit = limit;
+        this.offset = offset;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
     /** Given a name of a field, try to figure out what table it belongs to by looking
      *   through all of the tables added via {@link #addScan}. 
      *  @return A fully qualified name of the form tableAlias.name.  If the name parameter is already qualified
@@ -274,6 +326,32 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /** Build the plan that scans table and applies its filters with
+        {@link #getParallelism} workers, each running a {@link MorselScan}
+        and the filters over the morsels it claims, gathered by an
+        {@link Exchange}.
+
+        @return the parallel plan, or null if table is not a heap file
+        spanning at least two morsels, and so is not worth scanning in
+        parallel
+     */
+    private OpIterator parallelScan(TransactionId t, LogicalScanNode table, List<Predicate> predicates) {
+        DbFile file = Database.getCatalog().getDatabaseFile(table.t);
+        if (!(file instanceof HeapFile))
+            return null;
+        MorselSource source = new MorselSource((HeapFile) file);
+        if (source.numMorsels() < 2)
+            return null;
+        OpIterator[] workers = new OpIterator[Math.min(parallelism, source.numMorsels())];
+        for (int i = 0; i < workers.length; i++) {
+            OpIterator worker = new MorselScan(t, source, table.alias);
+            for (Predicate p : predicates)
+                worker = new Filter(p, worker);
+            workers[i] = worker;
+        }
+        return new Exchange(workers);
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned OpIterator will run as a part of
@@ -292,6 +370,7 @@ public class LogicalPlan {
         Map<String,String> equivMap = new HashMap<>();
         Map<String,Double> filterSelectivities = new HashMap<>();
         Map<String,TableStats> statsMap = new HashMap<>();
+        Map<String,List<Predicate>> filterPredicates = new HashMap<>();
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
@@ -336,6 +415,7 @@ public class LogicalPlan {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
             subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            filterPredicates.computeIfAbsent(lf.tableAlias, k -> new ArrayList<>()).add(p);
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
 
@@ -344,11 +424,32 @@ public class LogicalPlan {
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
+
+        if (parallelism > 1) {
+            for (LogicalScanNode table : tables) {
+                OpIterator parallel = parallelScan(t, table,
+                        filterPredicates.getOrDefault(table.alias, Collections.emptyList()));
+                if (parallel != null)
+                    subplanMap.put(table.alias, parallel);
+            }
+        }
         
         JoinOptimizer jo = new JoinOptimizer(this,joins);
 
         joins = jo.orderJoins(statsMap,filterSelectivities,explain);
 
+        // the estimated cardinality and cost of each subplan, under the
+        // same name as in subplanMap, to pick the cheapest join operator
+        Map<String,Integer> subplanCards = new HashMap<>();
+        Map<String,Double> subplanCosts = new HashMap<>();
+        for (LogicalScanNode table : tables) {
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(table.t));
+            if (s != null) {
+                subplanCards.put(table.alias, s.estimateTableCardinality(filterSelectivities.get(table.alias)));
+                subplanCosts.put(table.alias, s.estimateScanCost());
+            }
+        }
+
         for (LogicalJoinNode lj : joins) {
             OpIterator plan1;
             OpIterator plan2;
@@ -381,7 +482,17 @@ public class LogicalPlan {
                 throw new ParsingException("Unknown table in WHERE clause " + lj.t2Alias);
 
             OpIterator j;
-            j = JoinOptimizer.instantiateJoin(lj, plan1, plan2);
+            Integer card1 = subplanCards.get(t1name);
+            Integer card2 = isSubqueryJoin ? null : subplanCards.get(t2name);
+            if (card1 != null && card2 != null) {
+                double cost1 = subplanCosts.get(t1name), cost2 = subplanCosts.get(t2name);
+                j = jo.instantiateJoin(lj, plan1, plan2, card1, card2, cost1, cost2);
+                subplanCards.put(t1name, jo.estimateJoinCardinality(lj, card1, card2, false, false, statsMap));
+                subplanCosts.put(t1name, jo.estimateJoinCost(lj, card1, card2, cost1, cost2));
+            } else {
+                j = JoinOptimizer.instantiateJoin(lj, plan1, plan2);
+                subplanCards.remove(t1name);
+            }
             subplanMap.put(t1name, j);
 
             if (!isSubqueryJoin) {
@@ -408,12 +519,16 @@ public class LogicalPlan {
         OpIterator node = subplanMap.entrySet().iterator().next().getValue();
 
         //walk the select list, to determine order in which to project output fields
+        //(an aggregate outputs the group by fields, then the aggregates in the
+        //order they appear in the select list)
+        boolean hasAgg = !aggOps.isEmpty();
+        int aggsSeen = 0;
         List<Integer> outFields = new ArrayList<>();
         List<Type> outTypes = new ArrayList<>();
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.get(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField!=null?1:0);
+                outFields.add(groupByFields.size() + aggsSeen++);
                 TupleDesc td = node.getTupleDesc();
 //                int  id;
                 try {
@@ -425,16 +540,17 @@ public class LogicalPlan {
                 outTypes.add(Type.INT_TYPE);  //the type of all aggregate functions is INT
 
             } else if (hasAgg) {
-                    if (groupByField == null) {
+                    int g = groupByFields.indexOf(si.fname);
+                    if (g < 0) {
                         throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
                     }
-                    outFields.add(0);
+                    outFields.add(g);
                     TupleDesc td = node.getTupleDesc();
                     int  id;
                     try {
-                        id = td.fieldNameToIndex(groupByField);
+                        id = td.fieldNameToIndex(groupByFields.get(g));
                     } catch (NoSuchElementException e) {
-                        throw new ParsingException("Unknown field " +  groupByField + " in GROUP BY statement");
+                        throw new ParsingException("Unknown field " +  groupByFields.get(g) + " in GROUP BY statement");
                     }
                     outTypes.add(td.getFieldType(id));
             } else if (si.fname.equals("null.*")) {
@@ -459,20 +575,51 @@ public class LogicalPlan {
 
         if (hasAgg) {
             TupleDesc td = node.getTupleDesc();
-            Aggregate aggNode;
+            int[] gfields = new int[groupByFields.size()];
+            int[] afields = new int[aggFields.size()];
+            Aggregator.Op[] ops = new Aggregator.Op[aggOps.size()];
             try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
+                for (int i = 0; i < gfields.length; i++)
+                    gfields[i] = td.fieldNameToIndex(groupByFields.get(i));
+                for (int i = 0; i < afields.length; i++) {
+                    afields[i] = td.fieldNameToIndex(aggFields.get(i));
+                    ops[i] = getAggOp(aggOps.get(i));
+                }
+                // tuples sorted on the only group field arrive a group at a
+                // time, so each group can be returned as soon as it ends;
+                // otherwise, aggregate what each worker of a parallel scan
+                // reads on the worker, and merge the groups they find here
+                if (gfields.length == 1 && SortMergeJoin.isSortedOn(node, gfields[0]))
+                    node = new StreamAggregate(node, gfields, afields, ops);
+                else if (node instanceof Exchange)
+                    node = HashAggregate.parallel(((Exchange) node).getChildren(), gfields, afields, ops);
+                else
+                    node = new HashAggregate(node, gfields, afields, ops);
             } catch (NoSuchElementException | IllegalArgumentException e) {
                 throw new simpledb.ParsingException(e);
             }
-            node = aggNode;
         }
 
         if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+            int[] fields = new int[oByFields.size()];
+            boolean[] ascs = new boolean[oByFields.size()];
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = node.getTupleDesc().fieldNameToIndex(oByFields.get(i));
+                ascs[i] = oByAscs.get(i);
+            }
+            // keep just the tuples asked for, if they fit in the buffer
+            // a sort would use
+            long k = (long) limit + offset;
+            if (limit != Limit.NO_LIMIT && k <= (long) OrderBy.DEFAULT_BUFFER_PAGES
+                    * BufferPool.getPageSize() / node.getTupleDesc().getSize()) {
+                node = new TopN(fields, ascs, limit, offset, node);
+            } else {
+                node = new OrderBy(fields, ascs, node);
+            }
+        }
+
+        if ((limit != Limit.NO_LIMIT || offset > 0) && !(node instanceof TopN)) {
+            node = new Limit(limit, offset, node);
         }
 
         return new Project(outFields, outTypes, node);
@@ -9,9 +9,9 @@ import simpledb.execution.SeqScan;
 import simpledb.storage.*;
 import simpledb.transaction.Transaction;
 import simpledb.transaction.TransactionAbortedException;
-import simpledb.transaction.TransactionId;
 
 
+import java.io.IOException;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -101,7 +101,10 @@ public class TableStats {
         this.tableid = tableid;
         this.ioCostPerPage = ioCostPerPage;
         int tupleDescSize=0;
-        SeqScan seqScan = new SeqScan(new TransactionId(), tableid);
+        // read-only, so the scan neither blocks writers nor leaves locks behind
+        Transaction scanner = new Transaction(true);
+        scanner.start();
+        SeqScan seqScan = new SeqScan(scanner.getId(), tableid);
         try {
             seqScan.open();
         } catch (DbException | TransactionAbortedException e) {
@@ -172,6 +175,11 @@ public class TableStats {
             }
         }
         seqScan.close();
+        try {
+            scanner.commit();
+        } catch (IOException | TransactionAbortedException e) {
+            e.printStackTrace();
+        }
 
         pageNum=(tupleNum*tupleDescSize)/BufferPool.getPageSize();
     }
@@ -217,8 +225,25 @@ public class TableStats {
      *              expected selectivity. You may estimate this value from the histograms.
      */
     public double avgSelectivity(int field, Predicate.Op op) {
-        // some code goes here
-        return 1.0;
+        double equal;
+        if (Database.getCatalog().getTupleDesc(tableid).getFieldType(field) == Type.INT_TYPE) {
+            equal = intHistogramMap.get(field).avgSelectivity();
+        } else {
+            equal = stringHistogramMap.get(field).avgSelectivity();
+        }
+        switch (op) {
+            case EQUALS:
+            case LIKE:
+                return equal;
+            case NOT_EQUALS:
+                return 1.0 - equal;
+            case LESS_THAN:
+            case GREATER_THAN:
+                // the values that are not equal are as often above as below
+                return (1.0 - equal) / 2;
+            default:
+                return (1.0 - equal) / 2 + equal;
+        }
     }
 
     /**
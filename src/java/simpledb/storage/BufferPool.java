@@ -4,20 +4,26 @@ import simpledb.common.Database;
 import simpledb.common.Permissions;
 import simpledb.common.DbException;
 import simpledb.common.DeadlockException;
+import simpledb.common.Debug;
+import simpledb.index.IndexKey;
+import simpledb.transaction.LockManager;
+import simpledb.transaction.LockMode;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -27,6 +33,26 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Locks are hierarchical: a transaction locks a table in an intention mode
+ * before locking one of its pages, and a page before one of its rows.
+ * Heap file updates lock rows rather than pages: the updater holds the page
+ * in INTENTION_EXCLUSIVE mode and each row it inserts or deletes
+ * EXCLUSIVE, so several transactions can change the same page at once.
+ * Once a transaction holds more than the lock escalation threshold of page
+ * and row locks on one table, they are traded for a single SHARED (if it
+ * only read) or EXCLUSIVE table lock.
+ * Because of that, a page's before image cannot be taken wholesale at
+ * commit, nor restored wholesale on abort.  Instead each transaction's row
+ * changes are replayed onto the before image at commit, and undone one by
+ * one on abort.  Pages with uncommitted changes are never evicted (NO STEAL),
+ * and the committed version of every page a transaction changed is written
+ * out when it commits (FORCE).
+ * <p>
+ * Transactions started with {@link #beginOptimistic} take no locks while
+ * they run.  They read and write private copies of committed pages, and
+ * at commit are validated against the commits made since they read each
+ * page; those that pass install their copies, the rest are aborted.
  *
  * @Threadsafe, all fields are final
  */
@@ -45,12 +71,72 @@ public class BufferPool {
      */
     public static final int DEFAULT_PAGES = 50;
 
+    /**
+     * Default number of page and row locks a transaction may hold on one
+     * table before they are escalated to a table lock.
+     */
+    public static final int DEFAULT_LOCK_ESCALATION_THRESHOLD = 256;
+
 
     private final int maxPageNum;
 
     private ConcurrentHashMap<PageId, Page> idToPages;
 
-    private ReadWriteLock rwLock;
+    /** LSN at which each dirty page was first dirtied since it was last written (its recLSN) */
+    private final ConcurrentHashMap<PageId, Long> recLsns;
+
+    /** Pages dirtied by each running transaction */
+    private final ConcurrentHashMap<TransactionId, Set<PageId>> dirtied;
+
+    /**
+     * Pages each running transaction has fetched for writing, which it may
+     * have marked dirty itself rather than through insertTuple or deleteTuple
+     */
+    private final ConcurrentHashMap<TransactionId, Set<PageId>> writable;
+
+    /** Running transactions with uncommitted changes on each page */
+    private final ConcurrentHashMap<PageId, Set<TransactionId>> pageWriters;
+
+    /**
+     * Pages fetched for writing during each running transaction's current
+     * insertTuple or deleteTuple.  The DbFile changes them before they are
+     * marked dirty, so until the operation ends they count as written too.
+     */
+    private final ConcurrentHashMap<TransactionId, Set<PageId>> pinned;
+
+    /**
+     * For each page with a committed image still to be written: the number
+     * of the newest image taken for writing, of the newest one written, and
+     * how many are still to be written.  Images are numbered in the order
+     * they are taken, so an image is only written if no newer one has been.
+     * Guarded by flushLock, as is imageCount.
+     */
+    private final Map<PageId, long[]> imageSeqs = new HashMap<>();
+
+    /** The number of the last committed image taken for writing */
+    private long imageCount = 0;
+
+    /** Heap rows changed by each running transaction, oldest first */
+    private final ConcurrentHashMap<TransactionId, List<RowChange>> rowChanges;
+
+    private final LockManager lockManager;
+
+    /** Number of page and row locks each running transaction holds on each table */
+    private final ConcurrentHashMap<TransactionId, Map<Integer, Integer>> lockCounts;
+
+    private volatile int lockEscalationThreshold = DEFAULT_LOCK_ESCALATION_THRESHOLD;
+
+    /** Committed page versions for read-only snapshot transactions */
+    private final VersionStore versions;
+
+    /** Private pages of each running optimistic transaction */
+    private final ConcurrentHashMap<TransactionId, OptimisticWorkspace> optimistic;
+
+    /**
+     * Held while pages are flushed, discarded or evicted.  The LogFile takes
+     * it before its own lock wherever it touches the buffer pool.
+     */
+    private final ReentrantLock flushLock = new ReentrantLock();
 
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -61,7 +147,26 @@ public class BufferPool {
         // some code goes here
         maxPageNum = numPages;
         idToPages = new ConcurrentHashMap<>();
-        rwLock = new ReentrantReadWriteLock();
+        recLsns = new ConcurrentHashMap<>();
+        dirtied = new ConcurrentHashMap<>();
+        writable = new ConcurrentHashMap<>();
+        pageWriters = new ConcurrentHashMap<>();
+        pinned = new ConcurrentHashMap<>();
+        rowChanges = new ConcurrentHashMap<>();
+        lockManager = new LockManager();
+        lockCounts = new ConcurrentHashMap<>();
+        versions = new VersionStore();
+        optimistic = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * @return the lock held while pages move between the buffer pool and
+     *         disk.  It is a java.util.concurrent lock rather than the
+     *         BufferPool's monitor, so that a virtual thread flushing a page
+     *         under it does not pin its carrier thread.
+     */
+    public Lock getFlushLock() {
+        return flushLock;
     }
 
     public static int getPageSize() {
@@ -78,6 +183,131 @@ public class BufferPool {
         BufferPool.pageSize = DEFAULT_PAGE_SIZE;
     }
 
+    /**
+     * Set the number of page and row locks a transaction may hold on one
+     * table before they are escalated to a table lock; 0 disables escalation.
+     */
+    public void setLockEscalationThreshold(int threshold) {
+        lockEscalationThreshold = threshold;
+    }
+
+    /** The lock on a whole table, the root of the lock hierarchy */
+    private static final class TableLock {
+        final int tableId;
+
+        TableLock(int tableId) {
+            this.tableId = tableId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TableLock && ((TableLock) o).tableId == tableId;
+        }
+
+        @Override
+        public int hashCode() {
+            return Integer.hashCode(tableId);
+        }
+
+        @Override
+        public String toString() {
+            return "table " + tableId;
+        }
+    }
+
+    /**
+     * Lock a page or row in mode on behalf of tid, after locking the levels
+     * above it with the matching intention mode.  Nothing below a table
+     * is locked if the table lock already grants mode.
+     *
+     * @param tableId the table holding resource
+     * @param parent the page holding resource if it is a row, else null
+     * @param resource the page or row to lock
+     * @param mode the mode to lock resource in
+     * @param wait false to give up rather than wait for any of the locks;
+     *             this also puts off lock escalation, which may have to wait
+     * @return true if tid now holds (or implicitly holds) the lock
+     */
+    private boolean lock(TransactionId tid, int tableId, PageId parent, Object resource, LockMode mode, boolean wait)
+            throws TransactionAbortedException {
+        TableLock table = new TableLock(tableId);
+        if (!acquire(tid, table, mode.intention(), wait)) {
+            return false;
+        }
+        if (lockManager.lockMode(tid, table).implicitlyGrants(mode)) {
+            return true;
+        }
+        int granted = 0;
+        if (parent != null) {
+            boolean held = lockManager.holdsLock(tid, parent);
+            if (!acquire(tid, parent, mode.intention(), wait)) {
+                return false;
+            }
+            if (!held) {
+                granted++;
+            }
+        }
+        boolean held = lockManager.holdsLock(tid, resource);
+        boolean acquired = acquire(tid, resource, mode, wait);
+        if (acquired && !held) {
+            granted++;
+        }
+        int n = lockCounts.computeIfAbsent(tid, k -> new ConcurrentHashMap<>()).merge(tableId, granted, Integer::sum);
+        int threshold = lockEscalationThreshold;
+        if (wait && threshold > 0 && n > threshold) {
+            escalate(tid, table);
+        }
+        return acquired;
+    }
+
+    private boolean acquire(TransactionId tid, Object resource, LockMode mode, boolean wait)
+            throws TransactionAbortedException {
+        if (!wait) {
+            return lockManager.tryAcquire(tid, resource, mode);
+        }
+        lockManager.acquire(tid, resource, mode);
+        return true;
+    }
+
+    /** @return the table a page, row or index key lock belongs to, or -1 for table locks */
+    private static int tableOf(Object resource) {
+        if (resource instanceof RecordId) {
+            return ((RecordId) resource).getPageId().getTableId();
+        }
+        if (resource instanceof PageId) {
+            return ((PageId) resource).getTableId();
+        }
+        if (resource instanceof IndexKey) {
+            return ((IndexKey) resource).getTableId();
+        }
+        return -1;
+    }
+
+    /**
+     * Replace tid's page and row locks on table by one table lock: SHARED if
+     * all of them were SHARED or INTENTION_SHARED, else EXCLUSIVE.
+     */
+    private void escalate(TransactionId tid, TableLock table) throws TransactionAbortedException {
+        List<Object> below = new ArrayList<>();
+        boolean writes = false;
+        for (Map.Entry<Object, LockMode> e : lockManager.locksHeld(tid).entrySet()) {
+            Object resource = e.getKey();
+            if (tableOf(resource) != table.tableId) {
+                continue;
+            }
+            below.add(resource);
+            LockMode mode = e.getValue();
+            writes |= mode != LockMode.SHARED && mode != LockMode.INTENTION_SHARED;
+        }
+        lockManager.acquire(tid, table, writes ? LockMode.EXCLUSIVE : LockMode.SHARED);
+        for (Object resource : below) {
+            lockManager.release(tid, resource);
+        }
+        lockCounts.get(tid).remove(table.tableId);
+        Debug.log("escalated %d locks of transaction %d to %s %s", below.size(), tid.getId(),
+                lockManager.lockMode(tid, table), table);
+    }
+
     /**
      * Retrieve the specified page with the associated permissions.
      * Will acquire a lock and may block if that lock is held by another
@@ -88,6 +318,12 @@ public class BufferPool {
      * be added to the buffer pool and returned.  If there is insufficient
      * space in the buffer pool, a page should be evicted and the new page
      * should be added in its place.
+     * <p>
+     * Read-only transactions started with {@link #beginSnapshot} take no
+     * locks; they are handed a read-only copy, shared with other readers,
+     * of the version of the page that was committed when their snapshot
+     * began.  Optimistic
+     * transactions take no locks either, and are handed their own copy.
      *
      * @param tid  the ID of the transaction requesting the page
      * @param pid  the ID of the requested page
@@ -96,11 +332,172 @@ public class BufferPool {
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException {
         // some code goes here
-        //    if (perm == Permissions.READ_ONLY) {
-        //        rwLock.readLock().lock();
-        //    } else if (perm == Permissions.READ_WRITE) {
-        //        rwLock.writeLock().lock();
-        //    }
+        Long snapshot = versions.snapshotOf(tid);
+        if (snapshot != null) {
+            if (perm == Permissions.READ_WRITE) {
+                throw new DbException("read-only transaction " + tid.getId() + " cannot write page " + pid);
+            }
+            return versions.visible(pid, snapshot, cachedPage(pid));
+        }
+        OptimisticWorkspace ws = optimistic.get(tid);
+        if (ws != null) {
+            return optimisticPage(tid, ws, pid, perm);
+        }
+        lock(tid, pid.getTableId(), null, pid,
+                perm == Permissions.READ_ONLY ? LockMode.SHARED : LockMode.EXCLUSIVE, true);
+        if (perm == Permissions.READ_WRITE) {
+            writable.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(pid);
+            pin(tid, pid);
+        }
+        return cachedPage(pid);
+    }
+
+    /**
+     * Like {@link #getPage}, but gives up instead of waiting if the page's
+     * lock is held by another transaction.
+     *
+     * @return the requested page, or null if tid would have to wait for it
+     */
+    public Page tryGetPage(TransactionId tid, PageId pid, Permissions perm)
+            throws DbException {
+        Long snapshot = versions.snapshotOf(tid);
+        if (snapshot != null) {
+            if (perm == Permissions.READ_WRITE) {
+                throw new DbException("read-only transaction " + tid.getId() + " cannot write page " + pid);
+            }
+            return versions.visible(pid, snapshot, cachedPage(pid));
+        }
+        OptimisticWorkspace ws = optimistic.get(tid);
+        if (ws != null) {
+            return optimisticPage(tid, ws, pid, perm);
+        }
+        try {
+            if (!lock(tid, pid.getTableId(), null, pid,
+                    perm == Permissions.READ_ONLY ? LockMode.SHARED : LockMode.EXCLUSIVE, false)) {
+                return null;
+            }
+        } catch (TransactionAbortedException e) {
+            // cannot happen: lock only waits, and so only aborts, if asked to
+            return null;
+        }
+        if (perm == Permissions.READ_WRITE) {
+            writable.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(pid);
+            pin(tid, pid);
+        }
+        return cachedPage(pid);
+    }
+
+    /**
+     * Retrieve a page without locking it.  Used by index structures that
+     * keep their inner pages consistent with latches of their own instead
+     * of transaction locks; the caller must not change the page, nor rely
+     * on its contents after letting go of its latch.  Snapshot readers
+     * still get their own version of the page.
+     *
+     * @param tid the ID of the transaction reading the page
+     * @param pid the ID of the requested page
+     */
+    public Page getPageUnlocked(TransactionId tid, PageId pid) throws DbException {
+        Long snapshot = versions.snapshotOf(tid);
+        if (snapshot != null) {
+            return versions.visible(pid, snapshot, cachedPage(pid));
+        }
+        OptimisticWorkspace ws = optimistic.get(tid);
+        if (ws != null) {
+            return optimisticPage(tid, ws, pid, Permissions.READ_ONLY);
+        }
+        return cachedPage(pid);
+    }
+
+    /**
+     * @return optimistic transaction tid's own copy of pid.  Only heap pages
+     * may be written this way: B+ tree files allocate and free pages as
+     * they split and merge, which a private copy cannot undo.
+     */
+    private Page optimisticPage(TransactionId tid, OptimisticWorkspace ws, PageId pid, Permissions perm)
+            throws DbException {
+        if (perm == Permissions.READ_WRITE && !(pid instanceof HeapPageId)) {
+            throw new DbException("optimistic transaction " + tid.getId() + " cannot write page " + pid);
+        }
+        return ws.page(pid, versions, cachedPage(pid));
+    }
+
+    /**
+     * Retrieve a heap page on which tid is going to insert or delete rows.
+     * The page is locked INTENTION_EXCLUSIVE, which other row updaters may
+     * share; the rows themselves must be locked with {@link #tryLockRow} or
+     * by {@link #deleteTuple}, and the page changed only through the
+     * latched HeapPage.insertTuple and HeapPage.deleteTuple.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     */
+    public Page getPageForRowUpdate(TransactionId tid, PageId pid)
+            throws TransactionAbortedException, DbException {
+        if (versions.snapshotOf(tid) != null) {
+            throw new DbException("read-only transaction " + tid.getId() + " cannot write page " + pid);
+        }
+        OptimisticWorkspace ws = optimistic.get(tid);
+        if (ws != null) {
+            return optimisticPage(tid, ws, pid, Permissions.READ_WRITE);
+        }
+        lock(tid, pid.getTableId(), null, pid, LockMode.INTENTION_EXCLUSIVE, true);
+        pin(tid, pid);
+        return cachedPage(pid);
+    }
+
+    /**
+     * Count tid as a writer of pid, which it is about to fetch for writing,
+     * if it is inside insertTuple or deleteTuple, so that the page is not
+     * evicted between being changed and being marked dirty.
+     */
+    private void pin(TransactionId tid, PageId pid) {
+        Set<PageId> pins = pinned.get(tid);
+        if (pins != null && pins.add(pid)) {
+            pageWriters.computeIfAbsent(pid, k -> ConcurrentHashMap.newKeySet()).add(tid);
+        }
+    }
+
+    /**
+     * End tid's insertTuple or deleteTuple: the pages it fetched for writing
+     * but did not change may be evicted again.
+     */
+    private void unpin(TransactionId tid) {
+        unpin(tid, pinned.remove(tid));
+    }
+
+    private void unpin(TransactionId tid, Set<PageId> pins) {
+        Set<PageId> changed = dirtied.getOrDefault(tid, Collections.emptySet());
+        for (PageId pid : pins) {
+            if (!changed.contains(pid)) {
+                releaseWrites(tid, Collections.singleton(pid));
+            }
+        }
+    }
+
+    /**
+     * Lock the row rid exclusively for tid, if no other transaction holds it.
+     * Used while choosing a slot to insert into, so that a slot freed by an
+     * uncommitted delete is not reused.
+     *
+     * @return true if tid now holds the row lock
+     */
+    public boolean tryLockRow(TransactionId tid, RecordId rid) {
+        if (optimistic.containsKey(tid)) {
+            // the page is tid's own copy
+            return true;
+        }
+        try {
+            PageId pid = rid.getPageId();
+            return lock(tid, pid.getTableId(), pid, rid, LockMode.EXCLUSIVE, false);
+        } catch (TransactionAbortedException e) {
+            // cannot happen: the page and table are already locked by
+            // getPageForRowUpdate, and the row lock is only tried
+            return false;
+        }
+    }
+
+    private Page cachedPage(PageId pid) throws DbException {
         Page page = idToPages.get(pid);
         if (page == null) {
             if (idToPages.size() >= maxPageNum) {
@@ -108,11 +505,76 @@ public class BufferPool {
             }
             DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
             page = file.readPage(pid);
-            idToPages.put(pid, page);
+            // several row writers may miss on the same page at once; all of
+            // them must change the copy that stays cached
+            Page raced = idToPages.putIfAbsent(pid, page);
+            if (raced != null) {
+                page = raced;
+            }
         }
         return page;
     }
 
+    /**
+     * Make tid a read-only snapshot transaction: from now until it
+     * completes, it reads the data committed as of this call and never
+     * blocks or is blocked by writers.
+     *
+     * @param tid the ID of the read-only transaction
+     */
+    public void beginSnapshot(TransactionId tid) {
+        versions.beginSnapshot(tid);
+    }
+
+    /**
+     * Run tid under optimistic concurrency control: until it completes, it
+     * takes no locks and never waits, reading and writing its own copies
+     * of committed pages.  Suits short transactions that seldom conflict.
+     * Such a transaction may only write heap files.
+     *
+     * @param tid the ID of the optimistic transaction
+     */
+    public void beginOptimistic(TransactionId tid) {
+        optimistic.putIfAbsent(tid, new OptimisticWorkspace());
+    }
+
+    /**
+     * Validate optimistic transaction tid: check that no other transaction
+     * has committed a change to any page it read since it read it.  The
+     * pages it read are locked SHARED and those it wrote EXCLUSIVE, without
+     * waiting, and stay locked until {@link #transactionComplete}, so that
+     * nothing can change them between validation and installing its writes.
+     * Does nothing for other transactions.
+     *
+     * @param tid the ID of the transaction to validate
+     * @throws TransactionAbortedException if tid conflicts with another
+     *         transaction and must abort
+     */
+    public void validate(TransactionId tid) throws TransactionAbortedException {
+        OptimisticWorkspace ws = optimistic.get(tid);
+        if (ws != null && !ws.isValidated()) {
+            validate(tid, ws);
+        }
+    }
+
+    private void validate(TransactionId tid, OptimisticWorkspace ws) throws TransactionAbortedException {
+        Set<PageId> written = new HashSet<>();
+        for (Page page : ws.writeSet()) {
+            written.add(page.getId());
+        }
+        for (Map.Entry<PageId, Long> e : ws.readSet().entrySet()) {
+            PageId pid = e.getKey();
+            LockMode mode = written.contains(pid) ? LockMode.EXCLUSIVE : LockMode.SHARED;
+            if (!lock(tid, pid.getTableId(), null, pid, mode, false)
+                    || versions.stampOf(pid) != e.getValue()) {
+                lockManager.releaseAll(tid);
+                lockCounts.remove(tid);
+                throw new TransactionAbortedException();
+            }
+        }
+        ws.setValidated();
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -125,6 +587,88 @@ public class BufferPool {
     public void unsafeReleasePage(TransactionId tid, PageId pid) {
         // some code goes here
         // not necessary for lab1|lab2
+        release(tid, pid);
+        // a page let go of during an insert or delete was left alone
+        Set<PageId> pins = pinned.get(tid);
+        if (pins != null && pins.remove(pid)) {
+            unpin(tid, Collections.singleton(pid));
+        }
+    }
+
+    private void release(TransactionId tid, Object resource) {
+        if (lockManager.holdsLock(tid, resource)) {
+            lockManager.release(tid, resource);
+            Map<Integer, Integer> counts = lockCounts.get(tid);
+            if (counts != null) {
+                counts.computeIfPresent(tableOf(resource), (k, n) -> n > 1 ? n - 1 : null);
+            }
+        }
+    }
+
+    /**
+     * Lock the range of index keys ending at key on behalf of tid: SHARED
+     * for scans, EXCLUSIVE for inserts and deletes of the key.  Snapshot
+     * readers and optimistic transactions take no key locks.
+     *
+     * @param wait false to give up rather than wait for the lock
+     * @return true if tid now holds the lock
+     * @throws TransactionAbortedException if waiting would deadlock
+     */
+    public boolean lockKey(TransactionId tid, IndexKey key, Permissions perm, boolean wait)
+            throws TransactionAbortedException {
+        if (versions.snapshotOf(tid) != null || optimistic.containsKey(tid)) {
+            return true;
+        }
+        return lock(tid, key.getTableId(), null, key,
+                perm == Permissions.READ_ONLY ? LockMode.SHARED : LockMode.EXCLUSIVE, wait);
+    }
+
+    /**
+     * Take an instant-duration exclusive lock on key: wait until no other
+     * transaction holds it, but keep no new lock.  An insert takes this on
+     * the key that follows the one it inserts, so that it waits for any
+     * scan that has locked the gap it goes into.
+     *
+     * @param wait false to give up rather than wait for the lock
+     * @return true if no other transaction holds key
+     * @throws TransactionAbortedException if waiting would deadlock
+     */
+    public boolean lockKeyInstant(TransactionId tid, IndexKey key, boolean wait)
+            throws TransactionAbortedException {
+        boolean held = lockManager.holdsLock(tid, key);
+        if (!lockKey(tid, key, Permissions.READ_WRITE, wait)) {
+            return false;
+        }
+        if (!held) {
+            release(tid, key);
+        }
+        return true;
+    }
+
+    /**
+     * Latch resource on behalf of tid: shared to read it, exclusive to
+     * change it.  Latches are taken through the LockManager, so waiting for
+     * one is subject to the same deadlock detection as waiting for a lock,
+     * but they are held only until {@link #unlatch}, not until tid
+     * completes, and take no part in the lock hierarchy.
+     *
+     * @param wait false to give up rather than wait for the latch
+     * @return true if tid now holds the latch
+     * @throws TransactionAbortedException if waiting would deadlock
+     */
+    public boolean latch(TransactionId tid, Object resource, boolean exclusive, boolean wait)
+            throws TransactionAbortedException {
+        return acquire(tid, resource, exclusive ? LockMode.EXCLUSIVE : LockMode.SHARED, wait);
+    }
+
+    /** Release tid's latch on resource, if it holds one. */
+    public void unlatch(TransactionId tid, Object resource) {
+        lockManager.release(tid, resource);
+    }
+
+    /** Return true if the specified transaction has a lock on the specified index key */
+    public boolean holdsLock(TransactionId tid, IndexKey key) {
+        return lockManager.holdsLock(tid, key);
     }
 
     /**
@@ -135,6 +679,7 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid) {
         // some code goes here
         // not necessary for lab1|lab2
+        transactionComplete(tid, true);
     }
 
     /**
@@ -143,12 +688,17 @@ public class BufferPool {
     public boolean holdsLock(TransactionId tid, PageId p) {
         // some code goes here
         // not necessary for lab1|lab2
-        return false;
+        if (lockManager.holdsLock(tid, p)) {
+            return true;
+        }
+        LockMode table = lockManager.lockMode(tid, new TableLock(p.getTableId()));
+        return table != null && table.implicitlyGrants(LockMode.SHARED);
     }
 
     /**
      * Commit or abort a given transaction; release all locks associated to
-     * the transaction.
+     * the transaction.  A commit forces the pages the transaction dirtied
+     * to disk before its locks are released.
      *
      * @param tid    the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
@@ -156,6 +706,243 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid, boolean commit) {
         // some code goes here
         // not necessary for lab1|lab2
+        long start = System.nanoTime();
+        boolean committed = complete(tid, commit);
+        Database.getStats().transactionCompleted(committed, System.nanoTime() - start);
+    }
+
+    /**
+     * Commit or abort tid, as {@link #transactionComplete(TransactionId, boolean)}.
+     *
+     * @return true if tid committed
+     */
+    private boolean complete(TransactionId tid, boolean commit) {
+        if (versions.endSnapshot(tid)) {
+            return commit;
+        }
+        OptimisticWorkspace ws = optimistic.remove(tid);
+        if (ws != null && commit && !ws.isValidated()) {
+            try {
+                validate(tid, ws);
+            } catch (TransactionAbortedException e) {
+                commit = false;
+            }
+        }
+        if (ws != null && commit) {
+            // install the private copies as the live pages, then commit them as usual
+            for (Page page : ws.writeSet()) {
+                idToPages.put(page.getId(), page);
+                markDirty(tid, page);
+            }
+        }
+        Set<PageId> pages = dirtied.remove(tid);
+        // pages tid marked dirty itself, rather than through insertTuple or
+        // deleteTuple, count too; only those it fetched for writing can be
+        Set<PageId> written = writable.remove(tid);
+        if (written != null) {
+            for (PageId pid : written) {
+                Page page = idToPages.get(pid);
+                if (page != null && tid.equals(page.isDirty())) {
+                    if (pages == null) {
+                        pages = new HashSet<>();
+                    }
+                    pages.add(pid);
+                }
+            }
+        }
+        List<RowChange> rows = rowChanges.remove(tid);
+        List<Page> committed = new ArrayList<>();
+        Map<PageId, Page> previous = new HashMap<>();
+        if (pages != null) {
+            Map<PageId, List<RowChange>> rowsByPage = new HashMap<>();
+            if (rows != null) {
+                for (RowChange c : rows) {
+                    rowsByPage.computeIfAbsent(c.rid.getPageId(), k -> new ArrayList<>()).add(c);
+                }
+            }
+            if (commit) {
+                for (PageId pid : pages) {
+                    Page page = idToPages.get(pid);
+                    if (page != null) {
+                        committed.add(page);
+                        previous.put(pid, page.getBeforeImage());
+                    }
+                }
+                versions.commit(committed, page -> installCommitted(page, rowsByPage.get(page.getId())));
+                // FORCE, while tid still holds its locks
+                force(tid, pages, committed, previous);
+            } else {
+                for (PageId pid : pages) {
+                    rollBack(tid, pid, rowsByPage.get(pid));
+                }
+                releaseWrites(tid, pages);
+            }
+        }
+        lockManager.releaseAll(tid);
+        lockCounts.remove(tid);
+        return commit;
+    }
+
+    /**
+     * Write the committed version of each of pages to disk, after an UPDATE
+     * record for it from its version before tid committed.  Heap pages may
+     * still hold other transactions' uncommitted rows, so what is written
+     * is the before image tid has just installed, not the page itself; a
+     * page no other transaction is writing is clean afterwards.
+     * <p>
+     * flushLock is only held while the images are taken and while they are
+     * written, not while the log is forced, so commits force the log
+     * together (see {@link LogFile#forceUpTo}).  Another transaction may
+     * commit rows on the same heap page meanwhile; the image taken later
+     * holds both, and an earlier image is not written over it.  tid stays
+     * a writer of its pages until their images are written, so they are
+     * not evicted in between.
+     *
+     * @param dirtied the pages tid changed, of which it stops being a writer
+     * @param pages the cached pages among them
+     * @param previous the before image of each page before tid committed
+     */
+    private void force(TransactionId tid, Set<PageId> dirtied, List<Page> pages, Map<PageId, Page> previous) {
+        List<Page> images = new ArrayList<>();
+        long[] seqs = new long[pages.size()];
+        flushLock.lock();
+        try {
+            for (Page page : pages) {
+                long[] seq = imageSeqs.computeIfAbsent(page.getId(), k -> new long[3]);
+                seqs[images.size()] = seq[0] = ++imageCount;
+                seq[2]++;
+                images.add(page.getBeforeImage());
+            }
+        } finally {
+            flushLock.unlock();
+        }
+        if (images.isEmpty()) {
+            releaseWrites(tid, dirtied);
+            return;
+        }
+        try {
+            LogFile log = Database.getLogFile();
+            for (Page image : images) {
+                log.logWrite(tid, previous.get(image.getId()), image);
+            }
+            log.forceUpTo(log.currentLsn());
+        } catch (IOException e) {
+            throw new RuntimeException("cannot log the pages committed by " + tid, e);
+        }
+        flushLock.lock();
+        try {
+            for (int i = 0; i < images.size(); i++) {
+                Page image = images.get(i);
+                PageId pid = image.getId();
+                long[] seq = imageSeqs.get(pid);
+                if (seqs[i] > seq[1]) {
+                    Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(image);
+                    seq[1] = seqs[i];
+                }
+                if (--seq[2] == 0) {
+                    imageSeqs.remove(pid);
+                }
+            }
+            releaseWrites(tid, dirtied);
+            for (Page image : images) {
+                long[] seq = imageSeqs.get(image.getId());
+                if (seq == null || seq[1] == seq[0]) {
+                    // every committed image of the page is on disk
+                    markClean(image.getId());
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("cannot force the pages committed by " + tid, e);
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /** Stop counting tid as a writer of pages. */
+    private void releaseWrites(TransactionId tid, Set<PageId> pages) {
+        for (PageId pid : pages) {
+            pageWriters.computeIfPresent(pid, (k, writers) -> {
+                writers.remove(tid);
+                return writers.isEmpty() ? null : writers;
+            });
+        }
+    }
+
+    /**
+     * Mark pid clean if no running transaction is writing it, atomically
+     * with {@link #markDirty} adding a writer.
+     */
+    private void markClean(PageId pid) {
+        Page page = idToPages.get(pid);
+        if (page == null) {
+            return;
+        }
+        pageWriters.compute(pid, (k, writers) -> {
+            if (writers == null) {
+                page.markDirty(false, null);
+                recLsns.remove(pid);
+            }
+            return writers;
+        });
+    }
+
+    /**
+     * Make the committing transaction's changes part of page's before
+     * image.  Heap pages may hold other transactions' uncommitted rows, so
+     * only the committer's own row changes are replayed onto it.
+     */
+    private void installCommitted(Page page, List<RowChange> rows) {
+        if (rows == null) {
+            page.setBeforeImage();
+            return;
+        }
+        HeapPage live = (HeapPage) page;
+        HeapPage committed = live.getBeforeImage();
+        try {
+            for (RowChange c : rows) {
+                if (c.insert) {
+                    committed.insertTuple(c.copy(), rid -> rid.equals(c.rid));
+                } else {
+                    committed.deleteTuple(c.copy());
+                }
+            }
+        } catch (DbException e) {
+            throw new RuntimeException("cannot replay committed row changes on " + page.getId(), e);
+        }
+        live.setBeforeImage(committed);
+    }
+
+    /**
+     * Undo an aborting transaction's changes to pid: its row changes one by
+     * one on heap pages, or by restoring the before image of pages it held
+     * exclusively.  The result is left dirty, since the uncommitted version
+     * may already have been written out by flushAllPages.
+     */
+    private void rollBack(TransactionId tid, PageId pid, List<RowChange> rows) {
+        Page page = idToPages.get(pid);
+        if (page == null) {
+            return;
+        }
+        if (rows == null) {
+            page = page.getBeforeImage();
+            idToPages.put(pid, page);
+        } else {
+            HeapPage live = (HeapPage) page;
+            try {
+                for (int i = rows.size() - 1; i >= 0; i--) {
+                    RowChange c = rows.get(i);
+                    if (c.insert) {
+                        live.deleteTuple(c.copy());
+                    } else {
+                        live.insertTuple(c.copy(), rid -> rid.equals(c.rid));
+                    }
+                }
+            } catch (DbException e) {
+                throw new RuntimeException("cannot undo row changes on " + pid, e);
+            }
+        }
+        page.markDirty(true, tid);
+        recLsns.putIfAbsent(pid, Database.getLogFile().currentLsn());
     }
 
     /**
@@ -177,13 +964,25 @@ public class BufferPool {
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
-        List<Page> dirtyList = Database.getCatalog().getDatabaseFile(tableId).insertTuple(tid, t);
-        for (Page page : dirtyList) {
-            page.markDirty(true, tid);
-            // for bufferWiterTest and evict
-            if (!idToPages.containsKey(page.getId())) {
-                idToPages.put(page.getId(), page);
+        if (optimistic.containsKey(tid)) {
+            markPrivate(tid, Database.getCatalog().getDatabaseFile(tableId).insertTuple(tid, t));
+            return;
+        }
+        pinned.put(tid, ConcurrentHashMap.newKeySet());
+        try {
+            List<Page> dirtyList = Database.getCatalog().getDatabaseFile(tableId).insertTuple(tid, t);
+            if (t.getRecordId().getPageId() instanceof HeapPageId) {
+                recordRowChange(tid, t, t.getRecordId(), true);
+            }
+            for (Page page : dirtyList) {
+                markDirty(tid, page);
+                // for bufferWiterTest and evict
+                if (!idToPages.containsKey(page.getId())) {
+                    idToPages.put(page.getId(), page);
+                }
             }
+        } finally {
+            unpin(tid);
         }
     }
 
@@ -203,12 +1002,75 @@ public class BufferPool {
     public void deleteTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
-        PageId pageId = t.getRecordId().getPageId();
-        List<Page> dirtyList = Database.getCatalog().getDatabaseFile(pageId.getTableId()).deleteTuple(tid, t);
+        RecordId rid = t.getRecordId();
+        PageId pageId = rid.getPageId();
+        if (optimistic.containsKey(tid)) {
+            markPrivate(tid, Database.getCatalog().getDatabaseFile(pageId.getTableId()).deleteTuple(tid, t));
+            return;
+        }
+        boolean heap = pageId instanceof HeapPageId;
+        if (heap) {
+            lock(tid, pageId.getTableId(), pageId, rid, LockMode.EXCLUSIVE, true);
+        }
+        pinned.put(tid, ConcurrentHashMap.newKeySet());
+        try {
+            List<Page> dirtyList = Database.getCatalog().getDatabaseFile(pageId.getTableId()).deleteTuple(tid, t);
+            if (heap) {
+                recordRowChange(tid, t, rid, false);
+            }
+            for (Page page : dirtyList) {
+                markDirty(tid, page);
+            }
+        } finally {
+            unpin(tid);
+        }
+        // not necessary for lab1
+    }
+
+    private void markDirty(TransactionId tid, Page page) {
+        // become a writer first, so that a commit cannot mark the page clean after this
+        pageWriters.computeIfAbsent(page.getId(), k -> ConcurrentHashMap.newKeySet()).add(tid);
+        page.markDirty(true, tid);
+        recLsns.putIfAbsent(page.getId(), Database.getLogFile().currentLsn());
+        dirtied.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(page.getId());
+    }
+
+    /** Mark an optimistic transaction's own copies dirty; they stay out of the cache until it commits */
+    private void markPrivate(TransactionId tid, List<Page> dirtyList) {
         for (Page page : dirtyList) {
             page.markDirty(true, tid);
         }
-        // not necessary for lab1
+    }
+
+    private void recordRowChange(TransactionId tid, Tuple t, RecordId rid, boolean insert) {
+        rowChanges.computeIfAbsent(tid, k -> Collections.synchronizedList(new ArrayList<>()))
+                .add(new RowChange(t, rid, insert));
+    }
+
+    /** A heap row inserted or deleted by a running transaction */
+    private static class RowChange {
+        final Tuple tuple;
+        final RecordId rid;
+        final boolean insert;
+
+        RowChange(Tuple t, RecordId rid, boolean insert) {
+            this.tuple = new Tuple(t.getTupleDesc());
+            for (int i = 0; i < t.getTupleDesc().numFields(); i++) {
+                this.tuple.setField(i, t.getField(i));
+            }
+            this.rid = rid;
+            this.insert = insert;
+        }
+
+        /** @return a fresh copy of the row, placed at rid */
+        Tuple copy() {
+            Tuple t = new Tuple(tuple.getTupleDesc());
+            for (int i = 0; i < tuple.getTupleDesc().numFields(); i++) {
+                t.setField(i, tuple.getField(i));
+            }
+            t.setRecordId(rid);
+            return t;
+        }
     }
 
     /**
@@ -216,14 +1078,16 @@ public class BufferPool {
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      * break simpledb if running in NO STEAL mode.
      */
-    public synchronized void flushAllPages() throws IOException {
-        // some code goes here
-        // not necessary for lab1
-        for (PageId id : idToPages.keySet()) {
-            HeapPage heapPage = (HeapPage) idToPages.get(id);
-            if (heapPage.isDirty() != null) {
+    public void flushAllPages() throws IOException {
+        flushLock.lock();
+        try {
+            // some code goes here
+            // not necessary for lab1
+            for (PageId id : idToPages.keySet()) {
                 flushPage(id);
             }
+        } finally {
+            flushLock.unlock();
         }
     }
 
@@ -236,51 +1100,123 @@ public class BufferPool {
      * Also used by B+ tree files to ensure that deleted pages
      * are removed from the cache so they can be reused safely
      */
-    public synchronized void discardPage(PageId pid) {
-        // some code goes here
-        // not necessary for lab1
-        idToPages.remove(pid);
+    public void discardPage(PageId pid) {
+        flushLock.lock();
+        try {
+            // some code goes here
+            // not necessary for lab1
+            idToPages.remove(pid);
+            recLsns.remove(pid);
+            versions.forget(pid);
+        } finally {
+            flushLock.unlock();
+        }
     }
 
     /**
-     * Flushes a certain page to disk
+     * Flushes a certain page to disk.  Following the write-ahead rule, an
+     * UPDATE record for the page is forced to the log before the page itself
+     * is written.  Clean pages and pages no longer cached are left alone.
      *
      * @param pid an ID indicating the page to flush
      */
-    private synchronized void flushPage(PageId pid) throws IOException {
-        // some code goes here
-        // not necessary for lab1
-        Page page = idToPages.get(pid);
-        Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
+    private void flushPage(PageId pid) throws IOException {
+        flushLock.lock();
+        try {
+            // some code goes here
+            // not necessary for lab1
+            Page page = idToPages.get(pid);
+            if (page == null) {
+                return;
+            }
+            TransactionId dirtier = page.isDirty();
+            if (dirtier != null) {
+                LogFile log = Database.getLogFile();
+                log.logWrite(dirtier, page.getBeforeImage(), page);
+                log.force();
+                Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
+                page.markDirty(false, null);
+            }
+            // the cached page is at least as new as any committed image still to be written
+            long[] seq = imageSeqs.get(pid);
+            if (seq != null) {
+                seq[1] = imageCount;
+            }
+            recLsns.remove(pid);
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Return the dirty page table: every dirty page in the buffer pool and
+     * the LSN at which it was first dirtied (its recLSN).  Recovery never
+     * needs log records older than the smallest recLSN to redo these pages.
+     * <p>
+     * Takes no BufferPool lock, so it may be called while writers are running;
+     * the result is a snapshot.
+     */
+    public Map<PageId, Long> dirtyPageTable() {
+        Map<PageId, Long> table = new HashMap<>();
+        for (Map.Entry<PageId, Page> e : idToPages.entrySet()) {
+            if (e.getValue().isDirty() == null) {
+                continue;
+            }
+            // pages dirtied without going through insertTuple/deleteTuple
+            // (e.g. by a DbFile directly) get the current LSN
+            Long recLsn = recLsns.computeIfAbsent(e.getKey(), pid -> Database.getLogFile().currentLsn());
+            table.put(e.getKey(), recLsn);
+        }
+        return table;
     }
 
     /**
      * Write all pages of the specified transaction to disk.
      */
-    public synchronized void flushPages(TransactionId tid) throws IOException {
-        // some code goes here
-        // not necessary for lab1|lab2
+    public void flushPages(TransactionId tid) throws IOException {
+        flushLock.lock();
+        try {
+            // some code goes here
+            // not necessary for lab1|lab2
+            Set<PageId> pages = dirtied.get(tid);
+            if (pages != null) {
+                for (PageId pid : pages) {
+                    flushPage(pid);
+                }
+            }
+        } finally {
+            flushLock.unlock();
+        }
     }
 
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
      */
-    private synchronized void evictPage() throws DbException {
-        // some code goes here
-        // not necessary for lab1
-        int randomLoc = ThreadLocalRandom.current().nextInt(0, idToPages.size());
-        Iterator<Map.Entry<PageId, Page>> iterator = idToPages.entrySet().iterator();
-
-        for (int i = 0; i < randomLoc; i++) {
-            iterator.next();
-        }
-        PageId pid=iterator.next().getKey();
+    private void evictPage() throws DbException {
+        flushLock.lock();
         try {
-            flushPage(pid);
-            discardPage(pid);
-        } catch (IOException e) {
-            e.printStackTrace();
+            // some code goes here
+            // not necessary for lab1
+            // NO STEAL: only pages without uncommitted changes may leave
+            List<PageId> pids = new ArrayList<>(idToPages.keySet());
+            int start = ThreadLocalRandom.current().nextInt(0, Math.max(pids.size(), 1));
+            for (int i = 0; i < pids.size(); i++) {
+                PageId pid = pids.get((start + i) % pids.size());
+                if (pageWriters.containsKey(pid)) {
+                    continue;
+                }
+                try {
+                    flushPage(pid);
+                    discardPage(pid);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                return;
+            }
+            throw new DbException("all pages in the buffer pool hold uncommitted changes");
+        } finally {
+            flushLock.unlock();
         }
     }
 }
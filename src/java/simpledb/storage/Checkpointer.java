@@ -0,0 +1,89 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.common.Debug;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checkpointer takes fuzzy checkpoints of a LogFile in the background.
+ * <p>
+ * A checkpoint is taken once intervalMillis has passed since the last one,
+ * or once the log has grown by logBytes, whichever comes first.  There are
+ * no pages to write out in between: the BufferPool forces the pages of
+ * each transaction as it commits.  A checkpoint that fails is counted in
+ * {@link simpledb.common.Stats}, and tried again on the next tick.
+ * <p>
+ * Started and stopped through {@link LogFile#startCheckpointer} and
+ * {@link LogFile#stopCheckpointer}.
+ */
+public class Checkpointer {
+
+    /** How often the checkpointer wakes up to check its triggers */
+    public static final long TICK_MILLIS = 50;
+
+    private final LogFile log;
+    private final long intervalMillis;
+    private final long logBytes;
+    private final ScheduledExecutorService executor;
+
+    private long lastCheckpointMillis; //only touched by the executor thread
+    private long lastCheckpointLsn;
+
+    /**
+     * @param log the log to checkpoint
+     * @param intervalMillis the time between checkpoints, or 0 to disable the timer
+     * @param logBytes the log growth that triggers a checkpoint, or 0 to disable
+     */
+    Checkpointer(LogFile log, long intervalMillis, long logBytes) {
+        if (intervalMillis < 0 || logBytes < 0)
+            throw new IllegalArgumentException("checkpoint triggers must not be negative");
+        this.log = log;
+        this.intervalMillis = intervalMillis;
+        this.logBytes = logBytes;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "simpledb-checkpointer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    void start() {
+        lastCheckpointMillis = System.currentTimeMillis();
+        lastCheckpointLsn = log.currentLsn();
+        executor.scheduleWithFixedDelay(this::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void tick() {
+        try {
+            long now = System.currentTimeMillis();
+            long lsn = log.currentLsn();
+            boolean timerDue = intervalMillis > 0 && now - lastCheckpointMillis >= intervalMillis;
+            boolean sizeDue = logBytes > 0 && lsn - lastCheckpointLsn >= logBytes;
+            if (timerDue || sizeDue) {
+                Debug.log("background checkpoint at LSN " + lsn);
+                log.logCheckpoint();
+                lastCheckpointMillis = now;
+                lastCheckpointLsn = log.currentLsn();
+            }
+        } catch (IOException | RuntimeException e) {
+            // keep going; the next tick will try again.  Letting an exception
+            // escape would cancel the scheduled task for good
+            Database.getStats().checkpointFailed();
+            Debug.log("background checkpoint failed: %s", e);
+        }
+    }
+
+    /** Stop the checkpointer, waiting for a checkpoint in progress to finish. */
+    void shutdown() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -3,12 +3,12 @@ package simpledb.storage;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Debug;
-import simpledb.common.Permissions;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * HeapFile is an implementation of a DbFile that stores a collection of tuples
@@ -25,6 +25,9 @@ public class HeapFile implements DbFile {
     private final File file;
     private final TupleDesc tupleDesc;
 
+    // held while the file is extended
+    private final ReentrantLock extendLock = new ReentrantLock();
+
     /**
      * Constructs a heap file backed by the specified file.
      *
@@ -138,34 +141,49 @@ public class HeapFile implements DbFile {
         List<Page> dirtyList = new ArrayList<>();
         BufferPool bufferPool = Database.getBufferPool();
         int tableId = getId();
-        int pgNo = 0;
-        for (; pgNo < numPages(); pgNo++) {
-            HeapPage page = (HeapPage) bufferPool.getPage(tid, new HeapPageId(tableId, pgNo), Permissions.READ_WRITE);
-            if (page.getNumEmptySlots() > 0) {
-                page.insertTuple(t);
+        // other transactions may be changing rows of the same pages, so take
+        // the row lock on a slot as part of choosing it
+        for (int pgNo = 0; ; pgNo++) {
+            if (pgNo == numPages()) {
+                appendEmptyPage(pgNo);
+            }
+            HeapPageId pid = new HeapPageId(tableId, pgNo);
+            boolean locked = bufferPool.holdsLock(tid, pid);
+            HeapPage page = (HeapPage) bufferPool.getPageForRowUpdate(tid, pid);
+            if (page.insertTuple(t, rid -> bufferPool.tryLockRow(tid, rid))) {
                 dirtyList.add(page);
                 return dirtyList;
             }
+            if (!locked) {
+                // nothing was changed on this page; let readers back in
+                bufferPool.unsafeReleasePage(tid, pid);
+            }
         }
-
-        HeapPage page = new HeapPage(new HeapPageId(tableId, pgNo), HeapPage.createEmptyPageData());
-        // HeapPage page=(HeapPage)readPage(new HeapPageId(tableId, pgNo));
-        // writePage(page.pid,HeapPage.createEmptyPageData());
-        // bufferPool.getPage(tid, page.pid, Permissions.READ_WRITE);
-        page.insertTuple(t);
-        dirtyList.add(page);
-        writePage(page);
-        return dirtyList;
         // not necessary for lab1
     }
 
+    /**
+     * Extend the file with an empty page numbered pgNo, unless another
+     * transaction got there first.
+     */
+    private void appendEmptyPage(int pgNo) throws IOException {
+        extendLock.lock();
+        try {
+            if (pgNo == numPages()) {
+                writePage(new HeapPage(new HeapPageId(getId(), pgNo), HeapPage.createEmptyPageData()));
+            }
+        } finally {
+            extendLock.unlock();
+        }
+    }
+
     // see DbFile.java for javadocs
     public List<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
         // some code goes here
         List<Page> dirtyList = new ArrayList<>();
         BufferPool bufferPool = Database.getBufferPool();
-        HeapPage page = (HeapPage) bufferPool.getPage(tid, t.getRecordId().getPageId(), Permissions.READ_WRITE);
+        HeapPage page = (HeapPage) bufferPool.getPageForRowUpdate(tid, t.getRecordId().getPageId());
         page.deleteTuple(t);
         dirtyList.add(page);
         return dirtyList;
@@ -177,5 +195,16 @@ public class HeapFile implements DbFile {
         // some code goes here
         return new HeapFileIterator(this, tid);
     }
+
+    /**
+     * Returns an iterator over the tuples on pages firstPage up to, but not
+     * including, endPage, for scanning a file in parallel by page ranges.
+     *
+     * @param endPage the page to stop at; pages past the end of the file are
+     *                skipped
+     */
+    public DbFileIterator iterator(TransactionId tid, int firstPage, int endPage) {
+        return new HeapFileIterator(this, tid, firstPage, endPage);
+    }
 }
 
@@ -3,6 +3,7 @@ package simpledb.storage;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Permissions;
+import simpledb.execution.TupleBatch;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
@@ -13,44 +14,100 @@ public class HeapFileIterator implements DbFileIterator {
 
     private final HeapFile heapFile;
     private final TransactionId transactionId;
+    private final int firstPage;
+    private final int endPage;
     private int currentPage;
+    private HeapPage page;
     private Iterator<Tuple> iterator;
+    private int slot;
 
     HeapFileIterator(HeapFile hpf, TransactionId tid) {
+        this(hpf, tid, 0, -1);
+    }
+
+    /**
+     * Iterate over the pages of hpf from firstPage up to, but not including,
+     * endPage, or to the end of the file if endPage is -1.
+     */
+    HeapFileIterator(HeapFile hpf, TransactionId tid, int firstPage, int endPage) {
         heapFile = hpf;
         transactionId = tid;
+        this.firstPage = firstPage;
+        this.endPage = endPage;
     }
 
-    private Iterator<Tuple> getIterator(int pageNum) throws TransactionAbortedException, DbException {
+    private int endPage() {
+        int numPages = heapFile.numPages();
+        return endPage < 0 ? numPages : Math.min(endPage, numPages);
+    }
+
+    private HeapPage getPage(int pageNum) throws TransactionAbortedException, DbException {
         HeapPageId pageId = new HeapPageId(heapFile.getId(), pageNum);
-        HeapPage page = (HeapPage) Database.getBufferPool().getPage(transactionId, pageId, Permissions.READ_ONLY);
-        return page.iterator();
+        return (HeapPage) Database.getBufferPool().getPage(transactionId, pageId, Permissions.READ_ONLY);
+    }
+
+    /** @return false if there are no more pages to read */
+    private boolean nextPage() throws TransactionAbortedException, DbException {
+        currentPage++;
+        if (currentPage >= endPage()) return false;
+        page = getPage(currentPage);
+        iterator = null;
+        slot = 0;
+        return true;
+    }
+
+    /** @return the iterator over the tuples of the current page */
+    private Iterator<Tuple> tuples() {
+        if (iterator == null) iterator = page.iterator();
+        return iterator;
     }
 
     @Override
     public void open() throws DbException, TransactionAbortedException {
-        currentPage = 0;
-        iterator = getIterator(currentPage);
+        currentPage = firstPage;
+        iterator = null;
+        slot = 0;
+        if (endPage >= 0 && currentPage >= endPage()) {
+            // an empty range; the file's own first page is read regardless
+            page = null;
+            return;
+        }
+        page = getPage(currentPage);
     }
 
     @Override
     public boolean hasNext() throws DbException, TransactionAbortedException {
-        if (iterator == null) return false;
-        if (iterator.hasNext()) return true;
-        currentPage++;
-        if (currentPage >= heapFile.numPages()) return false;
-        iterator = getIterator(currentPage);
-        return hasNext();
+        if (page == null) return false;
+        while (!tuples().hasNext()) {
+            if (!nextPage()) return false;
+        }
+        return true;
     }
 
     @Override
     public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
-        if (iterator == null || !iterator.hasNext()) {
+        if (page == null || !tuples().hasNext()) {
             throw new NoSuchElementException();
         }
         return iterator.next();
     }
 
+    /**
+     * Add the tuples that follow to batch, a page at a time, until it is full
+     * or the pages run out.  A caller reads either with fillBatch or with
+     * hasNext and next, not both.
+     *
+     * @return false if there were no more tuples to add
+     */
+    public boolean fillBatch(TupleBatch batch) throws DbException, TransactionAbortedException {
+        if (page == null) return false;
+        while (!batch.isFull()) {
+            slot = page.fillBatch(batch, slot);
+            if (slot == page.numSlots && !nextPage()) break;
+        }
+        return batch.size() > 0;
+    }
+
     @Override
     public void rewind() throws DbException, TransactionAbortedException {
         close();
@@ -59,6 +116,7 @@ public class HeapFileIterator implements DbFileIterator {
 
     @Override
     public void close() {
+        page = null;
         iterator = null;
     }
 }
\ No newline at end of file
@@ -4,14 +4,20 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Debug;
 import simpledb.common.Catalog;
+import simpledb.execution.TupleBatch;
 import simpledb.transaction.TransactionId;
 
 import java.util.*;
+import java.util.function.Predicate;
 import java.io.*;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * Several transactions may change different rows of the same page under
+ * row locks, so the methods that change or serialize the page hold the
+ * page's monitor (its latch) for the duration of the physical change.
  *
  * @see HeapFile
  * @see BufferPool
@@ -116,6 +122,18 @@ public class HeapPage implements Page {
         }
     }
 
+    /**
+     * Make committed the before image of this page.  Used when other
+     * transactions still have uncommitted rows on the page, so its current
+     * contents are not all committed.
+     */
+    void setBeforeImage(HeapPage committed) {
+        byte[] data = committed.getPageData();
+        synchronized (oldDataLock) {
+            oldData = data;
+        }
+    }
+
     /**
      * @return the PageId associated with this page.
      */
@@ -169,7 +187,7 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      * @see #HeapPage
      */
-    public byte[] getPageData() {
+    public synchronized byte[] getPageData() {
         int len = BufferPool.getPageSize();
         ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
         DataOutputStream dos = new DataOutputStream(baos);
@@ -252,7 +270,7 @@ public class HeapPage implements Page {
      * @throws DbException if this tuple is not on this page, or tuple slot is
      *                     already empty.
      */
-    public void deleteTuple(Tuple t) throws DbException {
+    public synchronized void deleteTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
         if (pid.equals(t.getRecordId().getPageId())) {
@@ -273,19 +291,36 @@ public class HeapPage implements Page {
      * @throws DbException if the page is full (no empty slots) or tupledesc
      *                     is mismatch.
      */
-    public void insertTuple(Tuple t) throws DbException {
+    public synchronized void insertTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
         if (getNumEmptySlots() == 0) throw new DbException("the page is full");
+        if (!insertTuple(t, rid -> true)) throw new DbException("the page is full");
+    }
+
+    /**
+     * Adds the specified tuple to the first empty slot of the page that
+     * usable accepts.  The test and the insert happen atomically, so usable
+     * may take the row lock on the slot it accepts.
+     *
+     * @param t The tuple to add.
+     * @param usable decides whether the empty slot with the given record id may be used
+     * @return true if the tuple was added, false if no empty slot was usable
+     * @throws DbException if tupledesc is mismatch.
+     */
+    public synchronized boolean insertTuple(Tuple t, Predicate<RecordId> usable) throws DbException {
         if (!t.getTupleDesc().equals(td)) throw new DbException("tupledesc is mismatch");
         for (int i = 0; i < numSlots; i++) {
-            if (!isSlotUsed(i)){
+            if (!isSlotUsed(i)) {
+                RecordId rid = new RecordId(pid, i);
+                if (!usable.test(rid)) continue;
                 markSlotUsed(i, true);
-                t.setRecordId(new RecordId(pid, i));
+                t.setRecordId(rid);
                 tuples[i] = t;
-                return;
+                return true;
             }
         }
+        return false;
     }
 
     /**
@@ -312,7 +347,7 @@ public class HeapPage implements Page {
     /**
      * Returns the number of empty slots on this page.
      */
-    public int getNumEmptySlots() {
+    public synchronized int getNumEmptySlots() {
         // some code goes here
         int emptyNum = 0;
         for (int i = 0; i < numSlots; i++) {
@@ -346,6 +381,36 @@ public class HeapPage implements Page {
 
     }
 
+    /**
+     * Copy the tuples in the used slots of this page, from slot on, into
+     * batch until it is full.  The values are copied a column at a time from
+     * the rows the page decoded when it was read, straight into the batch's
+     * arrays, without a Tuple, Field or iterator for each row.
+     *
+     * @return the slot to go on from, numSlots once every slot has been read
+     */
+    public synchronized int fillBatch(TupleBatch batch, int slot) {
+        int[] used = new int[Math.min(numSlots - slot, batch.room())];
+        int n = 0;
+        for (; slot < numSlots && n < used.length; slot++) {
+            if (isSlotUsed(slot))
+                used[n++] = slot;
+        }
+        int row = batch.addRows(n);
+        for (int c = 0; c < td.numFields(); c++) {
+            int[] ints = batch.getInts(c);
+            if (ints != null) {
+                for (int k = 0; k < n; k++)
+                    ints[row + k] = ((IntField) tuples[used[k]].getField(c)).getValue();
+            } else {
+                String[] strings = batch.getStrings(c);
+                for (int k = 0; k < n; k++)
+                    strings[row + k] = ((StringField) tuples[used[k]].getField(c)).getValue();
+            }
+        }
+        return slot;
+    }
+
     /**
      * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
      * (note that this iterator shouldn't return tuples in empty slots!)
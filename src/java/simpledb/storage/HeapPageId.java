@@ -67,6 +67,10 @@ public class HeapPageId implements PageId {
         return false;
     }
 
+    public String toString() {
+        return "(tableId: " + tableId + ", pgNo: " + pgNo + ")";
+    }
+
     /**
      * Return a representation of this object as an array of
      * integers, for writing to disk.  Size of returned array must contain
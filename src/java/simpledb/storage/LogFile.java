@@ -7,7 +7,8 @@ import simpledb.common.Debug;
 
 import java.io.*;
 import java.util.*;
-import java.lang.reflect.*;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /*
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -18,24 +19,35 @@ two-phase locking discipline are followed.  <p>
 <u> Locking note: </u>
 <p>
 
-Many of the methods here are synchronized (to prevent concurrent log
-writes from happening); many of the methods in BufferPool are also
-synchronized (for similar reasons.)  Problem is that BufferPool writes
+Most of the methods here hold the log's lock (to prevent concurrent log
+writes from happening); many of the methods in BufferPool hold its flush
+lock (for similar reasons.)  Problem is that BufferPool writes
 log records (on page flushed) and the log file flushes BufferPool
 pages (on checkpoints and recovery.)  This can lead to deadlock.  For
 that reason, any LogFile operation that needs to access the BufferPool
-must not be declared synchronized and must begin with a block like:
+must take the BufferPool's flush lock before the log's, with a block like:
 
 <p>
 <pre>
-    synchronized (Database.getBufferPool()) {
-       synchronized (this) {
+    Lock flushLock = Database.getBufferPool().getFlushLock();
+    flushLock.lock();
+    try {
+        lock.lock();
+        try {
 
-       ..
+        ..
 
-       }
+        } finally {
+            lock.unlock();
+        }
+    } finally {
+        flushLock.unlock();
     }
 </pre>
+
+Both are java.util.concurrent locks rather than monitors, since a
+virtual thread that blocks on a monitor, or does I/O while holding one,
+pins its carrier thread.
 */
 
 /**
@@ -43,17 +55,22 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
+<li> The log is stored as a sequence of fixed-size segment files (see
+LogSegments), addressed by a global log sequence number (LSN).  A record
+offset is its LSN, and it stays valid until the segment holding it is
+truncated away.
+
+<li> The log's base file holds a single long integer: the LSN of the
 last written checkpoint, or -1 if there are no checkpoints
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> All data in the segments consists of log records.  Log
+records are variable length, and may span segment boundaries.
 
 <li> Each log record begins with an integer type and a long integer
 transaction id.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with a long integer LSN representing
+the position in the log where the record began.
 
 <li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
 CHECKPOINT
@@ -61,22 +78,28 @@ CHECKPOINT
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
 <li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
+after image.  These images are serialized Page objects: a one-byte
+page kind tag from PageRegistry, the page id and the page data.  They can
+be accessed with the LogFile.readPageData() and LogFile.writePageData()
 methods.  See LogFile.print() for an example.
 
-<li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+<li> CHECKPOINT records are fuzzy: they are written without flushing the
+buffer pool or stopping writers.  They consist of the active transactions
+at the time the checkpoint was taken and their first log record on disk,
+followed by the dirty page table.  The format of the record is an integer
+count of the number of transactions, as well as a long integer transaction
+id and a long integer first record offset for each active transaction;
+then an integer count of dirty pages, and for each a serialized page id
+(see LogFile.writePageId()) and the long integer LSN at which the page was
+first dirtied (its recLSN).  Truncation keeps everything from the oldest
+of these LSNs onward.
 
 </ul>
 */
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    private final LogSegments raf;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -89,12 +112,17 @@ public class LogFile {
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
-    long currentOffset = -1;//protected by this
+    private final ReentrantLock lock = new ReentrantLock();
+
+    long currentOffset = -1;//protected by lock
+    private long forcedLsn = 0; // everything before it is on disk; protected by lock
 //    int pageSize;
-    int totalRecords = 0; // for PatchTest //protected by this
+    int totalRecords = 0; // for PatchTest //protected by lock
 
     final Map<Long,Long> tidToFirstLogRecord = new HashMap<>();
 
+    private Checkpointer checkpointer; //protected by lock
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -107,8 +135,19 @@ public class LogFile {
         @param f The log file's name
     */
     public LogFile(File f) throws IOException {
+        this(f, LogSegments.DEFAULT_SEGMENT_SIZE);
+    }
+
+    /** Constructor.
+        Like {@link #LogFile(File)}, but stores the log in segment files of
+        the given size next to f.
+
+        @param f The log file's name
+        @param segmentSize The size, in bytes, of each log segment
+    */
+    public LogFile(File f, int segmentSize) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        raf = new LogSegments(f, segmentSize);
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -129,16 +168,20 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
+            raf.reset();
+            raf.writeCheckpointLsn(NO_CHECKPOINT_ID);
             currentOffset = raf.getFilePointer();
+            forcedLsn = 0;
         }
     }
 
-    public synchronized int getTotalRecords() {
-        return totalRecords;
+    public int getTotalRecords() {
+        lock.lock();
+        try {
+            return totalRecords;
+        } finally {
+            lock.unlock();
+        }
     }
     
     /** Write an abort record to the log for the specified tid, force
@@ -149,9 +192,12 @@ public class LogFile {
         // must have buffer pool lock before proceeding, since this
         // calls rollback
 
-        synchronized (Database.getBufferPool()) {
+        Lock flushLock = Database.getBufferPool().getFlushLock();
+        flushLock.lock();
+        try {
 
-            synchronized(this) {
+            lock.lock();
+            try {
                 preAppend();
                 //Debug.log("ABORT");
                 //should we verify that this is a live transaction?
@@ -166,7 +212,11 @@ public class LogFile {
                 currentOffset = raf.getFilePointer();
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
+            } finally {
+                lock.unlock();
             }
+        } finally {
+            flushLock.unlock();
         }
     }
 
@@ -175,17 +225,24 @@ public class LogFile {
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        long lsn;
+        lock.lock();
+        try {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+            raf.writeInt(COMMIT_RECORD);
+            raf.writeLong(tid.getId());
+            raf.writeLong(currentOffset);
+            currentOffset = raf.getFilePointer();
+            tidToFirstLogRecord.remove(tid.getId());
+            lsn = currentOffset;
+        } finally {
+            lock.unlock();
+        }
+        forceUpTo(lsn);
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -196,166 +253,235 @@ public class LogFile {
 
         @see Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public void logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
-        preAppend();
-        /* update record conists of
-
-           record type
-           transaction id
-           before page data (see writePageData)
-           after page data
-           start offset
-        */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        lock.lock();
+        try {
+            Debug.log("WRITE, offset = " + raf.getFilePointer());
+            preAppend();
+            /* update record conists of
+
+               record type
+               transaction id
+               before page data (see writePageData)
+               after page data
+               start offset
+            */
+            raf.writeInt(UPDATE_RECORD);
+            raf.writeLong(tid.getId());
+
+            writePageData(raf,before);
+            writePageData(raf,after);
+            raf.writeLong(currentOffset);
+            currentOffset = raf.getFilePointer();
 
-        Debug.log("WRITE OFFSET = " + currentOffset);
+            Debug.log("WRITE OFFSET = " + currentOffset);
+        } finally {
+            lock.unlock();
+        }
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int[] pageInfo = pid.serialize();
-
+    void writePageData(LogSegments raf, Page p) throws IOException{
         //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
+        // page tag (see PageRegistry)
+        // page id (see writePageId)
         // page class bytes
         // page class data
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
-
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+        raf.writeByte(PageRegistry.pageTag(p));
+        writePageId(raf, p.getId());
 
-        raf.writeInt(pageInfo.length);
-        for (int j : pageInfo) {
-            raf.writeInt(j);
-        }
         byte[] pageData = p.getPageData();
         raf.writeInt(pageData.length);
         raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
+        //        Debug.log ("WROTE PAGE DATA, CLASS = " + p.getClass().getName() + ", table = " +  p.getId().getTableId() + ", page = " + p.getId().pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+    Page readPageData(LogSegments raf) throws IOException {
+        byte pageTag = raf.readByte();
+        PageId pid = readPageId(raf);
 
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object[] idArgs = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = raf.readInt();
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+        int pageSize = raf.readInt();
+        byte[] pageData = new byte[pageSize];
+        raf.readFully(pageData); //read before image
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+        //            Debug.log("READ PAGE OF TAG " + pageTag + ", table = " + pid.getTableId() + ", page = " + pid.pageno());
+        return PageRegistry.newPage(pageTag, pid, pageData);
+    }
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+    void writePageId(LogSegments raf, PageId pid) throws IOException {
+        //page id is:
+        // id tag (see PageRegistry)
+        // id class data; its length is fixed by the tag
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e){
-            e.printStackTrace();
-            throw new IOException();
+        raf.writeByte(PageRegistry.pageIdTag(pid));
+        for (int j : pid.serialize()) {
+            raf.writeInt(j);
         }
-        return newPage;
+    }
 
+    PageId readPageId(LogSegments raf) throws IOException {
+        byte idTag = raf.readByte();
+        int[] idArgs = new int[PageRegistry.pageIdLength(idTag)];
+        for (int i = 0; i < idArgs.length; i++) {
+            idArgs[i] = raf.readInt();
+        }
+        return PageRegistry.newPageId(idTag, idArgs);
     }
 
     /** Write a BEGIN record for the specified transaction
         @param tid The transaction that is beginning
 
     */
-    public synchronized  void logXactionBegin(TransactionId tid)
+    public void logXactionBegin(TransactionId tid)
         throws IOException {
-        Debug.log("BEGIN");
-        if(tidToFirstLogRecord.get(tid.getId()) != null){
-            System.err.print("logXactionBegin: already began this tid\n");
-            throw new IOException("double logXactionBegin()");
-        }
-        preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        lock.lock();
+        try {
+            Debug.log("BEGIN");
+            if(tidToFirstLogRecord.get(tid.getId()) != null){
+                System.err.print("logXactionBegin: already began this tid\n");
+                throw new IOException("double logXactionBegin()");
+            }
+            preAppend();
+            raf.writeInt(BEGIN_RECORD);
+            raf.writeLong(tid.getId());
+            raf.writeLong(currentOffset);
+            tidToFirstLogRecord.put(tid.getId(), currentOffset);
+            currentOffset = raf.getFilePointer();
 
-        Debug.log("BEGIN OFFSET = " + currentOffset);
+            Debug.log("BEGIN OFFSET = " + currentOffset);
+        } finally {
+            lock.unlock();
+        }
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a fuzzy checkpoint record.
+
+        Unlike a sharp checkpoint, this neither flushes the buffer pool nor
+        holds its lock, so writers keep running while it is taken.  The
+        BufferPool forces the pages a transaction changed when it commits,
+        so the record's dirty page table only holds pages of transactions
+        that are still running.  The checkpoint pointer is only updated once
+        the whole record is on disk.
+    */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        // snapshot the dirty page table first: any page dirtied after this
+        // point has a recLSN past the start of the checkpoint record
+        Map<PageId, Long> dirtyPages = Database.getBufferPool().dirtyPageTable();
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+        lock.lock();
+        try {
+            //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
+            preAppend();
+            long startCpOffset, endCpOffset;
+            startCpOffset = raf.getFilePointer();
+            raf.writeInt(CHECKPOINT_RECORD);
+            raf.writeLong(-1); //no tid , but leave space for convenience
+
+            //write list of outstanding transactions
+            raf.writeInt(tidToFirstLogRecord.size());
+            for (Map.Entry<Long, Long> e : tidToFirstLogRecord.entrySet()) {
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+                raf.writeLong(e.getKey());
+                raf.writeLong(e.getValue());
             }
+
+            //write the dirty page table
+            raf.writeInt(dirtyPages.size());
+            for (Map.Entry<PageId, Long> e : dirtyPages.entrySet()) {
+                writePageId(raf, e.getKey());
+                raf.writeLong(e.getValue());
+            }
+
+            endCpOffset = raf.getFilePointer();
+            raf.writeLong(currentOffset);
+            currentOffset = raf.getFilePointer();
+            force();
+
+            //once the CP is on disk, make sure the CP location in
+            // the log's base file is updated
+            raf.writeCheckpointLsn(startCpOffset);
+            raf.seek(endCpOffset + LONG_SIZE);
+            force();
+            //Debug.log("CP OFFSET = " + currentOffset);
+        } finally {
+            lock.unlock();
         }
 
         logTruncate();
     }
 
+    /** @return the LSN at which the next log record will be written */
+    public long currentLsn() {
+        lock.lock();
+        try {
+            return recoveryUndecided ? 0 : currentOffset;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** @return true if tid has logged a BEGIN record but has not yet committed or aborted */
+    public boolean isActive(TransactionId tid) {
+        lock.lock();
+        try {
+            return tidToFirstLogRecord.containsKey(tid.getId());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Start taking fuzzy checkpoints in the background.  A checkpoint is
+        taken every intervalMillis milliseconds, or sooner once the log has
+        grown by logBytes since the last one.
+
+        @param intervalMillis the time between checkpoints, or 0 for none
+        @param logBytes the log growth that triggers a checkpoint, or 0 for none
+        @see Checkpointer
+    */
+    public void startCheckpointer(long intervalMillis, long logBytes) {
+        lock.lock();
+        try {
+            if (checkpointer != null)
+                throw new IllegalStateException("checkpointer already running");
+            checkpointer = new Checkpointer(this, intervalMillis, logBytes);
+            checkpointer.start();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Stop the background checkpointer, if one is running. */
+    public void stopCheckpointer() {
+        Checkpointer c;
+        lock.lock();
+        try {
+            c = checkpointer;
+            checkpointer = null;
+        } finally {
+            lock.unlock();
+        }
+        if (c != null)
+            c.shutdown();
+    }
+
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
-    public synchronized void logTruncate() throws IOException {
+        consumption.  Since record offsets are global LSNs, this only
+        deletes whole segments that end before the oldest record still
+        needed; no live record is copied or renumbered. */
+    public void logTruncate() throws IOException {
+        lock.lock();
+        try {
+            truncate();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void truncate() throws IOException {
         preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
+        long cpLoc = raf.readCheckpointLsn();
 
         long minLogRecord = cpLoc;
 
@@ -379,69 +505,26 @@ public class LogFile {
                     minLogRecord = firstLogRecord;
                 }
             }
-        }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
+            // pages that were still dirty need their updates from recLSN on
+            int numDirty = raf.readInt();
 
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
+            for (int i = 0; i < numDirty; i++) {
+                readPageId(raf);
+                long recLsn = raf.readLong();
+                if (recLsn < minLogRecord) {
+                    minLogRecord = recLsn;
                 }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
             }
         }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
+        // we can truncate everything before minLogRecord
+        if (minLogRecord != -1L) {
+            int deleted = raf.truncateBefore(minLogRecord);
+            Debug.log("TRUNCATING LOG; DROPPED " + deleted + " SEGMENTS; LOG NOW STARTS AT " + raf.firstLsn());
+        }
 
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
         raf.seek(raf.length());
-        newFile.delete();
-
         currentOffset = raf.getFilePointer();
         //print();
     }
@@ -456,11 +539,18 @@ public class LogFile {
     */
     public void rollback(TransactionId tid)
         throws NoSuchElementException, IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized(this) {
+        Lock flushLock = Database.getBufferPool().getFlushLock();
+        flushLock.lock();
+        try {
+            lock.lock();
+            try {
                 preAppend();
                 // some code goes here
+            } finally {
+                lock.unlock();
             }
+        } finally {
+            flushLock.unlock();
         }
     }
 
@@ -468,10 +558,17 @@ public class LogFile {
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
+        stopCheckpointer();
         try {
+            Database.getBufferPool().flushAllPages();
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            lock.lock();
+            try {
+                raf.close();
+            } finally {
+                lock.unlock();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -483,21 +580,28 @@ public class LogFile {
         updates of uncommitted transactions are not installed.
     */
     public void recover() throws IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
+        Lock flushLock = Database.getBufferPool().getFlushLock();
+        flushLock.lock();
+        try {
+            lock.lock();
+            try {
                 recoveryUndecided = false;
                 // some code goes here
+            } finally {
+                lock.unlock();
             }
-         }
+        } finally {
+            flushLock.unlock();
+        }
     }
 
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
         long curOffset = raf.getFilePointer();
 
-        raf.seek(0);
+        System.out.println("checkpoint record at offset " + raf.readCheckpointLsn());
 
-        System.out.println("0: checkpoint record at offset " + raf.readLong());
+        raf.seek(raf.firstLsn());
 
         while (true) {
             try {
@@ -532,6 +636,15 @@ public class LogFile {
                         System.out.println((raf.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
                         System.out.println((raf.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
                     }
+                    int numDirty = raf.readInt();
+                    System.out.println((raf.getFilePointer() - INT_SIZE) + ": NUMBER OF DIRTY PAGES: " + numDirty);
+
+                    while (numDirty-- > 0) {
+                        PageId pid = readPageId(raf);
+                        long recLsn = raf.readLong();
+                        System.out.println((raf.getFilePointer() - LONG_SIZE) + ": DIRTY PAGE " + pid.getTableId()
+                                + ":" + pid.getPageNumber() + " RECLSN: " + recLsn);
+                    }
                     System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
 
                     break;
@@ -567,8 +680,34 @@ public class LogFile {
         raf.seek(curOffset);
     }
 
-    public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    public void force() throws IOException {
+        lock.lock();
+        try {
+            long start = System.nanoTime();
+            raf.force();
+            forcedLsn = currentOffset;
+            Database.getStats().logForced(System.nanoTime() - start);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Force the log to disk up to lsn, unless that has been done already.
+        Commits that wait for the log lock while another commit forces it
+        find their records forced along with the other's, so the log is
+        forced once for the whole group.
+
+        @param lsn the LSN just past the last record that must be on disk
+    */
+    public void forceUpTo(long lsn) throws IOException {
+        lock.lock();
+        try {
+            if (forcedLsn < lsn) {
+                force();
+            }
+        } finally {
+            lock.unlock();
+        }
     }
 
 }
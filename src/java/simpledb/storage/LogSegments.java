@@ -0,0 +1,267 @@
+package simpledb.storage;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * LogSegments stores the log as a sequence of fixed-size segment files
+ * addressed by a global log sequence number (LSN).  The LSN of a byte is
+ * simply its offset in the (conceptually infinite) log, so record offsets
+ * stay valid for as long as the segment that holds them exists.
+ * <p>
+ * Segment <tt>i</tt> holds LSNs <tt>[i * segmentSize, (i + 1) * segmentSize)</tt>
+ * and is stored in a file named <tt>&lt;base&gt;.&lt;i&gt;</tt> next to the
+ * base file.  The base file itself only holds the LSN of the last checkpoint
+ * record, so truncating the log is just a matter of deleting whole segments
+ * that end before the oldest LSN still needed.
+ * <p>
+ * Records may span segment boundaries; reads and writes cross segments
+ * transparently.  Not thread safe -- LogFile serializes access.
+ */
+class LogSegments {
+
+    static final int DEFAULT_SEGMENT_SIZE = 1 << 20;
+
+    private final File base;
+    private final String prefix;
+    private final long segmentSize;
+    private final RandomAccessFile master;
+    private final TreeMap<Long, RandomAccessFile> open = new TreeMap<>();
+    private final Set<Long> unforced = new HashSet<>();
+
+    private long firstSegment = 0;
+    private long end = 0; // one past the last byte written
+    private long position = 0;
+
+    private final byte[] scratch = new byte[8];
+
+    /**
+     * Open (or create) the segmented log whose checkpoint pointer lives in base.
+     * Existing segment files are discovered so that recovery can read them.
+     *
+     * @param base the log's base file
+     * @param segmentSize the size, in bytes, of each segment file
+     */
+    LogSegments(File base, long segmentSize) throws IOException {
+        if (segmentSize <= 0)
+            throw new IllegalArgumentException("segment size must be positive");
+        this.base = base.getAbsoluteFile();
+        this.prefix = this.base.getName() + ".";
+        this.segmentSize = segmentSize;
+        this.master = new RandomAccessFile(this.base, "rw");
+
+        long[] existing = listSegments();
+        if (existing.length > 0) {
+            firstSegment = existing[0];
+            long last = existing[existing.length - 1];
+            end = last * segmentSize + segmentFile(last).length();
+        }
+        position = end;
+    }
+
+    private File segmentFile(long index) {
+        return new File(base.getParentFile(), String.format("%s%08d", prefix, index));
+    }
+
+    private long[] listSegments() {
+        File[] files = base.getParentFile().listFiles();
+        List<Long> indexes = new ArrayList<>();
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName();
+                if (!name.startsWith(prefix))
+                    continue;
+                try {
+                    indexes.add(Long.parseLong(name.substring(prefix.length())));
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        }
+        long[] result = new long[indexes.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = indexes.get(i);
+        Arrays.sort(result);
+        return result;
+    }
+
+    private RandomAccessFile segment(long index) throws IOException {
+        RandomAccessFile f = open.get(index);
+        if (f == null) {
+            f = new RandomAccessFile(segmentFile(index), "rw");
+            open.put(index, f);
+        }
+        return f;
+    }
+
+    /** Throw away every segment and the checkpoint pointer, leaving an empty log. */
+    void reset() throws IOException {
+        for (RandomAccessFile f : open.values())
+            f.close();
+        open.clear();
+        unforced.clear();
+        for (long index : listSegments())
+            segmentFile(index).delete();
+        master.setLength(0);
+        firstSegment = 0;
+        end = 0;
+        position = 0;
+    }
+
+    /** @return the LSN of the last checkpoint record, or -1 if there is none */
+    long readCheckpointLsn() throws IOException {
+        if (master.length() < LogFile.LONG_SIZE)
+            return LogFile.NO_CHECKPOINT_ID;
+        master.seek(0);
+        return master.readLong();
+    }
+
+    /** Record lsn as the location of the last checkpoint record. */
+    void writeCheckpointLsn(long lsn) throws IOException {
+        master.seek(0);
+        master.writeLong(lsn);
+    }
+
+    /** @return the oldest LSN still stored in the log */
+    long firstLsn() {
+        return Math.min(firstSegment * segmentSize, end);
+    }
+
+    /** @return the LSN one past the last byte written */
+    long length() {
+        return end;
+    }
+
+    long getFilePointer() {
+        return position;
+    }
+
+    void seek(long lsn) throws IOException {
+        if (lsn < firstLsn())
+            throw new IOException("LSN " + lsn + " has been truncated (log starts at " + firstLsn() + ")");
+        position = lsn;
+    }
+
+    /**
+     * Delete every segment that ends at or before lsn.  The segment holding
+     * the end of the log is always kept, so appends can continue.
+     *
+     * @return the number of segments deleted
+     */
+    int truncateBefore(long lsn) throws IOException {
+        long limit = Math.min(lsn, end) / segmentSize;
+        int deleted = 0;
+        while (firstSegment < limit) {
+            RandomAccessFile f = open.remove(firstSegment);
+            if (f != null)
+                f.close();
+            unforced.remove(firstSegment);
+            segmentFile(firstSegment).delete();
+            firstSegment++;
+            deleted++;
+        }
+        if (position < firstLsn())
+            position = firstLsn();
+        return deleted;
+    }
+
+    void readFully(byte[] b) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    void readFully(byte[] b, int off, int len) throws IOException {
+        if (position + len > end)
+            throw new EOFException();
+        while (len > 0) {
+            long index = position / segmentSize;
+            int inSegment = (int) (position % segmentSize);
+            int n = (int) Math.min(len, segmentSize - inSegment);
+            RandomAccessFile f = segment(index);
+            f.seek(inSegment);
+            f.readFully(b, off, n);
+            position += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            long index = position / segmentSize;
+            int inSegment = (int) (position % segmentSize);
+            int n = (int) Math.min(len, segmentSize - inSegment);
+            RandomAccessFile f = segment(index);
+            f.seek(inSegment);
+            f.write(b, off, n);
+            unforced.add(index);
+            position += n;
+            off += n;
+            len -= n;
+        }
+        if (position > end)
+            end = position;
+    }
+
+    byte readByte() throws IOException {
+        readFully(scratch, 0, 1);
+        return scratch[0];
+    }
+
+    int readInt() throws IOException {
+        readFully(scratch, 0, LogFile.INT_SIZE);
+        return ((scratch[0] & 0xff) << 24) | ((scratch[1] & 0xff) << 16)
+                | ((scratch[2] & 0xff) << 8) | (scratch[3] & 0xff);
+    }
+
+    long readLong() throws IOException {
+        readFully(scratch, 0, LogFile.LONG_SIZE);
+        long v = 0;
+        for (int i = 0; i < LogFile.LONG_SIZE; i++)
+            v = (v << 8) | (scratch[i] & 0xff);
+        return v;
+    }
+
+    void writeByte(byte v) throws IOException {
+        scratch[0] = v;
+        write(scratch, 0, 1);
+    }
+
+    void writeInt(int v) throws IOException {
+        scratch[0] = (byte) (v >>> 24);
+        scratch[1] = (byte) (v >>> 16);
+        scratch[2] = (byte) (v >>> 8);
+        scratch[3] = (byte) v;
+        write(scratch, 0, LogFile.INT_SIZE);
+    }
+
+    void writeLong(long v) throws IOException {
+        for (int i = LogFile.LONG_SIZE - 1; i >= 0; i--) {
+            scratch[i] = (byte) v;
+            v >>>= 8;
+        }
+        write(scratch, 0, LogFile.LONG_SIZE);
+    }
+
+    /** Force every segment written since the last force (and the checkpoint pointer) to disk. */
+    void force() throws IOException {
+        for (long index : unforced) {
+            RandomAccessFile f = open.get(index);
+            if (f != null)
+                f.getChannel().force(true);
+        }
+        unforced.clear();
+        master.getChannel().force(true);
+    }
+
+    void close() throws IOException {
+        for (RandomAccessFile f : open.values())
+            f.close();
+        open.clear();
+        unforced.clear();
+        master.close();
+    }
+}
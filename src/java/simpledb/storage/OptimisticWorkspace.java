@@ -0,0 +1,63 @@
+package simpledb.storage;
+
+import java.util.*;
+
+/**
+ * OptimisticWorkspace holds the private state of a transaction running
+ * under optimistic concurrency control (see BufferPool.beginOptimistic).
+ * <p>
+ * The transaction works on its own copies of committed pages.  The first
+ * time it reads a page, the copy is taken together with the stamp of the
+ * commit that produced it; its writes go to the same copies, so it sees
+ * them and nobody else does.  At commit, the stamps of every page it read
+ * are validated against the commits made since, and the pages it changed
+ * replace the shared ones.
+ * <p>
+ * All methods are synchronized, since the operators of one transaction
+ * may run in several threads.
+ */
+class OptimisticWorkspace {
+
+    private final Map<PageId, Page> pages = new HashMap<>();
+    private final Map<PageId, Long> stamps = new HashMap<>();
+    private boolean validated = false;
+
+    /**
+     * @param pid the page to read
+     * @param versions the committed versions to copy pid from
+     * @param current the buffer pool's copy of the page
+     * @return this transaction's copy of pid
+     */
+    synchronized Page page(PageId pid, VersionStore versions, Page current) {
+        Page page = pages.get(pid);
+        if (page == null) {
+            page = versions.latest(pid, current, stamps);
+            pages.put(pid, page);
+        }
+        return page;
+    }
+
+    /** @return every page read, with the stamp of the version read */
+    synchronized Map<PageId, Long> readSet() {
+        return new HashMap<>(stamps);
+    }
+
+    /** @return the copies this transaction has changed */
+    synchronized List<Page> writeSet() {
+        List<Page> written = new ArrayList<>();
+        for (Page page : pages.values()) {
+            if (page.isDirty() != null) {
+                written.add(page);
+            }
+        }
+        return written;
+    }
+
+    synchronized boolean isValidated() {
+        return validated;
+    }
+
+    synchronized void setValidated() {
+        validated = true;
+    }
+}
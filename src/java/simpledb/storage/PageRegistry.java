@@ -0,0 +1,147 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeHeaderPage;
+import simpledb.index.BTreeInternalPage;
+import simpledb.index.BTreeLeafPage;
+import simpledb.index.BTreePageId;
+import simpledb.index.BTreeRootPtrPage;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * PageRegistry maps every kind of page and page id that can appear in the
+ * log to a one-byte tag and a factory that rebuilds it from its serialized
+ * form.  LogFile writes the tag in place of the class name, and reading a
+ * page back is a table lookup and a direct constructor call rather than a
+ * reflective one.
+ * <p>
+ * Tags are part of the on-disk log format, so they must never be reused
+ * or renumbered.
+ */
+public class PageRegistry {
+
+    /** Builds a page from its id and the bytes returned by Page.getPageData() */
+    public interface PageFactory {
+        Page create(PageId pid, byte[] data) throws IOException;
+    }
+
+    /** Builds a page id from the ints returned by PageId.serialize() */
+    public interface PageIdFactory {
+        PageId create(int[] data);
+    }
+
+    public static final byte HEAP_PAGE = 1;
+    public static final byte BTREE_LEAF_PAGE = 2;
+    public static final byte BTREE_INTERNAL_PAGE = 3;
+    public static final byte BTREE_HEADER_PAGE = 4;
+    public static final byte BTREE_ROOT_PTR_PAGE = 5;
+
+    public static final byte HEAP_PAGE_ID = 1;
+    public static final byte BTREE_PAGE_ID = 2;
+
+    private static final PageFactory[] pageFactories = new PageFactory[Byte.MAX_VALUE + 1];
+    private static final PageIdFactory[] idFactories = new PageIdFactory[Byte.MAX_VALUE + 1];
+    private static final int[] idLengths = new int[Byte.MAX_VALUE + 1];
+    private static final Map<Class<?>, Byte> pageTags = new HashMap<>();
+    private static final Map<Class<?>, Byte> idTags = new HashMap<>();
+
+    static {
+        registerPage(HEAP_PAGE, HeapPage.class,
+                (pid, data) -> new HeapPage((HeapPageId) pid, data));
+        registerPage(BTREE_LEAF_PAGE, BTreeLeafPage.class,
+                (pid, data) -> new BTreeLeafPage((BTreePageId) pid, data, keyField(pid)));
+        registerPage(BTREE_INTERNAL_PAGE, BTreeInternalPage.class,
+                (pid, data) -> new BTreeInternalPage((BTreePageId) pid, data, keyField(pid)));
+        registerPage(BTREE_HEADER_PAGE, BTreeHeaderPage.class,
+                (pid, data) -> new BTreeHeaderPage((BTreePageId) pid, data));
+        registerPage(BTREE_ROOT_PTR_PAGE, BTreeRootPtrPage.class,
+                (pid, data) -> new BTreeRootPtrPage((BTreePageId) pid, data));
+
+        registerPageId(HEAP_PAGE_ID, HeapPageId.class, 2,
+                data -> new HeapPageId(data[0], data[1]));
+        registerPageId(BTREE_PAGE_ID, BTreePageId.class, 3,
+                data -> new BTreePageId(data[0], data[1], data[2]));
+    }
+
+    /** B+ tree pages need the key field of the file they belong to */
+    private static int keyField(PageId pid) {
+        return ((BTreeFile) Database.getCatalog().getDatabaseFile(pid.getTableId())).keyField();
+    }
+
+    /**
+     * Register a new kind of page.
+     *
+     * @param tag the tag written to the log for pages of this class
+     * @param pageClass the concrete page class
+     * @param factory builds a page of this class from its id and data
+     */
+    public static synchronized void registerPage(byte tag, Class<? extends Page> pageClass, PageFactory factory) {
+        if (tag <= 0 || pageFactories[tag] != null)
+            throw new IllegalArgumentException("page tag " + tag + " is invalid or already registered");
+        pageFactories[tag] = factory;
+        pageTags.put(pageClass, tag);
+    }
+
+    /**
+     * Register a new kind of page id.
+     *
+     * @param tag the tag written to the log for page ids of this class
+     * @param idClass the concrete page id class
+     * @param length the number of ints returned by serialize()
+     * @param factory builds a page id of this class from its serialized form
+     */
+    public static synchronized void registerPageId(byte tag, Class<? extends PageId> idClass, int length,
+                                                   PageIdFactory factory) {
+        if (tag <= 0 || idFactories[tag] != null)
+            throw new IllegalArgumentException("page id tag " + tag + " is invalid or already registered");
+        idFactories[tag] = factory;
+        idLengths[tag] = length;
+        idTags.put(idClass, tag);
+    }
+
+    /** @return the tag of p's class */
+    public static synchronized byte pageTag(Page p) throws IOException {
+        Byte tag = pageTags.get(p.getClass());
+        if (tag == null)
+            throw new IOException("unregistered page class " + p.getClass().getName());
+        return tag;
+    }
+
+    /** @return the tag of pid's class */
+    public static synchronized byte pageIdTag(PageId pid) throws IOException {
+        Byte tag = idTags.get(pid.getClass());
+        if (tag == null)
+            throw new IOException("unregistered page id class " + pid.getClass().getName());
+        return tag;
+    }
+
+    /** @return the number of ints in the serialized form of page ids with this tag */
+    public static int pageIdLength(byte tag) throws IOException {
+        idFactory(tag);
+        return idLengths[tag];
+    }
+
+    /** Rebuild a page from its tag, id and data. */
+    public static Page newPage(byte tag, PageId pid, byte[] data) throws IOException {
+        PageFactory factory = tag > 0 ? pageFactories[tag] : null;
+        if (factory == null)
+            throw new IOException("unknown page tag " + tag);
+        return factory.create(pid, data);
+    }
+
+    /** Rebuild a page id from its tag and serialized form. */
+    public static PageId newPageId(byte tag, int[] data) throws IOException {
+        return idFactory(tag).create(data);
+    }
+
+    private static PageIdFactory idFactory(byte tag) throws IOException {
+        PageIdFactory factory = tag > 0 ? idFactories[tag] : null;
+        if (factory == null)
+            throw new IOException("unknown page id tag " + tag);
+        return factory;
+    }
+}
@@ -72,4 +72,9 @@ public class RecordId implements Serializable {
         return (pageId+"_"+tupleNo).hashCode();
     }
 
+    @Override
+    public String toString() {
+        return "(pageId: " + pageId + ", tupleNo: " + tupleNo + ")";
+    }
+
 }
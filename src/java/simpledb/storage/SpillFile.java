@@ -0,0 +1,169 @@
+package simpledb.storage;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.OpIterator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.NoSuchElementException;
+
+/**
+ * SpillFile is a temporary file of tuples that operators write when their
+ * input does not fit in memory: the partitions of a hash join, the sorted
+ * runs of a sort.  Tuples are appended with {@link #add} and read back in
+ * the same order by the iterators it returns.  The file bypasses the
+ * BufferPool, takes no locks and is not logged.  It is deleted only by
+ * {@link #delete}, which the operator that made it calls when it is closed;
+ * File.deleteOnExit would keep every path in memory until the JVM exits.
+ */
+public class SpillFile {
+
+    private final TupleDesc td;
+    private final File file;
+    private DataOutputStream out;
+    private int size = 0;
+
+    /**
+     * Create an empty spill file for tuples of the given TupleDesc.
+     */
+    public SpillFile(TupleDesc td) throws DbException {
+        this.td = td;
+        try {
+            file = File.createTempFile("simpledb-spill", ".tmp");
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        } catch (IOException e) {
+            throw new DbException("could not create spill file: " + e.getMessage());
+        }
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the number of tuples in the file */
+    public int size() {
+        return size;
+    }
+
+    /** Append a tuple to the file. */
+    public void add(Tuple t) throws DbException {
+        if (out == null) {
+            throw new IllegalStateException("spill file is no longer being written");
+        }
+        try {
+            for (int i = 0; i < td.numFields(); i++) {
+                Field f = t.getField(i);
+                if (f.getType() == Type.INT_TYPE) {
+                    out.writeInt(((IntField) f).getValue());
+                } else {
+                    out.writeUTF(((StringField) f).getValue());
+                }
+            }
+        } catch (IOException e) {
+            throw new DbException("could not write spill file: " + e.getMessage());
+        }
+        size++;
+    }
+
+    /**
+     * Finish writing the file, if that has not been done yet.
+     */
+    private void finish() throws DbException {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            throw new DbException("could not write spill file: " + e.getMessage());
+        } finally {
+            out = null;
+        }
+    }
+
+    /**
+     * @return an iterator over the tuples of the file, in the order they
+     *         were added; no more may be added once it is opened
+     */
+    public OpIterator iterator() {
+        return new OpIterator() {
+            private static final long serialVersionUID = 1L;
+            private DataInputStream in;
+            private int read;
+
+            public void open() throws DbException {
+                finish();
+                try {
+                    in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                } catch (IOException e) {
+                    throw new DbException("could not read spill file: " + e.getMessage());
+                }
+                read = 0;
+            }
+
+            public boolean hasNext() {
+                if (in == null) {
+                    throw new IllegalStateException("spill file iterator not open");
+                }
+                return read < size;
+            }
+
+            public Tuple next() throws DbException {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Tuple t = new Tuple(td);
+                try {
+                    for (int i = 0; i < td.numFields(); i++) {
+                        if (td.getFieldType(i) == Type.INT_TYPE) {
+                            t.setField(i, new IntField(in.readInt()));
+                        } else {
+                            t.setField(i, new StringField(in.readUTF(), Type.STRING_LEN));
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new DbException("could not read spill file: " + e.getMessage());
+                }
+                read++;
+                return t;
+            }
+
+            public void rewind() throws DbException {
+                close();
+                open();
+            }
+
+            public TupleDesc getTupleDesc() {
+                return td;
+            }
+
+            public void close() {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        // nothing more to read from it anyway
+                    }
+                }
+                in = null;
+            }
+        };
+    }
+
+    /** Close and delete the file. */
+    public void delete() {
+        try {
+            finish();
+        } catch (DbException e) {
+            // it is being deleted regardless
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,183 @@
+package simpledb.storage;
+
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * VersionStore keeps the committed versions of pages that read-only
+ * transactions need for snapshot reads.
+ * <p>
+ * Every commit is stamped with the next value of a logical clock, and a
+ * snapshot reader sees exactly the commits stamped at or before the clock
+ * value it started at.  The current committed version of a cached page is
+ * its before image; when a commit overwrites it while snapshots are open,
+ * the old version is kept as an undo entry tagged with the commit's stamp.
+ * A reader with snapshot S is served the oldest undo entry stamped after S,
+ * or the current committed version if there is none.  Undo entries are
+ * dropped as soon as no open snapshot can need them.
+ * <p>
+ * This relies on pages with uncommitted changes staying in the buffer
+ * pool, so that a cached page's before image is always committed data.
+ * <p>
+ * Readers share one immutable copy of each page's current committed
+ * version, made the first time a reader asks for it and dropped when a
+ * commit replaces it or the page leaves the buffer pool.  Readers must not
+ * change the pages they are handed.
+ * <p>
+ * The stamp of the last commit to change each page is kept as well, for
+ * optimistic transactions to validate what they read against.
+ * <p>
+ * The methods synchronize on the store, so a snapshot begins either
+ * entirely before or entirely after any commit.  Copies of pages for
+ * readers are made outside that monitor.
+ */
+class VersionStore {
+
+    private static class Version {
+        final long endTs;
+        final Page image;
+
+        Version(long endTs, Page image) {
+            this.endTs = endTs;
+            this.image = image;
+        }
+    }
+
+    private long clock = 0; // stamp of the last commit
+    private final Map<TransactionId, Long> snapshots = new HashMap<>();
+    private final TreeMap<Long, Integer> openSnapshots = new TreeMap<>(); // stamp -> readers
+    private final Map<PageId, List<Version>> undo = new HashMap<>(); // oldest first
+    private final Map<PageId, Long> lastCommit = new HashMap<>();
+    private final Map<PageId, Page> committed = new HashMap<>(); // shared by readers
+
+    /** Start a snapshot for tid at the current clock value. */
+    synchronized long beginSnapshot(TransactionId tid) {
+        if (!snapshots.containsKey(tid)) {
+            snapshots.put(tid, clock);
+            openSnapshots.merge(clock, 1, Integer::sum);
+        }
+        return snapshots.get(tid);
+    }
+
+    /** @return tid's snapshot stamp, or null if tid is not a snapshot reader */
+    synchronized Long snapshotOf(TransactionId tid) {
+        return snapshots.get(tid);
+    }
+
+    /**
+     * Close tid's snapshot, if it has one.
+     *
+     * @return true if tid was a snapshot reader
+     */
+    synchronized boolean endSnapshot(TransactionId tid) {
+        Long ts = snapshots.remove(tid);
+        if (ts == null)
+            return false;
+        if (openSnapshots.merge(ts, -1, Integer::sum) == 0)
+            openSnapshots.remove(ts);
+        prune();
+        return true;
+    }
+
+    /**
+     * Commit a transaction's pages: their new committed versions are
+     * installed as their before images, and the versions they replace are
+     * kept for any open snapshot.
+     *
+     * @param pages the cached pages the transaction dirtied
+     * @param install makes the committed contents of a page its before image
+     */
+    synchronized void commit(Collection<Page> pages, Consumer<Page> install) {
+        long ts = ++clock;
+        for (Page p : pages) {
+            lastCommit.put(p.getId(), ts);
+            Page replaced = committed.remove(p.getId());
+            if (!openSnapshots.isEmpty())
+                undo.computeIfAbsent(p.getId(), k -> new ArrayList<>())
+                        .add(new Version(ts, replaced != null ? replaced : p.getBeforeImage()));
+            install.accept(p);
+        }
+    }
+
+    /**
+     * @param pid the page to read
+     * @param snapshot the reader's snapshot stamp
+     * @param current the buffer pool's copy of the page
+     * @return the version of pid visible at snapshot, which the caller
+     *         shares with other readers and must not change
+     */
+    Page visible(PageId pid, long snapshot, Page current) {
+        long stamp;
+        synchronized (this) {
+            Page image = visibleOrCached(pid, snapshot);
+            if (image != null)
+                return image;
+            stamp = stampOf(pid);
+        }
+        Page image = current.getBeforeImage();
+        synchronized (this) {
+            // a commit that replaced the image while it was being copied
+            // kept the version this snapshot sees as an undo entry
+            Page old = visibleOrCached(pid, snapshot);
+            if (old != null)
+                return old;
+            if (stampOf(pid) == stamp)
+                committed.put(pid, image);
+            return image;
+        }
+    }
+
+    /**
+     * @return the undo entry or the shared committed image of pid that
+     *         snapshot sees, or null if there is neither
+     */
+    private Page visibleOrCached(PageId pid, long snapshot) {
+        List<Version> versions = undo.get(pid);
+        if (versions != null) {
+            for (Version v : versions) {
+                if (v.endTs > snapshot)
+                    return v.image;
+            }
+        }
+        return committed.get(pid);
+    }
+
+    /** Drop the shared committed image of pid, which is leaving the buffer pool. */
+    synchronized void forget(PageId pid) {
+        committed.remove(pid);
+    }
+
+    /**
+     * @param pid the page to read
+     * @param current the buffer pool's copy of the page
+     * @param stamps where to record the stamp of the version returned
+     * @return a private copy of the latest committed version of pid
+     */
+    synchronized Page latest(PageId pid, Page current, Map<PageId, Long> stamps) {
+        stamps.put(pid, stampOf(pid));
+        return current.getBeforeImage();
+    }
+
+    /** @return the stamp of the last commit that changed pid, or 0 if none has */
+    synchronized long stampOf(PageId pid) {
+        return lastCommit.getOrDefault(pid, 0L);
+    }
+
+    /** Drop undo entries that no open snapshot can see. */
+    private void prune() {
+        if (openSnapshots.isEmpty()) {
+            undo.clear();
+            return;
+        }
+        long oldest = openSnapshots.firstKey();
+        Iterator<List<Version>> it = undo.values().iterator();
+        while (it.hasNext()) {
+            List<Version> versions = it.next();
+            versions.removeIf(v -> v.endTs <= oldest);
+            if (versions.isEmpty())
+                it.remove();
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package simpledb.transaction;
+
+import simpledb.common.Database;
+import simpledb.common.Stats;
+
+import java.util.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * LockManager grants transactions locks on arbitrary resources -- pages,
+ * rows, or anything else with sensible equals() and hashCode() -- in the
+ * modes of {@link LockMode}.  Locks are held until released explicitly,
+ * normally by {@link #releaseAll} when the transaction completes.
+ * <p>
+ * A transaction that cannot be granted a lock waits for it.  Before
+ * waiting, the waits-for graph is searched for a cycle through the
+ * requester; if there is one, the requester is aborted instead.
+ * <p>
+ * Grants, waits and deadlock victims are recorded in the Database's
+ * {@link Stats}.
+ * <p>
+ * The lock table is guarded by a ReentrantLock, and waiters park on its
+ * Condition, rather than on this object's monitor: a virtual thread that
+ * waits on a monitor pins its carrier thread, one that awaits a Condition
+ * does not.
+ *
+ * @Threadsafe
+ */
+public class LockManager {
+
+    private static class Request {
+        final Object resource;
+        final LockMode mode;
+
+        Request(Object resource, LockMode mode) {
+            this.resource = resource;
+            this.mode = mode;
+        }
+    }
+
+    private final Map<Object, Map<TransactionId, LockMode>> holders = new HashMap<>();
+    private final Map<TransactionId, Set<Object>> held = new HashMap<>();
+    /**
+     * The requests each transaction waits on.  A transaction can wait on
+     * several at once, one on each of the threads it runs on, such as the
+     * producers of a parallel scan.
+     */
+    private final Map<TransactionId, List<Request>> waiting = new HashMap<>();
+
+    private final ReentrantLock latch = new ReentrantLock();
+    /** Signalled whenever a lock is released */
+    private final Condition released = latch.newCondition();
+
+    /**
+     * Lock resource in mode on behalf of tid, waiting until the lock can be
+     * granted.  If tid already holds the resource, its lock is upgraded to
+     * the join of the two modes.
+     *
+     * @throws TransactionAbortedException if waiting would deadlock, or the
+     *         waiting thread is interrupted
+     */
+    public void acquire(TransactionId tid, Object resource, LockMode mode)
+            throws TransactionAbortedException {
+        latch.lock();
+        try {
+            Stats stats = Database.getStats();
+            if (tryGrant(tid, resource, mode)) {
+                stats.lockAcquired();
+                return;
+            }
+            long start = System.nanoTime();
+            Request request = new Request(resource, mode);
+            try {
+                while (!tryGrant(tid, resource, mode)) {
+                    startWaiting(tid, request);
+                    try {
+                        if (deadlocked(tid, tid, new HashSet<>())) {
+                            stats.deadlockAborted();
+                            throw new TransactionAbortedException();
+                        }
+                        released.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new TransactionAbortedException();
+                    } finally {
+                        stopWaiting(tid, request);
+                    }
+                }
+                stats.lockAcquired();
+            } finally {
+                stats.lockWaited(resource, System.nanoTime() - start);
+            }
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * Lock resource in mode on behalf of tid if that can be done without
+     * waiting.
+     *
+     * @return true if tid now holds the lock
+     */
+    public boolean tryAcquire(TransactionId tid, Object resource, LockMode mode) {
+        latch.lock();
+        try {
+            if (!tryGrant(tid, resource, mode)) {
+                return false;
+            }
+            Database.getStats().lockAcquired();
+            return true;
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    private boolean tryGrant(TransactionId tid, Object resource, LockMode mode) {
+        Map<TransactionId, LockMode> owners = holders.get(resource);
+        LockMode current = owners == null ? null : owners.get(tid);
+        LockMode wanted = current == null ? mode : current.join(mode);
+        if (wanted == current)
+            return true;
+        if (owners != null) {
+            for (Map.Entry<TransactionId, LockMode> e : owners.entrySet()) {
+                if (!e.getKey().equals(tid) && !e.getValue().compatibleWith(wanted))
+                    return false;
+            }
+        }
+        holders.computeIfAbsent(resource, k -> new HashMap<>()).put(tid, wanted);
+        held.computeIfAbsent(tid, k -> new HashSet<>()).add(resource);
+        return true;
+    }
+
+    private void startWaiting(TransactionId tid, Request request) {
+        waiting.computeIfAbsent(tid, k -> new ArrayList<>()).add(request);
+    }
+
+    /** Remove request, and none of the other waits of tid's threads */
+    private void stopWaiting(TransactionId tid, Request request) {
+        List<Request> requests = waiting.get(tid);
+        if (requests == null)
+            return;
+        requests.remove(request);
+        if (requests.isEmpty())
+            waiting.remove(tid);
+    }
+
+    /** @return true if tid waits, directly or transitively, on target */
+    private boolean deadlocked(TransactionId tid, TransactionId target, Set<TransactionId> visited) {
+        List<Request> requests = waiting.get(tid);
+        if (requests == null || !visited.add(tid))
+            return false;
+        for (Request r : requests) {
+            Map<TransactionId, LockMode> owners = holders.get(r.resource);
+            if (owners == null)
+                continue;
+            LockMode current = owners.get(tid);
+            LockMode wanted = current == null ? r.mode : current.join(r.mode);
+            for (Map.Entry<TransactionId, LockMode> e : owners.entrySet()) {
+                TransactionId blocker = e.getKey();
+                if (blocker.equals(tid) || e.getValue().compatibleWith(wanted))
+                    continue;
+                if (blocker.equals(target) || deadlocked(blocker, target, visited))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /** Release tid's lock on resource, if it holds one. */
+    public void release(TransactionId tid, Object resource) {
+        latch.lock();
+        try {
+            Map<TransactionId, LockMode> owners = holders.get(resource);
+            if (owners == null || owners.remove(tid) == null)
+                return;
+            if (owners.isEmpty())
+                holders.remove(resource);
+            Set<Object> mine = held.get(tid);
+            if (mine != null) {
+                mine.remove(resource);
+                if (mine.isEmpty())
+                    held.remove(tid);
+            }
+            released.signalAll();
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /** Release every lock tid holds. */
+    public void releaseAll(TransactionId tid) {
+        latch.lock();
+        try {
+            Set<Object> mine = held.remove(tid);
+            if (mine == null)
+                return;
+            for (Object resource : mine) {
+                Map<TransactionId, LockMode> owners = holders.get(resource);
+                owners.remove(tid);
+                if (owners.isEmpty())
+                    holders.remove(resource);
+            }
+            released.signalAll();
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /** @return the mode in which tid holds resource, or null */
+    public LockMode lockMode(TransactionId tid, Object resource) {
+        latch.lock();
+        try {
+            Map<TransactionId, LockMode> owners = holders.get(resource);
+            return owners == null ? null : owners.get(tid);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /** @return every resource tid holds a lock on, with the lock's mode */
+    public Map<Object, LockMode> locksHeld(TransactionId tid) {
+        latch.lock();
+        try {
+            Map<Object, LockMode> result = new HashMap<>();
+            Set<Object> mine = held.get(tid);
+            if (mine != null) {
+                for (Object resource : mine)
+                    result.put(resource, holders.get(resource).get(tid));
+            }
+            return result;
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /** @return true if tid holds a lock on resource in any mode */
+    public boolean holdsLock(TransactionId tid, Object resource) {
+        return lockMode(tid, resource) != null;
+    }
+}
@@ -0,0 +1,68 @@
+package simpledb.transaction;
+
+/**
+ * The modes in which a transaction can lock a resource with the
+ * {@link LockManager}.
+ * <p>
+ * Resources form a hierarchy -- tables contain pages, pages contain rows --
+ * and a transaction locks a resource only after locking its parent in the
+ * matching intention mode (see {@link #intention}).  INTENTION_SHARED and
+ * INTENTION_EXCLUSIVE announce that the holder reads or writes some of the
+ * resource's children under their own locks.  SHARED_INTENTION_EXCLUSIVE
+ * reads the whole resource and writes some children.  A SHARED,
+ * SHARED_INTENTION_EXCLUSIVE or EXCLUSIVE lock on a parent implicitly
+ * grants locks on its children (see {@link #implicitlyGrants}).
+ */
+public enum LockMode {
+    INTENTION_SHARED, INTENTION_EXCLUSIVE, SHARED, SHARED_INTENTION_EXCLUSIVE, EXCLUSIVE;
+
+    // indexed by ordinal
+    private static final boolean[][] COMPATIBLE = {
+            //        IS     IX     S      SIX    X
+            /* IS  */ {true, true, true, true, false},
+            /* IX  */ {true, true, false, false, false},
+            /* S   */ {true, false, true, false, false},
+            /* SIX */ {true, false, false, false, false},
+            /* X   */ {false, false, false, false, false},
+    };
+
+    /** @return true if one transaction may hold this mode while another holds other */
+    public boolean compatibleWith(LockMode other) {
+        return COMPATIBLE[ordinal()][other.ordinal()];
+    }
+
+    /** @return the weakest mode that grants everything this mode and other grant */
+    public LockMode join(LockMode other) {
+        if (this == other || other == INTENTION_SHARED)
+            return this;
+        if (this == INTENTION_SHARED)
+            return other;
+        if (this == EXCLUSIVE || other == EXCLUSIVE)
+            return EXCLUSIVE;
+        // any two distinct modes of IX, S and SIX
+        return SHARED_INTENTION_EXCLUSIVE;
+    }
+
+    /** @return true if holding this mode already grants other */
+    public boolean covers(LockMode other) {
+        return join(other) == this;
+    }
+
+    /** @return the mode in which the parent must be locked before locking a child in this mode */
+    public LockMode intention() {
+        return this == INTENTION_SHARED || this == SHARED ? INTENTION_SHARED : INTENTION_EXCLUSIVE;
+    }
+
+    /** @return true if holding this mode on a parent grants child mode on all of its children */
+    public boolean implicitlyGrants(LockMode child) {
+        switch (this) {
+            case EXCLUSIVE:
+                return true;
+            case SHARED:
+            case SHARED_INTENTION_EXCLUSIVE:
+                return child == INTENTION_SHARED || child == SHARED;
+            default:
+                return false;
+        }
+    }
+}
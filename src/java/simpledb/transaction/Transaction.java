@@ -7,19 +7,64 @@ import java.io.*;
 /**
  * Transaction encapsulates information about the state of
  * a transaction and manages transaction commit / abort.
+ * <p>
+ * A read-only transaction reads a snapshot of the database as of the time
+ * it started (see BufferPool.beginSnapshot); it takes no locks and cannot
+ * modify any page.  Since it has nothing to undo or redo, it writes no log
+ * records at all, and so never forces the log.
+ * <p>
+ * An optimistic transaction takes no locks either (see
+ * BufferPool.beginOptimistic).  It is validated when it commits, and
+ * aborted instead if it conflicts with a transaction that committed first.
  */
 
 public class Transaction {
+
+    /** How a transaction keeps out of the way of concurrent ones */
+    public enum Mode {
+        /** two-phase locking */
+        LOCKING,
+        /** read-only, from a snapshot */
+        SNAPSHOT,
+        /** optimistic, validated at commit */
+        OPTIMISTIC
+    }
+
     private final TransactionId tid;
+    private final Mode mode;
     volatile boolean started = false;
+    private volatile long startNanos;
 
     public Transaction() {
+        this(Mode.LOCKING);
+    }
+
+    /**
+     * @param readOnly true if the transaction only reads, and should
+     *                 read a consistent snapshot without taking locks
+     */
+    public Transaction(boolean readOnly) {
+        this(readOnly ? Mode.SNAPSHOT : Mode.LOCKING);
+    }
+
+    /**
+     * @param mode the concurrency control the transaction runs under
+     */
+    public Transaction(Mode mode) {
         tid = new TransactionId();
+        this.mode = mode;
     }
 
     /** Start the transaction running */
     public void start() {
         started = true;
+        startNanos = System.nanoTime();
+        if (mode == Mode.SNAPSHOT) {
+            Database.getBufferPool().beginSnapshot(tid);
+            return;
+        } else if (mode == Mode.OPTIMISTIC) {
+            Database.getBufferPool().beginOptimistic(tid);
+        }
         try {
             Database.getLogFile().logXactionBegin(tid);
         } catch (IOException e) {
@@ -31,8 +76,31 @@ public class Transaction {
         return tid;
     }
 
-    /** Finish the transaction */
-    public void commit() throws IOException {
+    /** @return true if this transaction reads a snapshot and never writes */
+    public boolean isReadOnly() {
+        return mode == Mode.SNAPSHOT;
+    }
+
+    /** @return the concurrency control this transaction runs under */
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Finish the transaction
+     *
+     * @throws TransactionAbortedException if an optimistic transaction fails
+     *         validation; it has been aborted
+     */
+    public void commit() throws IOException, TransactionAbortedException {
+        if (started && mode == Mode.OPTIMISTIC) {
+            try {
+                Database.getBufferPool().validate(tid);
+            } catch (TransactionAbortedException e) {
+                transactionComplete(true);
+                throw e;
+            }
+        }
         transactionComplete(false);
     }
 
@@ -44,7 +112,12 @@ public class Transaction {
     /** Handle the details of transaction commit / abort */
     public void transactionComplete(boolean abort) throws IOException {
 
-        if (started) {
+        if (started && mode == Mode.SNAPSHOT) {
+            // nothing was logged, and nothing needs to be
+            Database.getBufferPool().transactionComplete(tid, !abort);
+            started = false;
+            Database.getStats().transactionLifetime(System.nanoTime() - startNanos);
+        } else if (started) {
             //write abort log record and rollback transaction
             if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
@@ -60,6 +133,7 @@ public class Transaction {
 
             //setting this here means we could possibly write multiple abort records -- OK?
             started = false;
+            Database.getStats().transactionLifetime(System.nanoTime() - startNanos);
         }
     }
 }
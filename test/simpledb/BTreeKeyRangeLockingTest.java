@@ -0,0 +1,154 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.index.BTreeUtility.BTreeInserter;
+import simpledb.index.IndexKey;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeKeyRangeLockingTest extends SimpleDbTestBase {
+	private static final int POLL_INTERVAL = 100;
+	private static final int TIMEOUT = 10000;
+
+	private BufferPool bp;
+	private BTreeFile bf;
+	private BlockingQueue<List<Integer>> inserted;
+
+	/**
+	 * Create a B+ tree holding the keys 10, 20, ..., 100 on a single leaf page.
+	 */
+	@Before public void setUp() throws Exception {
+		bf = BTreeUtility.createRandomBTreeFile(2, 0, null, null, 0);
+		bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		TransactionId tid = new TransactionId();
+		for(int key = 10; key <= 100; key += 10) {
+			bp.insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(new int[]{key, 0}));
+		}
+		bp.transactionComplete(tid);
+		inserted = new ArrayBlockingQueue<>(10);
+	}
+
+	private List<Integer> scan(TransactionId tid, Op op, int key) throws Exception {
+		DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(op, new IntField(key)));
+		it.open();
+		List<Integer> keys = new ArrayList<>();
+		while(it.hasNext()) {
+			Tuple t = it.next();
+			keys.add(((IntField) t.getField(0)).getValue());
+		}
+		it.close();
+		return keys;
+	}
+
+	private BTreeInserter startInsert(int key) throws Exception {
+		BTreeInserter bi = new BTreeInserter(bf, new int[]{key, 1}, inserted);
+		bi.start();
+		return bi;
+	}
+
+	/**
+	 * A scan locks the keys it returns and the first key beyond them, but
+	 * no page, so a transaction may insert elsewhere on the same leaf.
+	 */
+	@Test public void insertOutsideRangeDoesNotBlock() throws Exception {
+		TransactionId tid = new TransactionId();
+		assertEquals(Arrays.asList(10, 20, 30, 40), scan(tid, Op.LESS_THAN, 50));
+		assertTrue(bp.holdsLock(tid, new IndexKey(bf.getId(), new IntField(50))));
+		assertFalse(bp.holdsLock(tid, new IndexKey(bf.getId(), new IntField(60))));
+
+		BTreeInserter bi = startInsert(75);
+		BTreeUtility.waitFor(bi, TIMEOUT, POLL_INTERVAL);
+		assertTrue(bi.succeeded());
+		assertEquals(Arrays.asList(10, 20, 30, 40), scan(tid, Op.LESS_THAN, 50));
+		bp.transactionComplete(tid);
+	}
+
+	/**
+	 * An insert into a gap covered by a scan waits until the scan's
+	 * transaction completes, so that repeating the scan finds no phantom.
+	 */
+	@Test public void insertIntoRangeBlocks() throws Exception {
+		TransactionId tid = new TransactionId();
+		List<Integer> before = scan(tid, Op.GREATER_THAN_OR_EQ, 30);
+		assertEquals(8, before.size());
+
+		BTreeInserter bi = startInsert(35);
+		Thread.sleep(5 * POLL_INTERVAL);
+		assertFalse(bi.succeeded());
+		assertEquals(before, scan(tid, Op.GREATER_THAN_OR_EQ, 30));
+
+		bp.transactionComplete(tid);
+		BTreeUtility.waitFor(bi, TIMEOUT, POLL_INTERVAL);
+		assertTrue(bi.succeeded());
+	}
+
+	/**
+	 * A scan that runs off the end of the index locks the gap above the
+	 * largest key; inserts below the scanned range go ahead.
+	 */
+	@Test public void scanToEndLocksPastEnd() throws Exception {
+		TransactionId tid = new TransactionId();
+		assertEquals(Arrays.asList(90, 100), scan(tid, Op.GREATER_THAN, 80));
+		assertTrue(bp.holdsLock(tid, new IndexKey(bf.getId(), null)));
+
+		BTreeInserter below = startInsert(5);
+		BTreeUtility.waitFor(below, TIMEOUT, POLL_INTERVAL);
+		assertTrue(below.succeeded());
+
+		BTreeInserter above = startInsert(200);
+		Thread.sleep(5 * POLL_INTERVAL);
+		assertFalse(above.succeeded());
+
+		bp.transactionComplete(tid);
+		BTreeUtility.waitFor(above, TIMEOUT, POLL_INTERVAL);
+		assertTrue(above.succeeded());
+	}
+
+	/**
+	 * A delete keeps the key after the deleted one locked, since the gap
+	 * below it has grown to cover the deleted key.
+	 */
+	@Test public void deleteLocksNextKey() throws Exception {
+		TransactionId tid = new TransactionId();
+		DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(50)));
+		it.open();
+		assertTrue(it.hasNext());
+		bp.deleteTuple(tid, it.next());
+		it.close();
+		assertTrue(bp.holdsLock(tid, new IndexKey(bf.getId(), new IntField(50))));
+		assertTrue(bp.holdsLock(tid, new IndexKey(bf.getId(), new IntField(60))));
+
+		BTreeInserter bi = startInsert(55);
+		Thread.sleep(5 * POLL_INTERVAL);
+		assertFalse(bi.succeeded());
+
+		bp.transactionComplete(tid);
+		BTreeUtility.waitFor(bi, TIMEOUT, POLL_INTERVAL);
+		assertTrue(bi.succeeded());
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeKeyRangeLockingTest.class);
+	}
+}
@@ -0,0 +1,275 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.common.Permissions;
+import simpledb.index.BTreeChecker;
+import simpledb.index.BTreeEntry;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeInternalPage;
+import simpledb.index.BTreePageId;
+import simpledb.index.BTreeRootPtrPage;
+import simpledb.index.BTreeUtility;
+import simpledb.index.IndexKey;
+import simpledb.index.BTreeUtility.BTreeInserter;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeLatchCrabbingTest extends SimpleDbTestBase {
+	private static final int POLL_INTERVAL = 100;
+	private static final int TIMEOUT = 10000;
+
+	private BufferPool bp;
+	private BTreeFile bf;
+	private int rows;
+
+	/**
+	 * Create a packed B+ tree with five leaf pages under an internal root page.
+	 */
+	@Before public void setUp() throws Exception {
+		rows = 5 * BTreeUtility.getNumTuplesPerPage(2);
+		bf = BTreeUtility.createRandomBTreeFile(2, rows, null, null, 0);
+		bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+	}
+
+	private BTreePageId rootId() throws Exception {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bp.getPageUnlocked(new TransactionId(),
+				BTreeRootPtrPage.getId(bf.getId()));
+		return rootPtr.getRootId();
+	}
+
+	private void insert(TransactionId tid, int key) throws Exception {
+		bp.insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(new int[]{key, 0}));
+	}
+
+	private int count(TransactionId tid) throws Exception {
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		int n = 0;
+		while(it.hasNext()) {
+			it.next();
+			n++;
+		}
+		it.close();
+		return n;
+	}
+
+	/**
+	 * An index search locks the keys it reads, but neither the root pointer
+	 * page, nor the internal pages above the leaf, nor the leaf itself once
+	 * it has been read.
+	 */
+	@Test public void searchLocksOnlyLeaves() throws Exception {
+		BTreePageId rootId = rootId();
+		assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+
+		TransactionId tid = new TransactionId();
+		DbFileIterator it = bf.indexIterator(tid,
+				new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(BTreeUtility.MAX_RAND_VALUE / 2)));
+		it.open();
+		assertTrue(it.hasNext());
+		Tuple t = it.next();
+
+		assertTrue(bp.holdsLock(tid, new IndexKey(bf.getId(), t.getField(0))));
+		assertFalse(bp.holdsLock(tid, t.getRecordId().getPageId()));
+		assertFalse(bp.holdsLock(tid, rootId));
+		assertFalse(bp.holdsLock(tid, BTreeRootPtrPage.getId(bf.getId())));
+		it.close();
+		bp.transactionComplete(tid);
+	}
+
+	/**
+	 * While one transaction has split a leaf page and still holds the
+	 * internal page it changed, another can insert into a leaf page with
+	 * room to spare under the same internal page.
+	 */
+	@Test public void insertDoesNotWaitForSplitElsewhere() throws Exception {
+		// make room in the right-most leaf page
+		TransactionId tid = new TransactionId();
+		insert(tid, BTreeUtility.MAX_RAND_VALUE);
+		bp.transactionComplete(tid);
+
+		// split the full left-most leaf page, leaving the root locked
+		TransactionId splitter = new TransactionId();
+		insert(splitter, -1);
+		assertTrue(bp.holdsLock(splitter, rootId()));
+
+		BlockingQueue<List<Integer>> inserted = new ArrayBlockingQueue<>(1);
+		BTreeInserter bi = new BTreeInserter(bf, new int[]{BTreeUtility.MAX_RAND_VALUE + 1, 0}, inserted);
+		bi.start();
+		BTreeUtility.waitFor(bi, TIMEOUT, POLL_INTERVAL);
+		assertTrue(bi.succeeded());
+		bp.transactionComplete(splitter);
+
+		tid = new TransactionId();
+		assertEquals(rows + 3, count(tid));
+		bp.transactionComplete(tid);
+	}
+
+	/**
+	 * A scan goes ahead while a split elsewhere in the tree is stuck waiting
+	 * for a page lock.
+	 */
+	@Test public void scanDoesNotWaitForSplit() throws Exception {
+		BTreeInternalPage root = (BTreeInternalPage) bp.getPageUnlocked(new TransactionId(), rootId());
+		Iterator<BTreeEntry> entries = root.iterator();
+		BTreeEntry first = entries.next();
+		BTreeEntry last = first;
+		while(entries.hasNext()) {
+			last = entries.next();
+		}
+
+		// splitting the left-most leaf page must wait for this lock on its right sibling
+		TransactionId holder = new TransactionId();
+		bp.getPage(holder, first.getRightChild(), Permissions.READ_ONLY);
+		BlockingQueue<List<Integer>> inserted = new ArrayBlockingQueue<>(1);
+		BTreeInserter bi = new BTreeInserter(bf, new int[]{-1, 0}, inserted);
+		bi.start();
+		Thread.sleep(2 * POLL_INTERVAL);
+
+		TransactionId tid = new TransactionId();
+		DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.GREATER_THAN_OR_EQ, last.getKey()));
+		it.open();
+		assertTrue(it.hasNext());
+		assertTrue(it.next().getField(0).compare(Op.GREATER_THAN_OR_EQ, last.getKey()));
+		it.close();
+		bp.transactionComplete(tid);
+		assertFalse(bi.succeeded());
+
+		bp.transactionComplete(holder);
+		BTreeUtility.waitFor(bi, TIMEOUT, POLL_INTERVAL);
+		assertTrue(bi.succeeded());
+		tid = new TransactionId();
+		assertEquals(rows + 1, count(tid));
+		bp.transactionComplete(tid);
+	}
+
+	/**
+	 * A split that is waiting for a page lock does so without holding any
+	 * latch, so other inserters go ahead rather than wait for it.
+	 */
+	@Test public void insertDoesNotWaitForStuckSplit() throws Exception {
+		// make room in the right-most leaf page
+		TransactionId tid = new TransactionId();
+		insert(tid, BTreeUtility.MAX_RAND_VALUE);
+		bp.transactionComplete(tid);
+
+		BTreeInternalPage root = (BTreeInternalPage) bp.getPageUnlocked(new TransactionId(), rootId());
+		BTreeEntry first = root.iterator().next();
+
+		// splitting the left-most leaf page must wait for this lock on its right sibling
+		TransactionId holder = new TransactionId();
+		bp.getPage(holder, first.getRightChild(), Permissions.READ_ONLY);
+		BlockingQueue<List<Integer>> inserted = new ArrayBlockingQueue<>(2);
+		BTreeInserter splitter = new BTreeInserter(bf, new int[]{-1, 0}, inserted);
+		splitter.start();
+		Thread.sleep(2 * POLL_INTERVAL);
+
+		BTreeInserter bi = new BTreeInserter(bf, new int[]{BTreeUtility.MAX_RAND_VALUE + 1, 0}, inserted);
+		bi.start();
+		BTreeUtility.waitFor(bi, TIMEOUT, POLL_INTERVAL);
+		assertTrue(bi.succeeded());
+		assertFalse(splitter.succeeded());
+		assertNull(splitter.getError());
+
+		bp.transactionComplete(holder);
+		BTreeUtility.waitFor(splitter, TIMEOUT, POLL_INTERVAL);
+		assertTrue(splitter.succeeded());
+		tid = new TransactionId();
+		assertEquals(rows + 3, count(tid));
+		bp.transactionComplete(tid);
+	}
+
+	/**
+	 * Insert perThread random tuples from each of threads threads, each in a
+	 * transaction of its own.
+	 *
+	 * @return the number of transactions that aborted
+	 */
+	private static int insertFrom(BTreeFile file, int threads, int perThread,
+			BlockingQueue<List<Integer>> inserted) throws Exception {
+		AtomicInteger aborted = new AtomicInteger();
+		List<Exception> errors = Collections.synchronizedList(new ArrayList<>());
+		List<Thread> workers = new ArrayList<>();
+		for(int i = 0; i < threads; i++) {
+			Thread worker = new Thread(() -> {
+				Random r = new Random();
+				BTreeInserter bi = new BTreeInserter(file, new int[]{0, 0}, inserted);
+				for(int j = 0; j < perThread; j++) {
+					bi.rerun(file, new int[]{r.nextInt(BTreeUtility.MAX_RAND_VALUE), j}, inserted);
+					if(bi.getError() instanceof TransactionAbortedException) {
+						aborted.incrementAndGet();
+					} else if(bi.getError() != null) {
+						errors.add(bi.getError());
+					}
+				}
+			});
+			worker.start();
+			workers.add(worker);
+		}
+		for(Thread worker : workers) {
+			worker.join();
+		}
+		assertEquals(Collections.emptyList(), errors);
+		return aborted.get();
+	}
+
+	/**
+	 * Many concurrent inserters, some of which split pages, leave a tree
+	 * that holds exactly the tuples of the inserters that committed.  Few of
+	 * them abort, and together they insert at least half as fast as one
+	 * thread doing the same inserts alone, however few cores there are.
+	 */
+	@Test public void concurrentInserts() throws Exception {
+		int threads = 8;
+		int perThread = 100;
+		BlockingQueue<List<Integer>> inserted = new ArrayBlockingQueue<>(threads * perThread);
+
+		// the same inserts from one thread, into a tree of the same shape
+		BTreeFile alone = BTreeUtility.createRandomBTreeFile(2, rows, null, null, 0);
+		bp = Database.resetBufferPool(500);
+		long start = System.nanoTime();
+		assertEquals(0, insertFrom(alone, 1, threads * perThread, inserted));
+		double serial = inserted.size() / (double) (System.nanoTime() - start);
+
+		inserted.clear();
+		bp = Database.resetBufferPool(500);
+		start = System.nanoTime();
+		int aborted = insertFrom(bf, threads, perThread, inserted);
+		double concurrent = inserted.size() / (double) (System.nanoTime() - start);
+
+		assertTrue(aborted + " of " + threads * perThread + " inserts aborted",
+				aborted <= threads * perThread / 20);
+		assertTrue(String.format("%d threads inserted %.0f tuples/s, one thread %.0f tuples/s",
+				threads, concurrent * 1e9, serial * 1e9), concurrent >= serial / 2);
+
+		TransactionId tid = new TransactionId();
+		assertEquals(rows + inserted.size(), count(tid));
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), false);
+		bp.transactionComplete(tid);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeLatchCrabbingTest.class);
+	}
+}
@@ -0,0 +1,285 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static simpledb.systemtest.SystemTestUtil.readTuples;
+import static simpledb.systemtest.SystemTestUtil.sortTuples;
+import junit.framework.JUnit4TestAdapter;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.Aggregate;
+import simpledb.execution.Aggregator;
+import simpledb.execution.BatchIterator;
+import simpledb.execution.Filter;
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.Predicate;
+import simpledb.execution.Project;
+import simpledb.execution.SeqScan;
+import simpledb.execution.TupleAdapter;
+import simpledb.execution.TupleBatch;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+public class BatchExecutionTest extends SimpleDbTestBase {
+
+  private static final int ROWS = 5000;
+
+  private HeapFile hf;
+  private List<List<Integer>> tuples;
+  private TransactionId tid;
+
+  @Before public void createTable() throws Exception {
+    tuples = new ArrayList<>();
+    hf = SystemTestUtil.createRandomHeapFile(3, ROWS, 100, null, tuples);
+    tid = new TransactionId();
+  }
+
+  private SeqScan scan(HeapFile f) {
+    return new SeqScan(tid, f.getId(), "");
+  }
+
+  /**
+   * A scan returns the whole table in full batches, then null.
+   */
+  @Test public void scanBatches() throws Exception {
+    SeqScan scan = scan(hf);
+    scan.open();
+    int rows = 0;
+    TupleBatch batch;
+    while ((batch = scan.nextBatch()) != null) {
+      assertTrue(batch.size() > 0 && batch.size() <= TupleBatch.CAPACITY);
+      assertNull(batch.getSelection());
+      rows += batch.size();
+    }
+    assertEquals(ROWS, rows);
+    scan.close();
+    SystemTestUtil.matchTuples(new TupleAdapter(scan(hf)), tuples);
+  }
+
+  /**
+   * Filtering a batch at a time narrows the selection vector, and keeps
+   * the same rows as filtering a tuple at a time, for every operator.
+   */
+  @Test public void filterSelectsSameRows() throws Exception {
+    for (Predicate.Op op : Predicate.Op.values()) {
+      Predicate p = new Predicate(1, op, new IntField(50));
+      Filter batched = new Filter(p, scan(hf));
+      batched.open();
+      TupleBatch batch = batched.nextBatch();
+      assertNotNull(op.toString(), batch);
+      assertNotNull(batch.getSelection());
+      batched.close();
+      assertEquals(op.toString(), sortTuples(readTuples(new Filter(p, scan(hf)))),
+          sortTuples(readTuples(new TupleAdapter(new Filter(p, scan(hf))))));
+    }
+  }
+
+  /**
+   * Projecting batches passes on the chosen columns of the filtered rows.
+   */
+  @Test public void projectFilteredBatches() throws Exception {
+    List<List<Integer>> expected = new ArrayList<>();
+    for (List<Integer> t : tuples) {
+      if (t.get(0) < 30)
+        expected.add(Arrays.asList(t.get(2), t.get(0)));
+    }
+    Project project = new Project(Arrays.asList(2, 0), new Type[] {Type.INT_TYPE, Type.INT_TYPE},
+        new Filter(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(30)), scan(hf)));
+    SystemTestUtil.matchTuples(new TupleAdapter(project), expected);
+  }
+
+  /**
+   * A batched hash join, with more rows on its build side than it loads
+   * at once, returns the same rows as joining a tuple at a time.
+   */
+  @Test(timeout = 60000) public void hashJoinMatchesTupleAtATime() throws Exception {
+    HeapFile build = SystemTestUtil.createRandomHeapFile(2, HashEquiJoin.MAP_SIZE + 5000, 1000, null, null);
+    HeapFile probe = SystemTestUtil.createRandomHeapFile(2, 400, 1000, null, null);
+    JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    List<List<Integer>> expected = sortTuples(readTuples(new HashEquiJoin(p, scan(build), scan(probe))));
+    assertTrue(expected.size() > TupleBatch.CAPACITY);
+    assertEquals(expected, sortTuples(readTuples(new TupleAdapter(new HashEquiJoin(p, scan(build), scan(probe))))));
+  }
+
+  /**
+   * Aggregates merge whole batches from a batched child.
+   */
+  @Test public void aggregateBatches() throws Exception {
+    Predicate p = new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(10));
+    for (Aggregator.Op op : new Aggregator.Op[] {Aggregator.Op.SUM, Aggregator.Op.MIN,
+        Aggregator.Op.MAX, Aggregator.Op.COUNT, Aggregator.Op.AVG}) {
+      Map<Integer, int[]> groups = new HashMap<>();
+      int[] all = null;
+      for (List<Integer> t : tuples) {
+        if (t.get(0) <= 10)
+          continue;
+        all = fold(op, all, t.get(2));
+        groups.put(t.get(1), fold(op, groups.get(t.get(1)), t.get(2)));
+      }
+      List<List<Integer>> expected = new ArrayList<>();
+      for (Map.Entry<Integer, int[]> e : groups.entrySet())
+        expected.add(Arrays.asList(e.getKey(), result(op, e.getValue())));
+
+      Aggregate grouped = new Aggregate(new Filter(p, scan(hf)), 2, 1, op);
+      SystemTestUtil.matchTuples(grouped, expected);
+      OpIterator ungrouped = new TupleAdapter(new Aggregate(new Filter(p, scan(hf)), 2,
+          Aggregator.NO_GROUPING, op));
+      SystemTestUtil.matchTuples(ungrouped, Collections.singletonList(
+          Collections.singletonList(result(op, all))));
+    }
+  }
+
+  /** Fold a value into {count, sum, min, max} */
+  private static int[] fold(Aggregator.Op op, int[] acc, int v) {
+    if (acc == null)
+      return new int[] {1, v, v, v};
+    return new int[] {acc[0] + 1, acc[1] + v, Math.min(acc[2], v), Math.max(acc[3], v)};
+  }
+
+  private static int result(Aggregator.Op op, int[] acc) {
+    switch (op) {
+      case COUNT: return acc[0];
+      case SUM: return acc[1];
+      case MIN: return acc[2];
+      case MAX: return acc[3];
+      default: return acc[1] / acc[0];
+    }
+  }
+
+  /**
+   * Scanning, filtering and grouping a batch at a time allocates only the
+   * batches' own arrays for each row, about 20 bytes: no Tuple, Field or
+   * boxed value per row, when a single IntField is 16.  Measured with the
+   * JVM's count of the bytes this thread allocates, once the table's pages
+   * are in the buffer pool, and reported next to the time taken batched
+   * and a tuple at a time.
+   */
+  @Test public void batchesDoNotAllocatePerRow() throws Exception {
+    int rows = 20000;
+    Database.resetBufferPool(100);
+    HeapFile big = SystemTestUtil.createRandomHeapFile(3, rows, 10, null, null);
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long me = Thread.currentThread().getId();
+    Predicate p = new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(0));
+    int runs = 20;
+    long bytes = 0;
+    long batchNanos = 0;
+    long tupleNanos = 0;
+    for (int i = 0; i < 2 * runs; i++) {
+      long before = threads.getThreadAllocatedBytes(me);
+      long start = System.nanoTime();
+      BatchIterator batched = new Aggregate(new Filter(p, scan(big)), 2, 1, Aggregator.Op.SUM);
+      batched.open();
+      while (batched.nextBatch() != null)
+        ;
+      batched.close();
+      long end = System.nanoTime();
+      if (i >= runs) {
+        bytes += threads.getThreadAllocatedBytes(me) - before;
+        batchNanos += end - start;
+      }
+      start = System.nanoTime();
+      OpIterator tupleAtATime = new Aggregate(new TupleAtATime(new Filter(p, scan(big))), 2, 1, Aggregator.Op.SUM);
+      tupleAtATime.open();
+      while (tupleAtATime.hasNext())
+        tupleAtATime.next();
+      tupleAtATime.close();
+      if (i >= runs)
+        tupleNanos += System.nanoTime() - start;
+    }
+    double perRow = (double) bytes / runs / rows;
+    assertTrue(String.format("%.1f bytes allocated per row; %d rows/ms batched, %d rows/ms a tuple at a time",
+        perRow, (long) rows * runs * 1000000L / batchNanos, (long) rows * runs * 1000000L / tupleNanos),
+        perRow < 32);
+  }
+
+  /** Passes on the tuples of its child, a tuple at a time only */
+  private static class TupleAtATime extends Operator {
+    private static final long serialVersionUID = 1L;
+    private OpIterator child;
+
+    TupleAtATime(OpIterator child) {
+      this.child = child;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+      child.open();
+      super.open();
+    }
+
+    public void close() {
+      super.close();
+      child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+      child.rewind();
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+      return child.hasNext() ? child.next() : null;
+    }
+
+    public OpIterator[] getChildren() {
+      return new OpIterator[] {child};
+    }
+
+    public void setChildren(OpIterator[] children) {
+      child = children[0];
+    }
+
+    public TupleDesc getTupleDesc() {
+      return child.getTupleDesc();
+    }
+  }
+
+  /**
+   * Operators that cannot run a batch at a time are adapted below batched
+   * ones.
+   */
+  @Test public void adaptsTupleOperators() throws Exception {
+    OpIterator tuplesOnly = new TestUtil.MockScan(0, 3000, 2);
+    Filter filter = new Filter(new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(1000)),
+        tuplesOnly);
+    assertTrue(filter instanceof BatchIterator);
+    filter.open();
+    int rows = 0;
+    TupleBatch batch;
+    while ((batch = filter.nextBatch()) != null)
+      rows += batch.size();
+    filter.close();
+    assertEquals(2000, rows);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(BatchExecutionTest.class);
+  }
+}
@@ -7,6 +7,8 @@ import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import junit.framework.JUnit4TestAdapter;
 import simpledb.common.Database;
 import simpledb.common.Permissions;
@@ -14,6 +16,9 @@ import simpledb.common.Utility;
 import simpledb.storage.BufferPool;
 import simpledb.storage.HeapPageId;
 import simpledb.storage.PageId;
+import simpledb.transaction.LockManager;
+import simpledb.transaction.LockMode;
+import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 public class DeadlockTest extends TestUtil.CreateHeapFile {
@@ -219,6 +224,53 @@ public class DeadlockTest extends TestUtil.CreateHeapFile {
     System.out.println("testUpgradeWriteDeadlock resolved deadlock");
   }
 
+  /**
+   * Start a thread that locks resource exclusively for tid, and gives up if
+   * it is chosen as a deadlock victim.
+   */
+  private Thread startWaiter(LockManager lm, TransactionId tid, Object resource) {
+    Thread t = new Thread(() -> {
+      try {
+        lm.acquire(tid, resource, LockMode.EXCLUSIVE);
+      } catch (TransactionAbortedException e) {
+        // the test only needs the wait to end
+      }
+    });
+    t.start();
+    return t;
+  }
+
+  /**
+   * A transaction that waits on two threads at once, as the producers of a
+   * parallel scan do, is found in a cycle through either of its waits.
+   * t1 waits for a, held by t2, and for b, held by t3; t2 then asks for c,
+   * held by t1.
+   */
+  @Test(timeout = 10000) public void testWaitsOnSeveralThreads() throws Exception {
+    LockManager lm = new LockManager();
+    TransactionId tid3 = new TransactionId();
+    lm.acquire(tid2, "a", LockMode.EXCLUSIVE);
+    lm.acquire(tid3, "b", LockMode.EXCLUSIVE);
+    lm.acquire(tid1, "c", LockMode.EXCLUSIVE);
+
+    Thread waitA = startWaiter(lm, tid1, "a");
+    Thread.sleep(POLL_INTERVAL);
+    Thread waitB = startWaiter(lm, tid1, "b");
+    Thread.sleep(POLL_INTERVAL);
+
+    try {
+      lm.acquire(tid2, "c", LockMode.EXCLUSIVE);
+      fail("expected t2 to be aborted");
+    } catch (TransactionAbortedException expected) {
+    }
+    lm.releaseAll(tid2);
+    lm.releaseAll(tid3);
+    waitA.join();
+    waitB.join();
+    assertTrue(lm.holdsLock(tid1, "a"));
+    assertTrue(lm.holdsLock(tid1, "b"));
+  }
+
   /**
    * JUnit suite target
    */
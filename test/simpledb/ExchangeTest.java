@@ -0,0 +1,157 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.Exchange;
+import simpledb.execution.Filter;
+import simpledb.execution.MorselScan;
+import simpledb.execution.MorselSource;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class ExchangeTest extends SimpleDbTestBase {
+
+  private static final int ROWS = 3000;
+  private static final int WORKERS = 4;
+
+  private HeapFile hf;
+  private List<List<Integer>> tuples;
+  private TransactionId tid;
+
+  @Before public void createTable() throws Exception {
+    tuples = new ArrayList<>();
+    hf = SystemTestUtil.createRandomHeapFile(2, ROWS, null, tuples);
+    tid = new TransactionId();
+  }
+
+  private OpIterator[] workers(MorselSource source, Predicate p) {
+    OpIterator[] workers = new OpIterator[WORKERS];
+    for (int i = 0; i < WORKERS; i++) {
+      OpIterator scan = new MorselScan(tid, source, "");
+      workers[i] = p == null ? scan : new Filter(p, scan);
+    }
+    return workers;
+  }
+
+  /**
+   * Workers sharing a morsel source scan every tuple exactly once.
+   */
+  @Test(timeout = 20000) public void gatherScansEveryTupleOnce() throws Exception {
+    MorselSource source = new MorselSource(hf, 1);
+    assertTrue(source.numMorsels() > WORKERS);
+    SystemTestUtil.matchTuples(new Exchange(workers(source, null)), tuples);
+  }
+
+  /**
+   * Filters below the Exchange run in the workers.
+   */
+  @Test(timeout = 20000) public void filterBelowExchange() throws Exception {
+    int cutoff = 1 << 15;
+    Predicate p = new Predicate(0, Predicate.Op.LESS_THAN, new IntField(cutoff));
+    List<List<Integer>> expected = new ArrayList<>();
+    for (List<Integer> t : tuples) {
+      if (t.get(0) < cutoff)
+        expected.add(t);
+    }
+    SystemTestUtil.matchTuples(new Exchange(workers(new MorselSource(hf, 1), p)), expected);
+  }
+
+  /**
+   * A gathering Exchange can be rewound, and closed before it is drained.
+   */
+  @Test(timeout = 20000) public void rewindAndCloseEarly() throws Exception {
+    Exchange ex = new Exchange(workers(new MorselSource(hf, 1), null));
+    ex.open();
+    assertEquals(ROWS, SystemTestUtil.tuplesToList(ex).size());
+    ex.rewind();
+    assertEquals(ROWS, SystemTestUtil.tuplesToList(ex).size());
+    ex.rewind();
+    assertTrue(ex.hasNext());
+    ex.next();
+    ex.close();
+  }
+
+  /**
+   * Repartitioning sends each tuple to the partition its field hashes to,
+   * and the partitions may be drained one after another.
+   */
+  @Test(timeout = 20000) public void repartitionByHash() throws Exception {
+    int partitions = 3;
+    Exchange[] parts = Exchange.repartition(workers(new MorselSource(hf, 1), null), 1, partitions);
+    for (Exchange part : parts)
+      part.open();
+    int total = 0;
+    for (int i = 0; i < partitions; i++) {
+      while (parts[i].hasNext()) {
+        Tuple t = parts[i].next();
+        assertEquals(i, Math.floorMod(t.getField(1).hashCode(), partitions));
+        total++;
+      }
+    }
+    for (Exchange part : parts)
+      part.close();
+    assertEquals(ROWS, total);
+  }
+
+  /**
+   * With parallelism set, the planner scans and filters a large table
+   * through an Exchange, with the same result as a serial plan.
+   */
+  @Test(timeout = 60000) public void plannerScansInParallel() throws Exception {
+    List<List<Integer>> big = new ArrayList<>();
+    HeapFile bigFile = SystemTestUtil.createRandomHeapFile(2, 20000, null, big, "c");
+    Database.getCatalog().addTable(bigFile, "big");
+    TableStats.setTableStats("big", new TableStats(bigFile.getId(), 1));
+    assertTrue(new MorselSource(bigFile).numMorsels() >= 2);
+
+    List<List<Integer>> expected = new ArrayList<>();
+    for (List<Integer> t : big) {
+      if (t.get(1) > 1000)
+        expected.add(t);
+    }
+    LogicalPlan lp = new Parser().generateLogicalPlan(tid, "SELECT * FROM big WHERE big.c1 > 1000;");
+    lp.setParallelism(WORKERS);
+    OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    assertTrue(plan.getClass().getSimpleName(), planContains(plan, Exchange.class));
+    SystemTestUtil.matchTuples(plan, expected);
+  }
+
+  private static boolean planContains(OpIterator plan, Class<?> c) {
+    if (c.isInstance(plan))
+      return true;
+    if (!(plan instanceof simpledb.execution.Operator))
+      return false;
+    OpIterator[] children = ((simpledb.execution.Operator) plan).getChildren();
+    if (children == null)
+      return false;
+    for (OpIterator child : children) {
+      if (child != null && planContains(child, c))
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ExchangeTest.class);
+  }
+}
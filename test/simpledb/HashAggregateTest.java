@@ -0,0 +1,229 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static simpledb.systemtest.SystemTestUtil.sortTuples;
+import static simpledb.systemtest.SystemTestUtil.tuplesToList;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.Aggregator;
+import simpledb.execution.Exchange;
+import simpledb.execution.HashAggregate;
+import simpledb.execution.MorselScan;
+import simpledb.execution.MorselSource;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Project;
+import simpledb.execution.SeqScan;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+public class HashAggregateTest extends SimpleDbTestBase {
+
+  private static final Aggregator.Op[] OPS = {Aggregator.Op.MIN, Aggregator.Op.MAX,
+      Aggregator.Op.SUM, Aggregator.Op.AVG, Aggregator.Op.COUNT};
+
+  private HeapFile hf;
+  private List<List<Integer>> tuples;
+  private TransactionId tid;
+
+  @Before public void createTable() throws Exception {
+    tuples = new ArrayList<>();
+    // grouping on c0 and c1 gives thousands of groups of a few tuples each
+    hf = SystemTestUtil.createRandomHeapFile(3, 20000, 100, null, tuples, "c");
+    tid = new TransactionId();
+  }
+
+  /** @return MIN, MAX, SUM, AVG and COUNT of c2, grouped by c0 and c1 */
+  private List<List<Integer>> expected() {
+    Map<List<Integer>, List<Integer>> groups = new HashMap<>();
+    for (List<Integer> t : tuples)
+      groups.computeIfAbsent(t.subList(0, 2), k -> new ArrayList<>()).add(t.get(2));
+    List<List<Integer>> rows = new ArrayList<>();
+    for (Map.Entry<List<Integer>, List<Integer>> g : groups.entrySet()) {
+      List<Integer> v = g.getValue();
+      long sum = v.stream().mapToLong(Integer::longValue).sum();
+      List<Integer> row = new ArrayList<>(g.getKey());
+      row.addAll(Arrays.asList(v.stream().min(Integer::compare).get(),
+          v.stream().max(Integer::compare).get(), (int) sum, (int) (sum / v.size()), v.size()));
+      rows.add(row);
+    }
+    return sortTuples(rows);
+  }
+
+  /**
+   * Every aggregate of every group is computed, whether the groups fit in
+   * memory or are spilled, repeatedly, to disk; and the aggregate can be
+   * rewound.
+   */
+  @Test public void aggregatesGroupsOfSeveralFields() throws Exception {
+    List<List<Integer>> expected = expected();
+    assertTrue(expected.size() > 5000);
+    for (int pages : new int[] {HashAggregate.DEFAULT_BUFFER_PAGES, 4, 1}) {
+      HashAggregate agg = new HashAggregate(new SeqScan(tid, hf.getId(), "t"), new int[] {0, 1},
+          new int[] {2, 2, 2, 2, 2}, OPS, pages);
+      agg.open();
+      assertEquals("buffer of " + pages, expected, sortTuples(tuplesToList(agg)));
+      agg.rewind();
+      assertEquals("rewound buffer of " + pages, expected, sortTuples(tuplesToList(agg)));
+      agg.close();
+    }
+  }
+
+  /**
+   * Sums are accumulated in longs, so an average does not overflow even
+   * where the sum does not fit in an INT_TYPE.
+   */
+  @Test public void accumulatesInLongs() throws Exception {
+    int big = 2000000000;
+    OpIterator child = TestUtil.createTupleList(2, new int[] {1, big, 1, big, 1, big, 2, -big, 2, -big});
+    HashAggregate avg = new HashAggregate(child, new int[] {0}, new int[] {1},
+        new Aggregator.Op[] {Aggregator.Op.AVG});
+    avg.open();
+    assertEquals(Arrays.asList(Arrays.asList(1, big), Arrays.asList(2, -big)), sortTuples(tuplesToList(avg)));
+    avg.close();
+
+    HashAggregate sum = new HashAggregate(child, new int[] {0}, new int[] {1},
+        new Aggregator.Op[] {Aggregator.Op.SUM});
+    sum.open();
+    try {
+      tuplesToList(sum);
+      throw new AssertionError("returned a sum too big for an INT_TYPE");
+    } catch (DbException expected) {
+    }
+    sum.close();
+  }
+
+  /**
+   * Strings can be grouped by and counted, and nothing is read from the
+   * child until the aggregate is opened.
+   */
+  @Test public void groupsStringsWhenOpened() throws Exception {
+    int[] opens = new int[1];
+    OpIterator data = TestUtil.createTupleList(3,
+        new Object[] {"a", 1, "x", "b", 2, "y", "a", 3, "z", "a", 4, "x"});
+    OpIterator child = new Project(Arrays.asList(0, 1, 2),
+        new Type[] {Type.STRING_TYPE, Type.INT_TYPE, Type.STRING_TYPE}, data) {
+      private static final long serialVersionUID = 1L;
+
+      @Override public void open() throws DbException, TransactionAbortedException {
+        opens[0]++;
+        super.open();
+      }
+    };
+    HashAggregate agg = new HashAggregate(child, new int[] {0}, new int[] {2, 1},
+        new Aggregator.Op[] {Aggregator.Op.COUNT, Aggregator.Op.SUM});
+    assertEquals(0, opens[0]);
+    agg.open();
+    assertEquals(1, opens[0]);
+    Map<String, List<Integer>> groups = new HashMap<>();
+    while (agg.hasNext()) {
+      Tuple t = agg.next();
+      groups.put(((StringField) t.getField(0)).getValue(), Arrays.asList(
+          ((IntField) t.getField(1)).getValue(), ((IntField) t.getField(2)).getValue()));
+    }
+    agg.close();
+    assertEquals(2, groups.size());
+    assertEquals(Arrays.asList(3, 8), groups.get("a"));
+    assertEquals(Arrays.asList(1, 2), groups.get("b"));
+    try {
+      new HashAggregate(child, new int[] {0}, new int[] {2}, new Aggregator.Op[] {Aggregator.Op.SUM});
+      throw new AssertionError("summed strings");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  /**
+   * A query may group by several fields and compute several aggregates.
+   */
+  @Test public void parsesSeveralGroupsAndAggregates() throws Exception {
+    Database.getCatalog().addTable(hf, "grouped");
+    TableStats.setTableStats("grouped", new TableStats(hf.getId(), 1));
+    LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+        "SELECT grouped.c0, grouped.c1, MIN(grouped.c2), MAX(grouped.c2), SUM(grouped.c2), "
+        + "AVG(grouped.c2), COUNT(grouped.c2) FROM grouped GROUP BY grouped.c0, grouped.c1;");
+    OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    plan.open();
+    assertEquals(expected(), sortTuples(tuplesToList(plan)));
+    plan.close();
+  }
+
+  /**
+   * Aggregating in parallel, each worker with its own table that may spill,
+   * gives every group the aggregates a single HashAggregate does, including
+   * sums that only fit in a long until they are averaged.
+   */
+  @Test(timeout = 60000) public void aggregatesInParallel() throws Exception {
+    MorselSource source = new MorselSource(hf, 1);
+    OpIterator[] workers = new OpIterator[4];
+    for (int i = 0; i < workers.length; i++)
+      workers[i] = new MorselScan(tid, source, "t");
+    HashAggregate agg = HashAggregate.parallel(workers, new int[] {0, 1},
+        new int[] {2, 2, 2, 2, 2}, OPS);
+    assertEquals(HashAggregate.Phase.FINAL, agg.getPhase());
+    OpIterator[] partials = ((Exchange) agg.getChildren()[0]).getChildren();
+    assertEquals(HashAggregate.Phase.PARTIAL, ((HashAggregate) partials[0]).getPhase());
+    agg.open();
+    assertEquals(expected(), sortTuples(tuplesToList(agg)));
+    agg.rewind();
+    assertEquals(expected(), sortTuples(tuplesToList(agg)));
+    agg.close();
+
+    int big = 2000000000;
+    OpIterator[] halves = {
+        TestUtil.createTupleList(2, new int[] {1, big, 1, big, 2, 7}),
+        TestUtil.createTupleList(2, new int[] {1, big, 2, -3, 1, -big})};
+    HashAggregate avg = HashAggregate.parallel(halves, new int[] {0}, new int[] {1, 1, 1},
+        new Aggregator.Op[] {Aggregator.Op.AVG, Aggregator.Op.COUNT, Aggregator.Op.MIN});
+    avg.open();
+    assertEquals(Arrays.asList(Arrays.asList(1, big / 2, 4, -big), Arrays.asList(2, 2, 2, -3)),
+        sortTuples(tuplesToList(avg)));
+    avg.close();
+  }
+
+  /**
+   * With parallelism set, the planner aggregates a table it scans in
+   * parallel in a PARTIAL HashAggregate on each worker.
+   */
+  @Test(timeout = 60000) public void plannerAggregatesInParallel() throws Exception {
+    Database.getCatalog().addTable(hf, "grouped");
+    TableStats.setTableStats("grouped", new TableStats(hf.getId(), 1));
+    assertTrue(new MorselSource(hf).numMorsels() >= 2);
+    LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+        "SELECT grouped.c0, grouped.c1, MIN(grouped.c2), MAX(grouped.c2), SUM(grouped.c2), "
+        + "AVG(grouped.c2), COUNT(grouped.c2) FROM grouped GROUP BY grouped.c0, grouped.c1;");
+    lp.setParallelism(4);
+    OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    OpIterator agg = ((Project) plan).getChildren()[0];
+    assertEquals(HashAggregate.Phase.FINAL, ((HashAggregate) agg).getPhase());
+    plan.open();
+    assertEquals(expected(), sortTuples(tuplesToList(plan)));
+    plan.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(HashAggregateTest.class);
+  }
+}
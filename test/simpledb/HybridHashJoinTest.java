@@ -0,0 +1,161 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static simpledb.systemtest.SystemTestUtil.readTuples;
+import static simpledb.systemtest.SystemTestUtil.sortTuples;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Type;
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.execution.TupleAdapter;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.SpillFile;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class HybridHashJoinTest extends SimpleDbTestBase {
+
+  private static final int BUILD_ROWS = 3 * HashEquiJoin.MAP_SIZE;
+  private static final int PROBE_ROWS = 2000;
+  private static final int KEYS = 20000;
+
+  private HeapFile build;
+  private HeapFile probe;
+  private List<List<Integer>> expected;
+  private TransactionId tid;
+
+  @Before public void createTables() throws Exception {
+    List<List<Integer>> buildTuples = new ArrayList<>();
+    List<List<Integer>> probeTuples = new ArrayList<>();
+    build = SystemTestUtil.createRandomHeapFile(2, BUILD_ROWS, KEYS, null, buildTuples);
+    probe = SystemTestUtil.createRandomHeapFile(2, PROBE_ROWS, KEYS, null, probeTuples);
+    tid = new TransactionId();
+
+    Map<Integer, List<List<Integer>>> byKey = new HashMap<>();
+    for (List<Integer> t : buildTuples)
+      byKey.computeIfAbsent(t.get(0), k -> new ArrayList<>()).add(t);
+    expected = new ArrayList<>();
+    for (List<Integer> p : probeTuples) {
+      for (List<Integer> b : byKey.getOrDefault(p.get(0), new ArrayList<>())) {
+        List<Integer> row = new ArrayList<>(b);
+        row.addAll(p);
+        expected.add(row);
+      }
+    }
+    sortTuples(expected);
+  }
+
+  private HashEquiJoin join(HeapFile left, HeapFile right) {
+    return new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+        new SeqScan(tid, left.getId(), "l"), new SeqScan(tid, right.getId(), "r"));
+  }
+
+  /**
+   * A build side several times MAP_SIZE is partitioned to disk and still
+   * joins every matching pair exactly once.
+   */
+  @Test(timeout = 120000) public void buildSideSpills() throws Exception {
+    assertFalse(expected.isEmpty());
+    assertEquals(expected, sortTuples(readTuples(join(build, probe))));
+  }
+
+  /**
+   * The same, a batch at a time.
+   */
+  @Test(timeout = 120000) public void buildSideSpillsBatched() throws Exception {
+    assertEquals(expected, sortTuples(readTuples(new TupleAdapter(join(build, probe)))));
+  }
+
+  /**
+   * A spilled join can be rewound.
+   */
+  @Test(timeout = 120000) public void rewindSpilledJoin() throws Exception {
+    HashEquiJoin j = join(build, probe);
+    j.open();
+    int first = 0;
+    while (j.hasNext()) {
+      j.next();
+      first++;
+    }
+    j.rewind();
+    int second = 0;
+    while (j.hasNext()) {
+      j.next();
+      second++;
+    }
+    j.close();
+    assertEquals(expected.size(), first);
+    assertEquals(first, second);
+  }
+
+  /**
+   * A single key repeated more than MAP_SIZE times cannot be split by
+   * repartitioning; the join falls back to loading it in chunks.
+   */
+  @Test(timeout = 120000) public void skewedKeyFallsBack() throws Exception {
+    Map<Integer, Integer> constant = new HashMap<>();
+    constant.put(0, 7);
+    HeapFile skewed = SystemTestUtil.createRandomHeapFile(2, HashEquiJoin.MAP_SIZE + 500, constant, null);
+    HeapFile few = SystemTestUtil.createRandomHeapFile(2, 3, constant, null);
+    assertEquals(3 * (HashEquiJoin.MAP_SIZE + 500), sortTuples(readTuples(join(skewed, few))).size());
+  }
+
+  /**
+   * Spill files give back the tuples written to them, strings included.
+   */
+  @Test public void spillFileRoundTrip() throws Exception {
+    TupleDesc td = new TupleDesc(new Type[] {Type.INT_TYPE, Type.STRING_TYPE});
+    SpillFile f = new SpillFile(td);
+    List<Tuple> written = new ArrayList<>();
+    for (int i = 0; i < 5000; i++) {
+      Tuple t = new Tuple(td);
+      t.setField(0, new IntField(i));
+      t.setField(1, new StringField("row " + i, Type.STRING_LEN));
+      f.add(t);
+      written.add(t);
+    }
+    OpIterator it = f.iterator();
+    for (int pass = 0; pass < 2; pass++) {
+      if (pass == 0)
+        it.open();
+      else
+        it.rewind();
+      for (Tuple t : written) {
+        assertTrue(it.hasNext());
+        Tuple read = it.next();
+        assertEquals(Arrays.asList(t.getField(0), t.getField(1)),
+            Arrays.asList(read.getField(0), read.getField(1)));
+      }
+      assertFalse(it.hasNext());
+    }
+    it.close();
+    f.delete();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(HybridHashJoinTest.class);
+  }
+}
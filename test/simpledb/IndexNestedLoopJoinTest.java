@@ -0,0 +1,195 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static simpledb.systemtest.SystemTestUtil.readTuples;
+import static simpledb.systemtest.SystemTestUtil.sortTuples;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.Filter;
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.IndexNestedLoopJoin;
+import simpledb.execution.Join;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.index.BTreeUtility;
+import simpledb.optimizer.JoinOptimizer;
+import simpledb.optimizer.LogicalJoinNode;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class IndexNestedLoopJoinTest extends SimpleDbTestBase {
+
+  private HeapFile outer;
+  private BTreeFile inner;
+  private TransactionId tid;
+
+  @Before public void createTables() throws Exception {
+    outer = SystemTestUtil.createRandomHeapFile(2, 300, 500, null, null, "c");
+    BTreeFile unnamed = BTreeUtility.createRandomBTreeFile(2, 5000, 500, null, null, 0);
+    inner = BTreeUtility.openBTreeFile(2, "c", unnamed.getFile(), 0);
+    tid = new TransactionId();
+  }
+
+  private SeqScan outerScan() {
+    return new SeqScan(tid, outer.getId(), "o");
+  }
+
+  /** A few outer tuples, so that range joins stay small */
+  private OpIterator fewOuter() {
+    return new Filter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(15)), outerScan());
+  }
+
+  private BTreeScan innerScan() {
+    return new BTreeScan(tid, inner.getId(), "i", null);
+  }
+
+  /**
+   * Searching the index joins the same pairs as scanning it, for every
+   * operator a B+ tree search can answer.
+   */
+  @Test public void matchesNestedLoops() throws Exception {
+    for (Predicate.Op op : new Predicate.Op[] {Predicate.Op.EQUALS, Predicate.Op.LIKE,
+        Predicate.Op.LESS_THAN, Predicate.Op.LESS_THAN_OR_EQ,
+        Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ}) {
+      JoinPredicate p = new JoinPredicate(0, op, 0);
+      List<List<Integer>> expected = sortTuples(readTuples(new Join(p, fewOuter(), innerScan())));
+      assertFalse(op.toString(), expected.isEmpty());
+      assertEquals(op.toString(), expected,
+          sortTuples(readTuples(new IndexNestedLoopJoin(p, fewOuter(), innerScan()))));
+    }
+  }
+
+  /**
+   * Outer tuples are probed in order of their keys, and the join can be
+   * rewound.
+   */
+  @Test public void probesInKeyOrder() throws Exception {
+    IndexNestedLoopJoin j = new IndexNestedLoopJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+        outerScan(), innerScan());
+    j.open();
+    for (int pass = 0; pass < 2; pass++) {
+      int last = Integer.MIN_VALUE, count = 0;
+      while (j.hasNext()) {
+        int key = ((IntField) j.next().getField(0)).getValue();
+        assertTrue(key >= last);
+        last = key;
+        count++;
+      }
+      assertTrue(count > 0);
+      j.rewind();
+    }
+    j.close();
+  }
+
+  /**
+   * Only the key field of a B+ tree, and operators it can search for, are
+   * accepted.
+   */
+  @Test public void rejectsUnsearchableJoins() {
+    try {
+      new IndexNestedLoopJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 1), outerScan(), innerScan());
+      throw new AssertionError("joined on a field that is not the key");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      new IndexNestedLoopJoin(new JoinPredicate(0, Predicate.Op.NOT_EQUALS, 0), outerScan(), innerScan());
+      throw new AssertionError("joined on NOT_EQUALS");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  /**
+   * Given estimates, the optimizer searches the index of a filtered table it
+   * would otherwise scan, and keeps the filter.  Without them, it hashes.
+   */
+  @Test public void optimizerChoosesIndexJoin() throws Exception {
+    LogicalPlan lp = new LogicalPlan();
+    lp.addScan(outer.getId(), "o");
+    lp.addScan(inner.getId(), "i");
+    TableStats.setTableStats(Database.getCatalog().getTableName(inner.getId()),
+        new TableStats(inner.getId(), 1000));
+    double scanCost = TableStats.getTableStats(Database.getCatalog().getTableName(inner.getId()))
+        .estimateScanCost();
+    JoinOptimizer jo = new JoinOptimizer(lp, new ArrayList<>());
+    SeqScan o = outerScan(), i = new SeqScan(tid, inner.getId(), "i");
+    Predicate filter = new Predicate(1, Predicate.Op.LESS_THAN, new IntField(250));
+    LogicalJoinNode join = new LogicalJoinNode("o", "i",
+        o.getTupleDesc().getFieldName(0), i.getTupleDesc().getFieldName(0), Predicate.Op.EQUALS);
+    assertTrue(JoinOptimizer.instantiateJoin(join, outerScan(),
+        new Filter(filter, new SeqScan(tid, inner.getId(), "i"))) instanceof HashEquiJoin);
+    OpIterator j = jo.instantiateJoin(join, o, new Filter(filter, i), 2, 5000, 1000, scanCost);
+    assertTrue(j instanceof Filter);
+    assertTrue(((Filter) j).getChildren()[0] instanceof IndexNestedLoopJoin);
+    JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    assertEquals(sortTuples(readTuples(new HashEquiJoin(p, outerScan(),
+        new Filter(filter, new SeqScan(tid, inner.getId(), "i"))))), sortTuples(readTuples(j)));
+  }
+
+  /**
+   * Probing an index costs less than scanning the table for each outer
+   * tuple, but only when the index is on the inner side.
+   */
+  @Test public void costsIndexProbes() {
+    LogicalPlan lp = new LogicalPlan();
+    lp.addScan(outer.getId(), "o");
+    lp.addScan(inner.getId(), "i");
+    TableStats.setTableStats(Database.getCatalog().getTableName(inner.getId()),
+        new TableStats(inner.getId(), 1000));
+    JoinOptimizer jo = new JoinOptimizer(lp, new ArrayList<>());
+    LogicalJoinNode join = new LogicalJoinNode("o", "i", "c0", "c0", Predicate.Op.EQUALS);
+    double scanCost = TableStats.getTableStats(Database.getCatalog().getTableName(inner.getId()))
+        .estimateScanCost();
+    double nestedLoops = 1000 + 300 * scanCost + 300 * 5000;
+    assertTrue(jo.estimateJoinCost(join, 300, 5000, 1000, scanCost) < nestedLoops / 2);
+    assertEquals(scanCost + 5000 * 1000.0 + 5000 * 300,
+        jo.estimateJoinCost(join.swapInnerOuter(), 5000, 300, scanCost, 1000), 0.001);
+  }
+
+  /**
+   * Given estimates, the optimizer only searches the index when that is
+   * cheaper than hashing both sides.
+   */
+  @Test public void optimizerCostsIndexJoin() throws Exception {
+    LogicalPlan lp = new LogicalPlan();
+    lp.addScan(outer.getId(), "o");
+    lp.addScan(inner.getId(), "i");
+    TableStats.setTableStats(Database.getCatalog().getTableName(inner.getId()),
+        new TableStats(inner.getId(), 1000));
+    double scanCost = TableStats.getTableStats(Database.getCatalog().getTableName(inner.getId()))
+        .estimateScanCost();
+    JoinOptimizer jo = new JoinOptimizer(lp, new ArrayList<>());
+    LogicalJoinNode join = new LogicalJoinNode("o", "i", "c0", "c0", Predicate.Op.EQUALS);
+
+    OpIterator few = jo.instantiateJoin(join, outerScan(), new SeqScan(tid, inner.getId(), "i"),
+        2, 5000, 1000, scanCost);
+    assertTrue(few instanceof IndexNestedLoopJoin);
+    OpIterator many = jo.instantiateJoin(join, outerScan(), new SeqScan(tid, inner.getId(), "i"),
+        1000000, 5000, 1000000, scanCost);
+    assertTrue(many instanceof HashEquiJoin);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(IndexNestedLoopJoinTest.class);
+  }
+}
@@ -13,6 +13,7 @@ import simpledb.execution.Join;
 import simpledb.execution.JoinPredicate;
 import simpledb.execution.OpIterator;
 import simpledb.execution.Predicate;
+import simpledb.storage.BufferPool;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.systemtest.SimpleDbTestBase;
@@ -112,6 +113,32 @@ public class JoinTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(eqJoin, op);
   }
 
+  /**
+   * The inner child is scanned once per block of outer tuples, not once
+   * per outer tuple.
+   */
+  @Test public void scansInnerOncePerBlock() throws Exception {
+    int blockSize = Join.BLOCK_PAGES * BufferPool.getPageSize() / Utility.getTupleDesc(width1).getSize();
+    int[] rewinds = new int[1];
+    OpIterator outer = new TestUtil.MockScan(0, 3 * blockSize + 10, width1);
+    OpIterator inner = new TestUtil.MockScan(0, 10, 1) {
+      @Override public void rewind() {
+        rewinds[0]++;
+        super.rewind();
+      }
+    };
+    Join op = new Join(new JoinPredicate(0, Predicate.Op.LESS_THAN, 0), outer, inner);
+    op.open();
+    int count = 0;
+    while (op.hasNext()) {
+      op.next();
+      count++;
+    }
+    op.close();
+    assertEquals(45, count);
+    assertEquals(3, rewinds[0]);
+  }
+
   /**
    * JUnit suite target
    */
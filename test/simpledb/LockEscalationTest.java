@@ -0,0 +1,124 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.LockMode;
+import simpledb.transaction.TransactionId;
+
+public class LockEscalationTest extends SimpleDbTestBase {
+
+  /** Time to wait before checking the state of lock contention, in ms */
+  private static final int TIMEOUT = 100;
+
+  private PageId p0, p1, p2;
+  private TransactionId tid1, tid2;
+  private BufferPool bp;
+
+  @Before public void setUp() throws Exception {
+    // 504 two-int tuples fit on a page, so this makes three pages
+    HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 1500, null, null);
+    assertEquals(3, hf.numPages());
+    p0 = new HeapPageId(hf.getId(), 0);
+    p1 = new HeapPageId(hf.getId(), 1);
+    p2 = new HeapPageId(hf.getId(), 2);
+    tid1 = new TransactionId();
+    tid2 = new TransactionId();
+    bp = Database.getBufferPool();
+    bp.setLockEscalationThreshold(2);
+  }
+
+  private void grabLock(TransactionId tid, PageId pid, Permissions perm, boolean expected) throws Exception {
+    TestUtil.LockGrabber t = new TestUtil.LockGrabber(tid, pid, perm);
+    t.start();
+    Thread.sleep(TIMEOUT);
+    assertEquals(expected, t.acquired());
+    t.stop();
+  }
+
+  /**
+   * Intention locks on the table let a reader and a writer work on
+   * different pages.
+   */
+  @Test public void intentionLocksShareTable() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    grabLock(tid2, p1, Permissions.READ_ONLY, true);
+  }
+
+  /**
+   * Below the threshold, locks stay at page granularity.
+   */
+  @Test public void noEscalationBelowThreshold() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid1, p1, Permissions.READ_ONLY);
+    assertFalse(bp.holdsLock(tid1, p2));
+    grabLock(tid2, p2, Permissions.READ_WRITE, true);
+  }
+
+  /**
+   * A reader crossing the threshold gets a shared table lock, which covers
+   * pages it never touched and keeps writers out of them.
+   */
+  @Test public void readerEscalatesToShared() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid1, p1, Permissions.READ_ONLY);
+    bp.getPage(tid1, p2, Permissions.READ_ONLY);
+    assertTrue(bp.holdsLock(tid1, p0));
+    assertTrue(bp.holdsLock(tid1, p2));
+    grabLock(tid2, p0, Permissions.READ_ONLY, true);
+    grabLock(tid2, p1, Permissions.READ_WRITE, false);
+  }
+
+  /**
+   * A writer crossing the threshold gets an exclusive table lock.
+   */
+  @Test public void writerEscalatesToExclusive() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    bp.getPage(tid1, p1, Permissions.READ_ONLY);
+    bp.getPage(tid1, p2, Permissions.READ_ONLY);
+    grabLock(tid2, p2, Permissions.READ_ONLY, false);
+  }
+
+  /**
+   * Escalated locks are released when the transaction completes.
+   */
+  @Test public void escalatedLockReleased() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    bp.getPage(tid1, p1, Permissions.READ_WRITE);
+    bp.getPage(tid1, p2, Permissions.READ_WRITE);
+    bp.transactionComplete(tid1);
+    assertFalse(bp.holdsLock(tid1, p0));
+    grabLock(tid2, p0, Permissions.READ_WRITE, true);
+  }
+
+  @Test public void lockModes() {
+    assertTrue(LockMode.INTENTION_SHARED.compatibleWith(LockMode.SHARED_INTENTION_EXCLUSIVE));
+    assertFalse(LockMode.INTENTION_EXCLUSIVE.compatibleWith(LockMode.SHARED));
+    assertFalse(LockMode.SHARED_INTENTION_EXCLUSIVE.compatibleWith(LockMode.SHARED_INTENTION_EXCLUSIVE));
+    assertEquals(LockMode.SHARED_INTENTION_EXCLUSIVE, LockMode.SHARED.join(LockMode.INTENTION_EXCLUSIVE));
+    assertEquals(LockMode.EXCLUSIVE, LockMode.SHARED_INTENTION_EXCLUSIVE.join(LockMode.EXCLUSIVE));
+    assertEquals(LockMode.SHARED, LockMode.INTENTION_SHARED.join(LockMode.SHARED));
+    assertTrue(LockMode.SHARED_INTENTION_EXCLUSIVE.implicitlyGrants(LockMode.SHARED));
+    assertFalse(LockMode.SHARED_INTENTION_EXCLUSIVE.implicitlyGrants(LockMode.INTENTION_EXCLUSIVE));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(LockEscalationTest.class);
+  }
+}
@@ -0,0 +1,263 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.execution.SeqScan;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.LogFile;
+import simpledb.storage.PageId;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+public class LogFileTest extends SimpleDbTestBase {
+
+  private static final int SEGMENT_SIZE = 256;
+
+  private File dir;
+  private File base;
+
+  @Before public void createLogDir() throws IOException {
+    dir = Files.createTempDirectory("simpledb-log").toFile();
+    base = new File(dir, "log");
+  }
+
+  @After public void removeLogDir() {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File f : files)
+        f.delete();
+    }
+    dir.delete();
+  }
+
+  private int numSegments() {
+    File[] files = dir.listFiles((d, name) -> name.startsWith("log."));
+    return files == null ? 0 : files.length;
+  }
+
+  private void runTransactions(LogFile log, int n) throws IOException {
+    for (int i = 0; i < n; i++) {
+      TransactionId tid = new TransactionId();
+      log.logXactionBegin(tid);
+      log.logCommit(tid);
+    }
+  }
+
+  /**
+   * Records spill across several segment files once the log grows past
+   * one segment.
+   */
+  @Test public void logSpansSegments() throws Exception {
+    LogFile log = new LogFile(base, SEGMENT_SIZE);
+    runTransactions(log, 50);
+    assertTrue(numSegments() > 4);
+    assertEquals(100, log.getTotalRecords());
+    log.shutdown();
+  }
+
+  /**
+   * A checkpoint with no outstanding transactions lets truncation drop
+   * every segment before the checkpoint record.
+   */
+  @Test public void truncateDropsOldSegments() throws Exception {
+    LogFile log = new LogFile(base, SEGMENT_SIZE);
+    runTransactions(log, 50);
+    int before = numSegments();
+    log.logCheckpoint();
+    assertTrue(numSegments() < before);
+    assertTrue(numSegments() <= 2);
+
+    // the log is still appendable after truncation
+    runTransactions(log, 5);
+    log.shutdown();
+  }
+
+  /**
+   * Segments holding records of a transaction that is still running at
+   * checkpoint time must survive truncation.
+   */
+  @Test public void truncateKeepsActiveTransactions() throws Exception {
+    LogFile log = new LogFile(base, SEGMENT_SIZE);
+    TransactionId longRunning = new TransactionId();
+    log.logXactionBegin(longRunning);
+    runTransactions(log, 50);
+    int before = numSegments();
+    log.logCheckpoint();
+    assertTrue(numSegments() >= before);
+
+    log.logCommit(longRunning);
+    log.logCheckpoint();
+    assertTrue(numSegments() < before);
+    log.shutdown();
+  }
+
+  /**
+   * Insert one tuple into a fresh table on behalf of tid, leaving a single
+   * dirty page in the buffer pool.
+   */
+  private PageId dirtyOnePage(TransactionId tid) throws Exception {
+    HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+    Tuple t = new Tuple(hf.getTupleDesc());
+    t.setField(0, TestUtil.getField(1));
+    t.setField(1, TestUtil.getField(2));
+    Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+    return t.getRecordId().getPageId();
+  }
+
+  /**
+   * Checkpoints are fuzzy: dirty pages stay in the buffer pool and are
+   * recorded in the dirty page table instead of being flushed.
+   */
+  @Test public void checkpointDoesNotFlush() throws Exception {
+    LogFile log = Database.getLogFile();
+    BufferPool bp = Database.getBufferPool();
+    TransactionId tid = new TransactionId();
+    log.logXactionBegin(tid);
+    PageId pid = dirtyOnePage(tid);
+
+    log.logCheckpoint();
+    assertNotNull(bp.getPage(tid, pid, Permissions.READ_ONLY).isDirty());
+    assertTrue(bp.dirtyPageTable().containsKey(pid));
+    log.logCommit(tid);
+  }
+
+  /**
+   * A commit forces the pages of its transaction out, so they leave the
+   * dirty page table.
+   */
+  @Test public void commitForcesPages() throws Exception {
+    BufferPool bp = Database.getBufferPool();
+    Transaction t = new Transaction();
+    t.start();
+    PageId pid = dirtyOnePage(t.getId());
+    assertTrue(bp.dirtyPageTable().containsKey(pid));
+
+    t.commit();
+    assertFalse(bp.dirtyPageTable().containsKey(pid));
+  }
+
+  /**
+   * A force covers every record appended before it, so a commit whose
+   * records are already on disk does not force the log again.
+   */
+  @Test public void forceUpToSkipsForcedRecords() throws Exception {
+    LogFile log = Database.getLogFile();
+    TransactionId first = new TransactionId();
+    TransactionId second = new TransactionId();
+    log.logXactionBegin(first);
+    log.logXactionBegin(second);
+    long firstLsn = log.currentLsn();
+    long forces = Database.getStats().getLogForces();
+
+    log.forceUpTo(log.currentLsn());
+    log.forceUpTo(firstLsn);
+    assertEquals(forces + 1, Database.getStats().getLogForces());
+    log.logCommit(first);
+    log.logCommit(second);
+  }
+
+  /**
+   * Committed changes survive a checkpoint followed by the loss of the
+   * buffer pool.
+   */
+  @Test public void committedDataSurvivesCheckpoint() throws Exception {
+    HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+    Transaction t = new Transaction();
+    t.start();
+    Tuple tup = new Tuple(hf.getTupleDesc());
+    tup.setField(0, TestUtil.getField(1));
+    tup.setField(1, TestUtil.getField(2));
+    Database.getBufferPool().insertTuple(t.getId(), hf.getId(), tup);
+    t.commit();
+
+    Database.getLogFile().logCheckpoint();
+    Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+    TransactionId tid = new TransactionId();
+    SeqScan scan = new SeqScan(tid, hf.getId(), "t");
+    scan.open();
+    assertTrue(scan.hasNext());
+    assertEquals(Arrays.asList(1, 2), SystemTestUtil.tupleToList(scan.next()));
+    assertFalse(scan.hasNext());
+    scan.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * The background checkpointer takes checkpoints on its own, without
+   * failing.
+   */
+  @Test public void backgroundCheckpointer() throws Exception {
+    LogFile log = Database.getLogFile();
+    Transaction t = new Transaction();
+    t.start();
+    dirtyOnePage(t.getId());
+    t.commit();
+    int records = log.getTotalRecords();
+
+    log.startCheckpointer(100, 0);
+    try {
+      long deadline = System.currentTimeMillis() + 10000;
+      while (log.getTotalRecords() == records && System.currentTimeMillis() < deadline)
+        Thread.sleep(20);
+      assertTrue(log.getTotalRecords() > records);
+    } finally {
+      log.stopCheckpointer();
+    }
+    assertEquals(0, Database.getStats().getCheckpointFailures());
+  }
+
+  /**
+   * A background checkpoint that fails with an unchecked exception is
+   * counted, and the checkpointer goes on to take the next one.
+   */
+  @Test public void checkpointerSurvivesUncheckedFailure() throws Exception {
+    long failures = Database.getStats().getCheckpointFailures();
+    AtomicInteger checkpoints = new AtomicInteger();
+    LogFile log = new LogFile(base, SEGMENT_SIZE) {
+      @Override public void logCheckpoint() throws IOException {
+        if (checkpoints.incrementAndGet() == 1)
+          throw new IllegalStateException("injected checkpoint failure");
+        super.logCheckpoint();
+      }
+    };
+    log.startCheckpointer(50, 0);
+    try {
+      long deadline = System.currentTimeMillis() + 10000;
+      while (checkpoints.get() < 2 && System.currentTimeMillis() < deadline)
+        Thread.sleep(20);
+    } finally {
+      log.stopCheckpointer();
+    }
+    assertTrue(checkpoints.get() >= 2);
+    assertEquals(failures + 1, Database.getStats().getCheckpointFailures());
+    log.shutdown();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(LogFileTest.class);
+  }
+}
@@ -0,0 +1,140 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import static simpledb.systemtest.SystemTestUtil.countTuples;
+import static simpledb.systemtest.SystemTestUtil.insertTuple;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+
+public class OptimisticTransactionTest extends SimpleDbTestBase {
+
+  private static final int ROWS = 20;
+
+  private HeapFile hf;
+  private BufferPool bp;
+
+  @Before public void setUp() throws Exception {
+    hf = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+    bp = Database.getBufferPool();
+  }
+
+  /**
+   * An optimistic transaction takes no locks, and its writes are seen by
+   * nobody else until it commits.
+   */
+  @Test public void writesPrivateUntilCommit() throws Exception {
+    Transaction occ = new Transaction(Transaction.Mode.OPTIMISTIC);
+    occ.start();
+    insertTuple(hf, occ.getId());
+    assertEquals(ROWS + 1, countTuples(hf, occ.getId()));
+    assertFalse(bp.holdsLock(occ.getId(), new HeapPageId(hf.getId(), 0)));
+
+    assertEquals(ROWS, countTuples(hf));
+    occ.commit();
+    assertEquals(ROWS + 1, countTuples(hf));
+  }
+
+  /**
+   * Of two optimistic transactions that read and write the same page, the
+   * second to commit fails validation and is rolled back.
+   */
+  @Test public void conflictingCommitAborts() throws Exception {
+    Transaction first = new Transaction(Transaction.Mode.OPTIMISTIC);
+    Transaction second = new Transaction(Transaction.Mode.OPTIMISTIC);
+    first.start();
+    second.start();
+    assertEquals(ROWS, countTuples(hf, first.getId()));
+    assertEquals(ROWS, countTuples(hf, second.getId()));
+    insertTuple(hf, first.getId());
+    insertTuple(hf, second.getId());
+
+    first.commit();
+    try {
+      second.commit();
+      fail("expected the second commit to fail validation");
+    } catch (TransactionAbortedException expected) {
+    }
+    assertEquals(ROWS + 1, countTuples(hf));
+  }
+
+  /**
+   * Optimistic transactions on different tables do not conflict.
+   */
+  @Test public void disjointCommitsSucceed() throws Exception {
+    HeapFile other = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+    Transaction first = new Transaction(Transaction.Mode.OPTIMISTIC);
+    Transaction second = new Transaction(Transaction.Mode.OPTIMISTIC);
+    first.start();
+    second.start();
+    insertTuple(hf, first.getId());
+    insertTuple(other, second.getId());
+    second.commit();
+    first.commit();
+    assertEquals(ROWS + 1, countTuples(hf));
+    assertEquals(ROWS + 1, countTuples(other));
+  }
+
+  /**
+   * An optimistic transaction reads past a locking writer without waiting,
+   * but cannot commit over its uncommitted changes.
+   */
+  @Test(timeout = 10000) public void neverBlocks() throws Exception {
+    Transaction writer = new Transaction();
+    writer.start();
+    insertTuple(hf, writer.getId());
+
+    Transaction occ = new Transaction(Transaction.Mode.OPTIMISTIC);
+    occ.start();
+    assertEquals(ROWS, countTuples(hf, occ.getId()));
+    try {
+      occ.commit();
+      fail("expected validation to fail against the running writer");
+    } catch (TransactionAbortedException expected) {
+    }
+
+    writer.commit();
+    occ = new Transaction(Transaction.Mode.OPTIMISTIC);
+    occ.start();
+    assertEquals(ROWS + 1, countTuples(hf, occ.getId()));
+    occ.commit();
+  }
+
+  /**
+   * SET TRANSACTION OPTIMISTIC starts an optimistic transaction in the
+   * Parser, which COMMIT ends.
+   */
+  @Test public void parserRunsOptimisticTransactions() throws Exception {
+    Database.getCatalog().addTable(hf, "occ");
+    Parser p = new Parser();
+    p.processNextStatement("SET TRANSACTION OPTIMISTIC;");
+    Transaction t = p.getTransaction();
+    assertEquals(Transaction.Mode.OPTIMISTIC, t.getMode());
+
+    p.processNextStatement("INSERT INTO occ VALUES (1, 2);");
+    assertEquals(ROWS, countTuples(hf));
+    p.processNextStatement("COMMIT;");
+    assertNull(p.getTransaction());
+    assertEquals(ROWS + 1, countTuples(hf));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(OptimisticTransactionTest.class);
+  }
+}
@@ -0,0 +1,101 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static simpledb.systemtest.SystemTestUtil.tuplesToList;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.OpIterator;
+import simpledb.execution.OrderBy;
+import simpledb.execution.SeqScan;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class OrderByTest extends SimpleDbTestBase {
+
+  private static final int ROWS = 20000;
+
+  private HeapFile hf;
+  private List<List<Integer>> tuples;
+  private TransactionId tid;
+
+  @Before public void createTable() throws Exception {
+    tuples = new ArrayList<>();
+    // few distinct values, so that the sort keys have many ties
+    hf = SystemTestUtil.createRandomHeapFile(3, ROWS, 50, null, tuples, "c");
+    tid = new TransactionId();
+  }
+
+  /** c1 descending, then c0 and c2 ascending */
+  private static final int[] FIELDS = {1, 0, 2};
+  private static final boolean[] ASC = {false, true, true};
+
+  private List<List<Integer>> expected() {
+    List<List<Integer>> sorted = new ArrayList<>(tuples);
+    sorted.sort(Comparator.<List<Integer>, Integer>comparing(t -> -t.get(1))
+        .thenComparing(t -> t.get(0)).thenComparing(t -> t.get(2)));
+    return sorted;
+  }
+
+  /**
+   * A sort that fits in memory orders on every field, in the direction
+   * given for it.
+   */
+  @Test public void sortsOnSeveralFields() throws Exception {
+    OrderBy o = new OrderBy(FIELDS, ASC, new SeqScan(tid, hf.getId(), "t"));
+    o.open();
+    assertEquals(expected(), tuplesToList(o));
+    o.close();
+  }
+
+  /**
+   * A sort bigger than its buffer spills runs and merges them, through
+   * more than one merge pass when there are many, and can be rewound.
+   */
+  @Test public void spillsAndMergesRuns() throws Exception {
+    int perPage = BufferPool.getPageSize() / hf.getTupleDesc().getSize();
+    for (int pages : new int[] {1, 3, 8, 40}) {
+      assertTrue(ROWS > pages * perPage);
+      OrderBy o = new OrderBy(FIELDS, ASC, new SeqScan(tid, hf.getId(), "t"), pages);
+      o.open();
+      assertEquals("buffer of " + pages, expected(), tuplesToList(o));
+      o.rewind();
+      assertEquals("rewound buffer of " + pages, expected(), tuplesToList(o));
+      o.close();
+    }
+  }
+
+  /**
+   * ORDER BY may list several fields.
+   */
+  @Test public void parsesSeveralFields() throws Exception {
+    Database.getCatalog().addTable(hf, "sorted");
+    TableStats.setTableStats("sorted", new TableStats(hf.getId(), 1));
+    LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+        "SELECT * FROM sorted ORDER BY sorted.c1 DESC, sorted.c0 ASC, sorted.c2;");
+    OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    plan.open();
+    assertEquals(expected(), tuplesToList(plan));
+    plan.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(OrderByTest.class);
+  }
+}
@@ -0,0 +1,65 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeHeaderPage;
+import simpledb.index.BTreeInternalPage;
+import simpledb.index.BTreePageId;
+import simpledb.index.BTreeRootPtrPage;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.Page;
+import simpledb.storage.PageId;
+import simpledb.storage.PageRegistry;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageRegistryTest extends SimpleDbTestBase {
+
+  /**
+   * Rebuild p from its tags and serialized form, the way LogFile reads
+   * before and after images, and check nothing was lost.
+   */
+  private void assertRoundTrip(Page p) throws IOException {
+    PageId pid = PageRegistry.newPageId(PageRegistry.pageIdTag(p.getId()), p.getId().serialize());
+    Page copy = PageRegistry.newPage(PageRegistry.pageTag(p), pid, p.getPageData());
+    assertEquals(p.getClass(), copy.getClass());
+    assertEquals(p.getId(), copy.getId());
+    assertArrayEquals(p.getPageData(), copy.getPageData());
+  }
+
+  @Test public void heapPage() throws Exception {
+    HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 20, null, null);
+    assertRoundTrip(hf.readPage(new HeapPageId(hf.getId(), 0)));
+  }
+
+  @Test public void btreePages() throws Exception {
+    BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 20, null, null, 0);
+    BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bf.readPage(BTreeRootPtrPage.getId(bf.getId()));
+    assertRoundTrip(rootPtr);
+    assertRoundTrip(bf.readPage(rootPtr.getRootId()));
+    assertRoundTrip(new BTreeInternalPage(new BTreePageId(bf.getId(), 5, BTreePageId.INTERNAL),
+        BTreeInternalPage.createEmptyPageData(), 0));
+    assertRoundTrip(new BTreeHeaderPage(new BTreePageId(bf.getId(), 6, BTreePageId.HEADER),
+        BTreeHeaderPage.createEmptyPageData()));
+  }
+
+  @Test(expected = IOException.class) public void unknownTag() throws Exception {
+    PageRegistry.newPage((byte) 100, new HeapPageId(0, 0), new byte[0]);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(PageRegistryTest.class);
+  }
+}
@@ -0,0 +1,126 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.execution.Exchange;
+import simpledb.execution.Filter;
+import simpledb.execution.MorselScan;
+import simpledb.execution.MorselSource;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate;
+import simpledb.execution.QueryScheduler;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class QuerySchedulerTest extends SimpleDbTestBase {
+
+  private static final int BIG_ROWS = 40000;
+
+  private HeapFile big;
+  private HeapFile small;
+  private List<List<Integer>> smallTuples;
+  private TransactionId tid;
+
+  @Before public void createTables() throws Exception {
+    big = SystemTestUtil.createRandomHeapFile(2, BIG_ROWS, null, null);
+    smallTuples = new ArrayList<>();
+    small = SystemTestUtil.createRandomHeapFile(2, 100, null, smallTuples);
+    tid = new TransactionId();
+  }
+
+  /** A predicate that lets everything through, slowly */
+  private static class SlowPredicate extends Predicate {
+    private static final long serialVersionUID = 1L;
+    private int seen = 0;
+
+    SlowPredicate() {
+      super(0, Op.GREATER_THAN_OR_EQ, new IntField(Integer.MIN_VALUE));
+    }
+
+    @Override public boolean filter(Tuple t) {
+      if (++seen % 50 == 0) {
+        try {
+          Thread.sleep(1);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      return super.filter(t);
+    }
+  }
+
+  /**
+   * A small query started while a large one is running on the only worker
+   * gets its turn at the large one's next morsel boundary, rather than
+   * after it finishes.
+   */
+  @Test(timeout = 60000) public void smallQueryInterleavesWithLarge() throws Exception {
+    QueryScheduler scheduler = new QueryScheduler(1);
+    MorselSource bigSource = new MorselSource(big, 1);
+    assertTrue(bigSource.numMorsels() > 20);
+    Exchange large = new Exchange(new OpIterator[] {
+        new Filter(new SlowPredicate(), new MorselScan(tid, bigSource, "")) }, scheduler);
+
+    CountDownLatch started = new CountDownLatch(1);
+    AtomicInteger largeCount = new AtomicInteger(-1);
+    Thread consumer = new Thread(() -> {
+      try {
+        large.open();
+        large.next();
+        started.countDown();
+        largeCount.set(1 + SystemTestUtil.tuplesToList(large).size());
+        large.close();
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+    consumer.start();
+    started.await();
+
+    Exchange quick = new Exchange(new OpIterator[] {
+        new MorselScan(tid, new MorselSource(small, 1), "") }, scheduler);
+    SystemTestUtil.matchTuples(quick, smallTuples);
+    assertTrue("the small query waited for the large one", consumer.isAlive());
+
+    consumer.join();
+    assertEquals(BIG_ROWS, largeCount.get());
+  }
+
+  /**
+   * Producers that fill their Exchange's queue park without holding the
+   * only worker, so a second query's producers still run.
+   */
+  @Test(timeout = 60000) public void fullExchangesDoNotHoldWorkers() throws Exception {
+    QueryScheduler scheduler = new QueryScheduler(1);
+    assertTrue(BIG_ROWS > Exchange.BATCH_SIZE * Exchange.QUEUE_BATCHES);
+    Exchange first = new Exchange(new OpIterator[] {
+        new MorselScan(tid, new MorselSource(big), "") }, scheduler);
+    Exchange second = new Exchange(new OpIterator[] {
+        new MorselScan(tid, new MorselSource(big), "") }, scheduler);
+    first.open();
+    assertEquals(BIG_ROWS, SystemTestUtil.readTuples(second).size());
+    assertEquals(BIG_ROWS, SystemTestUtil.tuplesToList(first).size());
+    first.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(QuerySchedulerTest.class);
+  }
+}
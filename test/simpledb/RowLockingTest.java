@@ -0,0 +1,163 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static simpledb.systemtest.SystemTestUtil.countTuples;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.Iterator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Transaction;
+
+public class RowLockingTest extends SimpleDbTestBase {
+
+  private static final int ROWS = 10;
+
+  /** Time to wait before checking the state of lock contention, in ms */
+  private static final int TIMEOUT = 100;
+
+  private HeapFile hf;
+  private BufferPool bp;
+
+  @Before public void setUp() throws Exception {
+    hf = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+    bp = Database.getBufferPool();
+  }
+
+  private Tuple newTuple(int v) {
+    Tuple t = new Tuple(hf.getTupleDesc());
+    t.setField(0, TestUtil.getField(v));
+    t.setField(1, TestUtil.getField(v));
+    return t;
+  }
+
+  /** Read a committed row straight from the file, without taking locks */
+  private Tuple committedRow(int n) {
+    Iterator<Tuple> it = ((HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0))).iterator();
+    for (int i = 0; i < n; i++)
+      it.next();
+    return it.next();
+  }
+
+  /** Runs a delete in its own thread so that blocking can be observed */
+  private class Deleter extends Thread {
+    private final Transaction t;
+    private final Tuple tup;
+    private volatile boolean done = false;
+
+    Deleter(Transaction t, Tuple tup) {
+      this.t = t;
+      this.tup = tup;
+    }
+
+    @Override public void run() {
+      try {
+        bp.deleteTuple(t.getId(), tup);
+        done = true;
+      } catch (Exception e) {
+        // aborted or interrupted; done stays false
+      }
+    }
+  }
+
+  /**
+   * Two transactions can insert into the same page at the same time.
+   */
+  @Test(timeout = 10000) public void concurrentInsertsShareAPage() throws Exception {
+    Transaction t1 = new Transaction();
+    Transaction t2 = new Transaction();
+    t1.start();
+    t2.start();
+    Tuple a = newTuple(1);
+    Tuple b = newTuple(2);
+    bp.insertTuple(t1.getId(), hf.getId(), a);
+    bp.insertTuple(t2.getId(), hf.getId(), b);
+    assertEquals(a.getRecordId().getPageId(), b.getRecordId().getPageId());
+    assertNotEquals(a.getRecordId(), b.getRecordId());
+    t1.commit();
+    t2.commit();
+    assertEquals(ROWS + 2, countTuples(hf));
+  }
+
+  /**
+   * Deleting a row another transaction has deleted waits for that
+   * transaction, and succeeds once it aborts.
+   */
+  @Test(timeout = 10000) public void deleteWaitsForRowLock() throws Exception {
+    Transaction t1 = new Transaction();
+    Transaction t2 = new Transaction();
+    t1.start();
+    t2.start();
+    bp.deleteTuple(t1.getId(), committedRow(0));
+
+    // another row on the same page is free
+    bp.deleteTuple(t2.getId(), committedRow(1));
+
+    Deleter d = new Deleter(t2, committedRow(0));
+    d.start();
+    Thread.sleep(TIMEOUT);
+    assertFalse(d.done);
+
+    t1.abort();
+    d.join();
+    assertTrue(d.done);
+    t2.commit();
+    assertEquals(ROWS - 2, countTuples(hf));
+  }
+
+  /**
+   * Aborting one transaction undoes only its own rows, leaving another
+   * transaction's committed changes to the same page in place.
+   */
+  @Test(timeout = 10000) public void abortKeepsOtherRows() throws Exception {
+    Transaction t1 = new Transaction();
+    Transaction t2 = new Transaction();
+    t1.start();
+    t2.start();
+    bp.insertTuple(t1.getId(), hf.getId(), newTuple(1));
+    bp.deleteTuple(t1.getId(), committedRow(0));
+    bp.insertTuple(t2.getId(), hf.getId(), newTuple(2));
+    t2.commit();
+    t1.abort();
+    assertEquals(ROWS + 1, countTuples(hf));
+  }
+
+  /**
+   * A slot freed by an uncommitted delete is not handed to another inserter,
+   * so the delete can still be undone.
+   */
+  @Test(timeout = 10000) public void freedSlotNotReused() throws Exception {
+    Transaction t1 = new Transaction();
+    Transaction t2 = new Transaction();
+    t1.start();
+    t2.start();
+    Tuple victim = committedRow(0);
+    bp.deleteTuple(t1.getId(), victim);
+    Tuple b = newTuple(2);
+    bp.insertTuple(t2.getId(), hf.getId(), b);
+    assertNotEquals(victim.getRecordId(), b.getRecordId());
+    t2.commit();
+    t1.abort();
+    assertEquals(ROWS + 1, countTuples(hf));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(RowLockingTest.class);
+  }
+}
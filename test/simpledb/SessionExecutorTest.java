@@ -0,0 +1,123 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static simpledb.systemtest.SystemTestUtil.countTuples;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Stats;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class SessionExecutorTest extends SimpleDbTestBase {
+
+  private HeapFile table;
+
+  @Before public void createTable() throws Exception {
+    table = SystemTestUtil.createRandomHeapFile(2, 0, null, null, "c");
+    Database.getCatalog().addTable(table, "t");
+  }
+
+  /**
+   * Concurrent sessions each run their statements in their own
+   * transactions; the inserts of every transaction that committed land.
+   * Some may be chosen as deadlock victims, since they all append to the
+   * same empty table.
+   */
+  @Test(timeout = 30000) public void concurrentSessions() throws Exception {
+    List<Future<?>> sessions = new ArrayList<>();
+    try (SessionExecutor executor = new SessionExecutor()) {
+      for (int s = 0; s < 20; s++) {
+        StringBuilder statements = new StringBuilder();
+        for (int i = 0; i < 5; i++)
+          statements.append("INSERT INTO t VALUES (").append(s).append(", ").append(i).append(");\n");
+        sessions.add(executor.submit(new StringReader(statements.toString())));
+      }
+      for (Future<?> f : sessions)
+        f.get();
+    }
+    Stats stats = Database.getStats();
+    long commits = stats.getCommits();
+    assertEquals(100, commits + stats.getAborts());
+    assertEquals(commits, countTuples(table));
+  }
+
+  /**
+   * A session that ends in the middle of a transaction aborts it, so its
+   * inserts are rolled back and its locks released.
+   */
+  @Test(timeout = 30000) public void unfinishedTransactionAborts() throws Exception {
+    try (SessionExecutor executor = new SessionExecutor()) {
+      executor.submit(new StringReader("INSERT INTO t VALUES (1, 1);")).get();
+      executor.submit(new StringReader("SET TRANSACTION READ WRITE;\nINSERT INTO t VALUES (2, 2);")).get();
+    }
+    assertEquals(1, countTuples(table));
+  }
+
+  /**
+   * Sessions stop at a quit statement.
+   */
+  @Test(timeout = 30000) public void quitEndsSession() throws Exception {
+    try (SessionExecutor executor = new SessionExecutor()) {
+      executor.submit(new StringReader("INSERT INTO t VALUES (1, 1); quit; INSERT INTO t VALUES (2, 2);")).get();
+    }
+    assertEquals(1, countTuples(table));
+  }
+
+  /**
+   * Each session prints its results through its own Parser, so they reach
+   * that session's client and no other.
+   */
+  @Test(timeout = 30000) public void sessionsPrintToTheirOwnStreams() throws Exception {
+    TableStats.setTableStats("t", new TableStats(table.getId(), 1));
+    ByteArrayOutputStream first = new ByteArrayOutputStream();
+    ByteArrayOutputStream second = new ByteArrayOutputStream();
+    try (SessionExecutor executor = new SessionExecutor()) {
+      executor.submit(new StringReader("INSERT INTO t VALUES (7, 7);\nSELECT * FROM t;"),
+          new Parser(new PrintStream(first, true, "UTF-8"))).get();
+      executor.submit(new StringReader("SELECT * FROM t WHERE t.c0 > 7;"),
+          new Parser(new PrintStream(second, true, "UTF-8"))).get();
+    }
+    String firstOut = first.toString("UTF-8");
+    String secondOut = second.toString("UTF-8");
+    assertTrue(firstOut.contains(" 1 rows."));
+    assertTrue(secondOut.contains(" 0 rows."));
+    assertFalse(secondOut.contains(" 1 rows."));
+  }
+
+  /**
+   * Virtual threads are used exactly when the JVM has them.
+   */
+  @Test public void virtualThreadsWhenAvailable() throws Exception {
+    boolean available = true;
+    try {
+      Thread.class.getMethod("ofVirtual");
+    } catch (NoSuchMethodException e) {
+      available = false;
+    }
+    try (SessionExecutor executor = new SessionExecutor()) {
+      assertEquals(available, executor.usesVirtualThreads());
+    }
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(SessionExecutorTest.class);
+  }
+}
@@ -0,0 +1,160 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static simpledb.systemtest.SystemTestUtil.countTuples;
+import static simpledb.systemtest.SystemTestUtil.insertTuple;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LogFile;
+import simpledb.storage.Page;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Transaction;
+
+public class SnapshotReadTest extends SimpleDbTestBase {
+
+  private static final int ROWS = 20;
+
+  private HeapFile hf;
+  private BufferPool bp;
+
+  @Before public void setUp() throws Exception {
+    hf = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+    bp = Database.getBufferPool();
+  }
+
+  /**
+   * A snapshot reader sees neither uncommitted writes nor writes committed
+   * after its snapshot began; readers started later see committed writes.
+   */
+  @Test public void readsCommittedSnapshot() throws Exception {
+    Transaction writer = new Transaction();
+    writer.start();
+    insertTuple(hf, writer.getId());
+
+    Transaction before = new Transaction(true);
+    before.start();
+    assertEquals(ROWS, countTuples(hf, before.getId()));
+
+    writer.commit();
+    assertEquals(ROWS, countTuples(hf, before.getId()));
+
+    Transaction after = new Transaction(true);
+    after.start();
+    assertEquals(ROWS + 1, countTuples(hf, after.getId()));
+
+    before.commit();
+    after.commit();
+  }
+
+  /**
+   * Changes of an aborted transaction are rolled back out of the buffer pool.
+   */
+  @Test public void abortedWritesInvisible() throws Exception {
+    Transaction writer = new Transaction();
+    writer.start();
+    insertTuple(hf, writer.getId());
+    writer.abort();
+
+    Transaction reader = new Transaction(true);
+    reader.start();
+    assertEquals(ROWS, countTuples(hf, reader.getId()));
+    reader.commit();
+  }
+
+  /**
+   * Snapshot readers share one copy of a page's committed version until a
+   * commit replaces it; readers that began before the commit keep theirs.
+   */
+  @Test public void readersShareCommittedImage() throws Exception {
+    HeapPageId pid = new HeapPageId(hf.getId(), 0);
+    Transaction first = new Transaction(true);
+    first.start();
+    Transaction second = new Transaction(true);
+    second.start();
+    Page image = bp.getPage(first.getId(), pid, Permissions.READ_ONLY);
+    assertSame(image, bp.getPage(second.getId(), pid, Permissions.READ_ONLY));
+
+    Transaction writer = new Transaction();
+    writer.start();
+    insertTuple(hf, writer.getId());
+    writer.commit();
+    assertSame(image, bp.getPage(first.getId(), pid, Permissions.READ_ONLY));
+
+    Transaction after = new Transaction(true);
+    after.start();
+    assertNotSame(image, bp.getPage(after.getId(), pid, Permissions.READ_ONLY));
+    assertEquals(ROWS + 1, countTuples(hf, after.getId()));
+    assertEquals(ROWS, countTuples(hf, first.getId()));
+    first.commit();
+    second.commit();
+    after.commit();
+  }
+
+  /**
+   * Read-only transactions may not ask for pages to write.
+   */
+  @Test(expected = DbException.class) public void readOnlyCannotWrite() throws Exception {
+    Transaction reader = new Transaction(true);
+    reader.start();
+    bp.getPage(reader.getId(), new HeapPageId(hf.getId(), 0), Permissions.READ_WRITE);
+  }
+
+  /**
+   * Read-only transactions write no BEGIN, COMMIT or ABORT records.
+   */
+  @Test public void readOnlyWritesNoLog() throws Exception {
+    LogFile log = Database.getLogFile();
+    int records = log.getTotalRecords();
+
+    Transaction reader = new Transaction(true);
+    reader.start();
+    assertFalse(log.isActive(reader.getId()));
+    assertEquals(ROWS, countTuples(hf, reader.getId()));
+    reader.commit();
+
+    reader = new Transaction(true);
+    reader.start();
+    reader.abort();
+    assertEquals(records, log.getTotalRecords());
+  }
+
+  /**
+   * The Parser runs a query outside a user transaction read-only, and
+   * inserts with locking and logging.
+   */
+  @Test public void parserQueriesAreReadOnly() throws Exception {
+    Database.getCatalog().addTable(hf, "snap");
+    TableStats.setTableStats("snap", new TableStats(hf.getId(), 1));
+    LogFile log = Database.getLogFile();
+    int records = log.getTotalRecords();
+
+    Parser p = new Parser();
+    p.processNextStatement("SELECT * FROM snap;");
+    assertEquals(records, log.getTotalRecords());
+
+    p.processNextStatement("INSERT INTO snap VALUES (1, 2);");
+    assertTrue(log.getTotalRecords() > records);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(SnapshotReadTest.class);
+  }
+}
@@ -0,0 +1,162 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static simpledb.systemtest.SystemTestUtil.readTuples;
+import static simpledb.systemtest.SystemTestUtil.sortTuples;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.execution.Filter;
+import simpledb.execution.Join;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.OrderBy;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.execution.SortMergeJoin;
+import simpledb.optimizer.JoinOptimizer;
+import simpledb.optimizer.LogicalJoinNode;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class SortMergeJoinTest extends SimpleDbTestBase {
+
+  private HeapFile left;
+  private HeapFile right;
+  private TransactionId tid;
+
+  @Before public void createTables() throws Exception {
+    // few distinct keys, so both sides have long runs of duplicates
+    left = SystemTestUtil.createRandomHeapFile(2, 300, 40, null, null, "c");
+    right = SystemTestUtil.createRandomHeapFile(2, 200, 40, null, null, "c");
+    tid = new TransactionId();
+  }
+
+  private SeqScan scan(HeapFile f, String alias) {
+    return new SeqScan(tid, f.getId(), alias);
+  }
+
+  /**
+   * Every operator joins the same pairs as a nested loops join, duplicate
+   * keys included.
+   */
+  @Test public void matchesNestedLoops() throws Exception {
+    for (Predicate.Op op : Predicate.Op.values()) {
+      JoinPredicate p = new JoinPredicate(0, op, 0);
+      List<List<Integer>> expected = sortTuples(readTuples(new Join(p, scan(left, "l"), scan(right, "r"))));
+      assertFalse(op.toString(), expected.isEmpty());
+      assertEquals(op.toString(), expected,
+          sortTuples(readTuples(new SortMergeJoin(p, scan(left, "l"), scan(right, "r")))));
+    }
+  }
+
+  /**
+   * Inputs already sorted on the join field are merged as they are.
+   */
+  @Test public void sortedInputsAreNotResorted() throws Exception {
+    OpIterator sorted = new OrderBy(0, true, scan(left, "l"));
+    Filter filtered = new Filter(new Predicate(1, Predicate.Op.GREATER_THAN, new IntField(10)),
+        new OrderBy(0, true, scan(right, "r")));
+    assertTrue(SortMergeJoin.isSortedOn(sorted, 0));
+    assertTrue(SortMergeJoin.isSortedOn(filtered, 0));
+    assertFalse(SortMergeJoin.isSortedOn(sorted, 1));
+    assertFalse(SortMergeJoin.isSortedOn(new OrderBy(0, false, scan(left, "l")), 0));
+    assertFalse(SortMergeJoin.isSortedOn(scan(left, "l"), 0));
+
+    JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    SortMergeJoin j = new SortMergeJoin(p, sorted, filtered);
+    assertSame(sorted, j.getChildren()[0]);
+    assertEquals(sortTuples(readTuples(new Join(p, new OrderBy(0, true, scan(left, "l")),
+        new Filter(new Predicate(1, Predicate.Op.GREATER_THAN, new IntField(10)), scan(right, "r"))))),
+        sortTuples(readTuples(j)));
+  }
+
+  /**
+   * Rewinding returns the same tuples again.
+   */
+  @Test public void rewind() throws Exception {
+    for (Predicate.Op op : new Predicate.Op[] {Predicate.Op.EQUALS, Predicate.Op.GREATER_THAN}) {
+      SortMergeJoin j = new SortMergeJoin(new JoinPredicate(0, op, 0), scan(left, "l"), scan(right, "r"));
+      j.open();
+      int first = 0;
+      while (j.hasNext()) {
+        j.next();
+        first++;
+      }
+      j.rewind();
+      int second = 0;
+      while (j.hasNext()) {
+        j.next();
+        second++;
+      }
+      j.close();
+      assertTrue(first > 0);
+      assertEquals(op.toString(), first, second);
+    }
+  }
+
+  /**
+   * The optimizer merge joins range predicates whose right-hand side fits in
+   * the merge buffer, and equality on inputs that are already sorted.
+   */
+  @Test public void optimizerChoosesMergeJoin() throws Exception {
+    SeqScan l = scan(left, "l"), r = scan(right, "r");
+    String f1 = l.getTupleDesc().getFieldName(0), f2 = r.getTupleDesc().getFieldName(0);
+    LogicalJoinNode lessThan = new LogicalJoinNode("l", "r", f1, f2, Predicate.Op.LESS_THAN);
+    OpIterator range = JoinOptimizer.instantiateJoin(lessThan, l, r);
+    assertTrue(range instanceof SortMergeJoin);
+    // without estimates, a right-hand side that is not a small enough table
+    // may not fit in the buffer
+    HeapFile big = SystemTestUtil.createRandomHeapFile(2,
+        (SortMergeJoin.BUFFER_PAGES + 1) * BufferPool.getPageSize() / 8, 40, null, null, "c");
+    assertTrue(JoinOptimizer.instantiateJoin(lessThan, scan(left, "l"), scan(big, "r")) instanceof Join);
+    assertTrue(JoinOptimizer.instantiateJoin(lessThan, scan(left, "l"),
+        new OrderBy(0, true, scan(right, "r"))) instanceof Join);
+    OpIterator unsorted = JoinOptimizer.instantiateJoin(
+        new LogicalJoinNode("l", "r", f1, f2, Predicate.Op.EQUALS), scan(left, "l"), scan(right, "r"));
+    assertFalse(unsorted instanceof SortMergeJoin);
+    OpIterator sorted = JoinOptimizer.instantiateJoin(
+        new LogicalJoinNode("l", "r", f1, f2, Predicate.Op.EQUALS),
+        new OrderBy(0, true, scan(left, "l")), new OrderBy(0, true, scan(right, "r")));
+    assertTrue(sorted instanceof SortMergeJoin);
+  }
+
+  /**
+   * Given estimates, the optimizer merges a range join only when that is
+   * cheaper than a nested loops join and the right-hand side fits in the
+   * merge buffer.
+   */
+  @Test public void optimizerCostsRangeJoins() throws Exception {
+    JoinOptimizer jo = new JoinOptimizer(new LogicalPlan(), new ArrayList<>());
+    SeqScan l = scan(left, "l"), r = scan(right, "r");
+    LogicalJoinNode range = new LogicalJoinNode("l", "r", l.getTupleDesc().getFieldName(0),
+        r.getTupleDesc().getFieldName(0), Predicate.Op.LESS_THAN);
+    int fits = SortMergeJoin.maxBufferedTuples(r.getTupleDesc());
+
+    assertTrue(jo.instantiateJoin(range, l, r, 300, 200, 1000, 1000) instanceof SortMergeJoin);
+    // a single outer tuple scans the inner side once, without sorting it
+    assertTrue(jo.instantiateJoin(range, scan(left, "l"), scan(right, "r"), 1, 200, 1000, 1000) instanceof Join);
+    assertTrue(jo.instantiateJoin(range, scan(left, "l"), scan(right, "r"), 300, fits + 1, 1000, 1000)
+        instanceof Join);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(SortMergeJoinTest.class);
+  }
+}
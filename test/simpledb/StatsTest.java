@@ -0,0 +1,152 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.LatencyHistogram;
+import simpledb.common.Stats;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.LockManager;
+import simpledb.transaction.LockMode;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+public class StatsTest extends SimpleDbTestBase {
+
+  private Stats stats;
+
+  @Before public void grabStats() {
+    stats = Database.getStats();
+  }
+
+  /**
+   * Percentiles are estimated to within a factor of two.
+   */
+  @Test public void histogramPercentiles() {
+    LatencyHistogram h = new LatencyHistogram();
+    for (int i = 1; i <= 1000; i++)
+      h.record(i * 1000L);
+    assertEquals(1000, h.count());
+    assertEquals(1000000, h.maxNanos());
+    long p50 = h.percentileNanos(0.5);
+    assertTrue(p50 >= 500000 && p50 <= 1000000);
+    assertEquals(1000000, h.percentileNanos(1.0));
+    h.reset();
+    assertEquals(0, h.percentileNanos(0.5));
+  }
+
+  /**
+   * A lock wait is timed and charged to the resource waited for, which
+   * then shows up among the hot locks.
+   */
+  @Test(timeout = 10000) public void lockWaitsAreCharged() throws Exception {
+    LockManager lm = new LockManager();
+    TransactionId holder = new TransactionId();
+    TransactionId waiter = new TransactionId();
+    lm.acquire(holder, "hot", LockMode.EXCLUSIVE);
+    Thread t = new Thread(() -> {
+      try {
+        lm.acquire(waiter, "hot", LockMode.SHARED);
+      } catch (TransactionAbortedException e) {
+        fail();
+      }
+    });
+    t.start();
+    Thread.sleep(100);
+    lm.releaseAll(holder);
+    t.join();
+
+    assertEquals(2, stats.getLockAcquisitions());
+    assertEquals(1, stats.getLockWaits());
+    assertTrue(stats.lockWaitTimes().maxNanos() >= 50000000L);
+    List<String> hot = stats.hotLocks(1);
+    assertEquals(1, hot.size());
+    assertTrue(hot.get(0).startsWith("hot: 1 waits"));
+  }
+
+  /**
+   * A deadlock victim is counted.
+   */
+  @Test(timeout = 10000) public void deadlockVictimsCounted() throws Exception {
+    LockManager lm = new LockManager();
+    TransactionId t1 = new TransactionId();
+    TransactionId t2 = new TransactionId();
+    lm.acquire(t1, "a", LockMode.EXCLUSIVE);
+    lm.acquire(t2, "b", LockMode.EXCLUSIVE);
+    Thread t = new Thread(() -> {
+      try {
+        lm.acquire(t1, "b", LockMode.EXCLUSIVE);
+      } catch (TransactionAbortedException ignored) {
+      }
+    });
+    t.start();
+    Thread.sleep(100);
+    try {
+      lm.acquire(t2, "a", LockMode.EXCLUSIVE);
+      fail("expected a deadlock");
+    } catch (TransactionAbortedException expected) {
+    }
+    lm.releaseAll(t2);
+    t.join();
+    assertEquals(1, stats.getDeadlockAborts());
+  }
+
+  /**
+   * Commits and aborts are timed, and committing forces the log.
+   */
+  @Test public void transactionsTimed() throws Exception {
+    Transaction t = new Transaction();
+    t.start();
+    t.commit();
+    t = new Transaction();
+    t.start();
+    t.abort();
+    assertEquals(1, stats.getCommits());
+    assertEquals(1, stats.getAborts());
+    assertTrue(stats.getLogForces() > 0);
+    assertTrue(stats.report(Stats.DEFAULT_TOP_K).contains("commits:"));
+  }
+
+  /**
+   * The statistics are published over JMX.
+   */
+  @Test public void publishedOverJmx() throws Exception {
+    Transaction t = new Transaction();
+    t.start();
+    t.commit();
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = new ObjectName("simpledb:type=Stats");
+    assertTrue(server.isRegistered(name));
+    assertEquals(1L, server.getAttribute(name, "Commits"));
+  }
+
+  /**
+   * The parser recognizes SHOW STATS, which Zql cannot parse.
+   */
+  @Test public void parserShowStats() {
+    assertTrue(Parser.isShowStats("show stats;"));
+    assertTrue(Parser.isShowStats("  SHOW   Stats ; "));
+    assertFalse(Parser.isShowStats("select * from stats;"));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(StatsTest.class);
+  }
+}
@@ -0,0 +1,142 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static simpledb.systemtest.SystemTestUtil.sortTuples;
+import static simpledb.systemtest.SystemTestUtil.tuplesToList;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.Aggregator;
+import simpledb.execution.HashAggregate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.OrderBy;
+import simpledb.execution.Project;
+import simpledb.execution.SeqScan;
+import simpledb.execution.StreamAggregate;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class StreamAggregateTest extends SimpleDbTestBase {
+
+  private static final Aggregator.Op[] OPS = {Aggregator.Op.MIN, Aggregator.Op.MAX,
+      Aggregator.Op.SUM, Aggregator.Op.AVG, Aggregator.Op.COUNT};
+
+  private HeapFile hf;
+  private TransactionId tid;
+
+  @Before public void createTable() throws Exception {
+    hf = SystemTestUtil.createRandomHeapFile(3, 3000, 30, null, null, "c");
+    tid = new TransactionId();
+  }
+
+  private SeqScan scan() {
+    return new SeqScan(tid, hf.getId(), "t");
+  }
+
+  /**
+   * Over sorted tuples, every group gets the aggregates HashAggregate
+   * computes, in the order of the sort, and the aggregate can be rewound.
+   */
+  @Test public void matchesHashAggregate() throws Exception {
+    HashAggregate hash = new HashAggregate(scan(), new int[] {0, 1}, new int[] {2, 2, 2, 2, 2}, OPS);
+    hash.open();
+    List<List<Integer>> expected = sortTuples(tuplesToList(hash));
+    hash.close();
+
+    StreamAggregate stream = new StreamAggregate(
+        new OrderBy(new int[] {0, 1}, new boolean[] {true, true}, scan()),
+        new int[] {0, 1}, new int[] {2, 2, 2, 2, 2}, OPS);
+    stream.open();
+    List<List<Integer>> rows = tuplesToList(stream);
+    List<List<Integer>> keys = new ArrayList<>();
+    for (List<Integer> row : rows)
+      keys.add(row.subList(0, 2));
+    List<List<Integer>> ordered = new ArrayList<>(keys);
+    ordered.sort(Comparator.<List<Integer>>comparingInt(k -> k.get(0)).thenComparingInt(k -> k.get(1)));
+    assertEquals(ordered, keys);
+    assertEquals(expected, sortTuples(rows));
+    stream.rewind();
+    assertEquals(expected, sortTuples(tuplesToList(stream)));
+    stream.close();
+  }
+
+  /**
+   * Each group is returned as soon as the first tuple of the next one is
+   * read, and an empty child has no groups.
+   */
+  @Test public void streamsGroups() throws Exception {
+    int[] pulled = new int[1];
+    OpIterator source = new TestUtil.MockScan(0, 100000, 2) {
+      @Override public Tuple next() {
+        pulled[0]++;
+        return super.next();
+      }
+    };
+    StreamAggregate agg = new StreamAggregate(source, new int[] {0}, new int[] {1},
+        new Aggregator.Op[] {Aggregator.Op.SUM});
+    agg.open();
+    for (int i = 0; i < 3; i++)
+      assertEquals(Arrays.asList(i, i), SystemTestUtil.tupleToList(agg.next()));
+    assertEquals(4, pulled[0]);
+    agg.close();
+
+    agg = new StreamAggregate(new TestUtil.MockScan(0, 0, 2), new int[0], new int[] {1},
+        new Aggregator.Op[] {Aggregator.Op.COUNT});
+    agg.open();
+    assertTrue(tuplesToList(agg).isEmpty());
+    agg.close();
+  }
+
+  /**
+   * The planner streams groups on the key of a B+ tree, which it scans in
+   * key order, and hashes groups on any other field.
+   */
+  @Test public void plannerStreamsSortedGroups() throws Exception {
+    BTreeFile unnamed = BTreeUtility.createRandomBTreeFile(2, 5000, 200, null, null, 0);
+    BTreeFile bf = BTreeUtility.openBTreeFile(2, "c", unnamed.getFile(), 0);
+    Database.getCatalog().addTable(bf, "indexed");
+    TableStats.setTableStats("indexed", new TableStats(bf.getId(), 1));
+    Parser p = new Parser();
+
+    LogicalPlan lp = p.generateLogicalPlan(tid,
+        "SELECT indexed.c0, COUNT(indexed.c1), MAX(indexed.c1) FROM indexed GROUP BY indexed.c0;");
+    OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    assertTrue(((Project) plan).getChildren()[0] instanceof StreamAggregate);
+    HashAggregate hash = new HashAggregate(new SeqScan(tid, bf.getId(), "indexed"), new int[] {0},
+        new int[] {1, 1}, new Aggregator.Op[] {Aggregator.Op.COUNT, Aggregator.Op.MAX});
+    hash.open();
+    List<List<Integer>> expected = sortTuples(tuplesToList(hash));
+    hash.close();
+    plan.open();
+    assertEquals(expected, sortTuples(tuplesToList(plan)));
+    plan.close();
+
+    lp = p.generateLogicalPlan(tid,
+        "SELECT indexed.c1, COUNT(indexed.c0) FROM indexed GROUP BY indexed.c1;");
+    plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    assertTrue(((Project) plan).getChildren()[0] instanceof HashAggregate);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(StreamAggregateTest.class);
+  }
+}
@@ -0,0 +1,130 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static simpledb.systemtest.SystemTestUtil.readTuples;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.execution.Filter;
+import simpledb.execution.Limit;
+import simpledb.execution.OpIterator;
+import simpledb.execution.OrderBy;
+import simpledb.execution.Predicate;
+import simpledb.execution.Project;
+import simpledb.execution.SeqScan;
+import simpledb.execution.TopN;
+import simpledb.execution.TupleAdapter;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class TopNTest extends SimpleDbTestBase {
+
+  private static final int ROWS = 3000;
+
+  private HeapFile hf;
+  private TransactionId tid;
+
+  @Before public void createTable() throws Exception {
+    // few distinct values, so that the sort keys have many ties
+    hf = SystemTestUtil.createRandomHeapFile(3, ROWS, 20, null, null, "c");
+    tid = new TransactionId();
+  }
+
+  private SeqScan scan() {
+    return new SeqScan(tid, hf.getId(), "t");
+  }
+
+  /**
+   * TopN returns what sorting everything and then applying LIMIT and OFFSET
+   * does, ties in the same order.
+   */
+  @Test public void matchesSortThenLimit() throws Exception {
+    int[] fields = {1, 0};
+    boolean[] asc = {false, true};
+    int[][] limits = {{10, 0}, {10, 25}, {1, 0}, {0, 5}, {200, ROWS - 100}, {ROWS + 10, 0}};
+    for (int[] lo : limits) {
+      List<List<Integer>> expected = readTuples(new Limit(lo[0], lo[1], new OrderBy(fields, asc, scan())));
+      assertEquals(Math.max(0, Math.min(lo[0], ROWS - lo[1])), expected.size());
+      assertEquals(Arrays.toString(lo), expected,
+          readTuples(new TopN(fields, asc, lo[0], lo[1], scan())));
+    }
+  }
+
+  /**
+   * Limit stops pulling tuples once it has returned enough, through Filters
+   * and Projects, a tuple or a batch at a time.
+   */
+  @Test public void stopsEarly() throws Exception {
+    int[] pulled = new int[1];
+    OpIterator source = new TestUtil.MockScan(0, 100000, 2) {
+      @Override public Tuple next() {
+        pulled[0]++;
+        return super.next();
+      }
+    };
+    Limit limit = new Limit(5, 3, new Project(Collections.singletonList(1),
+        new Type[] {Type.INT_TYPE},
+        new Filter(new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(100)), source)));
+    List<List<Integer>> rows = readTuples(limit);
+    assertEquals(Arrays.asList(Arrays.asList(104), Arrays.asList(105), Arrays.asList(106),
+        Arrays.asList(107), Arrays.asList(108)), rows);
+    assertEquals(109, pulled[0]);
+
+    pulled[0] = 0;
+    assertEquals(rows, readTuples(new TupleAdapter(limit)));
+    assertTrue(pulled[0] < 100000 / 10);
+  }
+
+  /**
+   * LIMIT and OFFSET are parsed, and sort with TopN when there is an ORDER
+   * BY.
+   */
+  @Test public void parsesLimitAndOffset() throws Exception {
+    Database.getCatalog().addTable(hf, "paged");
+    TableStats.setTableStats("paged", new TableStats(hf.getId(), 1));
+    Parser p = new Parser();
+    LogicalPlan lp = p.generateLogicalPlan(tid,
+        "SELECT paged.c0, paged.c1 FROM paged ORDER BY paged.c1 DESC, paged.c0 LIMIT 7 OFFSET 30;");
+    assertEquals(7, lp.getLimit());
+    assertEquals(30, lp.getOffset());
+    OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    assertTrue(((Project) plan).getChildren()[0] instanceof TopN);
+    List<List<Integer>> expected = new ArrayList<>();
+    for (List<Integer> row : readTuples(new Limit(7, 30,
+        new OrderBy(new int[] {1, 0}, new boolean[] {false, true}, scan()))))
+      expected.add(row.subList(0, 2));
+    assertEquals(expected, readTuples(plan));
+
+    lp = p.generateLogicalPlan(tid, "SELECT * FROM paged WHERE paged.c0 > 3\n  limit 4;");
+    plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    assertTrue(((Project) plan).getChildren()[0] instanceof Limit);
+    assertEquals(4, readTuples(plan).size());
+
+    lp = p.generateLogicalPlan(tid, "SELECT * FROM paged OFFSET 2990;");
+    assertEquals(Limit.NO_LIMIT, lp.getLimit());
+    assertEquals(ROWS - 2990, readTuples(lp.physicalPlan(tid, TableStats.getStatsMap(), false)).size());
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(TopNTest.class);
+  }
+}
@@ -3,6 +3,7 @@ package simpledb.systemtest;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -99,6 +100,75 @@ public class SystemTestUtil {
         return list;
     }
 
+    /**
+     * @return the remaining tuples of the open iterator, each converted with
+     *         {@link #tupleToList}
+     */
+    public static List<List<Integer>> tuplesToList(OpIterator iterator)
+            throws DbException, TransactionAbortedException {
+        List<List<Integer>> rows = new ArrayList<>();
+        while (iterator.hasNext()) {
+            rows.add(tupleToList(iterator.next()));
+        }
+        return rows;
+    }
+
+    /**
+     * Open the iterator, read all of its tuples, and close it.
+     *
+     * @return the tuples, each converted with {@link #tupleToList}
+     */
+    public static List<List<Integer>> readTuples(OpIterator iterator)
+            throws DbException, TransactionAbortedException {
+        iterator.open();
+        List<List<Integer>> rows = tuplesToList(iterator);
+        iterator.close();
+        return rows;
+    }
+
+    /**
+     * @return the number of tuples of f that a SeqScan run as a part of tid
+     *         reads
+     */
+    public static int countTuples(DbFile f, TransactionId tid)
+            throws DbException, TransactionAbortedException {
+        return readTuples(new SeqScan(tid, f.getId(), "")).size();
+    }
+
+    /**
+     * @return the number of tuples of f, read in a transaction of its own
+     */
+    public static int countTuples(DbFile f) throws DbException, TransactionAbortedException {
+        TransactionId tid = new TransactionId();
+        int n = countTuples(f, tid);
+        Database.getBufferPool().transactionComplete(tid);
+        return n;
+    }
+
+    /**
+     * Insert one tuple into f through the BufferPool as a part of tid.  The
+     * fields of f must be INT_TYPE; field i of the tuple is i + 1.
+     */
+    public static void insertTuple(DbFile f, TransactionId tid)
+            throws DbException, IOException, TransactionAbortedException {
+        Tuple t = new Tuple(f.getTupleDesc());
+        for (int i = 0; i < t.getTupleDesc().numFields(); i++) {
+            t.setField(i, new IntField(i + 1));
+        }
+        Database.getBufferPool().insertTuple(tid, f.getId(), t);
+    }
+
+    /**
+     * Sort rows in place, so that results returned in no particular order
+     * can be compared.
+     *
+     * @return rows
+     */
+    public static List<List<Integer>> sortTuples(List<List<Integer>> rows) {
+        rows.sort(Comparator.comparing(Object::toString));
+        return rows;
+    }
+
     public static void matchTuples(DbFile f, List<List<Integer>> tuples)
             throws DbException, TransactionAbortedException {
         TransactionId tid = new TransactionId();